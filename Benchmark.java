@@ -0,0 +1,259 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/*
+ * 基准测试工具：预热、多轮测量、在独立的 JVM 中重复运行（fork），输出每次操作的平均耗时和 99% 置信区间。
+ * 与具体的服务端实现无关，只负责调度和统计，被测的内容由 Case 提供（参见 ServerBenchmarks）。
+ * 每一轮测量都把操作分批执行，直到达到这一轮的时长，批大小在预热时自动调整。
+ * 结果可以保存为 CSV，下次运行时指定为基线，逐项比较变化，超出误差范围的变化会被标记出来。
+ *
+ * 可以通过系统属性配置：
+ *   bench.warmup      预热轮数，默认 3
+ *   bench.iterations  测量轮数，默认 5
+ *   bench.time        每一轮的时长（毫秒），默认 1000
+ *   bench.forks       在几个新的 JVM 中分别运行，默认 1；为 0 时直接在当前 JVM 中运行
+ *   bench.jvmArgs     新 JVM 的参数，空格分隔，例如 "-Xmx512m -XX:+UseG1GC"
+ *   bench.filter      只运行名称中包含这个字符串的测试
+ *   bench.out         结果保存到这个 CSV 文件
+ *   bench.baseline    与这个 CSV 文件中之前的结果比较
+ */
+public class Benchmark {
+    private static final int WARMUP = Integer.getInteger("bench.warmup", 3);
+    private static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    private static final long ITERATION_NANOS = Long.getLong("bench.time", 1000) * 1_000_000L;
+    private static final int FORKS = Integer.getInteger("bench.forks", 1);
+    private static final String FILTER = System.getProperty("bench.filter", "");
+    private static final String SAMPLE_PREFIX = "@@sample\t"; // 子 JVM 把每一轮的结果以这个前缀输出到标准输出，由父进程收集
+    private static final double[] T_99 = {63.657, 9.925, 5.841, 4.604, 4.032, 3.707, 3.499, 3.355, 3.250, 3.169,
+            3.106, 3.055, 3.012, 2.977, 2.947, 2.921, 2.898, 2.878, 2.861, 2.845}; // 双侧 99% 的 t 分布分位数，自由度 1~20
+
+    private static volatile long sink; // consume 的结果写到这里，防止被测代码的结果没有被使用而被 JIT 消除
+
+    private final Class<?> mainClass; // fork 时在新的 JVM 中运行这个类的 main
+    private final List<Entry> entries = new ArrayList<>();
+
+    Benchmark(Class<?> mainClass) {
+        this.mainClass = mainClass;
+    }
+
+    /* 一项测试。同一个 Case 对象会依次用每个参数值运行：setUp -> 多轮 run -> tearDown */
+    interface Case {
+        void setUp(String param) throws Exception;
+
+        /* 执行 operations 次操作，返回这些操作花费的纳秒数（准备数据等不需要计时的部分可以不计在内） */
+        long run(int operations) throws Exception;
+
+        void tearDown() throws Exception;
+    }
+
+    /* 注册一项测试，params 为空时只运行一次，参数显示为 "-" */
+    Benchmark add(String name, Case benchmarkCase, String... params) {
+        entries.add(new Entry(name, benchmarkCase, params.length == 0 ? new String[] {"-"} : params));
+        return this;
+    }
+
+    /* 把一个值混入 sink，被测代码的计算结果交给它，避免被当作死代码消除 */
+    static void consume(long value) {
+        sink ^= value;
+    }
+
+    static void consume(Object value) {
+        sink ^= System.identityHashCode(value);
+    }
+
+    /* 运行所有测试并输出结果。作为子 JVM 运行时（bench.fork=true）只输出每一轮的原始结果 */
+    void run() throws Exception {
+        boolean child = Boolean.getBoolean("bench.fork");
+        Map<String, List<Double>> samples = new LinkedHashMap<>(); // "名称\t参数" -> 每一轮的 ns/op
+        for (Entry entry : entries) {
+            if (!entry.name.contains(FILTER) || (child && !entry.name.equals(System.getProperty("bench.case")))) {
+                continue;
+            }
+            for (String param : entry.params) {
+                if (child && !param.equals(System.getProperty("bench.param"))) { // 子 JVM 只运行父进程指定的一项
+                    continue;
+                }
+                String key = entry.name + "\t" + param;
+                List<Double> results = child || FORKS == 0 ? measure(entry, param) : fork(entry.name, param);
+                if (child) {
+                    for (double result : results) {
+                        System.out.println(SAMPLE_PREFIX + key + "\t" + result);
+                    }
+                } else {
+                    samples.put(key, results);
+                    System.out.println(format(key, results));
+                }
+            }
+        }
+        if (!child) {
+            report(samples);
+        }
+    }
+
+    /* 在当前 JVM 中运行一项测试的一个参数，返回每一轮测量的 ns/op */
+    private List<Double> measure(Entry entry, String param) throws Exception {
+        System.out.println("# " + entry.name + " [" + param + "]");
+        entry.benchmarkCase.setUp(param);
+        try {
+            int batch = 1;
+            for (int i = 0; i < WARMUP; i++) {
+                long nanos = 0;
+                long operations = 0;
+                while (nanos < ITERATION_NANOS) {
+                    long elapsed = entry.benchmarkCase.run(batch);
+                    nanos += elapsed;
+                    operations += batch;
+                    if (elapsed < ITERATION_NANOS / 20 && batch < (1 << 20)) { // 一批太快时计时误差和调用开销占比过大，加倍
+                        batch *= 2;
+                    }
+                }
+                System.out.printf("  预热 %d: %.1f ns/op%n", i + 1, (double) nanos / operations);
+            }
+            List<Double> results = new ArrayList<>();
+            for (int i = 0; i < ITERATIONS; i++) {
+                long nanos = 0;
+                long operations = 0;
+                while (nanos < ITERATION_NANOS) {
+                    nanos += entry.benchmarkCase.run(batch);
+                    operations += batch;
+                }
+                results.add((double) nanos / operations);
+                System.out.printf("  测量 %d: %.1f ns/op%n", i + 1, (double) nanos / operations);
+            }
+            return results;
+        } finally {
+            entry.benchmarkCase.tearDown();
+        }
+    }
+
+    /* 在新的 JVM 中运行一项测试的一个参数 FORKS 次，每次都从冷启动开始，合并所有测量轮的结果 */
+    private List<Double> fork(String name, String param) throws Exception {
+        List<Double> results = new ArrayList<>();
+        for (int i = 0; i < FORKS; i++) {
+            List<String> command = new ArrayList<>();
+            command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+            for (String arg : System.getProperty("bench.jvmArgs", "").split(" ")) {
+                if (!arg.isEmpty()) {
+                    command.add(arg);
+                }
+            }
+            for (String property : System.getProperties().stringPropertyNames()) { // 传递所有 bench.* 和 chat.* 配置
+                if ((property.startsWith("bench.") || property.startsWith("chat.")) && !property.equals("bench.filter")) {
+                    command.add("-D" + property + "=" + System.getProperty(property));
+                }
+            }
+            command.add("-Dbench.fork=true");
+            command.add("-Dbench.case=" + name);
+            command.add("-Dbench.param=" + param);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(mainClass.getName());
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(SAMPLE_PREFIX)) {
+                        results.add(Double.parseDouble(line.substring(line.lastIndexOf('\t') + 1)));
+                    } else if (line.startsWith("#") || line.startsWith("  ")) { // 只转发进度，被测服务端自己的日志不输出
+                        System.out.println(line);
+                    }
+                }
+            }
+            if (process.waitFor() != 0) {
+                throw new IOException("fork " + (i + 1) + " 异常退出: " + name + " [" + param + "]");
+            }
+        }
+        return results;
+    }
+
+    /* 汇总所有结果，保存到 CSV，并与基线比较 */
+    private void report(Map<String, List<Double>> samples) throws IOException {
+        System.out.println();
+        System.out.println(String.format("%-24s %-10s %14s %12s %14s", "测试", "参数", "ns/op", "误差(99%)", "ops/s"));
+        Map<String, double[]> baseline = loadBaseline(System.getProperty("bench.baseline"));
+        for (Map.Entry<String, List<Double>> entry : samples.entrySet()) {
+            double[] score = score(entry.getValue());
+            String[] key = entry.getKey().split("\t");
+            String line = String.format("%-24s %-10s %14.1f %12.1f %14.0f", key[0], key[1], score[0], score[1], 1e9 / score[0]);
+            double[] before = baseline.get(entry.getKey());
+            if (before != null) {
+                double change = (score[0] - before[0]) / before[0] * 100;
+                boolean significant = Math.abs(score[0] - before[0]) > score[1] + before[1]; // 两次结果的置信区间不重叠
+                line += String.format("  %+.1f%%%s", change, significant ? (change > 0 ? " 变慢" : " 变快") : "");
+            }
+            System.out.println(line);
+        }
+        String out = System.getProperty("bench.out");
+        if (out != null) {
+            try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(out), StandardCharsets.UTF_8))) {
+                writer.println("# " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version")
+                        + ", " + System.getProperty("os.name") + " " + System.getProperty("os.arch")
+                        + ", " + Runtime.getRuntime().availableProcessors() + " CPU"
+                        + ", forks=" + FORKS + " warmup=" + WARMUP + " iterations=" + ITERATIONS + " time=" + ITERATION_NANOS / 1_000_000 + "ms");
+                writer.println("name,param,ns_per_op,error,samples");
+                for (Map.Entry<String, List<Double>> entry : samples.entrySet()) {
+                    double[] score = score(entry.getValue());
+                    writer.printf(Locale.ROOT, "%s,%.3f,%.3f,%d%n", entry.getKey().replace('\t', ','), score[0], score[1], entry.getValue().size());
+                }
+            }
+            System.out.println("结果已保存到 " + out);
+        }
+    }
+
+    /* 读取之前保存的 CSV："名称\t参数" -> {ns/op, 误差} */
+    private static Map<String, double[]> loadBaseline(String file) throws IOException {
+        Map<String, double[]> baseline = new HashMap<>();
+        if (file == null) {
+            return baseline;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(",");
+                if (line.startsWith("#") || fields.length < 4 || fields[0].equals("name")) {
+                    continue;
+                }
+                baseline.put(fields[0] + "\t" + fields[1], new double[] {Double.parseDouble(fields[2]), Double.parseDouble(fields[3])});
+            }
+        }
+        return baseline;
+    }
+
+    /* 平均值和 99% 置信区间的半宽 */
+    static double[] score(List<Double> results) {
+        double mean = 0;
+        for (double result : results) {
+            mean += result;
+        }
+        mean /= results.size();
+        if (results.size() < 2) {
+            return new double[] {mean, Double.NaN};
+        }
+        double variance = 0;
+        for (double result : results) {
+            variance += (result - mean) * (result - mean);
+        }
+        variance /= results.size() - 1;
+        int degrees = results.size() - 1;
+        double t = degrees <= T_99.length ? T_99[degrees - 1] : 2.576; // 样本多时接近正态分布
+        return new double[] {mean, t * Math.sqrt(variance / results.size())};
+    }
+
+    private static String format(String key, List<Double> results) {
+        double[] score = score(results);
+        return String.format("%s [%s]: %.1f ± %.1f ns/op", key.split("\t")[0], key.split("\t")[1], score[0], score[1]);
+    }
+
+    private static final class Entry {
+        final String name;
+        final Case benchmarkCase;
+        final String[] params;
+
+        Entry(String name, Case benchmarkCase, String[] params) {
+            this.name = name;
+            this.benchmarkCase = benchmarkCase;
+            this.params = params;
+        }
+    }
+}
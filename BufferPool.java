@@ -0,0 +1,222 @@
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * 服务端的堆外缓冲区池：按 2 的幂分成若干大小级别（256B ~ 128KB），每个级别从 1MB 的直接内存块上切出缓冲区，
+ * 用完归还到这个级别的空闲列表中反复使用，读写和文件传输的热点路径上不再分配新的字节数组。
+ * 直接内存写入 socket 和文件时也不需要 JDK 先复制到临时的直接缓冲区。
+ *
+ * 缓冲区带引用计数：分配时为 1，每多一个持有者 retain 一次，每个持有者用完 release 一次，减到 0 时归还。
+ * 广播的消息只编码一次，每个接收方的发送队列各持有一次引用，最后一个复制走的接收方把它归还。
+ * 池中的直接内存总量达到上限、或者请求超过最大级别时，分配不入池的堆缓冲区，用完交给垃圾回收。
+ *
+ * 打开泄漏检测（-Dchat.bufferLeakDetection=true）时每次分配记录调用栈，缓冲区没有 release 就被垃圾回收时
+ * 打印分配位置，并把内存收回池中。记录调用栈的开销较大，只在调试时打开
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 8; // 最小级别 256 字节，更小的请求也占用一个最小级别
+    private static final int MAX_SHIFT = 17; // 最大级别 128KB，放得下最长的一帧
+    private static final int SLAB_SIZE = 1 << 20; // 每次向操作系统申请的直接内存块大小
+
+    private final SizeClass[] classes = new SizeClass[MAX_SHIFT - MIN_SHIFT + 1];
+    private final long capacity; // 池中直接内存的上限（字节）
+    private final AtomicLong reserved = new AtomicLong(); // 已经申请的直接内存，只增不减
+    private final LongAdder used = new LongAdder(); // 借出去还没有归还的字节数
+    private final LongAdder leaks = new LongAdder(); // 泄漏检测发现的没有 release 的缓冲区数
+    private final Cleaner cleaner; // 泄漏检测：缓冲区不可达时得到通知，不检测时为 null
+
+    BufferPool(long capacity, boolean leakDetection) {
+        this.capacity = capacity;
+        this.cleaner = leakDetection ? Cleaner.create() : null;
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass(1 << (MIN_SHIFT + i));
+        }
+    }
+
+    /* 取得一个容量不小于 size 的缓冲区（position 为 0，limit 为容量），用完必须 release */
+    Buffer allocate(int size) {
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1)); // 向上取整到 2 的幂
+        if (shift > MAX_SHIFT) {
+            return new Buffer(null, ByteBuffer.allocate(size), -1);
+        }
+        SizeClass sizeClass = classes[shift - MIN_SHIFT];
+        Buffer buffer = sizeClass.poll();
+        if (buffer == null) {
+            return new Buffer(null, ByteBuffer.allocate(size), -1); // 池已经用到上限
+        }
+        buffer.refs.set(1);
+        buffer.data.clear();
+        used.add(sizeClass.size);
+        if (cleaner != null) {
+            Leak leak = new Leak(this, buffer.data, shift - MIN_SHIFT);
+            leak.cleanable = cleaner.register(buffer, leak);
+            buffer.leak = leak;
+        }
+        return buffer;
+    }
+
+    /* 把不在池中的数据（日志映射内存中的帧、握手回复）包装成可以放入发送队列的缓冲区，release 时什么都不做 */
+    static Buffer wrap(ByteBuffer data) {
+        return new Buffer(null, data, -1);
+    }
+
+    /*
+     * 把 src 中从 offset 开始的 length 个字节追加到 dst，不移动 src 的 position：
+     * 共享的缓冲区被多个线程同时读取，每次 duplicate 又要分配一个对象。按 8 字节一次复制
+     */
+    static void copy(ByteBuffer src, int offset, int length, ByteBuffer dst) {
+        int end = offset + length;
+        for (; offset + 8 <= end; offset += 8) {
+            dst.putLong(src.getLong(offset));
+        }
+        for (; offset < end; offset++) {
+            dst.put(src.get(offset));
+        }
+    }
+
+    /* 引用计数减到 0 的缓冲区回到所属级别的空闲列表 */
+    private void recycle(Buffer buffer) {
+        Leak leak = buffer.leak;
+        if (leak != null) { // 正常归还，取消泄漏检测（clean 会执行一次检测动作，但它看到已经归还就直接返回）
+            buffer.leak = null;
+            leak.released = true;
+            leak.cleanable.clean();
+        }
+        SizeClass sizeClass = classes[buffer.sizeClass];
+        used.add(-sizeClass.size);
+        sizeClass.offer(buffer);
+    }
+
+    /* 池中已经申请的直接内存（字节） */
+    long reservedBytes() {
+        return reserved.get();
+    }
+
+    /* 借出去还没有归还的字节数 */
+    long usedBytes() {
+        return used.sum();
+    }
+
+    long leakCount() {
+        return leaks.sum();
+    }
+
+    /* 一个大小级别：空闲的缓冲区，用完时再切一块直接内存 */
+    private final class SizeClass {
+        final int size;
+        private final ArrayDeque<Buffer> free = new ArrayDeque<>(); // 访问时对它加锁，各个事件循环线程都会借还
+
+        SizeClass(int size) {
+            this.size = size;
+        }
+
+        Buffer poll() {
+            synchronized (free) {
+                Buffer buffer = free.poll();
+                if (buffer != null || !carve()) {
+                    return buffer;
+                }
+                return free.poll();
+            }
+        }
+
+        void offer(Buffer buffer) {
+            synchronized (free) {
+                free.push(buffer); // 后进先出，最近用过的缓冲区更可能还在 CPU 缓存中
+            }
+        }
+
+        /* 申请一块直接内存切成这个级别的缓冲区，超过池的上限时返回 false */
+        private boolean carve() {
+            if (reserved.addAndGet(SLAB_SIZE) > capacity) {
+                reserved.addAndGet(-SLAB_SIZE);
+                return false;
+            }
+            ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+            int index = Integer.numberOfTrailingZeros(size) - MIN_SHIFT;
+            for (int offset = 0; offset < SLAB_SIZE; offset += size) {
+                slab.limit(offset + size).position(offset);
+                free.push(new Buffer(BufferPool.this, slab.slice(), index));
+            }
+            return true;
+        }
+    }
+
+    /* 池中借出的一个缓冲区。data 的内容和 position/limit 由持有者维护，共享给多个持有者后只按绝对位置读取（见 copy） */
+    static final class Buffer {
+        private final BufferPool pool; // 不在池中的缓冲区为 null
+        private final ByteBuffer data;
+        private final int sizeClass;
+        private final AtomicInteger refs = new AtomicInteger(1); // 引用计数
+        private Leak leak; // 泄漏检测的记录，没有打开检测时为 null
+
+        private Buffer(BufferPool pool, ByteBuffer data, int sizeClass) {
+            this.pool = pool;
+            this.data = data;
+            this.sizeClass = sizeClass;
+        }
+
+        ByteBuffer data() {
+            return data;
+        }
+
+        /* 增加一个持有者 */
+        Buffer retain() {
+            while (true) {
+                int count = refs.get();
+                if (count <= 0) {
+                    throw new IllegalStateException("缓冲区已经归还");
+                }
+                if (refs.compareAndSet(count, count + 1)) {
+                    return this;
+                }
+            }
+        }
+
+        /* 一个持有者用完，最后一个持有者用完时归还到池中 */
+        void release() {
+            int count = refs.decrementAndGet();
+            if (count == 0 && pool != null) {
+                pool.recycle(this);
+            } else if (count < 0) {
+                throw new IllegalStateException("缓冲区重复归还");
+            }
+        }
+    }
+
+    /*
+     * 一次分配的泄漏检测记录，由 Cleaner 在 Buffer 不可达时调用。只引用内存本身不引用 Buffer，
+     * 否则 Buffer 永远可达。发现泄漏时用同一块内存新建一个 Buffer 放回池中
+     */
+    private static final class Leak implements Runnable {
+        private final BufferPool pool;
+        private final ByteBuffer data;
+        private final int sizeClass;
+        private final Throwable allocated = new Throwable("缓冲区分配位置"); // 分配时的调用栈
+        private volatile boolean released;
+        private Cleaner.Cleanable cleanable;
+
+        Leak(BufferPool pool, ByteBuffer data, int sizeClass) {
+            this.pool = pool;
+            this.data = data;
+            this.sizeClass = sizeClass;
+        }
+
+        @Override
+        public void run() {
+            if (released) {
+                return;
+            }
+            System.err.println("缓冲区没有 release 就被回收了，" + data.capacity() + " 字节");
+            allocated.printStackTrace();
+            SizeClass sizeClass = pool.classes[this.sizeClass];
+            pool.used.add(-sizeClass.size);
+            sizeClass.offer(new Buffer(pool, data, this.sizeClass));
+            pool.leaks.increment(); // 内存收回之后再计数，看到泄漏数增加时用量已经扣除
+        }
+    }
+}
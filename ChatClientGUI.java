@@ -2,8 +2,11 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
-import java.net.*;
 import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 // ChatClientGUI 类继承自 JFrame，用于创建聊天客户端的图形用户界面。
 public class ChatClientGUI extends JFrame {
@@ -11,13 +14,31 @@ public class ChatClientGUI extends JFrame {
     private JTextField messageField;  // 输入消息的文本框
     private JList<String> userList; // 在线用户列表
     private JList<String> fileList; // 文件列表
-    private DefaultListModel<String> userListModel; // 在线用户列表模型
-    private DefaultListModel<String> fileListModel; // 文件列表模型
-    private Socket socket; // 客户端套接字
-    private PrintWriter writer; // 用于向服务器发送消息的 PrintWriter
-    private BufferedReader reader; // 用于从服务器读取消息的 BufferedReader
+    private BatchedList userListModel; // 在线用户列表模型
+    private BatchedList fileListModel; // 文件列表模型
+    private JProgressBar transferBar; // 正在进行的上传和下载的总进度，没有传输时隐藏
+    private JButton moreFilesButton; // 加载文件列表的下一页
+    private String filePrefix = ""; // 文件列表当前查询的文件名前缀
+    private boolean replaceFiles; // 下一个 FILE_PAGE 是新查询的第一页，收到后替换整个文件列表
+    private String lastListedFile = ""; // 已经查询到的最后一个文件名（按文件名排序），下一页从它之后开始；FILE_ADDED 加入的文件不影响它
+    private final Map<String, String> fileDetails = new ConcurrentHashMap<>(); // 文件名 -> 大小、上传者、时间，鼠标停在文件上时显示
+    private JComboBox<String> roomBox; // 房间切换框，可以选择已有的房间，也可以输入新的房间名
+    private DefaultComboBoxModel<String> roomListModel; // 房间列表模型
+    private String currentRoom; // 当前所在的房间
+    private boolean updatingRooms; // 正在根据服务器的消息更新房间切换框，此时的选择事件不是用户操作
+    private ChatConnection connection; // 网络层：聊天连接和文件传输连接都在这里，回调在它的 I/O 线程中
+    private boolean binary; // 服务器是否接受了二进制协议，否则使用旧的文本协议
+    private final Queue<ChatProtocol.Frame> inbox = new ConcurrentLinkedQueue<>(); // I/O 线程收到的消息，等待事件分派线程批量处理
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(); // 已经提交了处理 inbox 的任务，还没有开始执行
+    private final StringBuilder pendingChat = new StringBuilder(); // 这一批消息中要追加到聊天区域的文字，批量处理完后一次追加
+    private final Map<String, long[]> transfers = new ConcurrentHashMap<>(); // 进行中的传输 -> {已完成字节数, 总字节数}
+    private long lastMessageId; // 收到的最后一条聊天消息的 ID，重新登录时服务器只需补发这之后的消息
     private String username; // 用户名
     private File downloadDirectory; // 下载目录
+    private static final int FILE_PAGE_SIZE = 200; // 文件列表每页的文件数
+    private static final int DRAIN_BATCH = 2000; // 事件分派线程每轮最多处理的消息数，剩下的下一轮再处理，让界面有机会响应输入和重绘
+    private static String serverHost = "localhost"; // 服务器地址，可以通过命令行参数指定
+    private static int serverPort = 9999; // 服务器端口，连接集群中的不同节点时指定不同的端口
 
     public ChatClientGUI() {
         // 可以不调用super()，继承JFrame类后，默认会调用父类的无参构造函数
@@ -41,8 +62,8 @@ public class ChatClientGUI extends JFrame {
         this.add(new JScrollPane(chatArea), BorderLayout.CENTER); // 将聊天区域放入一个滚动面板中，添加到窗口的中心位
         
         // 用户列表
-        userListModel = new DefaultListModel<>(); // 创建一个DefaultListModel，用于存储在线用户
-        userList = new JList<>(userListModel); // 创建一个JList，用于显示在线用户
+        userListModel = new BatchedList(); // 用于存储在线用户，上下线事件批量更新到它的 DefaultListModel
+        userList = new JList<>(userListModel.model); // 创建一个JList，用于显示在线用户
         // DefaultListModel用来存储字符串数据，并创建了一个JList来显示这些数据。将数据和视图分离，使得数据的管理和界面的显示可以独立进行。
         userList.addMouseListener(new MouseAdapter() { // 给用户列表添加鼠标监听器
             @Override
@@ -59,8 +80,16 @@ public class ChatClientGUI extends JFrame {
         });
         
         // 文件列表
-        fileListModel = new DefaultListModel<>(); // 创建一个DefaultListModel，用于存储文件列表
-        fileList = new JList<>(fileListModel); // 创建一个JList，用于显示文件列表
+        fileListModel = new BatchedList(); // 用于存储文件列表
+        fileList = new JList<String>(fileListModel.model) { // 创建一个JList，用于显示文件列表
+            @Override
+            public String getToolTipText(MouseEvent e) { // 鼠标停在文件上时显示服务器文件目录中的元数据
+                int index = locationToIndex(e.getPoint());
+                return index < 0 ? null : fileDetails.get(fileListModel.model.getElementAt(index));
+            }
+        };
+        JTextField fileFilter = new JTextField(); // 输入文件名前缀后回车，只列出以它开头的文件
+        moreFilesButton = new JButton("更多文件");
         
         // 给用户列表和文件列表添加标签
         JLabel userListLabel = new JLabel("在线用户（双击用户名私聊）"); // 创建一个标签，用于显示在线用户列表的标题
@@ -73,8 +102,12 @@ public class ChatClientGUI extends JFrame {
         
         // 文件列表面板，包含文件列表（存放在一个滚动面板中）和标签
         JPanel filePanel = new JPanel(new BorderLayout()); // 创建一个面板，用于存放文件列表
-        filePanel.add(fileListLabel, BorderLayout.NORTH); // 将标签添加到面板的北边（顶部）
+        JPanel fileHeader = new JPanel(new GridLayout(2, 1)); // 标签和前缀输入框
+        fileHeader.add(fileListLabel);
+        fileHeader.add(fileFilter);
+        filePanel.add(fileHeader, BorderLayout.NORTH); // 将标签添加到面板的北边（顶部）
         filePanel.add(new JScrollPane(fileList), BorderLayout.CENTER); // 将文件列表添加到面板的中心位置
+        filePanel.add(moreFilesButton, BorderLayout.SOUTH);
         
         // 右侧面板，包含在线用户列表面板和文件列表面板
         JPanel rightPanel = new JPanel(new GridLayout(2, 1)); // 创建一个两行一列的面板
@@ -92,6 +125,10 @@ public class ChatClientGUI extends JFrame {
         JPanel buttonPanel = new JPanel(new FlowLayout()); // 创建一个按钮面板，用于存放按钮
         buttonPanel.add(sendButton); // 将发送按钮添加到按钮面板
         buttonPanel.add(fileButton); // 将上传文件按钮添加到按钮面板
+        transferBar = new JProgressBar(0, 1000);
+        transferBar.setStringPainted(true);
+        transferBar.setVisible(false);
+        buttonPanel.add(transferBar, 0); // 进度条放在按钮左边
         
         // 底部面板，包含输入框和按钮面板
         JPanel bottomPanel = new JPanel(new BorderLayout()); // 创建一个底部面板，用于存放输入框和按钮面板
@@ -99,6 +136,17 @@ public class ChatClientGUI extends JFrame {
         bottomPanel.add(messageField, BorderLayout.CENTER); // 将输入框添加到底部面板的中心位置
         bottomPanel.add(buttonPanel, BorderLayout.EAST); // 将按钮面板添加到底部面板的东边（右侧）
         
+        // 顶部面板，包含房间切换框和离开房间按钮
+        roomListModel = new DefaultComboBoxModel<>(); // 创建一个DefaultComboBoxModel，用于存储房间列表
+        roomBox = new JComboBox<>(roomListModel); // 创建一个下拉框，用于切换房间
+        roomBox.setEditable(true); // 可以直接输入房间名，房间不存在时服务器会创建
+        JButton leaveButton = new JButton("离开房间"); // 创建一个按钮，用于离开当前房间回到大厅
+        JPanel topPanel = new JPanel(new BorderLayout(5, 5)); // 创建一个顶部面板，用于存放房间切换框和按钮
+        topPanel.add(new JLabel("房间（选择或输入房间名后回车）"), BorderLayout.WEST);
+        topPanel.add(roomBox, BorderLayout.CENTER);
+        topPanel.add(leaveButton, BorderLayout.EAST);
+
+        this.add(topPanel, BorderLayout.NORTH); // 将顶部面板添加到窗口的北边（顶部）
         this.add(rightPanel, BorderLayout.EAST); // 将右侧面板添加到窗口的东边（右侧）
         this.add(bottomPanel, BorderLayout.SOUTH); // 将底部面板添加到窗口的南边（底部）
 
@@ -106,6 +154,15 @@ public class ChatClientGUI extends JFrame {
         messageField.addActionListener(e -> sendMessage()); // 当按下回车键时，发送消息
         sendButton.addActionListener(e -> sendMessage()); // 当点击发送按钮时，发送消息
         fileButton.addActionListener(e -> uploadFile()); // 当点击上传文件按钮时，上传文件
+        roomBox.addActionListener(e -> { // 选择了另一个房间或者输入了新的房间名
+            Object selected = roomBox.getSelectedItem();
+            if (!updatingRooms && selected != null && !selected.toString().trim().isEmpty() && !selected.toString().trim().equals(currentRoom)) {
+                switchRoom(selected.toString().trim());
+            }
+        });
+        leaveButton.addActionListener(e -> switchRoom(null)); // 当点击离开房间按钮时，回到大厅
+        fileFilter.addActionListener(e -> queryFiles(fileFilter.getText(), true)); // 按前缀重新查询文件列表
+        moreFilesButton.addActionListener(e -> queryFiles(filePrefix, false)); // 接着列表中最后一个文件查询下一页
         // ActionListener 接口类有一个抽象方法 actionPerformed(ActionEvent e)
         // e->sendMessage() 是一个 lambda 表达式，重写了 actionPerformed 方法，
         // 当按钮被点击时，将会调用 sendMessage 方法。
@@ -134,171 +191,376 @@ public class ChatClientGUI extends JFrame {
     /* 在面板初始化完成后调用的方法 */
     private void connectToServer() {
         try {
-            socket = new Socket("localhost", 9999); // 创建一个Socket连接到服务器，IP地址为localhost，端口号为9999
-            writer = new PrintWriter(socket.getOutputStream(), true); // 创建一个PrintWriter，用于向服务器发送消息
-            reader = new BufferedReader(new InputStreamReader(socket.getInputStream())); // 创建一个BufferedReader，用于从服务器接收消息
-
-            // 发送用户名
-            writer.println(username); // 连接服务器第一件事，发送用户名
-            
-            // 启动接收消息的线程
-            new Thread(() -> { // 创建一个线程，用于接收服务器发送的消息
-                try {
-                    String message; // 用于存储从服务器接收到的消息
-                    while ((message = reader.readLine()) != null) { // 读到一行消息，并且不为空
-                        if (message.equals("USERNAME_TAKEN")) { // 如果消息是“USERNAME_TAKEN”，则表示用户名已被使用
-                            JOptionPane.showMessageDialog(this, "用户名已被使用"); // 提示用户名已被使用
-                            System.exit(0); // 退出程序
-                        } else if (message.startsWith("USERS:")) { // 如果消息以“USERS:”开头，则表示消息是用户列表
-                            updateUserList(message.substring(6)); // 更新用户列表
-                        } else if (message.startsWith("FILES:")) { // 如果消息以“FILES:”开头，则表示消息是文件列表
-                            updateFileList(message.substring(6)); // 更新文件列表
-                        } else { // 其他：普通聊天消息
-                            chatArea.append(message + "\n"); // 将消息添加到聊天窗口中
-                            chatArea.setCaretPosition(chatArea.getDocument().getLength()); // 设置光标位置到文本的末尾
-                        }
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
+            connection = new ChatConnection(serverHost, serverPort, new ChatConnection.Listener() {
+                @Override
+                public void message(byte type, String payload) {
+                    inbox.add(new ChatProtocol.Frame(type, payload));
+                    scheduleDrain();
                 }
-            }).start();
 
-        } catch (IOException e) {
+                @Override
+                public void closed(Throwable cause) {
+                    cause.printStackTrace();
+                    inbox.add(new ChatProtocol.Frame(ChatProtocol.TEXT, "与服务器的连接已断开"));
+                    scheduleDrain();
+                }
+            });
+            connection.connect().get(); // 只在启动时等待连接和握手完成（最多等待 2 秒判断服务器是否支持二进制协议）
+        } catch (Exception e) {
             e.printStackTrace();
             JOptionPane.showMessageDialog(this, "无法连接到服务器");
             System.exit(1);
         }
+        binary = connection.isBinary();
+        if (binary) {
+            connection.send(ChatProtocol.LOGIN, lastMessageId > 0 ? username + "\n" + lastMessageId : username); // 连接服务器第一件事，发送用户名（重新连接时带上最后收到的消息 ID）
+        } else {
+            connection.sendLine(username); // 连接服务器第一件事，发送用户名
+        }
+    }
+
+    /* 提交一个处理 inbox 的任务，已经提交了还没开始执行时不重复提交，同一时间到达的消息在一轮中处理 */
+    private void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::drain);
+        }
+    }
+
+    /* 在事件分派线程中处理积压的消息，列表模型和聊天区域在这一轮结束时才刷新一次 */
+    private void drain() {
+        drainScheduled.set(false); // 先清除标记，处理期间到达的消息会再提交一轮
+        ChatProtocol.Frame frame;
+        for (int i = 0; i < DRAIN_BATCH && (frame = inbox.poll()) != null; i++) {
+            handleServerMessage(frame.type, frame.payload);
+        }
+        if (!inbox.isEmpty()) {
+            scheduleDrain();
+        }
+        userListModel.flush();
+        fileListModel.flush();
+        if (pendingChat.length() > 0) {
+            chatArea.append(pendingChat.toString()); // 将消息添加到聊天窗口中
+            chatArea.setCaretPosition(chatArea.getDocument().getLength()); // 设置光标位置到文本的末尾
+            pendingChat.setLength(0);
+        }
+        updateTransferBar();
+    }
+
+    /* 处理服务器发来的一条消息，两种协议共用 */
+    private void handleServerMessage(byte type, String payload) {
+        switch (type) {
+            case ChatProtocol.USERNAME_TAKEN: // 用户名已被使用
+                JOptionPane.showMessageDialog(this, "用户名已被使用"); // 提示用户名已被使用
+                System.exit(0); // 退出程序
+                break;
+            case ChatProtocol.USERS:
+                updateUserList(payload); // 更新用户列表
+                break;
+            case ChatProtocol.FILES:
+                updateFileList(payload); // 更新文件列表
+                moreFilesButton.setEnabled(binary); // 文件很多时服务器只发送第一部分，其余的分页查询
+                break;
+            case ChatProtocol.FILE_PAGE: // 分页查询的结果，第一行是查询的前缀，第二行表示是否还有下一页，之后每行一个文件
+                String[] lines = payload.split("\n");
+                if (!lines[0].equals(filePrefix)) { // 前缀已经改变，丢弃之前查询的结果
+                    break;
+                }
+                if (replaceFiles) {
+                    replaceFiles = false;
+                    fileListModel.clear();
+                    lastListedFile = "";
+                }
+                for (int i = 2; i < lines.length; i++) {
+                    String[] fields = lines[i].split("\t", 5); // 哈希、大小、时间、上传者、文件名
+                    fileDetails.put(fields[4], fields[1] + " 字节，" + (fields[3].isEmpty() ? "" : fields[3] + " 上传于 ")
+                            + new Date(Long.parseLong(fields[2])) + "，SHA-256 " + fields[0].substring(0, 16) + "…");
+                    fileListModel.add(fields[4]);
+                    lastListedFile = fields[4];
+                }
+                moreFilesButton.setEnabled(lines.length > 1 && lines[1].equals("1"));
+                break;
+            case ChatProtocol.SEARCH_RESULTS: // 搜索结果，第一行是查询，之后每行一条消息：ID、房间、消息内容
+                String[] results = payload.split("\n");
+                pendingChat.append("—— 搜索“").append(results[0]).append("”找到 ").append(results.length - 1).append(" 条消息 ——\n");
+                for (int i = 1; i < results.length; i++) {
+                    String[] fields = results[i].split("\t", 3);
+                    pendingChat.append("[").append(fields[1].isEmpty() ? "" : fields[1] + " ").append("#").append(fields[0]).append("] ").append(fields[2]).append("\n");
+                }
+                break;
+            case ChatProtocol.USER_JOIN: // 有用户加入，只需把这个用户加入列表
+                userListModel.add(payload);
+                break;
+            case ChatProtocol.USER_LEAVE: // 有用户离开，只需把这个用户从列表中移除
+                userListModel.remove(payload);
+                break;
+            case ChatProtocol.FILE_ADDED: // 有新上传的文件
+                fileDetails.remove(payload); // 同名文件可能指向了新内容，元数据在下次查询时更新
+                if (payload.startsWith(filePrefix)) { // 只显示符合当前前缀的文件
+                    fileListModel.add(payload);
+                }
+                break;
+            case ChatProtocol.FILE_REMOVED: // 有文件被移除
+                fileListModel.remove(payload);
+                fileDetails.remove(payload);
+                break;
+            case ChatProtocol.ROOM: // 进入了一个房间，接下来是这个房间的成员列表和历史消息
+                currentRoom = payload;
+                pendingChat.setLength(0);
+                chatArea.setText(""); // 清空上一个房间的聊天记录
+                this.setTitle(username + " 的聊天室 - " + payload);
+                updatingRooms = true;
+                if (roomListModel.getIndexOf(payload) < 0) {
+                    roomListModel.addElement(payload);
+                }
+                roomBox.setSelectedItem(payload);
+                updatingRooms = false;
+                break;
+            case ChatProtocol.ROOMS: // 完整的房间列表，只在登录时收到一次
+                updatingRooms = true;
+                roomListModel.removeAllElements();
+                for (String room : payload.split(",")) {
+                    if (!room.isEmpty()) {
+                        roomListModel.addElement(room);
+                    }
+                }
+                updatingRooms = false;
+                break;
+            case ChatProtocol.ROOM_ADDED: // 有新建的房间
+                if (roomListModel.getIndexOf(payload) < 0) {
+                    updatingRooms = true;
+                    roomListModel.addElement(payload);
+                    updatingRooms = false;
+                }
+                break;
+            case ChatProtocol.ROOM_REMOVED: // 房间的最后一个成员离开了
+                if (!payload.equals(currentRoom)) {
+                    updatingRooms = true;
+                    roomListModel.removeElement(payload);
+                    updatingRooms = false;
+                }
+                break;
+            case ChatProtocol.CHAT_MESSAGE: // 带消息 ID 的聊天消息，登录时补发的历史消息也是这种格式
+                int newline = payload.indexOf('\n');
+                lastMessageId = Math.max(lastMessageId, Long.parseLong(payload.substring(0, newline)));
+                handleServerMessage(ChatProtocol.TEXT, payload.substring(newline + 1));
+                break;
+            case ChatProtocol.THROTTLED: // 发送过快或服务器繁忙，刚才的消息没有被发出
+                handleServerMessage(ChatProtocol.TEXT, "服务器: " + payload.substring(payload.indexOf('\n') + 1));
+                break;
+            default: // 其他：普通聊天消息，这一批处理完后一起追加到聊天窗口中
+                pendingChat.append(payload).append('\n');
+        }
     }
 
     /* 发送消息 */
     private void sendMessage() {
         String message = messageField.getText().trim(); // 获取输入框中的消息，并去掉前后空格
         if (!message.isEmpty()) { // 如果消息不为空
-            if (message.startsWith("@")) { // 如果是私聊消息
-                int spaceIndex = message.indexOf(" "); // 查找第一个空格的位置
-                if (spaceIndex > 1) { // 如果空格位置大于1，表示有接收者（@u ）
-                    String recipient = message.substring(1, spaceIndex); // 获取接收者的用户名（索引左闭右开）
-                    boolean isRecipientOnline = false; // 检查接收者是否在线
-                    for (int i=0; i<userListModel.getSize(); i++) { // 遍历在线用户列表
-                        if (userListModel.getElementAt(i).equals(recipient)) { // 如果找到接收者
-                        // getElementAt(i) 是 DefaultListModel 类中的一个方法，用于获取列表中指定索引 i 处的元素
-                            isRecipientOnline = true;
-                            break;
-                        }
-                    }
-                    if (!isRecipientOnline) { // 如果接收者不在线
-                        JOptionPane.showMessageDialog(this, "用户 " + recipient + " 不在线");
-                        return;
-                        // 弹窗显示“用户xxx不在线”，然后返回，不发送消息
-                    }
+            // 用户列表只包含当前房间的成员，私聊的接收者可能在别的房间，是否在线由服务器判断并回复
+            if (binary) { // 写入发送队列后立即返回，连接断开时会在聊天区域提示
+                int spaceIndex = message.indexOf(" ");
+                if (message.startsWith("@") && spaceIndex > 1) { // 私聊消息，负载为“接收者 消息内容”
+                    connection.send(ChatProtocol.PRIVATE, message.substring(1));
+                } else if (message.startsWith("/search ")) { // 搜索聊天记录，结果只显示给自己
+                    connection.send(ChatProtocol.SEARCH, message.substring(8).trim());
+                } else {
+                    connection.send(ChatProtocol.CHAT, message);
                 }
+            } else {
+                connection.sendLine(message); // 正常发送消息
             }
-            // 如果是群聊消息，或者私聊消息的接收者在线，将会来到此处
-            writer.println(message); // 正常发送消息
             messageField.setText(""); // 清空输入框
         }
     }
 
-    /* 上传文件 */
+    /* 进入另一个房间，room 为 null 时离开当前房间回到大厅。服务器回复 ROOM 后才真正切换 */
+    private void switchRoom(String room) {
+        if (binary) {
+            if (room == null) {
+                connection.send(ChatProtocol.LEAVE_ROOM, "");
+            } else {
+                connection.send(ChatProtocol.JOIN_ROOM, room);
+            }
+        } else {
+            connection.sendLine(room == null ? "/leave" : "/join " + room); // 旧文本协议用命令切换房间
+        }
+    }
+
+    /*
+     * 查询以 prefix 开头的文件。reset 为 true 时从第一页开始并替换整个列表，否则从列表中最后一个文件之后接着查询下一页。
+     * 旧文本协议没有分页，服务器把查询结果作为聊天消息回复
+     */
+    private void queryFiles(String prefix, boolean reset) {
+        if (!binary) {
+            connection.sendLine("/files " + prefix);
+            return;
+        }
+        String after = reset ? "" : lastListedFile;
+        filePrefix = prefix;
+        replaceFiles = reset;
+        connection.send(ChatProtocol.FILE_QUERY, prefix + "\n" + after + "\n" + FILE_PAGE_SIZE);
+    }
+
+    /*
+     * 上传文件。传输在网络层的 I/O 线程中进行，界面不会卡住，进度显示在进度条上。
+     * 二进制协议下分块上传，中断后再次上传同一文件只需发送缺少的分块
+     */
     private void uploadFile() {
         JFileChooser fileChooser = new JFileChooser(); // 创建一个文件选择器（文件选择窗口），用于选择要上传的文件
         if (fileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) { // 如果选择了文件
             File file = fileChooser.getSelectedFile(); // 获取选择的文件
-            try {
-                writer.println("FILE:"); // 发送文件上传请求
-                writer.println(file.getName()); // 发送文件名
-                writer.println(file.length()); // 发送文件大小
-
-                FileInputStream fileInStream = new FileInputStream(file); // 创建一个文件输入流，用于读取文件内容
-                OutputStream outStream = socket.getOutputStream(); // 获取Socket的输出流，用于向服务器发送文件内容
-                
-                byte[] buffer = new byte[4096];
-                int read;
-                while ((read = fileInStream.read(buffer)) != -1) { // 读取文件内容
-                    outStream.write(buffer, 0, read); // 通过输出流发送文件内容
+            String transfer = "上传 " + file.getName();
+            connection.upload(file, progress(transfer)).whenComplete((v, e) -> SwingUtilities.invokeLater(() -> {
+                finishTransfer(transfer);
+                if (e != null) {
+                    e.printStackTrace();
+                    JOptionPane.showMessageDialog(this, binary ? "文件上传失败，再次上传同一文件时会从已确认的分块继续" : "文件上传失败");
                 }
-                outStream.flush(); // 刷新输出流，确保所有数据都被发送
-                fileInStream.close(); // 关闭文件输入流
-            } catch (IOException e) {
-                e.printStackTrace();
-                JOptionPane.showMessageDialog(this, "文件上传失败");
-            }
+            }));
         }
     }
 
+    /* 下载文件。二进制协议下支持断点续传和大文件分段并行下载，旧文本协议只能整个文件下载 */
     private void downloadFile(String fileName) {
-        try {
-            // 创建新的 socket 连接专门用于文件传输
-            Socket fileSocket = new Socket("localhost", 9999); // 连接到服务器
-            PrintWriter fileWriter = new PrintWriter(fileSocket.getOutputStream(), true); // 创建一个 PrintWriter，用于向服务器发送文件下载请求
-            BufferedReader fileReader = new BufferedReader(new InputStreamReader(fileSocket.getInputStream())); // 创建一个 BufferedReader，用于从服务器读取文件下载响应
-            
-            // 发送下载请求
-            fileWriter.println("FILE_DOWNLOAD_REQUEST"); // 发送文件下载请求消息
-            fileWriter.println(fileName); // 发送文件名
-            
-            String response = fileReader.readLine();
-            
-            if (response.equals("FILE_NOT_FOUND")) {
+        String transfer = "下载 " + fileName;
+        connection.download(fileName, downloadDirectory, progress(transfer)).whenComplete((file, e) -> SwingUtilities.invokeLater(() -> {
+            finishTransfer(transfer);
+            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            if (cause instanceof FileNotFoundException) {
                 JOptionPane.showMessageDialog(this, "文件不存在");
-                fileSocket.close();
-                return;
-            }
-            
-            if (response.equals("FILE_START")) {
-                long fileSize = Long.parseLong(fileReader.readLine());
-                File file = new File(downloadDirectory, fileName);
-                FileOutputStream fileOutStream = new FileOutputStream(file);
-                InputStream inStream = fileSocket.getInputStream();
-                
-                byte[] buffer = new byte[4096];
-                long remaining = fileSize;
-                int read;
-                
-                while (remaining > 0 && (read = inStream.read(buffer, 0, (int)Math.min(buffer.length, remaining))) != -1) {
-                    fileOutStream.write(buffer, 0, read);
-                    remaining -= read;
-                }
-                
-                fileOutStream.close();
-                fileSocket.close();
-                
+            } else if (cause != null) {
+                cause.printStackTrace();
+                JOptionPane.showMessageDialog(this, binary ? "文件下载失败，再次下载时会从中断的位置继续" : "文件下载失败");
+            } else {
                 JOptionPane.showMessageDialog(this, "文件下载完成: " + file.getAbsolutePath());
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(this, "文件下载失败");
+        }));
+    }
+
+    /* 记录一个传输的进度。回调在 I/O 线程中，只更新数字，进度条随下一轮批量处理刷新 */
+    private ChatConnection.Progress progress(String transfer) {
+        long[] state = {0, 0};
+        transfers.put(transfer, state);
+        return (done, total) -> {
+            synchronized (state) {
+                state[0] = done;
+                state[1] = total;
+            }
+            scheduleDrain();
+        };
+    }
+
+    private void finishTransfer(String transfer) {
+        transfers.remove(transfer);
+        updateTransferBar();
+    }
+
+    /* 进度条显示所有进行中的传输的合计进度 */
+    private void updateTransferBar() {
+        long done = 0;
+        long total = 0;
+        for (long[] state : transfers.values()) {
+            synchronized (state) {
+                done += state[0];
+                total += state[1];
+            }
+        }
+        transferBar.setVisible(!transfers.isEmpty());
+        if (total > 0) {
+            transferBar.setValue((int) (done * 1000 / total));
+            transferBar.setString((transfers.size() == 1 ? transfers.keySet().iterator().next() : transfers.size() + " 个传输") + " " + done * 100 / total + "%");
         }
     }
 
-    /* 更新用户列表 */
+    /* 更新用户列表，只在登录时收到一次完整列表 */
     private void updateUserList(String users) {
         userListModel.clear(); // 清空用户列表
         for (String user : users.split(",")) { // 遍历用户列表(以逗号分隔)
             // split方法用于将字符串分割成数组，返回一个字符串数组
-            if (!user.isEmpty()) { // 如果用户不为空
-                userListModel.addElement(user); // 将用户添加到用户列表模型中
-            }
+            userListModel.add(user); // 将用户添加到用户列表模型中，空字符串会被忽略
         }
     }
 
-    /* 更新文件列表 */
+    /* 更新文件列表，只在登录时收到一次完整列表 */
     private void updateFileList(String files) {
         fileListModel.clear(); // 清空文件列表
         for (String file: files.split(",")) { // 遍历文件列表(以逗号分隔)
             // split方法用于将字符串分割成数组，返回一个字符串数组
             if (!file.isEmpty()) { // 如果文件不为空
-                fileListModel.addElement(file); // 将文件添加到文件列表模型中
+                fileListModel.add(file); // 将文件添加到文件列表模型中
+                lastListedFile = file;
             }
         }
     }
 
+    /*
+     * 列表模型的批量更新：一轮消息中的增删先合并到 items 中，flush 时再同步到 Swing 的列表模型。
+     * 改动少时逐个增删（保留选中项），改动多时整体替换，几千个上下线事件只触发一次重绘；判断元素是否存在也不用遍历模型
+     */
+    private static final class BatchedList {
+        private static final int REBUILD_CHANGES = 64; // 一轮的改动超过这么多时整体替换模型的内容
+        final DefaultListModel<String> model = new DefaultListModel<>();
+        private final LinkedHashSet<String> items = new LinkedHashSet<>(); // 合并改动后列表应有的内容，按加入的顺序
+        private final LinkedHashSet<String> shown = new LinkedHashSet<>(); // 模型中现在的内容
+        private int changes; // 上次 flush 之后的改动数
+
+        /* 已经存在时不重复添加（登录时的完整列表可能已经包含了随后到达的增量） */
+        void add(String element) {
+            if (!element.isEmpty() && items.add(element)) {
+                changes++;
+            }
+        }
+
+        void remove(String element) {
+            if (items.remove(element)) {
+                changes++;
+            }
+        }
+
+        void clear() {
+            changes += items.size() + 1;
+            items.clear();
+        }
+
+        void flush() {
+            if (changes == 0) {
+                return;
+            }
+            if (changes > REBUILD_CHANGES) {
+                model.clear();
+                model.addAll(items);
+                shown.clear();
+                shown.addAll(items);
+            } else {
+                for (Iterator<String> it = shown.iterator(); it.hasNext(); ) {
+                    String element = it.next();
+                    if (!items.contains(element)) {
+                        model.removeElement(element);
+                        it.remove();
+                    }
+                }
+                for (String element : items) {
+                    if (shown.add(element)) {
+                        model.addElement(element);
+                    }
+                }
+            }
+            changes = 0;
+        }
+    }
+
     public static void main(String[] args) {
+        if (args.length > 0) { // 命令行参数：[服务器地址] [端口]
+            serverHost = args[0];
+        }
+        if (args.length > 1) {
+            serverPort = Integer.parseInt(args[1]);
+        }
         SwingUtilities.invokeLater( () -> {new ChatClientGUI().setVisible(true);} );
         // SwingUtilities.invokeLater将任务提交到EDT（事件调度线程）后，EDT会负责创建和显示GUI。
         // 因为EDT是一个非守护线程，因此主线程会等待EDT完成其任务。
         // EDT继续运行，创建好窗口后，来到方法connectToServer()
-        // 在connectToServer()方法中，创建一个Socket连接到服务器，并启动一个新的线程，在其中循环接收服务器的消息。
-        // 由于这个循环线程也是一个非守护线程，因此主线程也会等待这个线程运行，直到退出条件满足。
+        // 在connectToServer()方法中，由网络层 ChatConnection 连接到服务器，它的 I/O 线程接收服务器的消息，
+        // 再批量交给EDT更新界面。I/O 线程是守护线程，关闭窗口时 EXIT_ON_CLOSE 结束程序。
     }
 } 
\ No newline at end of file
@@ -0,0 +1,889 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/*
+ * 客户端的网络层，不依赖 Swing。所有连接都是同一个 AsynchronousChannelGroup 上的异步通道，由两个 I/O 线程驱动，
+ * 不再为每个连接、每个分段开一个线程。聊天连接一直在读，收到的消息在 I/O 线程中交给 Listener；
+ * 上传和下载返回 CompletableFuture，进度通过 Progress 报告。
+ * 传输连接用完后放回空闲池，下一个传输直接复用，不用每个文件重新连接和握手。文件内容不走聊天连接：
+ * 服务器用 transferTo 直接把文件写到 socket，几百 MB 的内容排在聊天消息前面会让聊天停顿
+ */
+final class ChatConnection implements Closeable {
+    private static final int IO_THREADS = 2; // 驱动所有连接的线程数
+    private static final int BUFFER_SIZE = 1 + 5 + ChatProtocol.MAX_FRAME_LENGTH; // 读缓冲区至少能放下最大的一帧
+    private static final int TEXT_BODY_SIZE = 64 * 1024; // 旧文本协议上传时每次读取和写出的字节数
+    private static final long HANDSHAKE_TIMEOUT = 2000; // 等待二进制握手回复的毫秒数，旧服务器不会回复
+    private static final long TRANSFER_IDLE = 30_000_000_000L; // 空闲超过这么久的传输连接不再复用（服务器 90 秒不活动会断开）
+    private static final long PARALLEL_CHUNK_SIZE = 8 * 1024 * 1024; // 超过这个大小的文件分段并行下载
+    private static final int PARALLEL_DOWNLOADS = 4; // 并行下载最多使用的连接数
+    private static final int PARALLEL_UPLOADS = 4; // 并行上传最多使用的连接数
+    private static final int MAX_IDLE_TRANSFERS = 4; // 空闲池最多保留的传输连接数，几个传输同时结束时多出来的连接直接关闭
+    private static final Charset TEXT_CHARSET = Charset.defaultCharset(); // 旧文本协议一直使用平台默认编码
+
+    /* 聊天连接上的事件，在 I/O 线程中按收到的顺序调用 */
+    interface Listener {
+        void message(byte type, String payload); // 服务器发来的一条消息，旧文本协议的一行已经转换成对应的类型
+        void closed(Throwable cause); // 聊天连接断开（不包括调用 close）
+    }
+
+    /* 传输进度（已完成的字节数和总字节数），在 I/O 线程中调用 */
+    interface Progress {
+        void update(long done, long total);
+    }
+
+    private final String host;
+    private final int port;
+    private final Listener listener;
+    private final AsynchronousChannelGroup group;
+    private final ConcurrentLinkedDeque<Channel> idle = new ConcurrentLinkedDeque<>(); // 空闲的传输连接，最近用过的在前面
+    private Channel chat; // 聊天连接
+    private volatile boolean binary; // 服务器接受了二进制协议
+    private volatile boolean compression; // 服务器回复的版本支持压缩
+    private volatile boolean closed;
+    private volatile String uploadToken; // 登录后服务器发来的上传令牌，上传连接凭它代表当前用户
+    private List<ByteBuffer> deferred; // 旧文本协议上传文件内容期间暂存的聊天消息，上传完成后再发送，不能插在文件内容中间
+
+    ChatConnection(String host, int port, Listener listener) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.listener = listener;
+        this.group = AsynchronousChannelGroup.withFixedThreadPool(IO_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "chat-client-io");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /* 连接服务器：先尝试二进制握手，服务器不回复时重新连接并使用旧的文本协议。完成后开始读取聊天连接 */
+    CompletableFuture<Void> connect() {
+        return open(true).thenCompose(channel -> {
+            if (channel != null) {
+                binary = true;
+                compression = channel.version >= ChatProtocol.COMPRESSION_VERSION;
+                return CompletableFuture.completedFuture(channel);
+            }
+            return open(false);
+        }).thenAccept(channel -> {
+            chat = channel;
+            readLoop();
+        });
+    }
+
+    boolean isBinary() {
+        return binary;
+    }
+
+    /* 在聊天连接上发送一帧，较大的帧压缩后发送。写失败时连接断开，通过 Listener.closed 通知 */
+    void send(byte type, String payload) {
+        ByteBuffer frame = ChatProtocol.encode(type, payload);
+        ByteBuffer compressed = compression ? ChatProtocol.compressFrame(frame) : null;
+        sendChat(compressed != null ? compressed : frame);
+    }
+
+    /* 旧文本协议：发送一行 */
+    void sendLine(String line) {
+        sendChat(ByteBuffer.wrap((line + "\n").getBytes(TEXT_CHARSET)));
+    }
+
+    private void sendChat(ByteBuffer buffer) {
+        synchronized (this) {
+            if (deferred != null) {
+                deferred.add(buffer);
+                return;
+            }
+        }
+        chat.write(buffer).whenComplete((v, e) -> {
+            if (e != null) {
+                shutdown(e);
+            }
+        });
+    }
+
+    /* 不断读取聊天连接，把缓冲区中完整的消息全部分派后再发起下一次读取 */
+    private void readLoop() {
+        try {
+            if (binary) {
+                Packet packet;
+                while ((packet = chat.poll()) != null) {
+                    dispatch(packet);
+                }
+            } else {
+                String line;
+                while ((line = chat.pollLine()) != null) {
+                    dispatchLine(line);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            shutdown(e);
+            return;
+        }
+        chat.fill().whenComplete((v, e) -> {
+            if (e != null) {
+                shutdown(e);
+            } else {
+                readLoop();
+            }
+        });
+    }
+
+    private void dispatch(Packet packet) throws IOException {
+        ChatProtocol.Frame frame = packet.type == ChatProtocol.COMPRESSED
+                ? ChatProtocol.decode(ChatProtocol.inflateFrame(packet.data, 0, packet.data.length)) // 压缩的帧在这里解压
+                : new ChatProtocol.Frame(packet.type, packet.text());
+        if (frame.type == ChatProtocol.PING) { // 服务器的心跳，长时间不回复会被当作已经断线
+            send(ChatProtocol.PONG, frame.payload);
+        } else if (frame.type == ChatProtocol.SESSION) { // 只有网络层用到，不交给界面
+            uploadToken = frame.payload;
+        } else if (frame.type != ChatProtocol.PONG) {
+            listener.message(frame.type, frame.payload);
+        }
+    }
+
+    /* 把旧文本协议的一行消息转换成对应的消息类型 */
+    private void dispatchLine(String message) {
+        if (message.equals("USERNAME_TAKEN")) {
+            listener.message(ChatProtocol.USERNAME_TAKEN, "");
+        } else if (message.startsWith("USERS:")) {
+            listener.message(ChatProtocol.USERS, message.substring(6));
+        } else if (message.startsWith("FILES:")) {
+            listener.message(ChatProtocol.FILES, message.substring(6));
+        } else if (message.startsWith("USER_JOIN:")) {
+            listener.message(ChatProtocol.USER_JOIN, message.substring(10));
+        } else if (message.startsWith("USER_LEAVE:")) {
+            listener.message(ChatProtocol.USER_LEAVE, message.substring(11));
+        } else if (message.startsWith("FILE_ADDED:")) {
+            listener.message(ChatProtocol.FILE_ADDED, message.substring(11));
+        } else if (message.startsWith("FILE_REMOVED:")) {
+            listener.message(ChatProtocol.FILE_REMOVED, message.substring(13));
+        } else if (message.startsWith("ROOMS:")) { // 注意 ROOM: 是 ROOMS: 等前缀的一部分，放在它们后面判断
+            listener.message(ChatProtocol.ROOMS, message.substring(6));
+        } else if (message.startsWith("ROOM_ADDED:")) {
+            listener.message(ChatProtocol.ROOM_ADDED, message.substring(11));
+        } else if (message.startsWith("ROOM_REMOVED:")) {
+            listener.message(ChatProtocol.ROOM_REMOVED, message.substring(13));
+        } else if (message.startsWith("ROOM:")) {
+            listener.message(ChatProtocol.ROOM, message.substring(5));
+        } else { // 其他：普通聊天消息
+            listener.message(ChatProtocol.TEXT, message);
+        }
+    }
+
+    /* 聊天连接出错或被服务器关闭 */
+    private void shutdown(Throwable cause) {
+        boolean notify;
+        synchronized (this) {
+            notify = !closed;
+            closed = true;
+        }
+        if (notify) {
+            close();
+            listener.closed(cause);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (chat != null) {
+            chat.close();
+        }
+        Channel channel;
+        while ((channel = idle.poll()) != null) {
+            channel.close();
+        }
+        group.shutdown(); // 正在进行的传输会因为通道关闭而失败
+    }
+
+    /*
+     * 上传文件。二进制协议下先发送文件名、大小和 SHA-256，服务器已有相同内容时直接完成；
+     * 否则服务器回复还缺少的分块，分给几个传输连接并行发送，全部确认后提交。中断后再次上传同一文件只需发送缺少的分块。
+     * 上传者是当前登录的用户，由登录时收到的上传令牌证明
+     */
+    CompletableFuture<Void> upload(File file, Progress progress) {
+        if (!binary) {
+            return uploadText(file, progress);
+        }
+        long length = file.length();
+        return CompletableFuture.supplyAsync(() -> { // 计算哈希要读完整个文件，不占用 I/O 线程
+            try {
+                return ChatProtocol.sha256(file);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }).thenCompose(hash -> borrow().thenCompose(control -> control.request(ChatProtocol.UPLOAD_BEGIN,
+                file.getName() + "\n" + length + "\n" + hash + "\n" + uploadToken).thenCompose(reply -> {
+            if (reply.type == ChatProtocol.UPLOAD_COMPLETE) { // 服务器已经有相同的内容
+                progress.update(length, length);
+                return CompletableFuture.completedFuture(reply);
+            }
+            if (reply.type != ChatProtocol.UPLOAD_READY) {
+                throw failure("上传被拒绝: " + reply.text());
+            }
+            String[] ready = reply.text().split("\n", -1); // “分块大小\n缺少的分块”
+            int chunkSize = Integer.parseInt(ready[0]);
+            List<Integer> chunks = parseChunkList(ready[1]);
+            long missing = 0;
+            for (int index : chunks) {
+                missing += Math.min(chunkSize, length - (long) index * chunkSize);
+            }
+            AtomicLong done = new AtomicLong(length - missing); // 续传时已经确认的分块直接算作完成
+            progress.update(done.get(), length);
+            return sendChunksInParallel(file, hash, chunkSize, chunks, done, progress)
+                    .thenCompose(v -> control.request(ChatProtocol.UPLOAD_COMMIT, hash)); // 所有分块都已确认，提交
+        }).thenAccept(reply -> {
+            if (reply.type != ChatProtocol.UPLOAD_COMPLETE) {
+                throw failure("提交失败: " + reply.text());
+            }
+        }).whenComplete((v, e) -> release(control, e == null))));
+    }
+
+    /* 把分块轮流分给最多 PARALLEL_UPLOADS 个传输连接，每个连接连续发送自己的分块，然后等待全部确认 */
+    private CompletableFuture<Void> sendChunksInParallel(File file, String hash, int chunkSize, List<Integer> chunks, AtomicLong done, Progress progress) {
+        FileChannel source;
+        try {
+            source = FileChannel.open(file.toPath(), StandardOpenOption.READ); // 各连接按位置读取，共用一个文件句柄
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        int count = Math.min(PARALLEL_UPLOADS, chunks.size());
+        CompletableFuture<?>[] workers = new CompletableFuture<?>[count];
+        for (int i = 0; i < count; i++) {
+            List<Integer> assigned = new ArrayList<>();
+            for (int c = i; c < chunks.size(); c += count) {
+                assigned.add(chunks.get(c));
+            }
+            workers[i] = borrow().thenCompose(channel -> sendChunks(channel, source, hash, chunkSize, assigned, 0, done, progress)
+                    .thenCompose(v -> readAcks(channel, assigned.size()))
+                    .whenComplete((v, e) -> release(channel, e == null)));
+        }
+        return CompletableFuture.allOf(workers).whenComplete((v, e) -> closeQuietly(source));
+    }
+
+    /* 依次发送 chunks 中从 next 开始的分块，上一块写完再读下一块，每个连接最多只有一块在内存中 */
+    private CompletableFuture<Void> sendChunks(Channel channel, FileChannel source, String hash, int chunkSize, List<Integer> chunks, int next,
+            AtomicLong done, Progress progress) {
+        if (next == chunks.size()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        int index = chunks.get(next);
+        byte[] buffer;
+        long total;
+        try {
+            total = source.size();
+            long offset = (long) index * chunkSize;
+            buffer = new byte[(int) Math.min(chunkSize, total - offset)];
+            ByteBuffer target = ByteBuffer.wrap(buffer);
+            while (target.hasRemaining()) {
+                if (source.read(target, offset + target.position()) < 0) {
+                    throw new EOFException("文件在上传过程中变短了");
+                }
+            }
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        byte[] packed = compression && ChatProtocol.compressible(buffer, 0, buffer.length)
+                ? ChatProtocol.deflate(buffer, 0, buffer.length, buffer.length - 1) : null;
+        if (packed != null) { // 压缩后的分块带上压缩后的字节数
+            channel.write(ChatProtocol.encode(ChatProtocol.UPLOAD_CHUNK, hash + "\n" + index + "\n" + packed.length));
+        } else {
+            channel.write(ChatProtocol.encode(ChatProtocol.UPLOAD_CHUNK, hash + "\n" + index));
+        }
+        return channel.write(ByteBuffer.wrap(packed != null ? packed : buffer)).thenCompose(v -> { // 分块内容紧跟在 UPLOAD_CHUNK 帧之后
+            progress.update(done.addAndGet(buffer.length), total);
+            return sendChunks(channel, source, hash, chunkSize, chunks, next + 1, done, progress);
+        });
+    }
+
+    /* 每个分块写入后服务器都会确认 */
+    private static CompletableFuture<Void> readAcks(Channel channel, int remaining) {
+        try {
+            Packet packet;
+            while (remaining > 0 && (packet = channel.poll()) != null) {
+                if (packet.type != ChatProtocol.CHUNK_ACK) {
+                    throw new IOException("没有收到分块确认: " + packet.text());
+                }
+                remaining--;
+            }
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        if (remaining == 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        int left = remaining;
+        return channel.fill().thenCompose(v -> readAcks(channel, left));
+    }
+
+    /* 解析“0-3,7,9-12”格式的分块列表 */
+    private static List<Integer> parseChunkList(String list) {
+        List<Integer> chunks = new ArrayList<>();
+        for (String part : list.split(",")) {
+            if (part.isEmpty()) {
+                continue;
+            }
+            int dash = part.indexOf('-');
+            int from = Integer.parseInt(dash < 0 ? part : part.substring(0, dash));
+            int to = dash < 0 ? from : Integer.parseInt(part.substring(dash + 1));
+            for (int i = from; i <= to; i++) {
+                chunks.add(i);
+            }
+        }
+        return chunks;
+    }
+
+    /* 旧文本协议的上传：在聊天连接上发送 FILE: 、文件名、大小和文件内容，期间的聊天消息暂存到上传完成后再发 */
+    private CompletableFuture<Void> uploadText(File file, Progress progress) {
+        FileChannel source;
+        try {
+            source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        ByteBuffer header = ByteBuffer.wrap(("FILE:\n" + file.getName() + "\n" + file.length() + "\n").getBytes(TEXT_CHARSET));
+        synchronized (this) {
+            chat.write(header); // 在 deferred 生效之前进入写队列，之后的聊天消息都排在文件内容后面
+            deferred = new ArrayList<>();
+        }
+        return sendTextBody(source, 0, file.length(), progress).whenComplete((v, e) -> {
+            closeQuietly(source);
+            List<ByteBuffer> pending;
+            synchronized (this) {
+                pending = deferred;
+                deferred = null;
+            }
+            for (ByteBuffer buffer : pending) {
+                sendChat(buffer);
+            }
+        });
+    }
+
+    private CompletableFuture<Void> sendTextBody(FileChannel source, long position, long total, Progress progress) {
+        if (position >= total) {
+            return CompletableFuture.completedFuture(null);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(TEXT_BODY_SIZE, total - position));
+        try {
+            while (buffer.hasRemaining()) {
+                if (source.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("文件在上传过程中变短了");
+                }
+            }
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        buffer.flip();
+        long next = position + buffer.remaining();
+        return chat.write(buffer).thenCompose(v -> {
+            progress.update(next, total);
+            return sendTextBody(source, next, total, progress);
+        });
+    }
+
+    /*
+     * 下载文件到 directory 中，返回保存的文件；文件不存在时以 FileNotFoundException 失败。
+     * 二进制协议下支持断点续传：未完成的下载保存在 .part 文件中，是已经收到的连续前缀，下次从它的末尾继续；
+     * 新下载先只请求第一段，从响应中得知文件大小后再把剩下的部分分给几个传输连接并行下载
+     */
+    CompletableFuture<File> download(String fileName, File directory, Progress progress) {
+        if (!binary) {
+            return downloadText(fileName, directory, progress);
+        }
+        File file = new File(directory, fileName);
+        File part = new File(directory, fileName + ".part");
+        FileChannel out;
+        try {
+            out = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        long offset = part.length(); // 已经下载的字节数，文件不存在时为 0
+        AtomicLong done = new AtomicLong(offset);
+        String range = offset == 0 ? "bytes=0-" + (PARALLEL_CHUNK_SIZE - 1) : "bytes=" + offset + "-"; // 续传直接请求剩下的全部
+        return borrow().thenCompose(channel -> downloadRange(channel, fileName, range, out, done, progress)
+                .whenComplete((first, e) -> release(channel, e == null))).thenCompose(first -> { // 第一段的 {起始, 结束, 文件大小}
+            if (first == null) {
+                closeQuietly(out);
+                part.delete();
+                throw new CompletionException(new FileNotFoundException(fileName));
+            }
+            if (first[1] < first[2]) { // 剩下的部分分成几段，每段一个连接并行下载
+                return downloadInParallel(fileName, out, first[1], first[2], done, progress);
+            }
+            return CompletableFuture.completedFuture(null);
+        }).thenApply(v -> {
+            closeQuietly(out);
+            file.delete();
+            if (!part.renameTo(file)) { // 全部完成后才把 .part 改成正式文件名
+                throw new CompletionException(new IOException("重命名失败: " + part));
+            }
+            return file;
+        }).whenComplete((f, e) -> closeQuietly(out));
+    }
+
+    /* 把 [start, total) 分成最多 PARALLEL_DOWNLOADS 段并行下载，任何一段失败都会把 part 截断回 start，保证它始终是连续的前缀 */
+    private CompletableFuture<Void> downloadInParallel(String fileName, FileChannel out, long start, long total, AtomicLong done, Progress progress) {
+        int count = (int) Math.min(PARALLEL_DOWNLOADS, (total - start + PARALLEL_CHUNK_SIZE - 1) / PARALLEL_CHUNK_SIZE);
+        long step = (total - start + count - 1) / count;
+        CompletableFuture<?>[] workers = new CompletableFuture<?>[count];
+        for (int i = 0; i < count; i++) {
+            long from = start + i * step;
+            long to = Math.min(total, from + step) - 1; // 包含
+            workers[i] = borrow().thenCompose(channel -> downloadRange(channel, fileName, "bytes=" + from + "-" + to, out, done, progress)
+                    .whenComplete((range, e) -> release(channel, e == null)));
+        }
+        return CompletableFuture.allOf(workers).whenComplete((v, e) -> { // allOf 在所有分段都结束后才完成
+            if (e != null) {
+                try {
+                    out.truncate(start); // 后面几段可能只收到一部分，丢掉它们，只保留连续的前缀
+                } catch (IOException truncateError) {
+                    truncateError.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /* 在传输连接上请求一段字节范围，写入 out 中对应的位置。结果为 {起始, 结束（不包含）, 文件大小}，文件不存在时为 null */
+    private CompletableFuture<long[]> downloadRange(Channel channel, String fileName, String range, FileChannel out, AtomicLong done, Progress progress) {
+        return channel.request(ChatProtocol.DOWNLOAD_REQUEST, fileName + "\n" + range).thenCompose(reply -> {
+            if (reply.type == ChatProtocol.FILE_NOT_FOUND) {
+                return CompletableFuture.completedFuture(null);
+            }
+            if (reply.type == ChatProtocol.RANGE_NOT_SATISFIABLE) { // 续传时请求的起点已经是文件末尾，说明之前其实已经下载完了
+                long total = Long.parseLong(reply.text());
+                if (done.get() != total) {
+                    throw failure("请求的范围无效: " + range);
+                }
+                return CompletableFuture.completedFuture(new long[] {total, total, total});
+            }
+            if (reply.type != ChatProtocol.FILE_START && reply.type != ChatProtocol.FILE_START_COMPRESSED) {
+                throw failure("意外的响应类型: " + reply.type);
+            }
+            // 负载格式：“字节数\n起始-结束/文件大小”
+            String[] lines = reply.text().split("\n");
+            long length = Long.parseLong(lines[0]);
+            long start = Long.parseLong(lines[1].substring(0, lines[1].indexOf('-')));
+            long total = Long.parseLong(lines[1].substring(lines[1].indexOf('/') + 1));
+            Sink sink = fileSink(out, start, done, total, progress);
+            long[] result = {start, start + length, total};
+            if (reply.type == ChatProtocol.FILE_START_COMPRESSED) { // 内容是压缩的 FILE_DATA 帧，解压后从 start 开始写入
+                Inflater inflater = new Inflater(); // 一个文件的内容是一个连续的压缩流，不能与其他流共用
+                return inflateBody(channel, inflater, sink, new long[1]).whenComplete((n, e) -> inflater.end()).thenApply(received -> {
+                    if (received != length) {
+                        throw failure("解压后的长度不符: " + received);
+                    }
+                    return result;
+                });
+            }
+            return channel.readBody(length, sink).thenCompose(v -> channel.readPacket()).thenApply(end -> {
+                if (end.type != ChatProtocol.FILE_END) { // 等待服务器明确的结束信号
+                    throw failure("没有收到 FILE_END");
+                }
+                return result;
+            });
+        });
+    }
+
+    /* 读取 FILE_START_COMPRESSED 之后的 FILE_DATA 帧并解压到 sink，直到 FILE_END，结果为解压后的字节数 */
+    private static CompletableFuture<Long> inflateBody(Channel channel, Inflater inflater, Sink sink, long[] received) {
+        byte[] buffer = new byte[64 * 1024];
+        try {
+            Packet packet;
+            while ((packet = channel.poll()) != null) {
+                if (packet.type == ChatProtocol.FILE_END) {
+                    return CompletableFuture.completedFuture(received[0]);
+                }
+                if (packet.type != ChatProtocol.FILE_DATA) {
+                    throw new IOException("意外的帧类型: " + packet.type);
+                }
+                inflater.setInput(packet.data);
+                int n;
+                while ((n = inflater.inflate(buffer)) > 0) {
+                    sink.accept(ByteBuffer.wrap(buffer, 0, n));
+                    received[0] += n;
+                }
+            }
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        } catch (DataFormatException e) {
+            return CompletableFuture.failedFuture(new IOException("文件内容解压失败", e));
+        }
+        return channel.fill().thenCompose(v -> inflateBody(channel, inflater, sink, received));
+    }
+
+    /* 旧文本协议的下载：整个文件一次下载，服务器发送完后关闭连接 */
+    private CompletableFuture<File> downloadText(String fileName, File directory, Progress progress) {
+        File file = new File(directory, fileName);
+        return open(false).thenCompose(channel -> channel.write(ByteBuffer.wrap(("FILE_DOWNLOAD_REQUEST\n" + fileName + "\n").getBytes(TEXT_CHARSET)))
+                .thenCompose(v -> channel.readLine())
+                .thenCompose(response -> {
+                    if (!response.equals("FILE_START")) {
+                        throw new CompletionException(new FileNotFoundException(fileName));
+                    }
+                    return channel.readLine();
+                }).thenCompose(size -> {
+                    long total = Long.parseLong(size);
+                    FileChannel out;
+                    try {
+                        out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                    return channel.readBody(total, fileSink(out, 0, new AtomicLong(), total, progress)).whenComplete((v, e) -> closeQuietly(out));
+                }).thenApply(v -> file)
+                .whenComplete((f, e) -> channel.close()));
+    }
+
+    /* 写入 out 中从 start 开始的位置，并累计到 done 中报告进度 */
+    private static Sink fileSink(FileChannel out, long start, AtomicLong done, long total, Progress progress) {
+        long[] position = {start};
+        return data -> {
+            int length = data.remaining();
+            while (data.hasRemaining()) {
+                position[0] += out.write(data, position[0]);
+            }
+            progress.update(done.addAndGet(length), total);
+        };
+    }
+
+    /* 取一个空闲的传输连接，没有时新建一个并完成二进制握手 */
+    private CompletableFuture<Channel> borrow() {
+        Channel channel;
+        while ((channel = idle.poll()) != null) {
+            if (System.nanoTime() - channel.idleSince < TRANSFER_IDLE && channel.socket.isOpen()) {
+                return CompletableFuture.completedFuture(channel);
+            }
+            channel.close();
+        }
+        return open(true).thenApply(opened -> {
+            if (opened == null) {
+                throw failure("服务器不支持二进制协议");
+            }
+            return opened;
+        });
+    }
+
+    /* 传输结束后归还连接，出错的连接或者还有没读完的数据时关闭，不再复用 */
+    private void release(Channel channel, boolean reusable) {
+        if (reusable && !closed && !channel.hasBuffered() && idle.size() < MAX_IDLE_TRANSFERS) {
+            channel.idleSince = System.nanoTime();
+            idle.push(channel);
+        } else {
+            channel.close();
+        }
+    }
+
+    /* 建立连接。negotiate 为 true 时发送二进制握手，服务器不回复（旧服务器）时关闭连接并得到 null */
+    private CompletableFuture<Channel> open(boolean negotiate) {
+        CompletableFuture<Channel> future = new CompletableFuture<>();
+        AsynchronousSocketChannel socket;
+        try {
+            socket = AsynchronousSocketChannel.open(group);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        Channel channel = new Channel(socket);
+        socket.connect(new InetSocketAddress(host, port), null, new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(Void result, Void attachment) {
+                if (!negotiate) {
+                    future.complete(channel);
+                    return;
+                }
+                channel.write(ByteBuffer.wrap(ChatProtocol.handshake(ChatProtocol.VERSION)));
+                ByteBuffer reply = ByteBuffer.allocate(ChatProtocol.HANDSHAKE_LENGTH); // 只读取握手长度的字节，不会多读
+                socket.read(reply, HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS, null, new CompletionHandler<Integer, Void>() {
+                    @Override
+                    public void completed(Integer n, Void attachment) {
+                        if (n < 0) {
+                            channel.close();
+                            future.complete(null);
+                        } else if (reply.hasRemaining()) {
+                            socket.read(reply, HANDSHAKE_TIMEOUT, TimeUnit.MILLISECONDS, null, this);
+                        } else {
+                            reply.flip();
+                            if (!ChatProtocol.isHandshake(reply) || reply.get(ChatProtocol.MAGIC.length) < 1) {
+                                channel.close();
+                                future.complete(null);
+                                return;
+                            }
+                            channel.version = reply.get(ChatProtocol.MAGIC.length);
+                            future.complete(channel);
+                        }
+                    }
+
+                    @Override
+                    public void failed(Throwable e, Void attachment) {
+                        channel.close(); // 超时：旧服务器把握手当作用户名的一部分而不回复
+                        if (e instanceof InterruptedByTimeoutException) {
+                            future.complete(null);
+                        } else {
+                            future.completeExceptionally(e);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                channel.close();
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    private static CompletionException failure(String message) {
+        return new CompletionException(new IOException(message));
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /* 接收一段原始字节 */
+    private interface Sink {
+        void accept(ByteBuffer data) throws IOException;
+    }
+
+    /* 一帧的类型和原始负载，聊天消息的负载是 UTF-8 文本，FILE_DATA 是压缩的文件内容 */
+    private static final class Packet {
+        final byte type;
+        final byte[] data;
+
+        Packet(byte type, byte[] data) {
+            this.type = type;
+            this.data = data;
+        }
+
+        String text() {
+            return new String(data, java.nio.charset.StandardCharsets.UTF_8);
+        }
+    }
+
+    /*
+     * 一个异步连接：读缓冲区中 position 到 limit 是已经收到还没有处理的数据，poll 从中取出完整的帧或行，
+     * 不完整时调用 fill 再读一些。写操作排队，同一时间只有一个 write 在进行（异步通道不允许并发写）
+     */
+    private static final class Channel {
+        final AsynchronousSocketChannel socket;
+        private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        private final ArrayDeque<PendingWrite> writes = new ArrayDeque<>();
+        private boolean writing;
+        private Throwable writeError; // 写失败后连接不能再用，之后的写直接失败
+        byte version; // 握手得到的协议版本
+        long idleSince; // 放回空闲池的时间
+
+        Channel(AsynchronousSocketChannel socket) {
+            this.socket = socket;
+            in.flip();
+        }
+
+        boolean hasBuffered() {
+            return in.hasRemaining();
+        }
+
+        /* 从通道再读一些数据到缓冲区，连接关闭时以 EOFException 失败。缓冲区满时扩容（旧文本协议的行没有长度上限） */
+        CompletableFuture<Void> fill() {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            in.compact();
+            if (!in.hasRemaining()) {
+                in.flip();
+                in = ByteBuffer.allocate(in.capacity() * 2).put(in);
+            }
+            socket.read(in, null, new CompletionHandler<Integer, Void>() {
+                @Override
+                public void completed(Integer n, Void attachment) {
+                    in.flip();
+                    if (n < 0) {
+                        future.completeExceptionally(new EOFException("连接已关闭"));
+                    } else {
+                        future.complete(null);
+                    }
+                }
+
+                @Override
+                public void failed(Throwable e, Void attachment) {
+                    in.flip();
+                    future.completeExceptionally(e);
+                }
+            });
+            return future;
+        }
+
+        /* 取出缓冲区中的一整帧，数据还不完整时返回 null */
+        Packet poll() throws IOException {
+            int start = in.position();
+            if (in.remaining() < 2) {
+                return null;
+            }
+            int length = ChatProtocol.readVarint(in, start + 1); // 长度溢出时抛出 IOException，不会一直扩大缓冲区等待
+            if (length < 0) { // 长度字段还没收全
+                return null;
+            }
+            if (length > ChatProtocol.MAX_FRAME_LENGTH) {
+                throw new IOException("帧过长: " + length);
+            }
+            int payload = start + 1 + ChatProtocol.varintSize(length);
+            if (payload + length > in.limit()) {
+                return null;
+            }
+            byte[] data = new byte[length];
+            in.position(payload);
+            in.get(data);
+            return new Packet(in.get(start), data);
+        }
+
+        /* 读取下一帧 */
+        CompletableFuture<Packet> readPacket() {
+            try {
+                Packet packet = poll();
+                if (packet != null) {
+                    return CompletableFuture.completedFuture(packet);
+                }
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            return fill().thenCompose(v -> readPacket());
+        }
+
+        /* 发送一帧并读取回复 */
+        CompletableFuture<Packet> request(byte type, String payload) {
+            write(ChatProtocol.encode(type, payload));
+            return readPacket();
+        }
+
+        /* 取出缓冲区中的一行（旧文本协议），没有完整的一行时返回 null */
+        String pollLine() {
+            for (int i = in.position(); i < in.limit(); i++) {
+                if (in.get(i) == '\n') {
+                    int end = i > in.position() && in.get(i - 1) == '\r' ? i - 1 : i;
+                    byte[] line = new byte[end - in.position()];
+                    in.get(line);
+                    in.position(i + 1);
+                    return new String(line, TEXT_CHARSET);
+                }
+            }
+            return null;
+        }
+
+        CompletableFuture<String> readLine() {
+            String line = pollLine();
+            if (line != null) {
+                return CompletableFuture.completedFuture(line);
+            }
+            return fill().thenCompose(v -> readLine());
+        }
+
+        /* 读取 remaining 字节的原始内容交给 sink，先用掉缓冲区中已有的部分 */
+        CompletableFuture<Void> readBody(long remaining, Sink sink) {
+            try {
+                while (remaining > 0 && in.hasRemaining()) {
+                    int n = (int) Math.min(remaining, in.remaining());
+                    ByteBuffer data = in.duplicate();
+                    data.limit(in.position() + n);
+                    sink.accept(data);
+                    in.position(in.position() + n);
+                    remaining -= n;
+                }
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            if (remaining == 0) {
+                return CompletableFuture.completedFuture(null);
+            }
+            long left = remaining;
+            return fill().thenCompose(v -> readBody(left, sink));
+        }
+
+        /* 把 buffer 加入写队列，全部写出后完成 */
+        CompletableFuture<Void> write(ByteBuffer buffer) {
+            PendingWrite pending = new PendingWrite(buffer);
+            synchronized (writes) {
+                if (writeError != null) {
+                    pending.future.completeExceptionally(writeError);
+                    return pending.future;
+                }
+                writes.add(pending);
+                if (writing) {
+                    return pending.future;
+                }
+                writing = true;
+            }
+            writeNext();
+            return pending.future;
+        }
+
+        private void writeNext() {
+            PendingWrite next;
+            synchronized (writes) {
+                next = writes.peek();
+                if (next == null) {
+                    writing = false;
+                    return;
+                }
+            }
+            socket.write(next.buffer, next, writeHandler);
+        }
+
+        private final CompletionHandler<Integer, PendingWrite> writeHandler = new CompletionHandler<Integer, PendingWrite>() {
+            @Override
+            public void completed(Integer n, PendingWrite pending) {
+                if (pending.buffer.hasRemaining()) { // 只写出了一部分，接着写剩下的
+                    socket.write(pending.buffer, pending, this);
+                    return;
+                }
+                synchronized (writes) {
+                    writes.poll();
+                }
+                pending.future.complete(null);
+                writeNext();
+            }
+
+            @Override
+            public void failed(Throwable e, PendingWrite pending) {
+                List<PendingWrite> failed;
+                synchronized (writes) {
+                    writeError = e;
+                    failed = new ArrayList<>(writes);
+                    writes.clear();
+                    writing = false;
+                }
+                for (PendingWrite write : failed) {
+                    write.future.completeExceptionally(e);
+                }
+                close();
+            }
+        };
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static final class PendingWrite {
+        final ByteBuffer buffer;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        PendingWrite(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,426 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * 二进制协议的编解码，服务端和客户端共用。
+ * 连接建立后，客户端先发送 5 字节握手：MAGIC（0x00 'S' 'C' 'B'）+ 版本号，服务端原样回复表示接受。
+ * 旧的文本协议客户端第一行发送的是用户名，不会以 0x00 开头，所以服务端根据第一个字节就能区分两种协议。
+ * 握手之后每一帧的格式为：1 字节类型 + varint 编码的负载长度 + UTF-8 负载。
+ * 文件内容不分帧：UPLOAD_START / FILE_START 帧之后紧跟着负载中声明长度的原始字节。
+ * 双方版本都不低于 2 时（服务端回复的版本取双方较小的一个）启用压缩：较大的帧整体压缩成 COMPRESSED 帧，
+ * 文件内容压缩成 FILE_DATA 帧的流（下载）或者每个分块一个压缩流（上传）。已经压缩过的内容（熵接近 8 比特/字节）不再压缩。
+ */
+public final class ChatProtocol {
+    static final byte[] MAGIC = {0, 'S', 'C', 'B'}; // 握手魔数
+    static final byte VERSION = 2; // 协议版本，2 开始支持压缩
+    static final byte COMPRESSION_VERSION = 2; // 协商的版本不低于它时启用压缩
+    static final int HANDSHAKE_LENGTH = MAGIC.length + 1; // 握手长度：魔数 + 版本号
+    static final int MAX_FRAME_LENGTH = 64 * 1024; // 一帧负载的最大长度
+    static final int MAX_MESSAGE_LENGTH = MAX_FRAME_LENGTH - 20; // 记录在日志中的一行文字编码后的最大长度，CHAT_MESSAGE 帧还要放下消息 ID（最多 19 位）和换行
+    static final int COMPRESS_THRESHOLD = Integer.getInteger("chat.compressThreshold", 512); // 编码后不小于这个长度的帧才压缩，小帧压缩得不偿失
+    private static final int ENTROPY_SAMPLE = 4096; // 熵检查最多取样的字节数
+    private static final double MAX_ENTROPY = 7.2; // 取样的熵（比特/字节）超过它时认为已经压缩过（zip、jpg、mp4 等）
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(Deflater::new); // 压缩器的本地内存较大，每个线程复用一个
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    // 客户端 -> 服务端
+    static final byte LOGIN = 1; // 负载：用户名，或者用户名 + 换行 + 已经收到的最后一条消息 ID（登录时只补发这之后的消息）
+    static final byte CHAT = 2; // 负载：群聊消息内容
+    static final byte PRIVATE = 3; // 负载：接收者 + 空格 + 消息内容
+    static final byte UPLOAD_START = 4; // 负载：文件名 + 换行 + 文件大小，之后紧跟文件内容
+    static final byte UPLOAD_BEGIN = 6; // 负载：文件名 + 换行 + 文件大小 + 换行 + SHA-256 + 换行 + 上传令牌（见 SESSION），在单独的上传连接上发送
+    static final byte UPLOAD_CHUNK = 7; // 负载：SHA-256 + 换行 + 分块序号 [+ 换行 + 压缩后的字节数]，之后紧跟这个分块的原始字节（带压缩长度时是整个分块的 deflate 流），可以从多个上传连接并行发送
+    static final byte UPLOAD_COMMIT = 8; // 负载：SHA-256，所有分块都收到确认后在发送 UPLOAD_BEGIN 的连接上发送
+    static final byte JOIN_ROOM = 9; // 负载：房间名，离开当前房间并进入这个房间，房间不存在时创建
+    static final byte LEAVE_ROOM = 10; // 负载为空，离开当前房间回到大厅
+    static final byte FILE_QUERY = 11; // 负载：文件名前缀 + 换行 + 上一页最后的文件名（第一页为空）+ 换行 + 最多返回几个，回复 FILE_PAGE
+    static final byte SEARCH = 12; // 负载：搜索聊天记录的查询（空格分隔的词，词* 表示前缀），回复 SEARCH_RESULTS
+    static final byte DOWNLOAD_REQUEST = 5; // 负载：文件名，或者文件名 + 换行 + 字节范围（bytes=起始-结束），在单独的下载连接上发送，同一连接可以发送多个请求
+
+    // 服务端 -> 客户端
+    static final byte TEXT = 20; // 负载：显示在聊天区域的一行文字
+    static final byte USERNAME_TAKEN = 21; // 负载为空
+    static final byte USERS = 22; // 负载：当前房间完整的成员列表，逗号分隔
+    static final byte FILES = 23; // 负载：完整的文件列表，逗号分隔
+    static final byte USER_JOIN = 24; // 负载：加入当前房间的用户名
+    static final byte USER_LEAVE = 25; // 负载：离开当前房间的用户名
+    static final byte FILE_ADDED = 26; // 负载：新增的文件名
+    static final byte FILE_REMOVED = 27; // 负载：移除的文件名
+    static final byte FILE_START = 28; // 负载：接下来的字节数，范围请求再加一行“起始-结束/文件大小”，之后紧跟文件内容
+    static final byte FILE_NOT_FOUND = 29; // 负载为空
+    static final byte RANGE_NOT_SATISFIABLE = 30; // 负载：文件大小
+    static final byte FILE_END = 31; // 负载为空，文件内容发送完毕
+    static final byte UPLOAD_READY = 32; // 负载：分块大小 + 换行 + 还缺少的分块（例如 0-3,7），续传时只需发送缺少的分块
+    static final byte CHUNK_ACK = 33; // 负载：已经写入的分块序号
+    static final byte UPLOAD_COMPLETE = 34; // 负载：文件名，服务器已经有相同内容时 UPLOAD_BEGIN 会直接收到它
+    static final byte UPLOAD_FAILED = 35; // 负载：失败原因
+    static final byte CHAT_MESSAGE = 36; // 负载：消息 ID + 换行 + 显示在聊天区域的一行文字，记录在消息日志中的群聊和私聊消息，登录时先补发最近的历史消息
+    static final byte ROOM = 37; // 负载：进入的房间名，之后是这个房间的 USERS 和历史消息
+    static final byte ROOMS = 38; // 负载：完整的房间列表，逗号分隔，登录时发送一次
+    static final byte ROOM_ADDED = 39; // 负载：新建的房间名
+    static final byte ROOM_REMOVED = 40; // 负载：删除的房间名（最后一个成员离开）
+    static final byte THROTTLED = 41; // 负载：建议多少毫秒后重试 + 换行 + 原因，发送过快（消息被丢弃）、连接数或上传数已满时发送
+    static final byte PING = 42; // 心跳，双方都可以发送，负载任意，对方原样放在 PONG 中回复
+    static final byte PONG = 43; // 心跳回复
+
+    // 双方都可以发送
+    static final byte COMPRESSED = 44; // 负载：一整帧（类型 + 长度 + 负载）的 deflate 压缩结果，只在聊天连接上用于较大的帧
+    // 服务端 -> 客户端
+    static final byte FILE_START_COMPRESSED = 45; // 负载与 FILE_START 相同（原始字节数），之后是若干 FILE_DATA 帧，以 FILE_END 结束
+    static final byte FILE_DATA = 46; // 负载：一段压缩的文件内容，同一个文件的所有 FILE_DATA 属于同一个 deflate 流
+    static final byte FILE_PAGE = 47; // 负载：查询的前缀 + 换行 + 是否还有下一页（1/0），之后每个文件一行“SHA-256\t大小\t上传时间\t上传者\t文件名”
+    static final byte SEARCH_RESULTS = 48; // 负载：查询 + 换行，之后每条结果一行“消息ID\t房间（发给所有房间和私聊为空）\t显示的文字”，按相关度排列
+    static final byte SESSION = 49; // 负载：上传令牌，登录成功后在 ROOMS 之前发送。上传连接在 UPLOAD_BEGIN 中出示它代表这个用户，登录的连接关闭后失效
+
+    private ChatProtocol() {
+    }
+
+    /* 握手字节：魔数 + 版本号 */
+    static byte[] handshake(byte version) {
+        byte[] bytes = new byte[HANDSHAKE_LENGTH];
+        System.arraycopy(MAGIC, 0, bytes, 0, MAGIC.length);
+        bytes[MAGIC.length] = version;
+        return bytes;
+    }
+
+    /* 检查 buffer 从 position 开始是否是合法的握手魔数（不移动 position） */
+    static boolean isHandshake(ByteBuffer buffer) {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(buffer.position() + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* 把一帧编码成字节：类型 + varint 长度 + UTF-8 负载 */
+    static ByteBuffer encode(byte type, String payload) {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        return encode(type, bytes, 0, bytes.length);
+    }
+
+    /* 负载是任意字节的帧（COMPRESSED、FILE_DATA） */
+    static ByteBuffer encode(byte type, byte[] bytes, int offset, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + varintSize(length) + length);
+        buffer.put(type);
+        writeVarint(buffer, length);
+        buffer.put(bytes, offset, length);
+        buffer.flip();
+        return buffer;
+    }
+
+    /* 解码 buffer 中从 position 开始的一整帧 */
+    static Frame decode(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        byte type = buffer.get(start);
+        int length = readVarint(buffer, start + 1);
+        int payloadStart = start + 1 + varintSize(Math.max(length, 0));
+        if (length < 0 || payloadStart + length > buffer.limit()) {
+            throw new IOException("帧不完整");
+        }
+        byte[] bytes = new byte[length];
+        buffer.position(payloadStart);
+        buffer.get(bytes);
+        return new Frame(type, new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    /*
+     * 估计数据的香农熵（只取样开头的一段），判断是否值得压缩。文本的熵一般在 4~5 比特/字节，
+     * 已经压缩或加密过的数据接近 8，再压缩只会浪费 CPU
+     */
+    static boolean compressible(byte[] data, int offset, int length) {
+        int sample = Math.min(length, ENTROPY_SAMPLE);
+        if (sample == 0) {
+            return false;
+        }
+        int[] counts = new int[256];
+        for (int i = 0; i < sample; i++) {
+            counts[data[offset + i] & 0xFF]++;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / sample;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2) < MAX_ENTROPY;
+    }
+
+    /* 把一帧整体压缩成 COMPRESSED 帧（不移动 frame 的 position），太小、熵太高或者压缩后没有变小时返回 null */
+    static ByteBuffer compressFrame(ByteBuffer frame) {
+        int length = frame.remaining();
+        if (length < COMPRESS_THRESHOLD) {
+            return null;
+        }
+        byte[] input = new byte[length];
+        frame.duplicate().get(input);
+        if (!compressible(input, 0, length)) {
+            return null;
+        }
+        byte[] output = deflate(input, 0, length, length - 8); // 至少要省下帧头的长度才值得
+        return output == null ? null : encode(COMPRESSED, output, 0, output.length);
+    }
+
+    /* 把一段数据压缩成完整的 deflate 流，压缩结果超过 limit 字节时返回 null */
+    static byte[] deflate(byte[] data, int offset, int length, int limit) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        byte[] output = new byte[Math.max(0, limit)];
+        int size = 0;
+        while (!deflater.finished() && size < output.length) {
+            size += deflater.deflate(output, size, output.length - size);
+        }
+        return deflater.finished() ? java.util.Arrays.copyOf(output, size) : null;
+    }
+
+    /* 解压 COMPRESSED 帧的负载，得到里面的一整帧。解压后超过一帧的最大长度时视为格式错误，防止很小的数据解压出大量内容 */
+    static ByteBuffer inflateFrame(byte[] data, int offset, int length) throws IOException {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(data, offset, length);
+        int max = 1 + varintSize(MAX_FRAME_LENGTH) + MAX_FRAME_LENGTH;
+        byte[] output = new byte[Math.min(max, Math.max(256, length * 4))];
+        int size = 0;
+        try {
+            while (!inflater.finished()) {
+                if (size == output.length) {
+                    if (size == max) {
+                        throw new IOException("压缩帧解压后过长");
+                    }
+                    output = java.util.Arrays.copyOf(output, Math.min(max, size * 2));
+                }
+                int n = inflater.inflate(output, size, output.length - size);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("压缩帧不完整");
+                }
+                size += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("压缩帧格式错误", e);
+        }
+        return ByteBuffer.wrap(output, 0, size);
+    }
+
+    /* varint 编码后占用的字节数，每个字节存 7 位 */
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    static void writeVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) { // 还有更高的位，最高位置 1 表示后面还有字节
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /*
+     * 从 buffer 的 offset 位置读取 varint（不移动 position），数据还不完整时返回 -1。
+     * 第五个字节的高位会让结果溢出成负数，与“还不完整”区分开，抛出异常由调用方断开连接，
+     * 否则调用方会一直等待永远不会到来的数据
+     */
+    static int readVarint(ByteBuffer buffer, int offset) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (offset >= buffer.limit()) {
+                return -1;
+            }
+            byte b = buffer.get(offset++);
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    throw new IOException("帧长度溢出");
+                }
+                return value;
+            }
+        }
+        throw new IOException("varint 格式错误");
+    }
+
+    /* 字符串按 UTF-8 编码后的字节数，不需要真的编码 */
+    static int utf8Length(CharSequence text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800 || Character.isSurrogate(c)) { // 一对代理字符合起来是 4 个字节
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /* 解析对方发来的十进制整数字段，格式错误时抛出 IOException，由调用方当作协议错误关闭连接 */
+    static long parseLong(String text) throws IOException {
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            throw new IOException("数字格式错误: " + (text.length() > 32 ? text.substring(0, 32) + "..." : text));
+        }
+    }
+
+    static int parseInt(String text) throws IOException {
+        long value = parseLong(text);
+        if (value != (int) value) {
+            throw new IOException("数字超出范围: " + value);
+        }
+        return (int) value;
+    }
+
+    /* 向输出流写一帧，compress 为 true 时较大的帧压缩后发送（客户端使用） */
+    static void writeFrame(DataOutputStream out, byte type, String payload, boolean compress) throws IOException {
+        ByteBuffer frame = encode(type, payload);
+        ByteBuffer compressed = compress ? compressFrame(frame) : null;
+        if (compressed != null) {
+            frame = compressed;
+        }
+        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+    }
+
+    /* 向输出流写一帧（客户端使用） */
+    static void writeFrame(DataOutputStream out, byte type, String payload) throws IOException {
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(type);
+        int value = bytes.length;
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+        out.write(bytes);
+    }
+
+    /* 从输入流读取一帧的负载长度（类型字节已经读出），客户端使用 */
+    static int readLength(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0 || value > MAX_FRAME_LENGTH) {
+                    throw new IOException("帧过长: " + value);
+                }
+                return value;
+            }
+        }
+        throw new IOException("varint 格式错误");
+    }
+
+    /* 计算文件内容的 SHA-256，分块上传用它标识文件内容 */
+    static String sha256(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return hex(digest.digest());
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // 每个 Java 平台都必须支持 SHA-256
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /* 从输入流读取一帧的负载（客户端使用） */
+    static String readPayload(DataInputStream in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readLength(in)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /* 从输入流读取一帧，COMPRESSED 帧解压后返回里面的帧；连接已经关闭时返回 null（客户端使用） */
+    static Frame readFrame(DataInputStream in) throws IOException {
+        int type = in.read();
+        if (type == -1) {
+            return null;
+        }
+        if (type != COMPRESSED) {
+            return new Frame((byte) type, readPayload(in));
+        }
+        byte[] bytes = readBytes(in);
+        return decode(inflateFrame(bytes, 0, bytes.length));
+    }
+
+    /*
+     * 读取 FILE_START_COMPRESSED 之后的 FILE_DATA 帧，解压后写入 out，直到 FILE_END（FILE_END 也会被读掉）。
+     * 返回解压后的字节数，调用方与 FILE_START_COMPRESSED 中声明的字节数比较
+     */
+    static long readCompressedFile(DataInputStream in, OutputStream out) throws IOException {
+        Inflater inflater = new Inflater(); // 一个文件的内容是一个连续的压缩流，不能与其他流共用
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        try {
+            while (true) {
+                int type = in.read();
+                if (type == -1) {
+                    throw new EOFException("下载中断");
+                }
+                byte[] data = readBytes(in);
+                if (type == FILE_END) {
+                    return total;
+                }
+                if (type != FILE_DATA) {
+                    throw new IOException("意外的帧类型: " + type);
+                }
+                inflater.setInput(data);
+                int n;
+                while ((n = inflater.inflate(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                    total += n;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("文件内容解压失败", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /* 解码后的一帧 */
+    static final class Frame {
+        final byte type;
+        final String payload;
+
+        Frame(byte type, String payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+}
@@ -1,211 +1,2270 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class ChatServer {
-    private static final int PORT = 9999; // 服务器监听的端口号
-    private static HashMap<String, Socket> clients = new HashMap<>(); // 存储客户端的用户名和对应的 Socket 连接
-    private static Set<String> usernames = new HashSet<>(); // 存储已连接的用户名
-    private static File fileDirectory = new File("server_files"); // 定义一个 server_files 文件夹用于存储上传文件
+    private static final int PORT = Integer.getInteger("chat.port", 9999); // 服务器监听的端口号，同一台机器上启动多个集群节点时各用不同的端口
+    private static final int LOOP_COUNT = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())); // 事件循环线程数量，固定为少量线程，不随连接数增长
+    private static final int READ_BUFFER_SIZE = 8192; // 每个连接的读缓冲区大小
+    private static final int MAX_LINE_LENGTH = 64 * 1024; // 一行文本的最大长度，超过则认为客户端异常并断开
+    private static final int OUTBOUND_LIMIT = Integer.getInteger("chat.outboundLimit", 1024); // 每个连接发送队列最多积压的消息数
+    private static final int WRITE_BUFFER_SIZE = 32 * 1024; // 写缓冲区大小：发送队列中的多条消息复制到一起，一次 write 调用写出
+    private static final SlowConsumerPolicy SLOW_CONSUMER_POLICY =
+            SlowConsumerPolicy.valueOf(System.getProperty("chat.slowConsumer", "DROP_OLDEST")); // 发送队列满时的处理策略，可通过 -Dchat.slowConsumer=DISCONNECT 修改
+    private static final Charset CHARSET = Charset.defaultCharset(); // 旧文本协议的编码，与客户端 PrintWriter/InputStreamReader 使用的默认编码保持一致（二进制协议固定使用 UTF-8）
+    private static final SessionRegistry sessions = new SessionRegistry(); // 存储在线用户名和对应的连接，替代原来的 clients 和 usernames
+    private static final String LOBBY = "大厅"; // 登录后进入的默认房间，没有成员时也不会被删除
+    private static final int MAX_ROOM_NAME_LENGTH = 32; // 房间名的最大长度
+    private static final File DATA_DIRECTORY = new File(System.getProperty("chat.dataDir", ".")); // 存放文件和消息日志的目录，同一台机器上的多个节点要各自使用不同的目录
+    private static File fileDirectory = new File(DATA_DIRECTORY, "server_files"); // 定义一个 server_files 文件夹用于存储上传文件
+    private static final FileStore fileStore = new FileStore(fileDirectory); // 按内容哈希存储的文件，文件名只是指向内容的映射
+    private static final MessageLog messageLog = new MessageLog(new File(DATA_DIRECTORY, "chat_log"),
+            Integer.getInteger("chat.logSegmentSize", 16 * 1024 * 1024),
+            Integer.getInteger("chat.logRetainSegments", 8)); // 群聊和私聊消息的日志，分段写满后切换，只保留最近的几个分段
+    private static final int HISTORY_SIZE = Integer.getInteger("chat.historySize", 50); // 进入房间时补发这个房间最近多少条消息
+    private static final int HISTORY_REPLAY_LIMIT = Integer.getInteger("chat.historyReplayLimit", OUTBOUND_LIMIT / 2); // 重新连接时最多补发多少条错过的消息，避免刚登录就被当作慢速接收方
+    private static final int HISTORY_BATCH = 64; // 每批补发的消息数，批与批之间事件循环照常处理其他连接，也不会长时间持有发送队列锁
+    private static final SearchIndex searchIndex = new SearchIndex(new File(DATA_DIRECTORY, "chat_index"),
+            Integer.getInteger("chat.searchFlushDocs", 50000)); // 聊天记录的全文索引，内存中的消息满这么多条后写成索引段
+    private static final int SEARCH_LIMIT = 20; // 一次搜索最多返回的消息数
+    private static final int SEARCH_SNIPPET_LENGTH = 200; // 搜索结果中每条消息最多显示的字符数
+    private static final RoomRegistry rooms = new RoomRegistry(); // 房间名 -> 房间成员，房间内的广播只遍历这个房间的成员
+    private static final ConcurrentHashMap<String, RemoteUser> remoteUsers = new ConcurrentHashMap<>(); // 集群中其他节点上的在线用户
+    private static final Cluster cluster = new Cluster(System.getProperty("chat.nodeId", "node-" + PORT), PORT,
+            Integer.getInteger("chat.clusterPort", 0), System.getProperty("chat.clusterHost", "127.0.0.1"),
+            System.getProperty("chat.peers", ""), System.getProperty("chat.clusterSecret", ""),
+            new ClusterListener()); // 集群端口为 0 时单机运行；每个节点的 chat.peers 要列出其他所有节点的“主机:集群端口”，跨机器时 chat.clusterHost 配置为内网地址
+    private static final ExecutorService fileWorkers = Executors.newFixedThreadPool(2); // 校验上传文件哈希等耗时的磁盘操作放在这里，不阻塞事件循环
+    private static final ExecutorService searchWorkers = Executors.newFixedThreadPool(2); // 执行聊天记录搜索，不排在文件操作后面
+    private static final Metrics metrics = new Metrics(); // 运行指标，通过 HTTP 端点（-Dchat.metricsPort）和 JMX 查看
+    private static final BufferPool buffers = new BufferPool(Long.getLong("chat.bufferPoolSize", 64) * 1024 * 1024,
+            Boolean.getBoolean("chat.bufferLeakDetection")); // 读缓冲区、消息编码和压缩下载共用的堆外缓冲区池（上限单位为 MB）
+    private static final double MESSAGE_RATE = Double.parseDouble(System.getProperty("chat.messageRate", "0")); // 每个用户每秒最多发送的消息数，默认为 0 不限制，公开部署时打开（例如 10）
+    private static final double MESSAGE_BURST = Double.parseDouble(System.getProperty("chat.messageBurst", "20")); // 短时间内最多可以连续发送的消息数
+    private static final double UPLOAD_RATE = Double.parseDouble(System.getProperty("chat.uploadRate", "0")); // 每个用户每秒最多上传的字节数（所有上传连接合计），为 0 时不限制
+    private static final int MAX_CONNECTIONS = Integer.getInteger("chat.maxConnections", 10000); // 同时打开的客户端连接数上限
+    private static final int MAX_UPLOADS = Integer.getInteger("chat.maxUploads", 32); // 同时进行的上传数上限
+    private static final long HANDSHAKE_TIMEOUT = Long.getLong("chat.handshakeTimeout", 10) * 1_000_000_000L; // 连接后多少秒内必须登录或者发出下载/上传请求
+    private static final long PING_INTERVAL = Long.getLong("chat.pingInterval", 30) * 1_000_000_000L; // 二进制协议的聊天连接多少秒没有收到数据时发送 PING
+    private static final long IDLE_TIMEOUT = Long.getLong("chat.idleTimeout", 90) * 1_000_000_000L; // 多少秒没有收到数据（下载时为没有写出）时断开连接
+    private static final double ACCEPT_RATE = Double.parseDouble(System.getProperty("chat.acceptRate", "500")); // 每秒最多接受的新连接数，超过时新连接在内核的等待队列中排队
+    private static final int FILE_PAGE_SIZE = Integer.getInteger("chat.filePageSize", 200); // FILE_QUERY 一页最多返回的文件数
+    private static final int TEXT_FILE_PAGE_SIZE = 20; // 文本协议的 /files 命令最多显示的文件数
+    private static final AtomicInteger connectionCount = new AtomicInteger(); // 当前打开的客户端连接数
+    private static final AtomicInteger uploadCount = new AtomicInteger(); // 当前进行中的上传数
+    private static final ConcurrentHashMap<String, TokenBucket> uploadBuckets = new ConcurrentHashMap<>(); // 用户名 -> 上传字节的令牌桶，同一用户的所有上传连接共享
+    private static final ConcurrentHashMap<String, String> uploadOwners = new ConcurrentHashMap<>(); // 分块上传的内容哈希 -> 上传者，上传分块的连接没有登录，按它找到上传者的令牌桶
+    private static final ConcurrentHashMap<String, Connection> uploadTokens = new ConcurrentHashMap<>(); // 上传令牌 -> 登录的聊天连接，上传连接在 UPLOAD_BEGIN 中出示令牌代表这个用户
+    private static final java.security.SecureRandom tokenRandom = new java.security.SecureRandom(); // 生成上传令牌，不能被别的客户端猜到
+    private static final long UPLOAD_IDLE_TIMEOUT = Long.getLong("chat.uploadIdleTimeout", 3600) * 1_000_000_000L; // 分块上传多少秒没有收到任何分块时放弃，删除已收到的内容
+    private static EventLoop[] loops; // 事件循环线程池
 
     public static void main(String[] args) {
-        fileDirectory.mkdir(); // 创建文件夹
+        loops = new EventLoop[LOOP_COUNT];
         try {
-            ServerSocket serverSocket = new ServerSocket(PORT); // 创建一个服务Socket
-            System.out.println("服务器启动在端口: " + PORT); // 终端打印端口号
+            fileStore.load(); // 创建文件夹并加载文件名索引
+            messageLog.open(); // 加载消息日志，找到最后一条消息
+            searchIndex.open(messageLog); // 加载索引段，补建日志中还没有索引的消息
+            for (int i = 0; i < LOOP_COUNT; i++) { // 启动固定数量的事件循环线程
+                loops[i] = new EventLoop(i);
+                loops[i].start();
+            }
+            loops[0].execute(ChatServer::expireUploads); // 时间轮只能在事件循环线程中使用
+            cluster.start(); // 连接集群中的其他节点
+            fileStore.watch(new FileStore.Listener() { // 管理员直接放进文件夹或删除的文件，与上传的文件一样通知客户端和其他节点
+                @Override
+                public void added(FileStore.FileInfo file) {
+                    Connection.broadcast(ChatProtocol.FILE_ADDED, file.name);
+                    cluster.file(file.name, file.hash, file.uploader);
+                }
+
+                @Override
+                public void removed(String name) {
+                    Connection.broadcast(ChatProtocol.FILE_REMOVED, name);
+                }
+            });
+            metrics.gauge("chat_users_online", "本节点的在线用户数", sessions::size);
+            metrics.gauge("chat_remote_users", "集群中其他节点上的在线用户数", remoteUsers::size);
+            metrics.gauge("chat_rooms", "房间数", rooms::size);
+            metrics.gauge("chat_search_segments", "全文索引的段数", searchIndex::segmentCount);
+            metrics.gauge("chat_outbound_queued", "所有连接的发送队列中等待写出的消息数", () -> {
+                long queued = 0;
+                for (Connection connection : sessions.connections()) {
+                    queued += connection.queued();
+                }
+                return queued;
+            });
+            metrics.gauge("chat_message_log_last_id", "消息日志中最后一条消息的 ID", messageLog::lastId);
+            metrics.gauge("chat_buffer_pool_bytes", "缓冲区池已经申请的直接内存字节数", buffers::reservedBytes);
+            metrics.gauge("chat_buffer_pool_used_bytes", "从缓冲区池借出还没有归还的字节数", buffers::usedBytes);
+            metrics.gauge("chat_buffer_leaks", "泄漏检测发现的没有归还的缓冲区数（只在打开泄漏检测时统计）", buffers::leakCount);
+            metrics.start(Integer.getInteger("chat.metricsPort", 0));
+            ServerSocketChannel serverChannel = ServerSocketChannel.open(); // 创建一个服务端通道
+            serverChannel.bind(new InetSocketAddress(PORT)); // 绑定端口
+            System.out.println("服务器启动在端口: " + PORT + "，事件循环线程数: " + LOOP_COUNT); // 终端打印端口号
+
+            // 主线程只负责接受连接，接受到的连接按轮询方式分配给各个事件循环线程，由事件循环线程以非阻塞方式处理读写
+            int next = 0;
+            TokenBucket acceptBucket = new TokenBucket(ACCEPT_RATE, ACCEPT_RATE);
+            while (true) {
+                long wait = acceptBucket.take(1); // 新连接来得太快时暂停接受，连接在内核的等待队列中排队，不会一下子涌入事件循环
+                if (wait > 0) {
+                    Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                }
+                SocketChannel channel = serverChannel.accept(); // 阻塞直到有一个客户端尝试连接到这个端口
+                loops[next++ % LOOP_COUNT].register(channel); // 交给某个事件循环线程处理，不再为每个连接创建新线程
+            }
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace(); // 将异常的详细信息打印到标准错误流（通常是控制台）
+        }
+    }
+
+    /* 缓冲区池，供本 JVM 中启动服务端的基准测试读取借出和申请的字节数 */
+    static BufferPool bufferPool() {
+        return buffers;
+    }
+
+    /* 定期放弃长时间没有动作的分块上传，并清理它们的上传者记录。在第一个事件循环的时间轮上执行，文件操作交给 fileWorkers */
+    private static void expireUploads() {
+        loops[0].schedule(ChatServer::expireUploads, Math.min(UPLOAD_IDLE_TIMEOUT, 60_000_000_000L));
+        fileWorkers.execute(() -> {
+            int expired = fileStore.expireUploads(UPLOAD_IDLE_TIMEOUT);
+            uploadOwners.keySet().removeIf(hash -> fileStore.upload(hash) == null); // 包括提交失败后留下的记录
+            if (expired > 0) {
+                System.out.println("放弃了 " + expired + " 个长时间没有动作的分块上传");
+            }
+        });
+    }
+
+    /* 事件循环线程：一个 Selector 负责多个连接的读写事件，连接数增长时线程数保持不变 */
+    static class EventLoop extends Thread {
+        private final Selector selector; // 多路复用选择器
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // 提交给本线程执行的任务（注册新连接、写出发送队列等）
+        private final AtomicBoolean wakeupPending = new AtomicBoolean(); // 已经唤醒过 Selector 但还没处理，避免重复调用 wakeup()
+        private final TimerWheel timers = new TimerWheel(10_000_000L, 512); // 延迟执行的任务（限速后恢复读取、超时检查等），10 毫秒一个刻度，只在本线程访问
+        final byte[] scratch = new byte[64 * 1024]; // 本线程解压上传分块、读取要压缩的文件内容时用的临时缓冲区
+
+        EventLoop(int index) throws IOException {
+            super("chat-loop-" + index);
+            selector = Selector.open();
+        }
+
+        /* 把一个新接受的连接交给本事件循环（可在任意线程调用） */
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    channel.configureBlocking(false); // 切换为非阻塞模式
+                    channel.socket().setTcpNoDelay(true); // 聊天消息都很小，关闭 Nagle 算法以降低延迟
+                    channel.socket().setKeepAlive(true); // 文本协议不能回复 PING，由 TCP 保活探测对方是否还在
+                    Connection connection = new Connection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection); // 关注读事件，并把连接对象挂在 key 上
+                    metrics.connectionsOpened.increment();
+                    connection.overCapacity = connectionCount.incrementAndGet() > MAX_CONNECTIONS; // 超过上限的连接在确定协议后收到错误并被关闭
+                    connection.deadline = schedule(connection::checkDeadline, HANDSHAKE_TIMEOUT); // 先检查握手超时，之后同一个定时任务改为检查空闲
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            });
+        }
+
+        /* 提交一个任务到本线程执行。任务总是在本轮事件处理完之后统一执行，这样同一轮里对同一连接的多次发送可以合并成一次写 */
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != this && wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup(); // 唤醒阻塞在 select() 上的事件循环
+            }
+        }
+
+        /* 在本线程中延迟 delayNanos 纳秒后执行任务，只能在本线程调用 */
+        TimerWheel.Timeout schedule(Runnable task, long delayNanos) {
+            return timers.schedule(task, delayNanos);
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    long wait = timers.nanosUntilNextTick();
+                    if (wait < 0) {
+                        selector.select(); // 阻塞直到有就绪事件或被 wakeup
+                    } else if (wait >= 1_000_000) {
+                        selector.select(wait / 1_000_000); // 最多等到时间轮的下一个刻度
+                    } else {
+                        selector.selectNow();
+                    }
+                    wakeupPending.set(false);
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) { // 可写：继续发送之前没写完的数据
+                                connection.flushQuietly();
+                            }
+                            if (key.isValid() && key.isReadable()) { // 可读：读取数据并按行拆分处理
+                                connection.onReadable();
+                            }
+                        } catch (IOException | CancelledKeyException e) { // 单个连接出错只关闭这个连接，不影响其他连接
+                            connection.close();
+                        } catch (RuntimeException e) { // 处理请求时的程序错误同样只关闭这个连接，否则同一段数据每次读事件都会被重新处理
+                            e.printStackTrace();
+                            connection.close();
+                        }
+                    }
+                    timers.advance(); // 到期的延迟任务
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) { // 再执行提交过来的任务，包括本轮读事件中产生的发送
+                        task.run();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace(); // 事件循环本身不能因为某个异常退出
+                }
+            }
+        }
+    }
+
+    /*
+     * 令牌桶：每秒补充 rate 个令牌，最多积攒 burst 个，用于限制每个用户的消息数和上传字节数。
+     * 不需要定时线程，每次取令牌时按经过的时间补充。上传字节允许先欠账，之后按欠下的数量暂停读取
+     */
+    static final class TokenBucket {
+        private final double rate; // 每秒补充的令牌数
+        private final double burst; // 最多积攒的令牌数
+        private double tokens; // 当前的令牌数，欠账时为负数
+        private long refilledAt; // 上次补充的时间（System.nanoTime）
+
+        TokenBucket(double rate, double burst) {
+            this.rate = rate;
+            this.burst = Math.max(1, burst);
+            this.tokens = this.burst;
+            this.refilledAt = System.nanoTime();
+        }
+
+        /* 取一个令牌，没有时返回 false，不欠账 */
+        synchronized boolean tryTake() {
+            refill();
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        /* 取 n 个令牌，不够时欠账，返回还清欠账需要等待的纳秒数（不欠账时为 0） */
+        synchronized long take(double n) {
+            refill();
+            tokens -= n;
+            return tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+        }
+
+        /* 再过多少纳秒会有一个令牌 */
+        synchronized long nanosUntilNext() {
+            refill();
+            return tokens >= 1 ? 0 : (long) ((1 - tokens) / rate * 1e9);
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - refilledAt) / 1e9 * rate);
+            refilledAt = now;
+        }
+    }
+
+    /* 在线会话注册表：用户名 -> 连接。基于 ConcurrentHashMap，读和遍历都不加锁，遍历时其他线程可以同时加入或离开 */
+    static class SessionRegistry {
+        private final ConcurrentHashMap<String, Connection> map = new ConcurrentHashMap<>();
+
+        /* 原子地占用一个用户名，用户名已被占用时返回 false。不再有先 contains 再 add 的竞争 */
+        boolean claim(String username, Connection connection) {
+            return map.putIfAbsent(username, connection) == null;
+        }
+
+        /* 释放用户名，只有仍然属于这个连接时才会移除 */
+        boolean release(String username, Connection connection) {
+            return map.remove(username, connection);
+        }
+
+        Connection get(String username) {
+            return map.get(username);
+        }
+
+        /* 所有在线连接，遍历是弱一致的，不会抛出 ConcurrentModificationException */
+        Collection<Connection> connections() {
+            return map.values();
+        }
+
+        /* 所有在线用户名 */
+        Set<String> usernames() {
+            return map.keySet();
+        }
+
+        int size() {
+            return map.size();
+        }
+    }
+
+    /* 一个聊天房间。广播只遍历这个房间的成员，成本与房间人数成正比，而不是与总在线人数成正比 */
+    static final class Room {
+        final String name; // 房间名
+        private final Set<Connection> members = ConcurrentHashMap.newKeySet(); // 本节点上的房间成员，遍历时不加锁
+        private final ConcurrentHashMap<String, String> remote = new ConcurrentHashMap<>(); // 集群中其他节点上的房间成员：用户名 -> 节点ID
+        private final long[] recent = new long[HISTORY_SIZE]; // 这个房间最近 HISTORY_SIZE 条消息（包括发给所有房间的消息）的 ID（环形数组），进入房间时按这些 ID 在日志中逐条定位补发
+        private int recentCount; // recent 中有效的 ID 数量
+        private int recentNext; // 下一个 ID 写入 recent 的位置
+
+        Room(String name) {
+            this.name = name;
+        }
+
+        /* 记录一条发到这个房间的消息。在消息日志的锁内调用，ID 按从小到大的顺序记录 */
+        synchronized void recordMessage(long id) {
+            if (recent.length == 0) {
+                return;
+            }
+            recent[recentNext] = id;
+            recentNext = (recentNext + 1) % recent.length;
+            recentCount = Math.min(recentCount + 1, recent.length);
+        }
+
+        /* 最近 HISTORY_SIZE 条房间消息的 ID，从早到晚排列。服务器重启或者房间被删除后重建时为空 */
+        synchronized long[] historyIds() {
+            long[] ids = new long[recentCount];
+            for (int i = 0; i < recentCount; i++) {
+                ids[i] = recent[(recentNext - recentCount + i + recent.length) % recent.length];
+            }
+            return ids;
+        }
+
+        /* 房间成员（包括其他节点上的成员）的用户名，逗号分隔 */
+        String memberList() {
+            StringBuilder list = new StringBuilder();
+            for (Connection member : members) {
+                list.append(member.username).append(",");
+            }
+            for (String user : remote.keySet()) {
+                list.append(user).append(",");
+            }
+            return list.toString();
+        }
+
+        /* 有这个房间成员的其他节点，房间消息只转发给这些节点 */
+        Set<String> remoteNodes() {
+            return new HashSet<>(remote.values());
+        }
+
+        boolean isEmpty() {
+            return members.isEmpty() && remote.isEmpty();
+        }
+    }
+
+    /* 房间注册表：房间名 -> 房间。最后一个成员离开时删除房间（大厅除外），一台服务器上可以有成千上万个小房间 */
+    static class RoomRegistry {
+        private final ConcurrentHashMap<String, Room> map = new ConcurrentHashMap<>();
+        private final Set<String> announced = new LinkedHashSet<>(); // 已经通知给客户端的房间，对它加锁保证房间列表的快照和增量按顺序到达
+
+        RoomRegistry() {
+            map.put(LOBBY, new Room(LOBBY));
+            announced.add(LOBBY);
+        }
+
+        /* 加入房间，房间不存在时创建。compute 对同一个房间名是原子的，不会加入一个正在被删除的房间 */
+        Room join(String name, Connection connection) {
+            return map.compute(name, (key, room) -> {
+                if (room == null) {
+                    room = new Room(key);
+                }
+                room.members.add(connection);
+                return room;
+            });
+        }
+
+        /* 离开房间，最后一个成员（包括其他节点上的成员）离开时删除这个房间 */
+        void leave(Room room, Connection connection) {
+            map.computeIfPresent(room.name, (key, current) -> {
+                current.members.remove(connection);
+                return current.isEmpty() && !key.equals(LOBBY) ? null : current;
+            });
+        }
+
+        /* 其他节点上的用户加入房间 */
+        Room joinRemote(String name, String user, String node) {
+            return map.compute(name, (key, room) -> {
+                if (room == null) {
+                    room = new Room(key);
+                }
+                room.remote.put(user, node);
+                return room;
+            });
+        }
+
+        /* 其他节点上的用户离开房间 */
+        void leaveRemote(Room room, String user) {
+            map.computeIfPresent(room.name, (key, current) -> {
+                current.remote.remove(user);
+                return current.isEmpty() && !key.equals(LOBBY) ? null : current;
+            });
+        }
+
+        Room get(String name) {
+            return map.get(name);
+        }
+
+        /* 发给所有房间的消息记录到每个房间的最近消息中，进入任何房间时都会补发 */
+        void recordMessage(long id) {
+            for (Room room : map.values()) {
+                room.recordMessage(id);
+            }
+        }
+
+        int size() {
+            return map.size();
+        }
+
+        /*
+         * 创建或删除房间之后调用：如果客户端看到的房间列表与实际不一致，广播 ROOM_ADDED 或 ROOM_REMOVED。
+         * 不能在持有某个连接的发送队列锁时调用，广播需要获取其他连接的发送队列锁
+         */
+        void announce(String name) {
+            synchronized (announced) {
+                boolean exists = map.containsKey(name);
+                if (exists && announced.add(name)) {
+                    Connection.broadcast(ChatProtocol.ROOM_ADDED, name);
+                } else if (!exists && announced.remove(name)) {
+                    Connection.broadcast(ChatProtocol.ROOM_REMOVED, name);
+                }
+            }
+        }
+
+        /* 给刚登录的客户端发送完整的房间列表。与 announce 互斥，之后的变化都以增量的形式排在列表之后 */
+        void sendList(Connection connection) {
+            synchronized (announced) {
+                StringBuilder list = new StringBuilder();
+                for (String name : announced) {
+                    list.append(name).append(",");
+                }
+                connection.send(ChatProtocol.ROOMS, list.toString());
+            }
+        }
+    }
+
+    /* 集群中其他节点上的在线用户：所在的节点和房间，切换房间时整体替换 */
+    static final class RemoteUser {
+        final String node; // 所在节点
+        final Room room; // 所在房间
+
+        RemoteUser(String node, Room room) {
+            this.node = node;
+            this.room = room;
+        }
+    }
+
+    /*
+     * 处理集群中其他节点发来的消息：维护其他节点上的在线用户和房间成员，把消息投递给本节点的连接，不再转发给其他节点。
+     * 在线状态的变化加锁按顺序处理，用户和房间成员的变化在所有节点上最终一致
+     */
+    static class ClusterListener implements Cluster.Listener {
+        @Override
+        public synchronized void nodeUp(String node) {
+            removeUsersOf(node); // 对端重新连接后会重新发送它的所有在线用户
+        }
+
+        @Override
+        public synchronized void nodeDown(String node) {
+            removeUsersOf(node);
+        }
+
+        @Override
+        public synchronized void userRoom(String node, String user, String room) {
+            leave(user);
+            Room joined = rooms.joinRemote(room, user, node);
+            remoteUsers.put(user, new RemoteUser(node, joined));
+            rooms.announce(room); // 这个房间可能是刚创建的
+            Connection.broadcast(joined, ChatProtocol.USER_JOIN, user); // 只通知本节点上的房间成员
+        }
+
+        @Override
+        public synchronized void userOffline(String node, String user) {
+            leave(user);
+        }
+
+        @Override
+        public void broadcast(String room, String line) {
+            Room target = room.isEmpty() ? null : rooms.get(room);
+            if (target != null || room.isEmpty()) { // 本节点上已经没有这个房间的成员时忽略
+                Connection.deliver(target, line);
+            }
+        }
+
+        @Override
+        public void privateMessage(String sender, String recipient, String content) {
+            Connection.deliverPrivate(sender, recipient, content);
+        }
+
+        /* 其他节点新增了文件：本节点没有这个内容时先从那个节点下载，然后加入文件列表 */
+        @Override
+        public void file(InetSocketAddress source, String name, String hash, String uploader) {
+            if (!FileStore.isHash(hash) || hash.equals(fileStore.hashOf(name))) {
+                return;
+            }
+            if (!FileStore.isValidName(name)) { // 旧版本的节点可能接受过这样的名字，只忽略这一个文件，不断开集群连接
+                System.out.println("忽略了节点 " + source + " 上名字不合法的文件: " + name.replace("\n", "\\n").replace("\t", "\\t"));
+                return;
+            }
+            fileWorkers.execute(() -> {
+                try {
+                    if (!fileStore.hasBlob(hash)) {
+                        fileStore.fetch(source, name, hash);
+                    }
+                    fileStore.link(name, hash, uploader);
+                    Connection.broadcast(ChatProtocol.FILE_ADDED, name);
+                } catch (IOException e) {
+                    e.printStackTrace(); // 对端的文件名已经指向别的内容时，随后会收到新的通知
+                }
+            });
+        }
+
+        @Override
+        public Collection<FileStore.FileInfo> localFiles() {
+            return fileStore.entries();
+        }
+
+        private void removeUsersOf(String node) {
+            for (Map.Entry<String, RemoteUser> user : remoteUsers.entrySet()) {
+                if (user.getValue().node.equals(node)) {
+                    leave(user.getKey());
+                }
+            }
+        }
+
+        /* 其他节点上的用户离开原来的房间（切换房间或者离线） */
+        private void leave(String user) {
+            RemoteUser remote = remoteUsers.remove(user);
+            if (remote != null) {
+                rooms.leaveRemote(remote.room, user);
+                Connection.broadcast(remote.room, ChatProtocol.USER_LEAVE, user);
+                rooms.announce(remote.room.name); // 最后一个成员离开时房间被删除
+            }
+        }
+    }
+
+    /* 发送队列已满（接收方读得太慢）时的处理策略 */
+    enum SlowConsumerPolicy {
+        DROP_OLDEST, // 丢弃最旧的消息，保证接收方最终能看到最新的消息
+        DISCONNECT // 直接断开这个客户端
+    }
+
+    /*
+     * 一条发往客户端的消息：类型 + 内容。同一条消息按两种协议各编码一次，放在缓冲区池的堆外缓冲区中，
+     * 广播时所有使用同一协议的接收方共享同一份编码结果，每个接收方的发送队列各持有一次引用。
+     * 消息本身也持有一次引用，创建者放入所有接收方的发送队列之后调用 release，之后不能再入队
+     */
+    static final class Message {
+        final byte type; // ChatProtocol 中定义的服务端消息类型
+        final String payload; // 消息内容
+        final long id; // 消息日志中的 ID，不记录在日志中的消息为 0
+        final Room room; // 房间内的消息所属的房间，为 null 时发给所有在线用户
+        private BufferPool.Buffer text; // 旧文本协议的编码结果，以下三个字段对 this 加锁访问
+        private BufferPool.Buffer binary; // 二进制协议的编码结果
+        private BufferPool.Buffer compressed; // 启用了压缩的二进制协议连接使用的编码，不值得压缩时就是 binary 本身（多持有一次引用）
+
+        Message(byte type, String payload) {
+            this(type, payload, 0);
+        }
+
+        Message(byte type, String payload, long id) {
+            this(type, payload, id, null);
+        }
+
+        Message(byte type, String payload, long id, Room room) {
+            this.type = type;
+            this.payload = payload;
+            this.id = id;
+            this.room = room;
+        }
+
+        /* 启用了压缩的连接取得的编码：较大的帧只压缩一次，所有接收方共享压缩结果 */
+        synchronized BufferPool.Buffer encoded(boolean binaryProtocol, boolean compress) {
+            if (!binaryProtocol || !compress) {
+                return encoded(binaryProtocol);
+            }
+            if (compressed == null) {
+                BufferPool.Buffer plain = encoded(true);
+                ByteBuffer frame = ChatProtocol.compressFrame(plain.data());
+                compressed = frame == null ? plain.retain() : pooled(frame);
+            }
+            return compressed;
+        }
+
+        /* 取得这条消息在某种协议下的编码，第一次调用时才编码，同一条消息只编码一次 */
+        synchronized BufferPool.Buffer encoded(boolean binaryProtocol) {
+            if (binaryProtocol) {
+                if (binary == null) {
+                    binary = pooled(id == 0 ? ChatProtocol.encode(type, payload) : MessageLog.frame(id, payload)); // 与日志中保存的帧完全相同
+                }
+                return binary;
+            }
+            if (text == null) {
+                text = pooled(ByteBuffer.wrap((textPrefix(type) + payload + "\n").getBytes(CHARSET)));
+            }
+            return text;
+        }
+
+        /* 放入所有接收方的发送队列之后调用，归还消息自己持有的编码，最后一个复制走的接收方把缓冲区还给池 */
+        synchronized void release() {
+            release(text);
+            release(binary);
+            release(compressed);
+            text = binary = compressed = null;
+        }
+
+        private static void release(BufferPool.Buffer buffer) {
+            if (buffer != null) {
+                buffer.release();
+            }
+        }
+
+        /* 把编码结果复制到池中的缓冲区 */
+        private static BufferPool.Buffer pooled(ByteBuffer encoded) {
+            BufferPool.Buffer buffer = buffers.allocate(encoded.remaining());
+            buffer.data().put(encoded.duplicate()).flip();
+            return buffer;
+        }
+
+        /* 旧文本协议中每种消息的前缀 */
+        private static String textPrefix(byte type) {
+            switch (type) {
+                case ChatProtocol.USERNAME_TAKEN: return "USERNAME_TAKEN";
+                case ChatProtocol.USERS: return "USERS:";
+                case ChatProtocol.FILES: return "FILES:";
+                case ChatProtocol.USER_JOIN: return "USER_JOIN:";
+                case ChatProtocol.USER_LEAVE: return "USER_LEAVE:";
+                case ChatProtocol.FILE_ADDED: return "FILE_ADDED:";
+                case ChatProtocol.FILE_REMOVED: return "FILE_REMOVED:";
+                case ChatProtocol.ROOM: return "ROOM:";
+                case ChatProtocol.ROOMS: return "ROOMS:";
+                case ChatProtocol.ROOM_ADDED: return "ROOM_ADDED:";
+                case ChatProtocol.ROOM_REMOVED: return "ROOM_REMOVED:";
+                case ChatProtocol.FILE_START: return "FILE_START\n"; // 文本协议中文件大小单独占一行
+                case ChatProtocol.FILE_NOT_FOUND: return "FILE_NOT_FOUND";
+                case ChatProtocol.RANGE_NOT_SATISFIABLE: return "RANGE_NOT_SATISFIABLE:";
+                default: return ""; // TEXT：普通的一行文字
+            }
+        }
+    }
+
+    /* 连接的协议状态，连接是非阻塞的，所以原来顺序执行的 readLine() 调用被拆分成了这些状态 */
+    enum State {
+        HANDSHAKE, // 等待第一行（用户名或者 FILE_DOWNLOAD_REQUEST），或者二进制协议的握手和第一帧（LOGIN 或 DOWNLOAD_REQUEST）
+        CHAT, // 正常聊天
+        UPLOAD_NAME, // 收到 FILE: 之后，等待文件名
+        UPLOAD_SIZE, // 等待文件大小
+        UPLOAD_BODY, // 正在接收文件的原始字节
+        DOWNLOAD_NAME, // 收到 FILE_DOWNLOAD_REQUEST 之后，等待文件名
+        DOWNLOADING // 正在向客户端发送文件，发送完后文本协议关闭连接，二进制协议回到 HANDSHAKE 等待下一个下载请求
+    }
+
+    /* 一个客户端连接，由所属的事件循环线程驱动，替代原来每个连接一个线程的 ClientHandler */
+    static class Connection {
+        private final EventLoop loop; // 所属的事件循环
+        private final SocketChannel channel; // 客户端通道
+        private SelectionKey key; // 在 Selector 上注册得到的 key
+        private BufferPool.Buffer readLease; // 从缓冲区池借来的读缓冲区，里面的数据处理完就归还，空闲的连接不占用读缓冲区
+        private ByteBuffer readBuffer; // readLease 的内容（堆外内存，没有 array()），收到比它大的帧时换一个更大的级别
+        private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream(); // 一行数据跨越多次读取时，先把不完整的部分暂存在这里
+        private final ArrayDeque<BufferPool.Buffer> outbound = new ArrayDeque<>(); // 每个连接自己的有界发送队列，每一项持有一次引用，任意线程都可以放入，只有事件循环线程取出发送，访问时对它加锁
+        private final AtomicBoolean flushScheduled = new AtomicBoolean(); // 已经向事件循环提交了写出任务，多次发送只提交一次
+        private BufferPool.Buffer writeLease; // 从缓冲区池借来的写缓冲区，只在有数据要写时持有
+        private ByteBuffer writeBuffer; // writeLease 的内容，处于读模式，position 到 limit 是还没写出的数据
+        private BufferPool.Buffer partial; // 已经从发送队列取出、只复制了一部分到写缓冲区的一项
+        private int partialOffset; // partial 中已经复制的字节数
+        private long dropped; // 因为接收过慢被丢弃的消息数
+        private boolean slowConsumer; // 已经因为接收过慢被标记断开
+        private State state = State.HANDSHAKE;
+        private boolean protocolChosen; // 已经根据第一个字节确定了协议
+        private boolean binary; // 使用二进制协议，否则使用旧的文本协议
+        private boolean compress; // 握手协商的版本支持压缩
+        private String username; // 存储客户端的用户名
+        private final String remoteAddress; // 客户端地址
+        private long joinedAt; // 登录成功（加入聊天室）的时间
+        private Room room; // 当前所在的房间，在发送队列锁内修改
+        private long historyEnd; // 已经补发到的最后一条消息 ID，ID 不大于它的实时消息已经补发过，不再重复发送
+        private boolean replaying; // 正在分批补发历史消息，这期间记录在日志中的实时消息不直接发送，由补发从日志中按顺序读出
+        private long[] historyIds; // 按房间索引逐条定位补发的消息 ID，补发完后为 null，再从 historyEnd 之后顺序读到日志末尾
+        private int historyNext; // historyIds 中下一条要补发的位置
+        private MessageLog.Visitor historyVisitor; // 补发时接收日志中的消息，第一次补发时创建
+        private boolean closed;
+        private boolean closeAfterFlush; // 数据全部发送完以后关闭连接（用于文件下载）
+
+        private String uploadFileName; // 正在上传的文件名
+        private long uploadRemaining; // 上传剩余的字节数
+        private FileChannel uploadChannel; // 上传文件写入的文件通道
+        private long uploadPosition; // 下一个字节写入文件的位置
+        private File uploadTemp; // 整个文件一次发送的上传（旧协议 FILE: 和 UPLOAD_START）先写入的临时文件
+        private java.security.MessageDigest uploadDigest; // 边接收边计算临时文件内容的哈希，不需要再读一遍文件
+        private FileStore.PartialUpload uploadPartial; // 正在接收的分块所属的分块上传
+        private int uploadChunk; // 正在接收的分块序号
+        private String uploadHash; // 在本连接上用 UPLOAD_BEGIN 开始的分块上传的内容哈希
+        private String uploader; // 分块上传的上传者
+        private String uploadToken; // 登录后发给客户端的上传令牌，只有二进制协议的聊天连接才有
+        private long uploadStarted; // 上传开始的时间（System.nanoTime），用于统计上传耗时
+        private boolean uploadDiscard; // 上传数已满，收到的文件内容直接丢弃
+        private boolean holdsUploadSlot; // 占用了一个上传名额，上传结束或连接关闭时归还
+        private TokenBucket uploadBucket; // 正在接收的上传所属用户的令牌桶，不限速时为 null
+        private boolean uploadCompressed; // 正在接收的分块是压缩的，每个分块是一个完整的压缩流
+        private Inflater uploadInflater; // 解压分块用，连接上第一次收到压缩的分块时创建，之后复用
+        private long uploadEnd; // 压缩的分块解压后应该写到的结束位置
+
+        private String downloadRange; // 文本协议下载请求第一行中携带的范围（FILE_DOWNLOAD_REQUEST bytes=起始-结束）
+        private FileChannel downloadChannel; // 下载文件读取的文件通道
+        private long downloadPosition; // 下一个要发送的字节在文件中的位置
+        private long downloadEnd; // 要发送的范围的结束位置（不包含）
+        private long downloadStarted; // 下载开始的时间（System.nanoTime），用于统计下载耗时
+        private Deflater downloadDeflater; // 压缩下载时不为 null，整个文件是一个压缩流
+        private BufferPool.Buffer downloadFrame; // 压缩下载中已经生成但还没写完的 FILE_DATA 帧
+
+        boolean overCapacity; // 接受时已经超过连接数上限
+        private TokenBucket messageBucket; // 本用户发送消息的令牌桶，登录后创建，不限速时为 null
+        private long throttleNotifiedAt; // 上次通知客户端被限速的时间（System.nanoTime），持续发送过快时每秒最多通知一次
+        private boolean throttled; // 被限速，暂停读取直到令牌补充
+        private boolean outboundPaused; // 发送队列积压过多，暂停读取直到写出一部分
+        private TimerWheel.Timeout deadline; // 握手超时或空闲检查的定时任务
+        private boolean identified; // 已经登录或者发出了下载/上传请求，不再受握手超时限制
+        private long lastActivity = System.nanoTime(); // 上次收到数据的时间，下载时也包括写出文件内容
+        private boolean pingSent; // 空闲后已经发送过 PING，收到数据前不再发送
+
+        Connection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            this.remoteAddress = String.valueOf(channel.socket().getRemoteSocketAddress());
+        }
+
+        /* 通道可读：读取数据，然后在事件循环内完成按行或按帧拆分 */
+        void onReadable() throws IOException {
+            if (readBuffer == null) { // 有数据可读时才借读缓冲区
+                readLease = buffers.allocate(READ_BUFFER_SIZE);
+                readBuffer = readLease.data();
+            }
+            int n = channel.read(readBuffer);
+            if (n == -1) { // 客户端断开连接
+                close();
+                return;
+            }
+            lastActivity = System.nanoTime();
+            pingSent = false;
+            process();
+        }
+
+        /*
+         * 时间轮调用的超时检查，每个连接只有一个定时任务，每次到期时按上次活动的时间重新安排，
+         * 收到数据时只更新时间戳，不需要取消和重新添加定时任务。
+         * 握手超时之前没有登录也没有请求时断开；之后二进制协议的聊天连接空闲 PING_INTERVAL 时发送 PING，
+         * 任何连接空闲 IDLE_TIMEOUT 时断开。文本协议的聊天连接不能回复 PING，只靠 TCP 保活和写出失败发现断线。
+         * 断开都走 close()，和客户端主动离开一样通知其他用户
+         */
+        private void checkDeadline() {
+            deadline = null;
+            if (closed) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (!identified) {
+                metrics.timeouts.increment();
+                System.out.println("连接 " + remoteAddress + " 在 " + HANDSHAKE_TIMEOUT / 1_000_000_000L + " 秒内没有登录，断开");
+                close();
+                return;
+            }
+            if (!binary && state == State.CHAT) {
+                return;
+            }
+            long idle = now - lastActivity;
+            if (idle >= IDLE_TIMEOUT) {
+                metrics.timeouts.increment();
+                System.out.println((username != null ? "用户 " + username : "连接 " + remoteAddress) + " 已经 " + idle / 1_000_000_000L + " 秒没有响应，断开");
+                close();
+                return;
+            }
+            long next = lastActivity + IDLE_TIMEOUT;
+            if (binary && username != null) {
+                if (idle < PING_INTERVAL) {
+                    next = lastActivity + PING_INTERVAL;
+                } else if (!pingSent) {
+                    pingSent = true;
+                    send(ChatProtocol.PING, "");
+                }
+            }
+            deadline = loop.schedule(this::checkDeadline, next - now);
+        }
+
+        /*
+         * 处理读缓冲区中已经收到的数据。被限速或者发送队列积压时停在当前位置，剩下的数据留在缓冲区中，
+         * 同时不再关注读事件，客户端继续发送会被 TCP 流量控制挡住；恢复读取时先从这里继续处理缓冲区中的数据
+         */
+        private void process() throws IOException {
+            if (readBuffer != null) { // 读缓冲区已经归还时没有未处理的数据
+                processBuffered();
+            }
+            if (!closed) {
+                if (queued() >= OUTBOUND_LIMIT / 2) { // 客户端不读取发给它的数据，也就不再处理它发来的请求
+                    outboundPaused = true;
+                }
+                updateReadInterest();
+            }
+        }
+
+        /* 逐行或逐帧处理读缓冲区中的数据，全部处理完时把读缓冲区还给池 */
+        private void processBuffered() throws IOException {
+            readBuffer.flip(); // 切换到读模式
+            while (!closed && readBuffer.hasRemaining() && !throttled && !outboundPaused) {
+                if (state == State.UPLOAD_BODY) { // 文件内容是原始字节，不能按行拆分
+                    consumeUploadBytes();
+                    continue;
+                }
+                if (!protocolChosen) { // 第一个字节为 0 表示二进制协议的握手，否则是旧文本协议的用户名
+                    if (readBuffer.get(readBuffer.position()) == 0) {
+                        if (readBuffer.remaining() < ChatProtocol.HANDSHAKE_LENGTH) { // 握手还没收全
+                            break;
+                        }
+                        negotiate();
+                        continue;
+                    }
+                    protocolChosen = true;
+                }
+                if (binary) {
+                    if (!nextFrame()) { // 还没有收到完整的一帧
+                        break;
+                    }
+                    continue;
+                }
+                String line = nextLine();
+                if (line == null) { // 还没有读到完整的一行，等待下一次可读事件
+                    break;
+                }
+                onLine(line);
+            }
+            if (!closed) {
+                readBuffer.compact(); // 把没处理完的数据移动到缓冲区开头，切换回写模式
+                if (readBuffer.position() == 0) { // 全部处理完，读缓冲区还给池
+                    releaseReadBuffer();
+                }
+            }
+        }
+
+        private void releaseReadBuffer() {
+            if (readLease != null) {
+                readLease.release();
+                readLease = null;
+                readBuffer = null;
+            }
+        }
+
+        /* 根据是否暂停读取更新关注的事件 */
+        private void updateReadInterest() {
+            if (key == null || !key.isValid()) {
+                return;
+            }
+            int ops = key.interestOps();
+            key.interestOps(throttled || outboundPaused ? ops & ~SelectionKey.OP_READ : ops | SelectionKey.OP_READ);
+        }
+
+        /* 暂停读取 delayNanos 纳秒（在事件循环线程中调用），之后继续处理缓冲区中剩下的数据 */
+        private void pauseReading(long delayNanos) {
+            if (throttled) {
+                return;
+            }
+            throttled = true;
+            loop.schedule(() -> {
+                throttled = false;
+                resumeReading();
+            }, delayNanos);
+        }
+
+        private void resumeReading() {
+            if (closed) {
+                return;
+            }
+            try {
+                process();
+            } catch (IOException e) {
+                close();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                close();
+            }
+        }
+
+        /*
+         * 消息限速：取一个令牌，没有令牌时丢弃这条消息，通知客户端（每秒最多一次），并暂停读取直到有新的令牌。
+         * 返回 false 表示消息被丢弃
+         */
+        private boolean allowMessage() {
+            if (messageBucket == null || messageBucket.tryTake()) {
+                return true;
+            }
+            metrics.throttled.increment();
+            long wait = Math.max(1_000_000, messageBucket.nanosUntilNext());
+            long now = System.nanoTime();
+            if (throttleNotifiedAt == 0 || now - throttleNotifiedAt >= 1_000_000_000L) {
+                throttleNotifiedAt = now;
+                String reason = "发送过快，消息被丢弃，请 " + wait / 1_000_000 + " 毫秒后再试";
+                if (binary) {
+                    send(ChatProtocol.THROTTLED, wait / 1_000_000 + "\n" + reason);
+                } else {
+                    send("SERVER: " + reason);
+                }
+            }
+            pauseReading(wait);
+            return false;
+        }
+
+        /* 连接数超过上限：回复错误后关闭。二进制协议在握手之后回复，文本协议在第一行之后回复 */
+        private void rejectOverCapacity() {
+            String reason = "服务器连接数已满，请稍后再试";
+            if (binary) {
+                send(ChatProtocol.THROTTLED, "1000\n" + reason);
+            } else {
+                send("SERVER: " + reason);
+            }
+            closeAfterFlush();
+        }
+
+        /* 占用一个上传名额，已满时返回 false */
+        private boolean acquireUploadSlot() {
+            if (uploadCount.incrementAndGet() > MAX_UPLOADS) {
+                uploadCount.decrementAndGet();
+                metrics.throttled.increment();
+                return false;
+            }
+            holdsUploadSlot = true;
+            return true;
+        }
+
+        private void releaseUploadSlot() {
+            if (holdsUploadSlot) {
+                holdsUploadSlot = false;
+                uploadCount.decrementAndGet();
+            }
+        }
+
+        /* 用户的上传令牌桶，不限速时返回 null */
+        private static TokenBucket uploadBucketOf(String user) {
+            return UPLOAD_RATE <= 0 || user == null ? null : uploadBuckets.computeIfAbsent(user, key -> new TokenBucket(UPLOAD_RATE, UPLOAD_RATE));
+        }
+
+        /* 从读缓冲区中取出一行（不包含换行符），没有完整的一行时返回 null */
+        private String nextLine() throws IOException {
+            int start = readBuffer.position();
+            for (int i = start; i < readBuffer.limit(); i++) {
+                if (readBuffer.get(i) == '\n') {
+                    byte[] bytes;
+                    int length;
+                    if (lineBuffer.size() == 0 && i - start <= loop.scratch.length) { // 整行都在读缓冲区中（通常的情况），复制到本线程的临时缓冲区解码，不再分配中间数组
+                        bytes = loop.scratch;
+                        length = i - start;
+                        readBuffer.get(bytes, 0, length);
+                    } else {
+                        appendLine(i - start);
+                        bytes = lineBuffer.toByteArray();
+                        length = bytes.length;
+                        lineBuffer.reset();
+                    }
+                    readBuffer.position(i + 1);
+                    if (length > 0 && bytes[length - 1] == '\r') { // 兼容 Windows 的 \r\n 换行
+                        length--;
+                    }
+                    return new String(bytes, 0, length, CHARSET);
+                }
+            }
+            appendLine(readBuffer.remaining()); // 不完整的一行先暂存
+            if (lineBuffer.size() > MAX_LINE_LENGTH) {
+                throw new IOException("行过长: " + lineBuffer.size());
+            }
+            return null;
+        }
+
+        /* 把读缓冲区中接下来的 length 个字节追加到 lineBuffer，读缓冲区是堆外内存，经过本线程的临时缓冲区复制 */
+        private void appendLine(int length) {
+            byte[] scratch = loop.scratch;
+            while (length > 0) {
+                int n = Math.min(length, scratch.length);
+                readBuffer.get(scratch, 0, n);
+                lineBuffer.write(scratch, 0, n);
+                length -= n;
+            }
+        }
+
+        /* 二进制协议握手：校验魔数，回复服务端支持的版本 */
+        private void negotiate() throws IOException {
+            if (!ChatProtocol.isHandshake(readBuffer)) {
+                throw new IOException("握手魔数错误");
+            }
+            byte version = readBuffer.get(readBuffer.position() + ChatProtocol.MAGIC.length);
+            readBuffer.position(readBuffer.position() + ChatProtocol.HANDSHAKE_LENGTH);
+            if (version < 1) {
+                throw new IOException("不支持的协议版本: " + version);
+            }
+            protocolChosen = true;
+            binary = true;
+            byte agreed = (byte) Math.min(version, ChatProtocol.VERSION); // 按双方都支持的最高版本通信，旧客户端不会收到它不认识的帧
+            compress = agreed >= ChatProtocol.COMPRESSION_VERSION;
+            enqueue(ByteBuffer.wrap(ChatProtocol.handshake(agreed)));
+            if (overCapacity) {
+                rejectOverCapacity();
+            }
+        }
+
+        /* 从读缓冲区中解析一帧并处理，帧还不完整时返回 false。按类型字节分派，不需要对字符串做前缀匹配 */
+        private boolean nextFrame() throws IOException {
+            int start = readBuffer.position();
+            byte type = readBuffer.get(start);
+            int length = ChatProtocol.readVarint(readBuffer, start + 1);
+            if (length < 0) { // 长度字段还没收全（溢出的长度在 readVarint 中抛出异常，连接被关闭）
+                return false;
+            }
+            if (length > ChatProtocol.MAX_FRAME_LENGTH) {
+                throw new IOException("帧过长: " + length);
+            }
+            int payloadStart = start + 1 + ChatProtocol.varintSize(length);
+            if (readBuffer.limit() < payloadStart + length) { // 负载还没收全
+                if (payloadStart - start + length > readBuffer.capacity()) { // 整帧比读缓冲区还大，换一个更大级别的缓冲区，处理完后一起归还
+                    BufferPool.Buffer bigger = buffers.allocate(payloadStart - start + length);
+                    bigger.data().put(readBuffer).flip();
+                    readLease.release();
+                    readLease = bigger;
+                    readBuffer = bigger.data();
+                }
+                return false;
+            }
+            byte[] scratch = loop.scratch; // 读缓冲区是堆外内存，负载先复制到本线程的临时缓冲区（一帧不会超过它的大小）
+            readBuffer.position(payloadStart);
+            readBuffer.get(scratch, 0, length);
+            if (type == ChatProtocol.COMPRESSED) {
+                if (!compress) {
+                    throw new IOException("没有协商压缩");
+                }
+                ByteBuffer inflated = ChatProtocol.inflateFrame(scratch, 0, length);
+                metrics.compressionInput.add(inflated.remaining());
+                metrics.compressionOutput.add(payloadStart - start + length);
+                ChatProtocol.Frame frame = ChatProtocol.decode(inflated);
+                onFrame(frame.type, frame.payload);
+                return true;
+            }
+            String payload = new String(scratch, 0, length, StandardCharsets.UTF_8);
+            onFrame(type, payload);
+            return true;
+        }
+
+        /* 处理二进制协议的一帧 */
+        private void onFrame(byte type, String payload) throws IOException {
+            if (overCapacity) { // 已经回复了错误，等待关闭
+                return;
+            }
+            if (type == ChatProtocol.PING) { // 心跳在任何状态下都可以发送，不计入消息数，也不受限速
+                send(ChatProtocol.PONG, payload);
+                return;
+            }
+            if (type == ChatProtocol.PONG) { // 收到数据时已经更新了活动时间
+                return;
+            }
+            if (state == State.HANDSHAKE) {
+                identified = true;
+                if (type == ChatProtocol.LOGIN) { // 负载为“用户名”或“用户名 + 换行 + 最后收到的消息 ID”
+                    int newline = payload.indexOf('\n');
+                    if (newline < 0) {
+                        login(payload, -1);
+                    } else {
+                        login(payload.substring(0, newline), ChatProtocol.parseLong(payload.substring(newline + 1)));
+                    }
+                } else if (type == ChatProtocol.UPLOAD_BEGIN) {
+                    beginChunkedUpload(payload.split("\n", -1));
+                } else if (type == ChatProtocol.UPLOAD_CHUNK) {
+                    receiveChunk(payload.split("\n", -1));
+                } else if (type == ChatProtocol.UPLOAD_COMMIT) {
+                    commitChunkedUpload(payload);
+                } else if (type == ChatProtocol.DOWNLOAD_REQUEST) { // 负载为“文件名”或“文件名 + 换行 + 范围”
+                    int newline = payload.indexOf('\n');
+                    if (newline < 0) {
+                        handleFileDownload(payload, null);
+                    } else {
+                        handleFileDownload(payload.substring(0, newline), payload.substring(newline + 1));
+                    }
+                } else {
+                    throw new IOException("握手后的第一帧类型错误: " + type);
+                }
+                return;
+            }
+            if (state != State.CHAT) {
+                throw new IOException("当前状态不能接收帧: " + state);
+            }
+            metrics.messagesIn.increment();
+            if (!allowMessage()) {
+                return;
+            }
+            switch (type) {
+                case ChatProtocol.CHAT:
+                    String line = username + ": " + payload;
+                    if (fitsInFrame(line)) {
+                        broadcast(room, line); // 向当前房间的成员广播消息
+                    }
+                    break;
+                case ChatProtocol.JOIN_ROOM:
+                    enterRoom(payload.trim(), -1);
+                    break;
+                case ChatProtocol.LEAVE_ROOM:
+                    enterRoom(LOBBY, -1);
+                    break;
+                case ChatProtocol.SEARCH:
+                    search(payload);
+                    break;
+                case ChatProtocol.FILE_QUERY:
+                    String[] query = payload.split("\n", -1);
+                    if (query.length != 3) {
+                        throw new IOException("FILE_QUERY 格式错误");
+                    }
+                    queryFiles(query[0], query[1], ChatProtocol.parseInt(query[2]));
+                    break;
+                case ChatProtocol.PRIVATE:
+                    int space = payload.indexOf(' ');
+                    if (space > 0) {
+                        handlePrivateMessage(payload.substring(0, space), payload.substring(space + 1));
+                    }
+                    break;
+                case ChatProtocol.UPLOAD_START:
+                    int newline = payload.indexOf('\n');
+                    if (newline < 0) {
+                        throw new IOException("UPLOAD_START 格式错误");
+                    }
+                    uploadFileName = payload.substring(0, newline);
+                    handleFileUpload(ChatProtocol.parseLong(payload.substring(newline + 1)));
+                    break;
+                default:
+                    throw new IOException("未知的帧类型: " + type);
+            }
+        }
+
+        /* 处理读到的一行，相当于原来 run() 方法中各个 readLine() 之后的逻辑 */
+        private void onLine(String message) throws IOException {
+            switch (state) {
+                case HANDSHAKE:
+                    if (overCapacity) {
+                        rejectOverCapacity();
+                        return;
+                    }
+                    identified = true;
+                    // 处理文件下载请求。这是另开一个连接来处理的，下载完成后这个连接就会被关闭
+                    if (message.startsWith("FILE_DOWNLOAD_REQUEST")) { // 如果是文件下载请求，后面可以带一个范围，例如 FILE_DOWNLOAD_REQUEST bytes=100-
+                        downloadRange = message.length() > 21 ? message.substring(21).trim() : null;
+                        state = State.DOWNLOAD_NAME; // 下一行内容是客户端要下载的文件名
+                        return;
+                    }
+                    login(message, -1); // 正常的聊天连接处理，第一个消息作为用户名
+                    return;
+                case CHAT:
+                    metrics.messagesIn.increment();
+                    if (!allowMessage()) {
+                        return;
+                    }
+                    if (message.startsWith("FILE:")) { // 如果消息以 "FILE:" 开头，表示客户端请求上传文件
+                        state = State.UPLOAD_NAME; // 接下来依次是文件名、文件大小和文件内容
+                    } else if (message.startsWith("@")) { // 如果消息以 "@" 开头，表示客户端发送的是私聊消息
+                        int firstSpace = message.indexOf(" "); // 私聊消息的格式是 @recipient content，所以第一个空格将分隔接收者和消息内容
+                        if (firstSpace != -1) { // 如果没有找到空格，说明消息格式不正确，直接忽略
+                            handlePrivateMessage(message.substring(1, firstSpace), message.substring(firstSpace + 1)); // 处理私聊消息
+                        }
+                    } else if (message.startsWith("/join ")) { // 进入房间：/join 房间名
+                        enterRoom(message.substring(6).trim(), -1);
+                    } else if (message.equals("/leave")) { // 离开当前房间回到大厅
+                        enterRoom(LOBBY, -1);
+                    } else if (message.startsWith("/search ")) { // 搜索聊天记录：/search 查询
+                        search(message.substring(8));
+                    } else if (message.equals("/files") || message.startsWith("/files ")) { // 按前缀查找文件：/files 前缀
+                        queryFiles(message.length() > 7 ? message.substring(7) : "", "", TEXT_FILE_PAGE_SIZE);
+                    } else if (fitsInFrame(username + ": " + message)) { // 否则，消息是普通的聊天消息
+                        broadcast(room, username + ": " + message); // 向当前房间的成员广播消息
+                    }
+                    return;
+                case UPLOAD_NAME:
+                    uploadFileName = message; // 读取文件名
+                    state = State.UPLOAD_SIZE;
+                    return;
+                case UPLOAD_SIZE:
+                    handleFileUpload(ChatProtocol.parseLong(message)); // 解析文件大小，开始接收文件内容
+                    return;
+                case DOWNLOAD_NAME:
+                    handleFileDownload(message, downloadRange); // 开始给客户端下载文件
+                    return;
+                default:
+                    // DOWNLOADING 状态下客户端不应该再发送任何内容，忽略
+            }
+        }
+
+        /*
+         * 列出文件名以 prefix 开头、排在 after 之后的最多 limit 个文件及其元数据。二进制协议回复一个 FILE_PAGE，
+         * 超过一帧能容纳的长度时截断并标记还有下一页；文本协议每个文件回复一行文字
+         */
+        private void queryFiles(String prefix, String after, int limit) {
+            limit = Math.max(1, Math.min(limit, FILE_PAGE_SIZE));
+            List<FileStore.FileInfo> files = fileStore.list(prefix, after, limit + 1); // 多取一个，用来判断是否还有下一页
+            if (!binary) {
+                for (int i = 0; i < Math.min(limit, files.size()); i++) {
+                    FileStore.FileInfo file = files.get(i);
+                    send("SERVER: " + file.name + "  " + file.size + " 字节  " + (file.uploader.isEmpty() ? "-" : file.uploader)
+                            + "  " + new Date(file.time) + "  SHA-256 " + file.hash);
+                }
+                send("SERVER: " + (files.isEmpty() ? "没有以“" + prefix + "”开头的文件"
+                        : files.size() > limit ? "还有更多文件，请输入更长的前缀" : "共 " + files.size() + " 个文件"));
+                return;
+            }
+            StringBuilder page = new StringBuilder();
+            int bytes = prefix.length() * 3 + 3; // 按 UTF-8 每个字符最多 3 字节估算，保证不超过一帧的长度
+            int count = 0;
+            for (FileStore.FileInfo file : files) {
+                String line = file.line();
+                bytes += line.length() * 3 + 1;
+                if (count == limit || bytes > ChatProtocol.MAX_FRAME_LENGTH) {
+                    break;
+                }
+                page.append('\n').append(line);
+                count++;
+            }
+            send(ChatProtocol.FILE_PAGE, prefix + "\n" + (count < files.size() ? 1 : 0) + page);
+        }
 
-            // 不断循环监听客户端连接，有的话就创建一个新的线程对其进行处理
-            while (true) {
-                Socket socket = serverSocket.accept(); // 服务器启动并开始监听后，会在这里阻塞执行，直到有一个客户端尝试连接到这个端口。
-                new ClientHandler(socket).start(); // 每当有一个新的客户端连接时，创建一个新的 ClientHandler 线程来处理这个连接
-                // .start()：启动这个新创建的线程。这意味着 ClientHandler 类中的 run() 方法将会在一个新的线程中执行。
-                // 这样可以让服务器在多个线程上同时处理多个客户端连接，而不会阻塞在一个连接上。
+        /*
+         * 搜索聊天记录，在搜索线程中查询索引并从消息日志中取出结果，不阻塞事件循环。
+         * 私聊结果按本用户看到的样子显示（私聊自/私聊给），消息所在的日志分段已经删除的结果跳过
+         */
+        private void search(String query) {
+            String viewer = username;
+            searchWorkers.execute(() -> {
+                long start = System.nanoTime();
+                StringBuilder results = new StringBuilder(query.replace('\n', ' '));
+                int[] found = {0};
+                for (SearchIndex.Hit hit : searchIndex.search(query, viewer, SEARCH_LIMIT)) {
+                    messageLog.read(hit.id, new MessageLog.Visitor() {
+                        @Override
+                        public void broadcast(long id, String room, ByteBuffer frame) {
+                            append(id, room, MessageLog.line(frame));
+                        }
+
+                        @Override
+                        public void privateMessage(long id, String sender, String recipient, String content) {
+                            append(id, "", privateLine(viewer, sender, recipient, content));
+                        }
+
+                        private void append(long id, String room, String line) {
+                            if (line.length() > SEARCH_SNIPPET_LENGTH) {
+                                line = line.substring(0, SEARCH_SNIPPET_LENGTH) + "…";
+                            }
+                            results.append('\n').append(id).append('\t').append(room).append('\t').append(line.replace('\n', ' '));
+                            found[0]++;
+                            if (!binary) {
+                                send("SERVER: [" + (room.isEmpty() ? "#" : room + " #") + id + "] " + line);
+                            }
+                        }
+                    });
+                }
+                metrics.searchNanos.record(System.nanoTime() - start);
+                if (binary) {
+                    send(ChatProtocol.SEARCH_RESULTS, results.toString());
+                } else {
+                    send("SERVER: 搜索“" + query + "”找到 " + found[0] + " 条消息");
+                }
+            });
+        }
+
+        /* 登录：校验用户名并加入聊天室。since 为客户端已经收到的最后一条消息 ID，-1 表示补发最近的 HISTORY_SIZE 条 */
+        private void login(String name, long since) {
+            if (remoteUsers.containsKey(name) || !sessions.claim(name, this)) { // 原子地占用用户名，如果用户名已存在（包括在其他节点上）则失败
+                send(ChatProtocol.USERNAME_TAKEN, ""); // 向客户端发送用户名已被占用的消息
+                closeAfterFlush(); // 发送完后关闭这个连接
+                return;
             }
-        } catch (IOException e) {
-            e.printStackTrace(); // 将异常的详细信息打印到标准错误流（通常是控制台）
+            username = name;
+            joinedAt = System.currentTimeMillis();
+            messageBucket = MESSAGE_RATE > 0 ? new TokenBucket(MESSAGE_RATE, MESSAGE_BURST) : null;
+            System.out.println("用户 " + name + " 从 " + remoteAddress + " 登录，当前在线人数: " + sessions.size());
+            state = State.CHAT;
+            if (binary) { // 上传连接没有登录，凭这个令牌证明自己代表哪个在线用户
+                byte[] token = new byte[16];
+                tokenRandom.nextBytes(token);
+                uploadToken = ChatProtocol.hex(token);
+                uploadTokens.put(uploadToken, this);
+                send(ChatProtocol.SESSION, uploadToken);
+            }
+            rooms.sendList(this); // 房间列表，之后只发送 ROOM_ADDED/ROOM_REMOVED 增量消息
+            sendSnapshot(); // 只给新用户发送一次完整的文件列表
+            enterRoom(LOBBY, since); // 进入大厅，发送大厅的成员列表和历史消息
         }
-    }
 
-    static class ClientHandler extends Thread { // ClientHandler 类继承自 Thread 类
-        private Socket socket; // 存储客户端的 Socket 连接
-        private BufferedReader reader; // 用于读取客户端发送的消息
-        private PrintWriter writer; // 用于向客户端发送消息
-        private String username; // 存储客户端的用户名
+        /*
+         * 进入另一个房间（登录时进入大厅）：离开原来的房间，加入新房间，发送新房间的成员列表并开始补发这个房间的历史消息。
+         * 加入期间持有本连接的发送队列锁，补发在之后分批进行（见 replayHistory），补发结束前记录在日志中的实时消息都从日志中读出，
+         * 排在历史消息之后。通知两个房间的其他成员放在锁外，避免两个连接各自持有自己的锁又等待对方的锁
+         */
+        private void enterRoom(String name, long since) {
+            if (name.isEmpty() || name.length() > MAX_ROOM_NAME_LENGTH || name.contains(",") || name.contains("\n")) {
+                send("SERVER: 房间名不能为空、不能超过 " + MAX_ROOM_NAME_LENGTH + " 个字符、不能包含逗号");
+                return;
+            }
+            Room left;
+            Room joined;
+            synchronized (outbound) {
+                left = room;
+                if (left != null && left.name.equals(name)) {
+                    return;
+                }
+                if (left != null) {
+                    rooms.leave(left, this);
+                }
+                joined = rooms.join(name, this);
+                room = joined;
+                send(ChatProtocol.ROOM, name); // 客户端收到后清空聊天区域，切换到这个房间
+                send(ChatProtocol.USERS, joined.memberList()); // 只包含这个房间的成员
+                startHistory(since);
+            }
+            if (left != null) {
+                broadcast(left, ChatProtocol.USER_LEAVE, username);
+                broadcast(left, "SERVER: " + username + " 离开了房间");
+                rooms.announce(left.name); // 最后一个成员离开时房间被删除
+            }
+            rooms.announce(name); // 新建的房间
+            cluster.userRoom(username, name); // 其他节点据此更新房间成员
+            broadcast(joined, ChatProtocol.USER_JOIN, username); // 房间里的其他成员只需要知道新增了哪个用户
+            broadcast(joined, "SERVER: " + username + " 加入了房间 " + name); // 向房间成员广播新用户加入的消息
+        }
 
-        /* 构造函数，接收一个 Socket 对象作为参数 */
-        public ClientHandler(Socket socket) {
-            this.socket = socket;
-            try {
-                // 通过将原始的字节流socket.getxxxStream()包装为文本流，并添加缓冲读取功能，就能够调用readline()等文本读取方法了
-                reader = new BufferedReader(new InputStreamReader(socket.getInputStream())); // 创建一个文本接收对象
-                writer = new PrintWriter(socket.getOutputStream(), true); // 创建一共文本发送对象
-            } catch (IOException e) {
-                e.printStackTrace();
+        /* 开始接收聊天连接上整个发送的文件（旧协议 FILE: 和 UPLOAD_START），先写入临时文件，收完后按内容哈希保存 */
+        private void handleFileUpload(long fileSize) throws IOException {
+            if (fileSize < 0) {
+                throw new IOException("文件大小错误: " + fileSize);
+            }
+            uploadStarted = System.nanoTime();
+            uploadBucket = uploadBucketOf(username);
+            uploadDiscard = !FileStore.isValidName(uploadFileName) || !acquireUploadSlot(); // 文件内容紧跟在请求之后，文件名不合法或者上传数已满时也要读完，只是不保存
+            if (!uploadDiscard) {
+                uploadTemp = fileStore.newTempFile(); // 每个上传写自己的临时文件，同名文件并发上传也不会互相破坏
+                uploadChannel = new FileOutputStream(uploadTemp).getChannel(); // 打开文件通道，用于将数据写入文件
+                uploadDigest = ChatProtocol.newDigest();
+            }
+            uploadPosition = 0;
+            uploadRemaining = fileSize; // 表示剩余需要读取的字节数，初始值为文件大小
+            state = State.UPLOAD_BODY;
+            if (uploadRemaining == 0) { // 空文件不会有后续字节
+                finishUpload();
             }
         }
 
-        public void run() {
+        /* 把读缓冲区中属于文件内容的字节写入文件 */
+        private void consumeUploadBytes() throws IOException {
+            int oldLimit = readBuffer.limit();
+            int chunk = (int) Math.min(readBuffer.remaining(), uploadRemaining); // 最多只取属于这个文件的字节，后面的字节是下一条消息
+            readBuffer.limit(readBuffer.position() + chunk);
+            if (uploadDiscard) {
+                readBuffer.position(readBuffer.limit());
+            }
+            if (uploadDigest != null) {
+                uploadDigest.update(readBuffer.duplicate());
+            }
+            if (uploadCompressed) {
+                inflateUploadBytes();
+            }
+            while (readBuffer.hasRemaining()) {
+                uploadPosition += uploadChannel.write(readBuffer, uploadPosition); // 按位置写入，并行到达的分块写在各自的位置
+            }
+            readBuffer.limit(oldLimit);
+            if (!uploadCompressed) {
+                metrics.bytesUploaded.add(chunk);
+            }
+            uploadRemaining -= chunk;
+            if (uploadBucket != null) { // 超过这个用户的上传速率时暂停读取，客户端被 TCP 流量控制挡住
+                long wait = uploadBucket.take(chunk);
+                if (wait > 0) {
+                    pauseReading(wait);
+                }
+            }
+            if (uploadRemaining == 0) {
+                finishUpload();
+            }
+        }
+
+        /* 把读缓冲区中属于压缩分块的字节解压后写入文件，解压结果不能超出这个分块 */
+        private void inflateUploadBytes() throws IOException {
+            int compressedLength = readBuffer.remaining();
+            uploadInflater.setInput(readBuffer); // 直接从读缓冲区解压，解压时推进它的 position
+            byte[] scratch = loop.scratch;
             try {
-                String firstMessage = reader.readLine(); // 读取一行内容
-                
-                // 处理文件下载请求。这是另开一个Socket连接来处理的。因此在handleFileDownload完成后，这个Socket连接就会被关闭，run也会随之结束
-                if ("FILE_DOWNLOAD_REQUEST".equals(firstMessage)) { // 如果是文件下载请求
-                    String fileName = reader.readLine(); // 再读取一行内容，这行内容是客户端要下载的文件名
-                    handleFileDownload(fileName); // 进入 handleFileDownload 方法开始给客户端下载文件
-                    socket.close(); // 下载完成直接关闭这个Socket
+                int n;
+                while ((n = uploadInflater.inflate(scratch)) > 0) {
+                    if (uploadPosition + n > uploadEnd) {
+                        throw new IOException("分块解压后超出分块大小");
+                    }
+                    ByteBuffer inflated = ByteBuffer.wrap(scratch, 0, n);
+                    while (inflated.hasRemaining()) {
+                        uploadPosition += uploadChannel.write(inflated, uploadPosition);
+                    }
+                    metrics.bytesUploaded.add(n);
+                    metrics.compressionInput.add(n);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("分块解压失败", e);
+            }
+            readBuffer.position(readBuffer.limit()); // 压缩流结束之后多余的字节丢弃
+            metrics.compressionOutput.add(compressedLength);
+        }
+
+        private void finishUpload() throws IOException {
+            if (uploadCompressed) { // 压缩的分块必须正好是一个完整的压缩流，解压后正好是分块的长度
+                uploadCompressed = false;
+                if (!uploadInflater.finished() || uploadPosition != uploadEnd) {
+                    throw new IOException("分块解压后长度不符");
+                }
+            }
+            if (uploadPartial != null) { // 一个分块收完，记录下来并确认，客户端续传时会跳过它
+                uploadPartial.markReceived(uploadChunk);
+                uploadPartial = null;
+                uploadChannel = null; // 分块上传的文件通道由所有上传连接共享，不在这里关闭
+                state = State.HANDSHAKE; // 上传连接可以继续发送下一个分块
+                send(ChatProtocol.CHUNK_ACK, String.valueOf(uploadChunk));
+                return;
+            }
+            releaseUploadSlot();
+            if (uploadDiscard) {
+                uploadDiscard = false;
+                state = State.CHAT;
+                if (!FileStore.isValidName(uploadFileName)) {
+                    send("SERVER: 文件名不能为空，也不能包含制表符等控制字符，文件没有保存");
                     return;
                 }
-                
-                // 正常的聊天连接处理
-                username = firstMessage; // 读取第一个消息作为用户名
-                if (username == null || usernames.contains(username)) { // 如果用户名为空，或者用户名已存在
-                    writer.println("USERNAME_TAKEN"); // 向客户端发送用户名已被占用的消息
-                    socket.close(); // 关闭这个Socket连接
-                    return; // 结束这个线程
-                }
-                usernames.add(username); // 将用户名添加到已连接的用户名集合中
-                clients.put(username, socket); // 将用户名和对应的 Socket 连接存储在 clients 哈希映射中
-                broadcast("SERVER: " + username + " 加入了聊天室"); // 向所有客户端广播新用户加入的消息
-                updateUserList();
-
-                String message;
-                while ((message = reader.readLine()) != null) {
-                    if (message.startsWith("FILE:")) { // 如果消息以 "FILE:" 开头，表示客户端请求上传文件
-                        handleFileUpload(); // 处理文件上传
-                    } else if (message.startsWith("@")) { // 如果消息以 "@" 开头，表示客户端发送的是私聊消息
-                        handlePrivateMessage(message); // 处理私聊消息
-                    } else { // 否则，消息是普通的聊天消息
-                        broadcast(username + ": " + message); // 向所有客户端广播消息
-                    }
+                String reason = "服务器上传繁忙，文件 " + uploadFileName + " 没有保存，请稍后重试";
+                if (binary) {
+                    send(ChatProtocol.THROTTLED, "1000\n" + reason);
+                } else {
+                    send("SERVER: " + reason);
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally { // 在 finally 块中，无论是否发生异常，都会执行清理操作
-                // 无论是因为客户端断开连接、发生异常还是主动return，finally块都会被执行，确保资源被正确清理。
-                if (username != null) { // 如果用户名不为空，表示这个客户端之前尝试连接过
-                    usernames.remove(username); // 从已连接的用户名集合中移除这个用户名
-                    clients.remove(username); // 从 clients 哈希映射中移除这个用户名和对应的 Socket 连接
-                    broadcast("SERVER: " + username + " 离开了聊天室"); // 向所有客户端广播用户离开的消息
-                    updateUserList(); // 更新在线用户列表
+                return;
+            }
+            uploadChannel.close(); // 关闭文件通道，释放文件句柄，防止资源泄漏
+            uploadChannel = null;
+            String hash = ChatProtocol.hex(uploadDigest.digest());
+            fileStore.commit(uploadTemp, hash); // 相同内容已经存在时只保留一份
+            uploadTemp = null;
+            uploadDigest = null;
+            metrics.uploadNanos.record(System.nanoTime() - uploadStarted);
+            state = State.CHAT; // 回到聊天状态，继续按行处理后面的消息
+            publishFile(uploadFileName, hash, username);
+        }
+
+        /* 让文件名指向内容并通知所有客户端。同名文件的旧内容一直可以下载，直到这里原子地切换 */
+        private static void publishFile(String fileName, String hash, String uploader) throws IOException {
+            fileStore.link(fileName, hash, uploader);
+            broadcast(ChatProtocol.FILE_ADDED, fileName); // 只广播新增的文件，不再重新扫描整个文件夹
+            broadcast("SERVER: " + uploader + " 上传了文件: " + fileName); // 向所有客户端广播文件上传的消息
+            cluster.file(fileName, hash, uploader); // 其他节点从本节点下载内容后加入它们的文件列表
+        }
+
+        /*
+         * UPLOAD_BEGIN：文件名、大小、SHA-256、上传令牌。上传者是出示令牌的那个已登录用户，不由客户端自己声明。
+         * 服务器已有相同内容时直接完成，否则告诉客户端还缺少哪些分块
+         */
+        private void beginChunkedUpload(String[] fields) throws IOException {
+            if (fields.length != 4 || !FileStore.isHash(fields[2])) {
+                throw new IOException("UPLOAD_BEGIN 格式错误");
+            }
+            String fileName = fields[0];
+            long size = ChatProtocol.parseLong(fields[1]);
+            String hash = fields[2];
+            if (!FileStore.isValidName(fileName)) {
+                send(ChatProtocol.UPLOAD_FAILED, "文件名不能为空，也不能包含制表符等控制字符");
+                return;
+            }
+            if (size < 0 || size > FileStore.MAX_FILE_SIZE) { // 负数或者过大的大小会让已收到分块的位图无法分配
+                send(ChatProtocol.UPLOAD_FAILED, "文件大小不合法，上限为 " + FileStore.MAX_FILE_SIZE + " 字节");
+                return;
+            }
+            Connection session = uploadTokens.get(fields[3]);
+            String owner = session != null ? session.username : null;
+            if (owner == null || sessions.get(owner) != session) { // 只有在线用户才能上传，令牌随登录的连接关闭而失效
+                send(ChatProtocol.UPLOAD_FAILED, "用户不在线");
+                return;
+            }
+            if (fileStore.hasBlob(hash)) { // 内容已经存在，秒传
+                publishFile(fileName, hash, owner);
+                send(ChatProtocol.UPLOAD_COMPLETE, fileName);
+                return;
+            }
+            releaseUploadSlot(); // 同一个连接上再次开始上传，之前的上传不再提交
+            if (!acquireUploadSlot()) {
+                send(ChatProtocol.UPLOAD_FAILED, "服务器上传繁忙，请稍后重试");
+                return;
+            }
+            FileStore.PartialUpload upload = fileStore.beginUpload(hash, size);
+            uploadOwners.put(hash, owner);
+            uploadFileName = fileName;
+            uploadHash = hash;
+            uploader = owner;
+            uploadStarted = System.nanoTime(); // 分块上传从 UPLOAD_BEGIN 到校验完成
+            send(ChatProtocol.UPLOAD_READY, FileStore.CHUNK_SIZE + "\n" + upload.missingChunks());
+        }
+
+        /* UPLOAD_CHUNK：内容哈希和分块序号，之后紧跟分块内容 */
+        private void receiveChunk(String[] fields) throws IOException {
+            FileStore.PartialUpload upload = fields.length == 2 || (fields.length == 3 && compress) ? fileStore.upload(fields[0]) : null;
+            if (upload == null) {
+                throw new IOException("没有对应的分块上传");
+            }
+            int index = ChatProtocol.parseInt(fields[1]);
+            if (index < 0 || index >= upload.chunkCount) {
+                throw new IOException("分块序号超出范围: " + index);
+            }
+            long packed = fields.length == 3 ? ChatProtocol.parseLong(fields[2]) : 0; // 压缩的分块：之后是压缩后的字节数，边收边解压
+            if (fields.length == 3 && (packed <= 0 || packed > FileStore.CHUNK_SIZE * 2L)) { // 先检查完所有字段，再修改连接的状态
+                throw new IOException("压缩分块的长度不合法: " + packed);
+            }
+            uploadPartial = upload;
+            uploadBucket = uploadBucketOf(uploadOwners.get(fields[0]));
+            uploadChunk = index;
+            uploadChannel = upload.channel();
+            uploadDigest = null; // 分块上传在提交时整体校验哈希
+            uploadPosition = upload.chunkOffset(index);
+            uploadRemaining = upload.chunkLength(index);
+            uploadCompressed = fields.length == 3;
+            if (uploadCompressed) {
+                uploadEnd = uploadPosition + uploadRemaining;
+                uploadRemaining = packed;
+                if (uploadInflater == null) {
+                    uploadInflater = new Inflater();
                 }
+                uploadInflater.reset();
+            }
+            state = State.UPLOAD_BODY;
+        }
+
+        /* UPLOAD_COMMIT：所有分块都已确认，在工作线程中校验哈希后保存 */
+        private void commitChunkedUpload(String hash) {
+            FileStore.PartialUpload upload = hash.equals(uploadHash) ? fileStore.upload(hash) : null;
+            if (upload == null) {
+                send(ChatProtocol.UPLOAD_FAILED, fileStore.hasBlob(hash) ? "已经完成" : "没有对应的分块上传");
+                return;
+            }
+            if (!upload.isComplete()) {
+                send(ChatProtocol.UPLOAD_FAILED, "缺少分块: " + upload.missingChunks());
+                return;
+            }
+            String fileName = uploadFileName;
+            String owner = uploader;
+            long started = uploadStarted;
+            uploadHash = null;
+            releaseUploadSlot(); // 校验哈希在工作线程中进行，不再占用上传名额
+            fileWorkers.execute(() -> { // 读一遍整个文件计算哈希可能很慢，不能放在事件循环中
                 try {
-                    socket.close();
+                    if (fileStore.finishUpload(upload)) {
+                        uploadOwners.remove(hash);
+                        metrics.uploadNanos.record(System.nanoTime() - started);
+                        publishFile(fileName, hash, owner);
+                        send(ChatProtocol.UPLOAD_COMPLETE, fileName);
+                    } else {
+                        send(ChatProtocol.UPLOAD_FAILED, "内容与 SHA-256 不符，请重新上传");
+                    }
                 } catch (IOException e) {
                     e.printStackTrace();
+                    send(ChatProtocol.UPLOAD_FAILED, "服务器写入失败");
+                }
+            });
+        }
+
+        /*
+         * 处理客户端下载文件请求。range 为 HTTP 风格的字节范围：bytes=起始-结束（包含结束位置）、bytes=起始- 或 bytes=-末尾字节数，
+         * 为 null 时下载整个文件。客户端可以用它断点续传，或者把一个文件分成几段并行下载
+         */
+        private void handleFileDownload(String fileName, String range) throws IOException {
+            FileStore.FileInfo file = fileStore.get(fileName); // 在内存中的文件目录里查找，大小也从目录中取得，不访问磁盘
+            FileChannel content = null;
+            if (file != null) {
+                try {
+                    content = new FileInputStream(fileStore.blob(file)).getChannel(); // 内容文件被删除时这里才会发现
+                } catch (FileNotFoundException e) {
+                    if (fileStore.remove(fileName)) {
+                        broadcast(ChatProtocol.FILE_REMOVED, fileName);
+                    }
+                }
+            }
+            if (content == null) { // 检查文件是否存在
+                send(ChatProtocol.FILE_NOT_FOUND, ""); // 如果文件不存在，向客户端发送文件未找到的消息
+                endDownloadRequest();
+                return;
+            }
+            // 如果文件存在，将会执行到此处
+            long total = file.size;
+            long start = 0;
+            long end = total; // 不包含
+            if (range != null) {
+                long[] bounds = parseRange(range, total);
+                if (bounds == null) { // 范围格式错误或超出文件大小
+                    content.close();
+                    send(ChatProtocol.RANGE_NOT_SATISFIABLE, String.valueOf(total));
+                    endDownloadRequest();
+                    return;
+                }
+                start = bounds[0];
+                end = bounds[1];
+            }
+            downloadChannel = content;
+            boolean compressed = compress && end - start >= ChatProtocol.COMPRESS_THRESHOLD && compressible(downloadChannel, start, end);
+            // 发送“FILE_START”，负载第一行是接下来要发送的字节数，客户端需要知道它以便正确接收文件；范围请求再附带一行“起始-结束/文件大小”
+            send(compressed ? ChatProtocol.FILE_START_COMPRESSED : ChatProtocol.FILE_START,
+                    range == null ? String.valueOf(total) : (end - start) + "\n" + start + "-" + (end - 1) + "/" + total);
+            if (compressed) {
+                downloadDeflater = new Deflater(Deflater.BEST_SPEED); // 下载以吞吐量为主，用最快的压缩级别
+            }
+            downloadPosition = start;
+            downloadEnd = end;
+            downloadStarted = System.nanoTime();
+            state = State.DOWNLOADING; // 文件内容在发送队列写完、通道可写时用 transferTo 直接从文件发送到 socket，不经过用户态缓冲区
+            flushQuietly();
+        }
+
+        /* 取样检查要下载的内容是否值得压缩，已经压缩过的文件（图片、视频、压缩包）直接用 transferTo 发送 */
+        private boolean compressible(FileChannel file, long start, long end) throws IOException {
+            ByteBuffer sample = ByteBuffer.wrap(loop.scratch, 0, (int) Math.min(4096, end - start));
+            while (sample.hasRemaining() && file.read(sample, start + sample.position()) > 0) {
+                // 读满取样的长度
+            }
+            return ChatProtocol.compressible(loop.scratch, 0, sample.position());
+        }
+
+        /* 解析字节范围，返回 {起始, 结束（不包含）}，不合法时返回 null */
+        private static long[] parseRange(String range, long total) {
+            String spec = range.startsWith("bytes=") ? range.substring(6) : range;
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            try {
+                long start;
+                long end;
+                if (dash == 0) { // bytes=-N：最后 N 个字节
+                    long suffix = Long.parseLong(spec.substring(1));
+                    start = Math.max(0, total - suffix);
+                    end = total;
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    end = dash == spec.length() - 1 ? total : Math.min(total, Long.parseLong(spec.substring(dash + 1)) + 1);
+                }
+                if (start < 0 || start > end || (start == end && total > 0)) { // 空文件允许请求 0-，其他情况不允许空范围
+                    return null;
+                }
+                return new long[] {start, end};
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        /* 一次下载请求结束：文本协议直接关闭连接（关闭就是结束信号）；二进制协议可以在同一连接上继续发送下一个下载请求 */
+        private void endDownloadRequest() {
+            if (binary) {
+                state = State.HANDSHAKE;
+            } else {
+                closeAfterFlush();
+            }
+        }
+
+        /* 用 transferTo（Linux 上是 sendfile）发送文件内容，socket 发送缓冲区满时返回 false */
+        private boolean transferFile() throws IOException {
+            if (downloadDeflater != null) {
+                if (!transferCompressed()) {
+                    return false;
+                }
+                downloadDeflater.end();
+                downloadDeflater = null;
+            }
+            while (downloadPosition < downloadEnd) {
+                long sent = downloadChannel.transferTo(downloadPosition, downloadEnd - downloadPosition, channel);
+                if (sent == 0) { // 非阻塞通道写满了，等待可写事件
+                    return false;
+                }
+                downloadPosition += sent;
+                lastActivity = System.nanoTime(); // 下载时客户端不发送数据，写出进度也算活动
+                metrics.bytesDownloaded.add(sent);
+            }
+            metrics.downloadNanos.record(System.nanoTime() - downloadStarted);
+            downloadChannel.close();
+            downloadChannel = null;
+            state = State.HANDSHAKE;
+            if (binary) {
+                send(ChatProtocol.FILE_END, ""); // 明确的传输结束信号，取代原来固定等待 100 毫秒再关闭的做法，之后可以继续请求下一个文件
+            } else {
+                closeAfterFlush = true; // 文本协议以关闭连接作为结束信号，当前就在 flush 中，写完后会关闭
+            }
+            return true;
+        }
+
+        /*
+         * 压缩下载：每次从文件读 32KB 压缩成 FILE_DATA 帧写出，socket 发送缓冲区满时返回 false。
+         * 每一块都用 SYNC_FLUSH 结束，客户端收到一帧就能解压出这一块，压缩字典在整个文件中延续
+         */
+        private boolean transferCompressed() throws IOException {
+            byte[] scratch = loop.scratch;
+            int half = scratch.length / 2; // 前一半放读出的文件内容，后一半放压缩结果
+            while (true) {
+                if (downloadFrame != null) {
+                    if (channel.write(downloadFrame.data()) > 0) {
+                        lastActivity = System.nanoTime();
+                    }
+                    if (downloadFrame.data().hasRemaining()) {
+                        return false;
+                    }
+                    downloadFrame.release();
+                    downloadFrame = null;
+                }
+                if (downloadPosition >= downloadEnd) {
+                    return true;
+                }
+                ByteBuffer block = ByteBuffer.wrap(scratch, 0, (int) Math.min(half, downloadEnd - downloadPosition));
+                while (block.hasRemaining()) {
+                    if (downloadChannel.read(block, downloadPosition + block.position()) < 0) {
+                        throw new EOFException("文件在下载过程中被截断");
+                    }
+                }
+                int length = block.position();
+                downloadPosition += length;
+                metrics.bytesDownloaded.add(length);
+                downloadDeflater.setInput(scratch, 0, length);
+                downloadFrame = buffers.allocate(length); // 这一块压缩后的 FILE_DATA 帧直接写进池中的缓冲区，写完后归还
+                int n;
+                do { // 输出空间用完时要用同样的参数继续调用，直到输出不满
+                    n = downloadDeflater.deflate(scratch, half, scratch.length - half, Deflater.SYNC_FLUSH);
+                    if (n > 0) {
+                        appendFrame(ChatProtocol.FILE_DATA, scratch, half, n);
+                    }
+                } while (n == scratch.length - half);
+                downloadFrame.data().flip();
+                metrics.compressionInput.add(length);
+                metrics.compressionOutput.add(downloadFrame.data().remaining());
+            }
+        }
+
+        /* 把一帧追加到 downloadFrame，放不下时换一个更大级别的缓冲区（很少见，只有压缩后反而变大时） */
+        private void appendFrame(byte type, byte[] bytes, int offset, int length) {
+            int size = 1 + ChatProtocol.varintSize(length) + length;
+            ByteBuffer data = downloadFrame.data();
+            if (data.remaining() < size) {
+                BufferPool.Buffer bigger = buffers.allocate(data.position() + size);
+                bigger.data().put(data.flip());
+                downloadFrame.release();
+                downloadFrame = bigger;
+                data = bigger.data();
+            }
+            data.put(type);
+            ChatProtocol.writeVarint(data, length);
+            data.put(bytes, offset, length);
+        }
+
+        /* 处理私聊消息，两种协议解析出接收者和消息内容后都调用这里 */
+        private void handlePrivateMessage(String recipient, String content) {
+            if (!fitsInFrame(privateLine(recipient, username, recipient, content)) || !fitsInFrame(privateLine(username, username, recipient, content))) {
+                return;
+            }
+            if (sessions.get(recipient) == null) { // 接收者不在本节点上，发给它所在的节点
+                RemoteUser remote = remoteUsers.get(recipient);
+                if (remote == null || !cluster.sendPrivate(remote.node, username, recipient, content)) {
+                    // 接收者可能在别的房间，客户端的成员列表里看不到，由服务器告知是否在线
+                    send("SERVER: 用户 " + recipient + " 不在线");
+                    return;
+                }
+            }
+            deliverPrivate(username, recipient, content);
+        }
+
+        /*
+         * 要记录到日志的一行文字能否放进一帧。文本协议的一行和二进制协议的一帧加上用户名前缀后都可能超过帧的上限，
+         * 这样的消息记录下来后，二进制协议的客户端收到或者补发历史时会因为帧过长断开，所以直接拒绝并告诉发送者
+         */
+        private boolean fitsInFrame(String line) {
+            if (ChatProtocol.utf8Length(line) <= ChatProtocol.MAX_MESSAGE_LENGTH) {
+                return true;
+            }
+            send("SERVER: 消息过长，没有发送");
+            return false;
+        }
+
+        /* 记录私聊消息，并投递给本节点上的发送者和接收者（两人在不同节点时，两个节点各自记录和投递） */
+        private static void deliverPrivate(String sender, String recipient, String content) {
+            long id = 0;
+            Map<String, Integer> terms = SearchIndex.terms(sender + ": " + content); // 分词放在锁外
+            try {
+                synchronized (messageLog) { // 按消息ID的顺序加入索引
+                    id = messageLog.appendPrivate(sender, recipient, content); // 先记录到日志，只有这两个人登录时能看到
+                    searchIndex.add(id, terms, sender + "\n" + recipient); // 只有这两个人能搜到
                 }
+            } catch (IOException e) {
+                e.printStackTrace(); // 日志写入失败不影响消息的发送
+            }
+            Connection recipientConnection = sessions.get(recipient); // 使用接收者用户名获取对应的连接
+            if (recipientConnection != null) {
+                recipientConnection.send(new Message(ChatProtocol.CHAT_MESSAGE, privateLine(recipient, sender, recipient, content), id)); // 消息格式为“私聊自 发送者: 消息内容”
+            }
+            Connection senderConnection = sessions.get(sender);
+            if (senderConnection != null) {
+                senderConnection.send(new Message(ChatProtocol.CHAT_MESSAGE, privateLine(sender, sender, recipient, content), id)); // 向发送者确认，消息格式为“私聊给 接收者: 消息内容”
+            }
+        }
+
+        /* 私聊消息在 viewer 的聊天区域中显示的文字，viewer 既不是发送者也不是接收者时返回 null */
+        private static String privateLine(String viewer, String sender, String recipient, String content) {
+            if (viewer.equals(recipient)) {
+                return "私聊自 " + sender + ": " + content;
+            }
+            return viewer.equals(sender) ? "私聊给 " + recipient + ": " + content : null;
+        }
+
+        /* 向所有房间的所有在线用户广播消息（例如文件上传的通知），同时记录到消息日志中 */
+        private static void broadcast(String message) {
+            broadcast(null, message);
+        }
+
+        /* 向 room 房间的成员广播消息，并转发给有这个房间成员的其他节点。room 为 null 时发给所有在线用户和所有节点 */
+        private static void broadcast(Room room, String message) {
+            deliver(room, message);
+            Set<String> nodes = room == null ? null : room.remoteNodes();
+            if (nodes == null || !nodes.isEmpty()) {
+                cluster.broadcast(nodes, room == null ? "" : room.name, message);
             }
         }
 
-        /* 处理客户端上传文件 */
-        private void handleFileUpload() {
+        /* 把群聊消息记录到消息日志中，并发给本节点上的房间成员 */
+        private static void deliver(Room room, String message) {
+            long id;
+            Map<String, Integer> terms = SearchIndex.terms(message); // 分词放在锁外
             try {
-                String fileName = reader.readLine(); // 读取文件名
-                long fileSize = Long.parseLong(reader.readLine()); // 从输入流中读取一行数据，并将其解析为 long 类型，表示文件大小
-                
-                File file = new File(fileDirectory, fileName); // 创建一个 File 对象，表示要保存的文件
-                FileOutputStream fileOutStream = new FileOutputStream(file); // 创建一个 FileOutputStream 对象，用于将数据写入文件
-                InputStream inStream = socket.getInputStream(); // 获取 Socket 的输入流，用于读取客户端发送的数据
-                
-                byte[] buffer = new byte[4096]; // 字节数组，用于存储从输入流中读取的数据
-                long remaining = fileSize; // 表示剩余需要读取的字节数，初始值为文件大小
-                int read; // 表示每次从输入流中读取的字节数
-                
-                // 如果剩余字节数大于 0，并且还能从输入流中读取到数据，则继续读取
-                // inStream.read(buffer, 0, (int)Math.min(buffer.length, remaining))
-                // 表示从输入流中读取最多 buffer.length 或 remaining 字节的数据，并存入 buffer 数组从索引 0 开始的位置
-                while (remaining > 0 && (read = inStream.read(buffer, 0, (int)Math.min(buffer.length, remaining))) != -1) {
-                    fileOutStream.write(buffer, 0, read);
-                    remaining -= read;
-                }
-                
-                fileOutStream.close(); // 关闭文件输出流，目的是释放与该流相关的系统资源，如文件句柄，这有助于防止资源泄漏
-                broadcast("SERVER: " + username + " 上传了文件: " + fileName); // 向所有客户端广播文件上传的消息
-                updateFileList(); // 更新文件列表
+                synchronized (messageLog) { // 按消息ID的顺序加入索引
+                    id = messageLog.appendBroadcast(room == null ? "" : room.name, message);
+                    searchIndex.add(id, terms, null);
+                    if (room != null) { // 在日志的锁内记录，补发时同时取得的房间索引和日志末尾是一致的
+                        room.recordMessage(id);
+                    } else {
+                        rooms.recordMessage(id);
+                    }
+                }
             } catch (IOException e) {
-                e.printStackTrace();
+                e.printStackTrace(); // 日志写入失败不影响消息的广播，只是以后进入房间的用户看不到这条消息
+                broadcast(room, ChatProtocol.TEXT, message);
+                return;
+            }
+            fanOut(room, new Message(ChatProtocol.CHAT_MESSAGE, message, id, room));
+        }
+
+        private static void broadcast(byte type, String payload) {
+            broadcast(null, type, payload);
+        }
+
+        private static void broadcast(Room room, byte type, String payload) {
+            fanOut(room, new Message(type, payload, 0, room)); // 每种协议只编码一次，不再为每个接收方创建 PrintWriter
+        }
+
+        /* 把消息放入房间成员（room 为 null 时是所有在线用户）的发送队列，遍历不需要加锁或复制 */
+        private static void fanOut(Room room, Message message) {
+            long start = System.nanoTime();
+            for (Connection connection : room == null ? sessions.connections() : room.members) {
+                connection.enqueue(message); // 只是放入对方的发送队列，由对方的事件循环负责写出
+            }
+            message.release(); // 每个接收方的发送队列都已经持有编码结果的引用
+            metrics.fanOutNanos.record(System.nanoTime() - start);
+        }
+
+        /*
+         * 给刚登录的客户端发送文件列表，之后只发送 FILE_ADDED/FILE_REMOVED 增量消息（成员列表在进入房间时发送）。
+         * 列表按文件名排序，最多发送一帧能容纳的部分，其余的由客户端用 FILE_QUERY 分页查询
+         */
+        private void sendSnapshot() {
+            // 生成快照和放入发送队列期间持有本连接的发送队列锁，这段时间内其他线程发给本连接的增量消息只能排在快照之后，
+            // 不会出现增量消息先到、而快照里又没有这次变化的情况
+            synchronized (outbound) {
+                StringBuilder filelist = new StringBuilder(); // 文本协议中这一条消息的格式为“FILES: 文件1,文件2,...”
+                int bytes = 0;
+                for (String fileName: fileStore.names()) {
+                    bytes += fileName.getBytes(StandardCharsets.UTF_8).length + 1;
+                    if (bytes > ChatProtocol.MAX_FRAME_LENGTH) {
+                        break;
+                    }
+                    filelist.append(fileName).append(","); // 将每个文件的名称添加到 filelist 中，并用逗号分隔
+                }
+                send(ChatProtocol.FILES, filelist.toString());
+            }
+        }
+
+        /*
+         * 开始补发当前房间的历史消息（持有发送队列锁时调用）：since 之后的消息（最多 HISTORY_REPLAY_LIMIT 条），
+         * 或者这个房间最近的 HISTORY_SIZE 条。后者按房间索引中的 ID 用日志的稀疏索引逐条定位，不扫描其他房间的消息；
+         * 房间刚重建、索引为空时读日志最后 HISTORY_SIZE 条。之后从日志中顺序读出补发期间的新消息，直到追上日志末尾
+         */
+        private void startHistory(long since) {
+            long[] ids;
+            long last;
+            synchronized (messageLog) { // 房间索引在日志的锁内更新，两者一起取得，不会漏掉正在写入的消息
+                ids = since < 0 ? room.historyIds() : null;
+                last = messageLog.lastId();
+            }
+            if (ids != null && ids.length > 0) {
+                historyIds = ids;
+                historyNext = 0;
+                historyEnd = last;
+            } else {
+                historyIds = null;
+                historyEnd = since >= 0 ? Math.max(since, last - HISTORY_REPLAY_LIMIT) : Math.max(0, last - HISTORY_SIZE);
+            }
+            if (!replaying) { // 正在补发上一个房间时已经有一批在事件循环中排队，直接接着补发新房间
+                replaying = true;
+                loop.execute(this::replayHistory);
+            }
+        }
+
+        /*
+         * 补发一批历史消息（在事件循环线程中执行），还没补发完时把下一批提交到事件循环。每批只在发送队列锁内读出 HISTORY_BATCH 条，
+         * 别的线程发给本连接的消息不会长时间等待；补发期间它们中记录在日志里的会被跳过，由后面的批次按顺序读出。
+         * 顺序读追上日志末尾时结束，之后的消息 ID 都大于 historyEnd，直接实时发送
+         */
+        private void replayHistory() {
+            synchronized (outbound) {
+                if (!replaying || closed || room == null) {
+                    replaying = false;
+                    return;
+                }
+                if (historyVisitor == null) {
+                    historyVisitor = newHistoryVisitor();
+                }
+                int budget = HISTORY_BATCH;
+                if (historyIds != null) {
+                    while (budget > 0 && historyNext < historyIds.length) {
+                        messageLog.read(historyIds[historyNext++], historyVisitor); // 所在分段已经被删除的消息直接跳过
+                        budget--;
+                    }
+                    if (historyNext == historyIds.length) {
+                        historyIds = null;
+                    }
+                }
+                if (historyIds == null && budget > 0) {
+                    long last = messageLog.lastId();
+                    if (historyEnd >= last) {
+                        replaying = false;
+                        return;
+                    }
+                    long to = Math.min(last, historyEnd + budget);
+                    messageLog.replay(historyEnd + 1, to, historyVisitor);
+                    historyEnd = to;
+                }
+            }
+            loop.execute(this::replayHistory);
+        }
+
+        /* 补发时接收日志中的消息：群聊消息直接把日志映射内存中保存的帧放入二进制协议客户端的发送队列，私聊消息只补发与自己有关的 */
+        private MessageLog.Visitor newHistoryVisitor() {
+            return new MessageLog.Visitor() {
+                @Override
+                public void broadcast(long id, String target, ByteBuffer frame) {
+                    if (!target.isEmpty() && !target.equals(room.name)) { // 其他房间的消息
+                        return;
+                    }
+                    if (binary) {
+                        enqueue(frame);
+                    } else {
+                        send(MessageLog.line(frame));
+                    }
+                }
+
+                @Override
+                public void privateMessage(long id, String sender, String recipient, String content) {
+                    String line = privateLine(username, sender, recipient, content);
+                    if (line != null) {
+                        Message message = new Message(ChatProtocol.CHAT_MESSAGE, line, id);
+                        enqueue(encode(message)); // 直接入队，不经过 historyEnd 的过滤
+                        message.release();
+                    }
+                }
+            };
+        }
+
+        /* 发送一行显示在聊天区域的文字（可在任意线程调用） */
+        void send(String line) {
+            send(ChatProtocol.TEXT, line);
+        }
+
+        void send(byte type, String payload) {
+            send(new Message(type, payload));
+        }
+
+        /* 发送只有这一个接收方的消息，入队后归还消息持有的编码 */
+        void send(Message message) {
+            enqueue(message);
+            message.release();
+        }
+
+        /* 按本连接使用的协议取出消息的编码并放入发送队列 */
+        void enqueue(Message message) {
+            if (message.id == 0 && message.room == null) {
+                enqueue(encode(message));
+                return;
+            }
+            synchronized (outbound) { // 与 enterRoom 中的切换房间和补发互斥
+                if (message.room != null && message.room != room) { // 已经离开了这个房间
+                    return;
+                }
+                if (message.id != 0 && (room == null || replaying || message.id <= historyEnd)) { // 还没进入房间或者正在补发（补发会从日志中读到它），或者已经补发过
+                    return;
+                }
+                enqueue(encode(message));
+            }
+        }
+
+        /* 消息在本连接上的编码。只有登录后的聊天连接压缩，上传下载连接的客户端按固定的帧类型读取回复 */
+        private BufferPool.Buffer encode(Message message) {
+            if (!compress || username == null) {
+                return message.encoded(binary);
+            }
+            BufferPool.Buffer buffer = message.encoded(true, true);
+            ByteBuffer data = buffer.data();
+            if (data.get(data.position()) == ChatProtocol.COMPRESSED) {
+                metrics.compressionInput.add(message.encoded(true).data().remaining());
+                metrics.compressionOutput.add(data.remaining());
+            }
+            return buffer;
+        }
+
+        /* 把不在缓冲区池中的数据（日志映射内存中的帧、握手回复）放入发送队列 */
+        void enqueue(ByteBuffer data) {
+            enqueue(BufferPool.wrap(data.duplicate())); // 调用方之后可能移动 data 的 position
+        }
+
+        /*
+         * 把已经编码好的数据放入发送队列（可在任意线程调用），发送方线程只入队，不会被慢的接收方阻塞。
+         * 发送队列持有一次引用，写完或者被丢弃时 release，调用方自己的引用不变
+         */
+        void enqueue(BufferPool.Buffer buffer) {
+            synchronized (outbound) {
+                if (closed || slowConsumer) {
+                    return;
+                }
+                if (outbound.size() >= OUTBOUND_LIMIT) { // 接收方读得太慢，发送队列已满
+                    if (SLOW_CONSUMER_POLICY == SlowConsumerPolicy.DISCONNECT) {
+                        slowConsumer = true;
+                        metrics.messagesDropped.add(outbound.size() + 1);
+                        metrics.slowConsumerDisconnects.increment();
+                        discardOutbound();
+                        System.out.println("客户端 " + username + " 接收过慢，断开连接");
+                        loop.execute(this::close);
+                        return;
+                    }
+                    outbound.poll().release(); // 丢弃最旧的一条消息
+                    metrics.messagesDropped.increment();
+                    if (dropped++ == 0) {
+                        System.out.println("客户端 " + username + " 接收过慢，开始丢弃旧消息");
+                    }
+                }
+                outbound.add(buffer.retain());
+                metrics.messagesOut.increment();
+            }
+            if (flushScheduled.compareAndSet(false, true)) { // 之前没有提交过写出任务才提交，多条消息合并成一次写
+                loop.execute(this::flushQuietly);
             }
         }
 
-        /* 处理客户端下载文件请求 */
-        private void handleFileDownload(String fileName) {
+        private void flushQuietly() {
             try {
-                File file = new File(fileDirectory, fileName); // 创建一个 File 对象，表示要下载的文件
-                if (!file.exists()) { // 检查文件是否存在
-                    writer.println("FILE_NOT_FOUND"); // 如果文件不存在，向客户端发送文件未找到的消息
-                    return; // 结束方法
-                }
-                // 如果文件存在，将会执行到此处
-                writer.println("FILE_START"); // 发送“FILE_START”，提示客户端文件传输开始
-                writer.println(file.length()); // 发送文件大小，客户端需要知道文件大小以便正确接收文件
-
-                FileInputStream fileInStream = new FileInputStream(file); // 打开文件输入流 fileInStream，用于读取文件内容
-                OutputStream outStream = new BufferedOutputStream(socket.getOutputStream()); // 打开客户端输出流 outStream，用于将文件内容发送给客户端
-                
-                byte[] buffer = new byte[4096];
-                int read;
-                while ((read = fileInStream.read(buffer)) != -1) { // 读取文件内容
-                    outStream.write(buffer, 0, read); // 通过输出流发送文件内容
-                }
-                outStream.flush(); // 刷新输出流，确保所有数据都被发送到客户端
-                fileInStream.close(); // 关闭文件输入流，释放与该流相关的系统资源
-
-                Thread.sleep(100); // 等待100毫秒，确保客户端能够正确接收文件
-            } catch (IOException | InterruptedException e) {
-                e.printStackTrace();
+                flush();
+            } catch (IOException e) {
+                metrics.writeFailures.increment(); // 客户端已经断开或者网络出错
+                close();
             }
         }
 
-        /* 处理私聊消息，私聊消息的格式通常是 @recipient content，所以第一个空格将分隔接收者和消息内容。 */
-        private void handlePrivateMessage(String message) {
-            int firstSpace = message.indexOf(" "); // 查找消息中第一个空格的位置。私聊消息的格式通常是 @recipient content，所以第一个空格将分隔接收者和消息内容。
-            if (firstSpace != -1) { // 检查是否找到了空格。如果没有找到空格，说明消息格式不正确，方法将直接返回
-                String recipient = message.substring(1, firstSpace); // 从消息的第二位（跳过@符号）到第一个空格之间的字符串作为接收者用户名。
-                String content = message.substring(firstSpace + 1); // 从第一个空格之后到消息末尾的字符串作为消息内容
-                Socket recipientSocket = clients.get(recipient); // 使用接收者用户名从clients哈希映射中获取对应的Socket对象。clients`是一个存储用户名和对应 `Socket` 的哈希映射。
-                
-                if (recipientSocket != null) { // 如果客户端存在
-                    try {
-                        PrintWriter recipientWriter = new PrintWriter(recipientSocket.getOutputStream(), true);
-                        // 获取接收者 `Socket` 的输出流，并创建一个 `PrintWriter` 对象，用于向接收者发送消息。
-                        recipientWriter.println("私聊自 " + username + ": " + content); // 向接收者发送私聊消息。消息格式为“私聊自 发送者: 消息内容”。
-                        writer.println("私聊给 " + recipient + ": " + content); // 向发送者确认私聊消息已发送。消息格式为“私聊给 接收者: 消息内容”。
-                    } catch (IOException e) { // 捕获可能发生的 `IOException`
-                        e.printStackTrace(); // 打印异常的堆栈跟踪
+        /* 发送队列中等待写出的消息数 */
+        int queued() {
+            synchronized (outbound) {
+                return outbound.size();
+            }
+        }
+
+        /* 在事件循环线程中尽可能多地写出待发送数据，写不完时关注可写事件，等通道可写时再继续 */
+        void flush() throws IOException {
+            flushScheduled.set(false); // 先清除标记，之后新入队的消息会重新提交写出任务
+            if (closed) {
+                return;
+            }
+            while (true) {
+                while ((writeBuffer != null && writeBuffer.hasRemaining()) || fillWriteBuffer()) {
+                    channel.write(writeBuffer); // 一次系统调用写出多条消息
+                    if (writeBuffer.hasRemaining()) { // 内核发送缓冲区满了
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
                     }
                 }
+                if (state != State.DOWNLOADING) {
+                    break;
+                }
+                if (!transferFile()) { // 发送队列写完后再发送文件内容，保证 FILE_START 在文件内容之前
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                // 文件发送完后可能又放入了 FILE_END，回到循环开头继续写
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE); // 全部写完，不再关注可写事件
+            if (closeAfterFlush) {
+                close();
+                return;
+            }
+            if (outboundPaused) { // 积压已经写完，恢复读取
+                outboundPaused = false;
+                updateReadInterest();
+                loop.execute(this::resumeReading);
             }
         }
 
-        /* 向所有已连接的客户端广播消息 */
-        private void broadcast(String message) {
-            for (Socket clientSocket : clients.values()) { // 遍历所有已连接的客户端的value(Socket)
-                try {
-                    PrintWriter writer = new PrintWriter(clientSocket.getOutputStream(), true);
-                    // 获取每个客户端的输出流，并创建一个 PrintWriter 对象，用于向客户端发送消息
-                    writer.println(message); // 使用这个 PrintWriter 对象向客户端发送消息
-                } catch (IOException e) {
-                    e.printStackTrace();
+        /*
+         * 从发送队列中取出数据复制到写缓冲区，没有数据可写时归还写缓冲区并返回 false。
+         * 共享的编码结果按绝对位置读取，每个接收方不需要各自创建一个 duplicate
+         */
+        private boolean fillWriteBuffer() {
+            synchronized (outbound) {
+                if (partial == null && outbound.isEmpty()) {
+                    releaseWriteBuffer(); // 空闲的连接不占用写缓冲区
+                    return false;
+                }
+                if (writeBuffer == null) {
+                    writeLease = buffers.allocate(WRITE_BUFFER_SIZE);
+                    writeBuffer = writeLease.data();
                 }
+                writeBuffer.clear();
+                metrics.queueDepth.record(outbound.size()); // 每批写出记录一次，只在本连接的事件循环线程中，不在每个接收方入队时记录
+                if (partial != null) {
+                    append(partial);
+                }
+                BufferPool.Buffer buffer;
+                while (partial == null && writeBuffer.hasRemaining() && (buffer = outbound.poll()) != null) {
+                    append(buffer);
+                }
+            }
+            writeBuffer.flip();
+            return true;
+        }
+
+        /* 把 buffer 中还没复制的部分复制到写缓冲区，放不下的留到下一次；整项复制完后 release，最后一个复制完的接收方把它还给池 */
+        private void append(BufferPool.Buffer buffer) {
+            ByteBuffer data = buffer.data();
+            int length = Math.min(data.remaining() - partialOffset, writeBuffer.remaining());
+            BufferPool.copy(data, data.position() + partialOffset, length, writeBuffer);
+            partialOffset += length;
+            if (partialOffset < data.remaining()) { // 比写缓冲区的剩余空间大，不再留在发送队列中，不会被当作最旧的消息丢弃掉一半
+                partial = buffer;
+                return;
+            }
+            partial = null;
+            partialOffset = 0;
+            buffer.release();
+        }
+
+        private void releaseWriteBuffer() {
+            if (writeLease != null) {
+                writeLease.release();
+                writeLease = null;
+                writeBuffer = null;
             }
         }
 
-        /* 更新在线用户列表，实为向所有客户端广播一条用户列表消息，用于提示客户端界面更新当前在线用户列表 */
-        private void updateUserList() {
-            StringBuilder userlist = new StringBuilder("USERS:"); // 这一条消息的格式为“USERS: 用户1,用户2,...”
-            // 这里使用 StringBuilder 来构建字符串，StringBuilder 是一个可变的字符序列，适合用于频繁修改字符串的场景。
-            for (String user: usernames) { // 遍历所有已连接的用户名
-                userlist.append(user).append(","); // 将每个用户名添加到 userlist 中，并用逗号分隔
+        /* 丢弃发送队列中还没有写出的数据（调用时持有 outbound 的锁） */
+        private void discardOutbound() {
+            for (BufferPool.Buffer buffer : outbound) {
+                buffer.release();
             }
-            broadcast(userlist.toString()); // 向所有客户端广播用户列表
+            outbound.clear();
         }
 
-        /* 更新文件列表，实为向所有客户端广播一条文件列表消息，用于提示客户端界面更新当前在线用户列表 */
-        private void updateFileList() {
-            StringBuilder filelist = new StringBuilder("FILES:"); // 这一条消息的格式为“FILES: 文件1,文件2,...”
-            for (File file: fileDirectory.listFiles()) { // 遍历 server_files 文件夹中的所有文件
-                filelist.append(file.getName()).append(","); // 将每个文件的名称添加到 filelist 中，并用逗号分隔
+        private void closeAfterFlush() {
+            closeAfterFlush = true;
+            flushQuietly();
+        }
+
+        /* 关闭连接并清理资源，无论是因为客户端断开连接、发生异常还是主动关闭，都会走到这里 */
+        void close() {
+            synchronized (outbound) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                discardOutbound(); // 丢弃还没发送的数据
+            }
+            if (partial != null) { // 已经取出但还没复制完的一项
+                partial.release();
+                partial = null;
+            }
+            releaseWriteBuffer();
+            releaseReadBuffer();
+            if (downloadFrame != null) {
+                downloadFrame.release();
+                downloadFrame = null;
+            }
+            metrics.connectionsClosed.increment();
+            connectionCount.decrementAndGet();
+            releaseUploadSlot();
+            if (downloadDeflater != null) { // 压缩器占用本地内存，不能等垃圾回收
+                downloadDeflater.end();
+            }
+            if (uploadInflater != null) {
+                uploadInflater.end();
+            }
+            if (deadline != null) {
+                deadline.cancel();
+            }
+            try {
+                if (key != null) {
+                    key.cancel();
+                }
+                channel.close();
+                if (uploadTemp != null) { // 上传到一半断开，关闭并删除不完整的临时文件
+                    uploadChannel.close();
+                    uploadTemp.delete();
+                }
+                // 分块上传的文件通道由所有上传连接共享，不在这里关闭，已经收到的分块留着续传
+                if (downloadChannel != null) {
+                    downloadChannel.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (uploadToken != null) {
+                uploadTokens.remove(uploadToken, this);
+            }
+            if (username != null && sessions.release(username, this)) { // 如果这个客户端之前成功登录过，从注册表中移除
+                uploadBuckets.remove(username);
+                System.out.println("用户 " + username + " 离线，在线时长: " + (System.currentTimeMillis() - joinedAt) / 1000 + " 秒");
+                Room left;
+                synchronized (outbound) {
+                    left = room;
+                    room = null;
+                }
+                if (left != null) {
+                    rooms.leave(left, this);
+                    broadcast(left, ChatProtocol.USER_LEAVE, username); // 只向所在房间广播离开的用户，不再重新发送整个用户列表
+                    broadcast(left, "SERVER: " + username + " 离开了聊天室"); // 向房间成员广播用户离开的消息
+                    rooms.announce(left.name); // 最后一个成员离开时房间被删除
+                }
+                cluster.userOffline(username);
             }
-            broadcast(filelist.toString()); // 向所有客户端广播文件列表
         }
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,447 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * 集群：多个 ChatServer 节点之间通过 TCP 互相连接，共享在线用户、房间成员和文件列表，并转发聊天消息。
+ * 每个节点主动连接配置中的每个对端，这条连接只用来发送；同时接受对端连过来的连接，只用来接收。
+ * 每条消息的格式为：1 字节类型 + 2 字节字段数 + 每个字段（4 字节长度 + UTF-8 内容）。
+ * 发送线程一次取出队列中积压的所有消息写入缓冲区，只 flush 一次，负载高时多条消息合并成一次系统调用。
+ * 连接建立后接受方先发送 CHALLENGE（随机数），连接方回复 HELLO，其中带有用共享密钥对随机数和节点ID计算的 HMAC 以及自己的随机数，
+ * 接受方校验后回复自己的 HELLO，其中带有对连接方随机数的 HMAC，连接方同样校验，双方都确认对端持有密钥后才交换状态。
+ * 集群端口只监听配置的地址，并且只接受 chat.peers 中列出的主机连过来的连接。
+ * 之后发送本节点的完整状态（在线用户及所在房间、文件列表），再只发送增量。
+ * 连接断开期间的消息直接丢弃，重新连接后由完整状态恢复在线用户和文件列表（最终一致）。
+ * 每个对端的发送队列有上限，对端接收太慢、队列满时断开这条连接，重新连接后由完整状态恢复，而不是无限积压。
+ */
+public class Cluster {
+    static final byte HELLO = 1; // 节点ID，客户端端口，对随机数的应答，连接方还带有自己的随机数
+    static final byte USER_ROOM = 2; // 用户名，房间名：用户登录或者切换了房间
+    static final byte USER_OFFLINE = 3; // 用户名
+    static final byte BROADCAST = 4; // 房间名（空字符串表示所有房间），一行文字
+    static final byte PRIVATE = 5; // 发送者，接收者，消息内容
+    static final byte FILE = 6; // 文件名，内容哈希，上传者
+    static final byte CHALLENGE = 7; // 随机数（十六进制），接受方在连接建立后首先发送
+
+    private static final int MAX_BATCH = 256; // 一次写出最多合并的消息数
+    private static final int MAX_FIELDS = 8; // 一条消息最多的字段数，超过时认为对端异常
+    private static final int QUEUE_LIMIT = Integer.getInteger("chat.clusterQueueLimit", 65536); // 每个对端的发送队列最多积压的消息数
+    private static final long RECONNECT_DELAY = 1000; // 连接对端失败后等待多久重试（毫秒）
+
+    private final String nodeId; // 本节点的ID
+    private final int clientPort; // 本节点接受客户端连接的端口，对端从这里拉取文件
+    private final int clusterPort; // 本节点接受其他节点连接的端口，为 0 时不组成集群
+    private final String clusterHost; // 集群端口监听的地址，跨机器组成集群时配置为内网地址
+    private final byte[] secret; // 节点之间的共享密钥，为空时只按来源主机限制
+    private final List<Peer> peers = new ArrayList<>(); // 本节点主动连接的对端
+    private final Map<String, Peer> nodes = new ConcurrentHashMap<>(); // 已连接的对端：节点ID -> 发送连接
+    private final Map<String, Socket> inbound = new ConcurrentHashMap<>(); // 对端连过来的接收连接：节点ID -> 连接
+    private final Map<String, String> localUsers = new HashMap<>(); // 本节点的在线用户 -> 所在房间，连接建立时作为完整状态发送，对 Cluster 加锁访问
+    private final Listener listener; // 收到对端的消息后交给 ChatServer 处理
+    private final SecureRandom random = new SecureRandom(); // 握手时发给对端的随机数
+
+    Cluster(String nodeId, int clientPort, int clusterPort, String clusterHost, String peerList, String secret, Listener listener) {
+        this.nodeId = nodeId;
+        this.clientPort = clientPort;
+        this.clusterPort = clusterPort;
+        this.clusterHost = clusterHost;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.listener = listener;
+        for (String address : peerList.split(",")) { // 格式为“主机:端口,主机:端口”
+            if (!address.trim().isEmpty()) {
+                peers.add(new Peer(address.trim()));
+            }
+        }
+    }
+
+    /* 开始接受其他节点的连接，并连接所有对端 */
+    void start() throws IOException {
+        if (clusterPort == 0) {
+            return;
+        }
+        ServerSocket server = new ServerSocket(clusterPort, 50, InetAddress.getByName(clusterHost)); // 不监听所有网卡
+        if (secret.length == 0) {
+            System.out.println("没有配置 chat.clusterSecret，集群连接只按来源主机限制");
+        }
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = server.accept();
+                    if (!isPeer(socket.getInetAddress())) {
+                        System.out.println("拒绝了不在 chat.peers 中的主机的集群连接: " + socket.getRemoteSocketAddress());
+                        socket.close();
+                        continue;
+                    }
+                    new Thread(() -> receive(socket), "cluster-in-" + socket.getRemoteSocketAddress()).start();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (Peer peer : peers) {
+            peer.start();
+        }
+        System.out.println("节点 " + nodeId + " 在 " + clusterHost + ":" + clusterPort + " 接受集群连接，对端: " + peers.size());
+    }
+
+    /* 连过来的地址是否是配置的某个对端主机。每次都重新解析，对端的地址变化后不需要重启 */
+    private boolean isPeer(InetAddress address) {
+        for (Peer peer : peers) {
+            try {
+                for (InetAddress allowed : InetAddress.getAllByName(peer.host)) {
+                    if (allowed.equals(address)) {
+                        return true;
+                    }
+                }
+            } catch (UnknownHostException e) {
+                // 解析不了的对端不匹配任何地址
+            }
+        }
+        return false;
+    }
+
+    /*
+     * 对对端发来的随机数的应答：连接方为 HMAC-SHA256(密钥, 随机数 + 换行 + 节点ID)，接受方在前面加上 "accept\n"，
+     * 两个方向的应答不同，不能把对端发来的随机数转给另一个节点、用它的应答冒充。没有配置密钥时为空字符串
+     */
+    private String proof(String challenge, String node, boolean acceptor) {
+        if (secret.length == 0) {
+            return "";
+        }
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            String message = (acceptor ? "accept\n" : "") + challenge + "\n" + node;
+            return ChatProtocol.hex(mac.doFinal(message.getBytes(StandardCharsets.UTF_8)));
+        } catch (java.security.GeneralSecurityException e) {
+            throw new IllegalStateException(e); // 每个 JDK 都支持 HmacSHA256
+        }
+    }
+
+    /* 校验对端对本节点随机数的应答，没有配置密钥时应答为空字符串 */
+    private boolean verify(String challenge, String node, boolean acceptor, String answer) {
+        return MessageDigest.isEqual(proof(challenge, node, acceptor).getBytes(StandardCharsets.UTF_8), answer.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /* 新的随机数：16 字节的十六进制 */
+    private String newChallenge() {
+        byte[] nonce = new byte[16];
+        random.nextBytes(nonce);
+        return ChatProtocol.hex(nonce);
+    }
+
+    /* 对端发来的随机数必须是 32 个十六进制字符，不能让对端借本节点的应答计算任意内容的 HMAC */
+    private static boolean isChallenge(String challenge) {
+        if (challenge.length() != 32) {
+            return false;
+        }
+        for (int i = 0; i < challenge.length(); i++) {
+            if (Character.digit(challenge.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* 本节点的用户登录或者切换了房间 */
+    synchronized void userRoom(String user, String room) {
+        localUsers.put(user, room);
+        sendAll(encode(USER_ROOM, user, room));
+    }
+
+    /* 本节点的用户离线 */
+    synchronized void userOffline(String user) {
+        localUsers.remove(user);
+        sendAll(encode(USER_OFFLINE, user));
+    }
+
+    /* 转发一条群聊消息。targets 为有这个房间成员的节点，为 null 时发给所有节点 */
+    void broadcast(Collection<String> targets, String room, String line) {
+        byte[] message = encode(BROADCAST, room, line); // 只编码一次，所有对端共享
+        if (targets == null) {
+            sendAll(message);
+            return;
+        }
+        for (String node : targets) {
+            send(node, message);
+        }
+    }
+
+    /* 把私聊消息发给接收者所在的节点，那个节点没有连接时返回 false */
+    boolean sendPrivate(String node, String sender, String recipient, String content) {
+        return send(node, encode(PRIVATE, sender, recipient, content));
+    }
+
+    /* 本节点新增了一个文件 */
+    void file(String name, String hash, String uploader) {
+        sendAll(encode(FILE, name, hash, uploader));
+    }
+
+    private void sendAll(byte[] message) {
+        for (Peer peer : peers) {
+            peer.offer(message);
+        }
+    }
+
+    private boolean send(String node, byte[] message) {
+        Peer peer = nodes.get(node);
+        return peer != null && peer.offer(message);
+    }
+
+    /*
+     * 接收一个对端连过来的连接：先发送随机数，校验对端的 HELLO 后回复带有对端随机数应答的 HELLO，然后逐条处理对端发来的消息，直到连接断开。
+     * 格式不对的消息（包括字段数不够、字段内容无法解析）都当作对端异常，断开这条连接
+     */
+    private void receive(Socket socket) {
+        String node = null;
+        try (Socket s = socket) {
+            s.setSoTimeout(10_000); // 握手必须在这段时间内完成
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            OutputStream out = s.getOutputStream();
+            String challenge = newChallenge();
+            out.write(encode(CHALLENGE, challenge));
+            out.flush();
+            String[] hello = readMessage(in, HELLO);
+            require(hello, 4); // 旧版本的连接方不发送随机数，无法双向认证，同样拒绝
+            if (!verify(challenge, hello[0], false, hello[2])) {
+                throw new IOException("集群密钥不符，拒绝来自 " + s.getRemoteSocketAddress() + " 的连接");
+            }
+            if (!isChallenge(hello[3])) {
+                throw new IOException("集群握手中的随机数格式错误");
+            }
+            int filePort = ChatProtocol.parseInt(hello[1]);
+            node = hello[0];
+            out.write(encode(HELLO, nodeId, String.valueOf(clientPort), proof(hello[3], nodeId, true)));
+            out.flush();
+            s.setSoTimeout(0); // 之后对端可能长时间没有消息
+            inbound.put(node, s);
+            listener.nodeUp(node); // 对端重新连接时，它之前的用户先全部移除，随后的完整状态会重新加入
+            InetSocketAddress files = new InetSocketAddress(s.getInetAddress(), filePort); // 对端的客户端端口，用于拉取文件
+            System.out.println("节点 " + node + " 已连接");
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    break;
+                }
+                String[] fields = readFields(in);
+                switch (type) {
+                    case USER_ROOM:
+                        require(fields, 2);
+                        listener.userRoom(node, fields[0], fields[1]);
+                        break;
+                    case USER_OFFLINE:
+                        require(fields, 1);
+                        listener.userOffline(node, fields[0]);
+                        break;
+                    case BROADCAST:
+                        require(fields, 2);
+                        listener.broadcast(fields[0], fields[1]);
+                        break;
+                    case PRIVATE:
+                        require(fields, 3);
+                        listener.privateMessage(fields[0], fields[1], fields[2]);
+                        break;
+                    case FILE:
+                        require(fields, 2);
+                        if (!FileStore.isHash(fields[1])) {
+                            throw new IOException("集群消息中的内容哈希格式错误");
+                        }
+                        listener.file(files, fields[0], fields[1], fields.length > 2 ? fields[2] : ""); // 旧版本的节点不发送上传者
+                        break;
+                    default:
+                        throw new IOException("未知的集群消息类型: " + type);
+                }
+            }
+        } catch (IOException | RuntimeException e) { // 对端发来的数据无法处理时只断开这条连接，不影响接收线程以外的部分
+            e.printStackTrace();
+        } finally {
+            if (node != null && inbound.remove(node, socket)) { // 对端已经重新连接时不再移除它的用户
+                System.out.println("节点 " + node + " 已断开");
+                listener.nodeDown(node);
+            }
+        }
+    }
+
+    /* 把一条消息编码成字节：类型 + 字段数 + 每个字段（长度 + UTF-8） */
+    static byte[] encode(byte type, String... fields) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(type);
+            out.writeShort(fields.length);
+            for (String field : fields) {
+                byte[] value = field.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(value.length);
+                out.write(value);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // 写入内存不会失败
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String[] readFields(DataInputStream in) throws IOException {
+        int count = in.readUnsignedShort();
+        if (count > MAX_FIELDS) {
+            throw new IOException("集群消息字段数过多: " + count);
+        }
+        String[] fields = new String[count];
+        for (int i = 0; i < fields.length; i++) {
+            int length = in.readInt();
+            if (length < 0 || length > ChatProtocol.MAX_FRAME_LENGTH * 4) {
+                throw new IOException("集群消息字段过长: " + length);
+            }
+            byte[] value = new byte[length];
+            in.readFully(value);
+            fields[i] = new String(value, StandardCharsets.UTF_8);
+        }
+        return fields;
+    }
+
+    /* 消息至少要有 count 个字段 */
+    private static void require(String[] fields, int count) throws IOException {
+        if (fields.length < count) {
+            throw new IOException("集群消息字段数不够: " + fields.length);
+        }
+    }
+
+    /* 读取一条指定类型的消息，类型不符时抛出异常 */
+    private static String[] readMessage(DataInputStream in, byte expected) throws IOException {
+        int type = in.read();
+        if (type != expected) {
+            throw new IOException("集群消息类型错误: " + type);
+        }
+        return readFields(in);
+    }
+
+    /* 收到对端消息后的处理，由 ChatServer 实现。同一个对端的消息在同一个线程中按顺序调用 */
+    interface Listener {
+        void nodeUp(String node); // 对端连接上（包括重新连接）
+        void nodeDown(String node); // 对端断开，它的用户全部离线
+        void userRoom(String node, String user, String room);
+        void userOffline(String node, String user);
+        void broadcast(String room, String line);
+        void privateMessage(String sender, String recipient, String content);
+        void file(InetSocketAddress source, String name, String hash, String uploader); // source 为对端接受客户端连接的地址，可以从那里下载文件
+        Collection<FileStore.FileInfo> localFiles(); // 本节点的所有文件，连接建立时作为完整状态发送
+    }
+
+    /* 到一个对端的发送连接，断开后自动重连 */
+    private final class Peer extends Thread {
+        private final String host; // 对端主机
+        private final int port; // 对端的集群端口
+        private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(QUEUE_LIMIT); // 等待发送的增量消息
+        private volatile boolean connected; // 连接断开期间不再排队，重连后发送完整状态
+        private volatile Socket socket; // 当前的发送连接，队列满时关闭它
+        private String node; // 对端的节点ID，在 HELLO 中得到
+
+        Peer(String address) {
+            super("cluster-out-" + address);
+            setDaemon(true);
+            int colon = address.lastIndexOf(':');
+            host = address.substring(0, colon);
+            port = Integer.parseInt(address.substring(colon + 1));
+        }
+
+        /* 放入发送队列。队列满说明对端接收太慢，断开连接，重连后发送完整状态，这期间的消息丢弃 */
+        boolean offer(byte[] message) {
+            if (!connected) {
+                return false;
+            }
+            if (queue.offer(message)) {
+                return true;
+            }
+            connected = false;
+            Socket current = socket;
+            if (current != null) {
+                System.out.println("节点 " + node + " 的发送队列已满（" + QUEUE_LIMIT + " 条），断开后重新连接");
+                try {
+                    current.close(); // 阻塞在写出上的发送线程随之出错，进入重连
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void run() {
+            List<byte[]> batch = new ArrayList<>(MAX_BATCH);
+            while (true) {
+                try (Socket socket = new Socket(host, port)) {
+                    socket.setTcpNoDelay(true); // 由批量写出来合并小消息，不需要 Nagle 算法
+                    OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    String[] received = readMessage(in, CHALLENGE);
+                    require(received, 1);
+                    if (!isChallenge(received[0])) {
+                        throw new IOException("集群握手中的随机数格式错误");
+                    }
+                    String challenge = newChallenge(); // 反过来要求对端证明自己持有密钥，不把状态发给冒充的节点
+                    out.write(encode(HELLO, nodeId, String.valueOf(clientPort), proof(received[0], nodeId, false), challenge));
+                    out.flush();
+                    String[] hello = readMessage(in, HELLO);
+                    require(hello, 3);
+                    if (!verify(challenge, hello[0], true, hello[2])) {
+                        System.out.println("节点 " + host + ":" + port + " 的集群密钥不符，断开连接");
+                        throw new IOException("集群密钥不符");
+                    }
+                    node = hello[0];
+                    List<byte[]> state = new ArrayList<>(); // 完整状态不经过有上限的队列，在之后的增量之前直接写出
+                    synchronized (Cluster.this) { // 与 userRoom/userOffline 互斥，完整状态和之后的增量按顺序排队
+                        queue.clear();
+                        for (Map.Entry<String, String> user : localUsers.entrySet()) {
+                            state.add(encode(USER_ROOM, user.getKey(), user.getValue()));
+                        }
+                        for (FileStore.FileInfo file : listener.localFiles()) {
+                            state.add(encode(FILE, file.name, file.hash, file.uploader));
+                        }
+                        this.socket = socket;
+                        connected = true;
+                    }
+                    nodes.put(node, this);
+                    System.out.println("已连接到节点 " + node + "（" + host + ":" + port + "）");
+                    for (byte[] message : state) {
+                        out.write(message);
+                    }
+                    out.flush();
+                    state = null; // 完整状态可能很大，写出后不再持有
+                    while (true) {
+                        batch.add(queue.take()); // 至少等到一条消息
+                        queue.drainTo(batch, MAX_BATCH - 1); // 再取出已经积压的消息，一起写出
+                        for (byte[] message : batch) {
+                            out.write(message);
+                        }
+                        out.flush();
+                        batch.clear();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // 对端还没启动、连接断开或者握手的回复格式不对，稍后重试
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    connected = false;
+                    socket = null;
+                    batch.clear();
+                    if (node != null) {
+                        nodes.remove(node, this);
+                    }
+                }
+                try {
+                    Thread.sleep(RECONNECT_DELAY);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,567 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * 服务端的文件存储：文件内容按 SHA-256 存放在 blobs 目录下，显示给用户的文件名只是指向某个内容的名字。
+ *   server_files/blobs/<sha256>     文件内容，写入后不再修改
+ *   server_files/partial/<sha256>.* 未完成的分块上传（.part 是内容，.chunks 记录已收到的分块）
+ *   server_files/files.idx          文件目录：每次上传追加一行“+ 哈希 大小 时间 上传者 文件名”（制表符分隔），移除追加一行“- 文件名”，
+ *                                   启动时后面的行覆盖前面的行；被覆盖的行太多时整个重写一遍
+ * 同名文件并发上传时各自写自己的临时文件，完成后原子地切换名字指向的内容，不会互相破坏；相同内容只存一份。
+ * 文件目录全部在内存中，按文件名排序，列表、分页和前缀查询、下载时查找文件都不访问磁盘；启动时只读索引文件，不扫描 blobs。
+ * 管理员直接放进 server_files 的文件和从 blobs 中删除的内容由 WatchService 发现，不需要重启。
+ */
+public class FileStore {
+    static final int CHUNK_SIZE = 1024 * 1024; // 分块上传的块大小
+    static final long MAX_FILE_SIZE = Long.getLong("chat.maxFileSize", 16L * 1024) * 1024 * 1024; // 分块上传的文件大小上限（单位为 MB，默认 16GB），已收到分块的位图按它分配
+    private static final long QUIET_MILLIS = 1000; // 放进 server_files 的文件这么久没有变化才导入，避免导入还没复制完的文件
+
+    private final File root; // server_files 文件夹
+    private final File blobs; // 按内容哈希存放的文件
+    private final File partial; // 未完成的上传
+    private final File indexFile; // 文件名索引
+    private final ConcurrentSkipListMap<String, FileInfo> catalog = new ConcurrentSkipListMap<>(); // 文件名 -> 元数据，按文件名排序
+    private int indexLines; // 索引文件的行数，超过文件数的两倍时重写
+    private final ConcurrentHashMap<String, PartialUpload> uploads = new ConcurrentHashMap<>(); // 内容哈希 -> 正在进行的分块上传
+
+    FileStore(File root) {
+        this.root = root;
+        this.blobs = new File(root, "blobs");
+        this.partial = new File(root, "partial");
+        this.indexFile = new File(root, "files.idx");
+    }
+
+    /*
+     * 启动时加载文件目录，只读索引文件，不检查每个内容是否存在（内容丢失的文件在下载时才发现并移除）。
+     * server_files 根目录下的普通文件（旧版本直接按文件名保存的文件）会被导入到 blobs 中
+     */
+    void load() throws IOException {
+        root.mkdir();
+        blobs.mkdir();
+        partial.mkdir();
+        boolean legacy = false; // 索引中有旧格式的行
+        if (indexFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    indexLines++;
+                    if (line.startsWith("+\t")) {
+                        FileInfo file = FileInfo.parse(line.substring(2));
+                        if (file != null) {
+                            catalog.put(file.name, file);
+                        }
+                    } else if (line.startsWith("-\t")) {
+                        catalog.remove(line.substring(2));
+                    } else { // 旧格式“哈希\t文件名”，没有元数据，从内容文件取得大小和时间，随后整个索引按新格式重写
+                        int tab = line.indexOf('\t');
+                        File blob = tab > 0 ? new File(blobs, line.substring(0, tab)) : null;
+                        if (blob != null && blob.exists()) {
+                            String name = line.substring(tab + 1);
+                            catalog.put(name, new FileInfo(name, line.substring(0, tab), blob.length(), blob.lastModified(), ""));
+                        }
+                        legacy = true;
+                    }
+                }
+            }
+        }
+        if (legacy || indexLines != catalog.size()) { // 有被覆盖的行或者旧格式的行，重写一遍，之后启动时每个文件只读一行
+            compactIndex();
+        }
+        for (File file : root.listFiles()) {
+            if (file.isFile() && !file.getName().startsWith(indexFile.getName())) {
+                if (isValidName(file.getName())) {
+                    importFile(file);
+                } else {
+                    System.out.println("文件名中有控制字符，没有导入: " + file);
+                }
+            }
+        }
+    }
+
+    /* 所有文件名，按文件名排序 */
+    Set<String> names() {
+        return catalog.keySet();
+    }
+
+    /* 文件的元数据，不存在时返回 null。文件名只作为映射的键，不会被拼接成路径 */
+    FileInfo get(String name) {
+        return catalog.get(name);
+    }
+
+    /* 存放文件内容的文件 */
+    File blob(FileInfo file) {
+        return new File(blobs, file.hash);
+    }
+
+    /*
+     * 文件名以 prefix 开头、排在 after 之后（after 为空字符串时从第一个开始）的最多 limit 个文件，按文件名排序。
+     * 直接在有序映射上取子范围，代价与文件总数无关，客户端用上一页最后一个文件名作为 after 取下一页
+     */
+    List<FileInfo> list(String prefix, String after, int limit) {
+        boolean fromPrefix = after.compareTo(prefix) < 0;
+        String from = fromPrefix ? prefix : after;
+        NavigableMap<String, FileInfo> range = prefix.isEmpty()
+                ? catalog.tailMap(from, fromPrefix)
+                : catalog.subMap(from, fromPrefix, prefix + Character.MAX_VALUE, false);
+        List<FileInfo> files = new ArrayList<>(Math.min(limit, 256));
+        for (FileInfo file : range.values()) {
+            if (files.size() == limit) {
+                break;
+            }
+            files.add(file);
+        }
+        return files;
+    }
+
+    /* 所有文件，集群中的节点连接上时作为完整的文件列表发送 */
+    Collection<FileInfo> entries() {
+        return Collections.unmodifiableCollection(catalog.values());
+    }
+
+    /* 文件名当前指向的内容哈希，不存在时返回 null */
+    String hashOf(String name) {
+        FileInfo file = catalog.get(name);
+        return file == null ? null : file.hash;
+    }
+
+    boolean hasBlob(String hash) {
+        return new File(blobs, hash).exists();
+    }
+
+    /* 让文件名指向某个内容，记录大小、时间和上传者，并追加到索引文件中 */
+    synchronized FileInfo link(String name, String hash, String uploader) throws IOException {
+        if (!isValidName(name)) { // 调用方在接受文件名时已经检查过，这里防止不合法的名字写坏索引
+            throw new IOException("文件名不合法: " + name.replace("\n", "\\n").replace("\t", "\\t"));
+        }
+        FileInfo file = new FileInfo(name, hash, new File(blobs, hash).length(), System.currentTimeMillis(), uploader);
+        appendIndex("+\t" + file.line());
+        catalog.put(name, file);
+        return file;
+    }
+
+    /* 从目录中移除一个文件名（内容文件已经不存在），返回是否确实移除了 */
+    synchronized boolean remove(String name) throws IOException {
+        if (catalog.remove(name) == null) {
+            return false;
+        }
+        appendIndex("-\t" + name);
+        return true;
+    }
+
+    private void appendIndex(String line) throws IOException {
+        if (indexLines > catalog.size() * 2 + 64) { // 大部分行已经被覆盖，先重写，避免索引文件无限增长、启动越来越慢
+            compactIndex();
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(indexFile, true), StandardCharsets.UTF_8)) {
+            writer.write(line + "\n");
+        }
+        indexLines++;
+    }
+
+    /* 按当前目录重写索引文件，每个文件一行。先写临时文件再原子地替换，中途崩溃时旧索引仍然完整 */
+    private synchronized void compactIndex() throws IOException {
+        File temp = new File(root, indexFile.getName() + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+            for (FileInfo file : catalog.values()) {
+                writer.write("+\t" + file.line() + "\n");
+            }
+        }
+        Files.move(temp.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        indexLines = catalog.size();
+    }
+
+    /* 把直接放进 server_files 的文件导入 blobs，文件名不变，没有上传者 */
+    private FileInfo importFile(File file) throws IOException {
+        if (!isValidName(file.getName())) { // 在移入 blobs 之前检查，没有导入的文件留在原处
+            throw new IOException("文件名中有控制字符，没有导入: " + file);
+        }
+        String hash = ChatProtocol.sha256(file);
+        commit(file, hash);
+        return link(file.getName(), hash, "");
+    }
+
+    /*
+     * 启动监视线程：放进 server_files 的文件导入后通知 listener.added，blobs 中被删除的内容对应的文件名移除后通知 listener.removed。
+     * 事件太多（OVERFLOW）时重新扫描根目录并检查每个文件的内容是否还在
+     */
+    void watch(Listener listener) throws IOException {
+        WatchService service = FileSystems.getDefault().newWatchService();
+        WatchKey rootKey = root.toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        blobs.toPath().register(service, StandardWatchEventKinds.ENTRY_DELETE);
+        Thread watcher = new Thread(() -> {
+            Map<File, Long> pending = new HashMap<>(); // 等待导入的文件 -> 最后一次变化的时间
+            while (true) {
+                try {
+                    WatchKey key = pending.isEmpty() ? service.take() : service.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+                    if (key != null) {
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                                rescan(pending, listener);
+                                continue;
+                            }
+                            String name = event.context().toString();
+                            if (key == rootKey) {
+                                File file = new File(root, name);
+                                if (!name.startsWith(indexFile.getName()) && file.isFile()) {
+                                    pending.put(file, System.currentTimeMillis());
+                                }
+                            } else {
+                                removeHash(name, listener);
+                            }
+                        }
+                        key.reset();
+                    }
+                    long now = System.currentTimeMillis();
+                    for (Iterator<Map.Entry<File, Long>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+                        Map.Entry<File, Long> entry = it.next();
+                        File file = entry.getKey();
+                        if (!file.isFile()) { // 已经被移走或删除
+                            it.remove();
+                        } else if (now - Math.max(entry.getValue(), file.lastModified()) >= QUIET_MILLIS) {
+                            it.remove();
+                            listener.added(importFile(file));
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace(); // 一个文件导入失败不影响之后的事件
+                }
+            }
+        }, "file-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /* 内容文件被删除：移除所有指向它的文件名 */
+    private void removeHash(String hash, Listener listener) throws IOException {
+        for (FileInfo file : catalog.values()) {
+            if (file.hash.equals(hash) && !hasBlob(hash) && remove(file.name)) {
+                listener.removed(file.name);
+            }
+        }
+    }
+
+    private void rescan(Map<File, Long> pending, Listener listener) throws IOException {
+        for (File file : root.listFiles()) {
+            if (file.isFile() && !file.getName().startsWith(indexFile.getName())) {
+                pending.put(file, System.currentTimeMillis());
+            }
+        }
+        for (FileInfo file : catalog.values()) {
+            if (!hasBlob(file.hash) && remove(file.name)) {
+                listener.removed(file.name);
+            }
+        }
+    }
+
+    /* 创建一个临时文件，用于接收旧协议整个文件一次发送的上传 */
+    File newTempFile() throws IOException {
+        return File.createTempFile("upload", ".tmp", partial);
+    }
+
+    /* 把已经校验过哈希的临时文件移动到 blobs 中；相同内容已经存在时直接删除临时文件 */
+    void commit(File temp, String hash) throws IOException {
+        File blob = new File(blobs, hash);
+        if (blob.exists()) {
+            temp.delete();
+            return;
+        }
+        Files.move(temp.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /*
+     * 从集群中另一个节点下载文件内容保存到 blobs 中：连接对端的客户端端口，使用二进制协议的 DOWNLOAD_REQUEST，
+     * 边接收边计算哈希，与 hash 不符（对端的文件名已经指向了别的内容）时丢弃并抛出异常
+     */
+    void fetch(InetSocketAddress source, String name, String hash) throws IOException {
+        File temp = newTempFile();
+        try (Socket socket = new Socket(source.getAddress(), source.getPort());
+             FileOutputStream out = new FileOutputStream(temp)) {
+            DataOutputStream request = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            request.write(ChatProtocol.handshake(ChatProtocol.VERSION));
+            ChatProtocol.writeFrame(request, ChatProtocol.DOWNLOAD_REQUEST, name);
+            request.flush();
+            in.readFully(new byte[ChatProtocol.HANDSHAKE_LENGTH]); // 握手回复
+            int type = in.read();
+            if (type != ChatProtocol.FILE_START && type != ChatProtocol.FILE_START_COMPRESSED) {
+                throw new IOException("节点 " + source + " 上没有文件 " + name);
+            }
+            long remaining = ChatProtocol.parseLong(ChatProtocol.readPayload(in));
+            java.security.MessageDigest digest = ChatProtocol.newDigest();
+            if (type == ChatProtocol.FILE_START_COMPRESSED) { // 节点之间同样按压缩流传输，解压时计算哈希
+                long received = ChatProtocol.readCompressedFile(in, new java.security.DigestOutputStream(out, digest));
+                if (received != remaining) {
+                    throw new EOFException("文件 " + name + " 没有接收完整");
+                }
+                remaining = 0;
+            }
+            byte[] buffer = new byte[64 * 1024];
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new EOFException("文件 " + name + " 没有接收完整");
+                }
+                digest.update(buffer, 0, read);
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+            if (!hash.equals(ChatProtocol.hex(digest.digest()))) {
+                throw new IOException("文件 " + name + " 的内容与 SHA-256 不符");
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        commit(temp, hash);
+    }
+
+    /* 开始或继续一个分块上传，同一个内容的上传在所有连接之间共享 */
+    PartialUpload beginUpload(String hash, long size) throws IOException {
+        if (size < 0 || size > MAX_FILE_SIZE) {
+            throw new IOException("文件大小不合法: " + size);
+        }
+        PartialUpload upload;
+        try {
+            upload = uploads.computeIfAbsent(hash, key -> { // 打开文件之后才放进 uploads，别的连接不会拿到还没打开的上传；打开失败时不留下记录
+                PartialUpload created = new PartialUpload(key, size);
+                try {
+                    created.open();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return created;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (upload.size != size) {
+            throw new IOException("文件大小与之前的上传不一致");
+        }
+        upload.touch();
+        return upload;
+    }
+
+    /* 取得正在进行的分块上传，没有时返回 null */
+    PartialUpload upload(String hash) {
+        PartialUpload upload = uploads.get(hash);
+        if (upload != null) {
+            upload.touch();
+        }
+        return upload;
+    }
+
+    /*
+     * 放弃超过 idleNanos 纳秒没有任何动作的分块上传：关闭文件，删除已收到的内容，释放内存中的记录。
+     * 客户端断开后不再回来的上传不会一直占着打开的文件和磁盘空间。返回放弃的上传数
+     */
+    int expireUploads(long idleNanos) {
+        long now = System.nanoTime();
+        int expired = 0;
+        for (PartialUpload upload : uploads.values()) {
+            if (now - upload.lastActive < idleNanos) {
+                continue;
+            }
+            synchronized (upload) { // 与 finishUpload 互斥，不会放弃正在提交的上传
+                if (!uploads.remove(upload.hash, upload)) {
+                    continue;
+                }
+                try {
+                    upload.channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                upload.partFile.delete();
+                upload.chunksFile.delete();
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    /* 所有分块都已收到：校验哈希，移动到 blobs 中。校验失败时清空已收到的分块，返回 false */
+    boolean finishUpload(PartialUpload upload) throws IOException {
+        synchronized (upload) { // 两个客户端同时上传同一内容时可能同时提交
+            if (uploads.get(upload.hash) != upload) {
+                return hasBlob(upload.hash);
+            }
+            return verifyAndCommit(upload);
+        }
+    }
+
+    private boolean verifyAndCommit(PartialUpload upload) throws IOException {
+        upload.channel.force(false);
+        if (!upload.hash.equals(ChatProtocol.sha256(upload.partFile))) {
+            upload.reset();
+            return false;
+        }
+        uploads.remove(upload.hash, upload);
+        upload.channel.close();
+        upload.chunksFile.delete();
+        commit(upload.partFile, upload.hash);
+        return true;
+    }
+
+    /* 一个未完成的分块上传。分块可以乱序、从多个连接并行到达，已收到的分块记录在 .chunks 文件中，服务器重启后也能续传 */
+    class PartialUpload {
+        final String hash; // 内容哈希
+        final long size; // 文件大小
+        final int chunkCount; // 分块数量
+        private final File partFile; // 已收到的内容
+        private final File chunksFile; // 已收到的分块位图
+        private final BitSet received; // 已收到的分块
+        private FileChannel channel; // 写入 partFile 的通道，多个连接按位置写入，互不影响
+        private volatile long lastActive = System.nanoTime(); // 最近一次开始、继续或收到分块的时间，长时间没有动作的上传被放弃
+
+        PartialUpload(String hash, long size) {
+            this.hash = hash;
+            this.size = size;
+            this.chunkCount = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            this.partFile = new File(partial, hash + ".part");
+            this.chunksFile = new File(partial, hash + ".chunks");
+            this.received = new BitSet(chunkCount);
+        }
+
+        private void open() throws IOException {
+            channel = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+            try {
+                if (chunksFile.exists()) { // 之前中断的上传，恢复已收到的分块
+                    received.or(BitSet.valueOf(Files.readAllBytes(chunksFile.toPath())));
+                }
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        private void touch() {
+            lastActive = System.nanoTime();
+        }
+
+        FileChannel channel() {
+            return channel;
+        }
+
+        /* 分块 index 在文件中的起始位置和长度 */
+        long chunkOffset(int index) {
+            return (long) index * CHUNK_SIZE;
+        }
+
+        int chunkLength(int index) {
+            return (int) Math.min(CHUNK_SIZE, size - chunkOffset(index));
+        }
+
+        /* 记录一个分块已经完整写入，并持久化位图 */
+        synchronized void markReceived(int index) throws IOException {
+            touch();
+            received.set(index);
+            Files.write(chunksFile.toPath(), received.toByteArray());
+        }
+
+        synchronized boolean isComplete() {
+            return received.cardinality() == chunkCount;
+        }
+
+        /* 还缺少的分块，格式为“0-3,7,9-12”，没有缺少时为空字符串 */
+        synchronized String missingChunks() {
+            StringBuilder missing = new StringBuilder();
+            int start = received.nextClearBit(0);
+            while (start < chunkCount) {
+                int end = Math.min(received.nextSetBit(start) < 0 ? chunkCount : received.nextSetBit(start), chunkCount) - 1;
+                if (missing.length() > 0) {
+                    missing.append(',');
+                }
+                missing.append(start);
+                if (end > start) {
+                    missing.append('-').append(end);
+                }
+                start = received.nextClearBit(end + 1);
+            }
+            return missing.toString();
+        }
+
+        private synchronized void reset() throws IOException {
+            received.clear();
+            chunksFile.delete();
+        }
+    }
+
+    /* 目录中一个文件的元数据，不可变，文件名重新指向别的内容时整个替换 */
+    static final class FileInfo {
+        final String name;
+        final String hash; // 内容的 SHA-256，同时作为校验和
+        final long size;
+        final long time; // 上传完成的时间（毫秒）
+        final String uploader; // 上传者用户名，直接放进文件夹的文件为空字符串
+
+        FileInfo(String name, String hash, long size, long time, String uploader) {
+            this.name = name;
+            this.hash = hash;
+            this.size = size;
+            this.time = time;
+            this.uploader = uploader.replace('\t', ' ').replace('\n', ' ');
+        }
+
+        /* “哈希 大小 时间 上传者 文件名”，制表符分隔，文件名放在最后，其中可以包含制表符。索引文件和 FILE_PAGE 中都使用这个格式 */
+        String line() {
+            return hash + "\t" + size + "\t" + time + "\t" + uploader + "\t" + name;
+        }
+
+        /* 解析 line() 的结果，格式错误时返回 null */
+        static FileInfo parse(String line) {
+            String[] fields = line.split("\t", 5);
+            if (fields.length != 5 || !isHash(fields[0])) {
+                return null;
+            }
+            try {
+                return new FileInfo(fields[4], fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /* 监视线程发现的变化，由 ChatServer 通知客户端和集群中的其他节点 */
+    interface Listener {
+        void added(FileInfo file);
+        void removed(String name);
+    }
+
+    /*
+     * 合法的文件名：不为空，不包含换行、制表符等控制字符。索引文件按行记录、字段用制表符分隔，FILE_PAGE 和各种请求的负载也按行分隔，
+     * 上传、集群同步和导入时都先检查，不合法的名字不会进入目录
+     */
+    static boolean isValidName(String name) {
+        if (name.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.isISOControl(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* 合法的内容哈希：64 个小写十六进制字符，防止被当作路径使用 */
+    static boolean isHash(String hash) {
+        if (hash.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < hash.length(); i++) {
+            if (Character.digit(hash.charAt(i), 16) < 0 || Character.isUpperCase(hash.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
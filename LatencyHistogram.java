@@ -0,0 +1,107 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * 记录延迟分布的直方图，分桶方式与 HdrHistogram 相同：数值按 2 的幂分成若干段，每段再等分成 1024 个子桶，
+ * 任何数值的相对误差都小于 0.1%，占用的内存固定，与记录的次数无关。
+ * 记录只是对一个桶做原子加一，次数和总和使用分段的 LongAdder，不需要加锁，也不分配内存；读取百分位时遍历所有桶。
+ * 桶是所有线程共享的一个 AtomicLongArray，多个线程同时记录相近的数值时落在同一个桶（同一个缓存行）上，仍然会争用。
+ * 每个桶都分段会让内存按线程数成倍增加（一个直方图约 450KB），所以只在每次广播、每批写出、每次传输这样的频率上记录，
+ * 不要放在每个接收方、每条消息都经过的路径上。
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 11; // 小于 2048 的数值精确记录，更大的数值每段 1024 个子桶
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_COUNT = SUB_BUCKET_COUNT / 2;
+    private static final int BUCKETS = SUB_BUCKET_COUNT + (63 - SUB_BUCKET_BITS + 1) * HALF_COUNT; // 覆盖所有非负 long
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder(); // 记录的次数
+    private final LongAdder sum = new LongAdder(); // 所有数值之和，用于计算平均值
+    private final AtomicLong max = new AtomicLong();
+
+    /* 记录一个数值（单位由调用方决定，例如微秒），负数按 0 记录 */
+    void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(index(value));
+        total.increment();
+        sum.add(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // 其他线程同时更新了最大值，重新比较
+        }
+    }
+
+    long count() {
+        return total.sum();
+    }
+
+    long sum() {
+        return sum.sum();
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    double mean() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /* 百分位数（例如 99.9），返回这个桶能表示的最大数值，与 HdrHistogram 的 valueAtPercentile 一致；没有记录时返回 0 */
+    long percentile(double percentile) {
+        long count = total.sum();
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get(); // 读取期间又有新的记录
+    }
+
+    /* 把另一个直方图的记录合并进来 */
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long value = other.counts.get(i);
+            if (value != 0) {
+                counts.addAndGet(i, value);
+            }
+        }
+        total.add(other.total.sum());
+        sum.add(other.sum.sum());
+        long current;
+        long value = other.max.get();
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // 重新比较
+        }
+    }
+
+    /* 数值所在的桶：小于 2048 时就是数值本身，否则按最高位确定段，再取最高的 11 位确定段内的子桶 */
+    private static int index(long value) {
+        int highestBit = 63 - Long.numberOfLeadingZeros(value | 1);
+        if (highestBit < SUB_BUCKET_BITS) {
+            return (int) value;
+        }
+        int shift = highestBit - SUB_BUCKET_BITS + 1;
+        int subBucket = (int) (value >>> shift); // 在 [1024, 2048) 之间
+        return SUB_BUCKET_COUNT + (shift - 1) * HALF_COUNT + (subBucket - HALF_COUNT);
+    }
+
+    /* 桶 index 能表示的最大数值 */
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / HALF_COUNT + 1;
+        long subBucket = (index - SUB_BUCKET_COUNT) % HALF_COUNT + HALF_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
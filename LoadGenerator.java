@@ -0,0 +1,355 @@
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * 无界面的压力测试工具：模拟大量用户登录、在各自的房间里按设定的速率发送群聊和私聊消息，并定期上传和下载文件，
+ * 使用与 ChatClientGUI 相同的二进制协议。接收方根据消息中携带的发送时间计算端到端的投递延迟，
+ * 按操作类型记录到直方图中，最后输出吞吐量、错误数和 p50/p90/p99/p99.9 延迟。
+ *
+ * 消息中携带的是“计划发送时间”而不是实际写出的时间：发送线程被阻塞（服务端处理不过来）时，排队等待的时间也计入延迟，
+ * 不会因为少发了消息而让结果看起来更好（coordinated omission）。
+ *
+ * 可以通过系统属性配置：
+ *   load.host / load.port   服务端地址，默认 localhost:9999
+ *   load.users              模拟的用户数，默认 1000
+ *   load.rooms              用户平均分配到多少个房间，默认 10（为 1 时所有人都在大厅）
+ *   load.rampSeconds        在多少秒内逐渐登录所有用户，默认 10
+ *   load.duration           全部登录后持续多少秒，默认 60
+ *   load.rate               每个用户每秒发送的消息数，默认 0.2
+ *   load.privateRatio       消息中私聊的比例，默认 0.2
+ *   load.fileRate           每秒开始多少次文件上传和下载，默认 0.5（为 0 时不传输文件）
+ *   load.fileSize           每次上传的文件大小（字节），默认 262144
+ *   load.threads            负责发送的线程数，默认 8
+ */
+public class LoadGenerator {
+    private static final String HOST = System.getProperty("load.host", "localhost");
+    private static final int PORT = Integer.getInteger("load.port", 9999);
+    private static final int USERS = Integer.getInteger("load.users", 1000);
+    private static final int ROOMS = Integer.getInteger("load.rooms", 10);
+    private static final long RAMP_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("load.rampSeconds", 10));
+    private static final long DURATION_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("load.duration", 60));
+    private static final double RATE = Double.parseDouble(System.getProperty("load.rate", "0.2"));
+    private static final double PRIVATE_RATIO = Double.parseDouble(System.getProperty("load.privateRatio", "0.2"));
+    private static final double FILE_RATE = Double.parseDouble(System.getProperty("load.fileRate", "0.5"));
+    private static final int FILE_SIZE = Integer.getInteger("load.fileSize", 256 * 1024);
+    private static final int THREADS = Integer.getInteger("load.threads", 8);
+    private static final String MARK = " #load"; // 压测消息的结尾，接收方只统计这些消息
+    private static final String TIME_PREFIX = "t="; // 消息内容中计划发送时间（System.nanoTime）的前缀
+    private static final long REPORT_INTERVAL = 5; // 每隔多少秒输出一次进度（秒）
+
+    private static final Map<String, Stat> stats = new ConcurrentSkipListMap<>(); // 操作类型 -> 统计，按名称排序输出
+    private static final List<User> online = new CopyOnWriteArrayList<>(); // 已经进入房间的用户，私聊从中选择接收者
+    private static final AtomicInteger fileSerial = new AtomicInteger(); // 上传的文件名序号
+    private static volatile boolean running = true; // 测试结束后不再发送，也不再把断开连接计为错误
+    private static ScheduledExecutorService senders;
+    private static ExecutorService transfers;
+
+    public static void main(String[] args) throws Exception {
+        System.out.printf("压测 %s:%d，用户 %d，房间 %d，每个用户每秒 %.2f 条消息（私聊 %.0f%%），每秒 %.2f 次文件传输（%d 字节）%n",
+                HOST, PORT, USERS, ROOMS, RATE, PRIVATE_RATIO * 100, FILE_RATE, FILE_SIZE);
+        senders = Executors.newScheduledThreadPool(THREADS);
+        transfers = Executors.newCachedThreadPool();
+        String run = Long.toString(System.currentTimeMillis() % 100000, 36); // 用户名和文件名的前缀，重复运行时不会与上次的用户名冲突
+        for (int i = 0; i < USERS; i++) { // 在 RAMP_NANOS 内均匀地登录所有用户
+            User user = new User("load-" + run + "-" + i, ROOMS <= 1 ? null : "load-room-" + (i % ROOMS));
+            senders.schedule(user::connect, RAMP_NANOS * i / USERS, TimeUnit.NANOSECONDS);
+        }
+        if (FILE_RATE > 0) {
+            long period = (long) (1e9 / FILE_RATE);
+            senders.scheduleAtFixedRate(() -> transfers.execute(() -> transferFile(run)), period, period, TimeUnit.NANOSECONDS);
+        }
+        long start = System.nanoTime();
+        Map<String, Long> previous = new HashMap<>();
+        while (System.nanoTime() - start < RAMP_NANOS + DURATION_NANOS) {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(REPORT_INTERVAL));
+            printProgress((System.nanoTime() - start) / 1_000_000_000, previous);
+        }
+        running = false;
+        senders.shutdownNow();
+        transfers.shutdownNow();
+        printReport((System.nanoTime() - start) / 1e9);
+        for (User user : online) {
+            user.close();
+        }
+        System.exit(0);
+    }
+
+    /* 一种操作的统计：次数、错误数和延迟分布（微秒） */
+    static final class Stat {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong errors = new AtomicLong();
+    }
+
+    static Stat stat(String operation) {
+        return stats.computeIfAbsent(operation, key -> new Stat());
+    }
+
+    private static void error(String operation, String reason) {
+        if (stat(operation).errors.getAndIncrement() == 0) { // 每种操作只输出第一次错误的原因，避免刷屏
+            System.out.println("错误（" + operation + "）: " + reason);
+        }
+    }
+
+    /* 一个模拟用户：一个连接，一个读取线程，由发送线程池按固定速率发送消息 */
+    static final class User {
+        final String name;
+        final String room; // 为 null 时留在大厅
+        private Socket socket;
+        private DataOutputStream out; // 对 out 加锁写入，发送线程和登录流程可能同时写
+        private long loginStart;
+        private long nextSend; // 下一条消息的计划发送时间
+        private long period; // 发送间隔（纳秒）
+        private volatile ScheduledFuture<?> sending; // 按速率发送的任务，连接断开时取消
+
+        User(String name, String room) {
+            this.name = name;
+            this.room = room;
+        }
+
+        void connect() {
+            loginStart = System.nanoTime();
+            try {
+                socket = new Socket(HOST, PORT);
+                socket.setTcpNoDelay(true);
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out.write(ChatProtocol.handshake(ChatProtocol.VERSION));
+                ChatProtocol.writeFrame(out, ChatProtocol.LOGIN, name);
+                out.flush();
+                in.readFully(new byte[ChatProtocol.HANDSHAKE_LENGTH]);
+                Thread reader = new Thread(null, () -> read(in), "load-" + name, 256 * 1024); // 几千个读取线程，栈不需要很大
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                error("login", e.toString());
+                close();
+            }
+        }
+
+        /* 读取服务端发来的帧，直到连接断开 */
+        private void read(DataInputStream in) {
+            try {
+                ChatProtocol.Frame frame;
+                while ((frame = ChatProtocol.readFrame(in)) != null) { // 较大的帧可能是压缩的
+                    String payload = frame.payload;
+                    switch (frame.type) {
+                        case ChatProtocol.USERNAME_TAKEN:
+                            error("login", "用户名已被占用: " + name);
+                            break;
+                        case ChatProtocol.ROOM:
+                            entered(payload);
+                            break;
+                        case ChatProtocol.CHAT_MESSAGE:
+                            received(payload.substring(payload.indexOf('\n') + 1));
+                            break;
+                        case ChatProtocol.PING: // 空闲的用户要回复心跳，否则会被服务端断开
+                            write(ChatProtocol.PONG, payload);
+                            break;
+                        default:
+                            // 成员列表、文件列表等其他消息不需要处理
+                    }
+                }
+                if (running) {
+                    error("connection", name + " 被服务端断开");
+                }
+            } catch (IOException e) {
+                if (running) {
+                    error("connection", name + ": " + e);
+                }
+            } finally {
+                online.remove(this);
+                if (sending != null) {
+                    sending.cancel(false);
+                }
+            }
+        }
+
+        /* 进入了一个房间：登录后先进入大厅，再进入分配的房间，之后开始按速率发送消息 */
+        private void entered(String current) throws IOException {
+            if (room != null && !current.equals(room)) {
+                stat("login").latency.record((System.nanoTime() - loginStart) / 1000);
+                loginStart = System.nanoTime();
+                write(ChatProtocol.JOIN_ROOM, room);
+                return;
+            }
+            stat(room == null ? "login" : "join").latency.record((System.nanoTime() - loginStart) / 1000);
+            online.add(this);
+            if (RATE > 0) {
+                period = (long) (1e9 / RATE);
+                long delay = ThreadLocalRandom.current().nextLong(period); // 随机错开，避免所有用户同时发送
+                nextSend = System.nanoTime() + delay;
+                sending = senders.scheduleAtFixedRate(this::sendOne, delay, period, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        /* 收到一条记录在日志中的消息：带有计划发送时间的压测消息计入投递延迟，自己发出的消息的回显不计入 */
+        private void received(String line) {
+            int time = line.lastIndexOf(TIME_PREFIX);
+            if (!line.endsWith(MARK) || time < 0 || line.startsWith(name + ": ") || line.startsWith("私聊给 ")) {
+                return;
+            }
+            long sent = Long.parseLong(line.substring(time + TIME_PREFIX.length(), line.length() - MARK.length()));
+            stat(line.startsWith("私聊自 ") ? "private" : "broadcast").latency.record((System.nanoTime() - sent) / 1000);
+        }
+
+        /* 发送一条消息，由发送线程池按固定速率调用 */
+        private void sendOne() {
+            long intended = nextSend;
+            nextSend += period;
+            String content = TIME_PREFIX + intended + MARK;
+            try {
+                if (ThreadLocalRandom.current().nextDouble() < PRIVATE_RATIO && online.size() > 1) {
+                    User recipient = online.get(ThreadLocalRandom.current().nextInt(online.size()));
+                    if (recipient != this) {
+                        write(ChatProtocol.PRIVATE, recipient.name + " " + content);
+                        stat("private.sent").latency.record(0);
+                        return;
+                    }
+                }
+                write(ChatProtocol.CHAT, content);
+                stat("broadcast.sent").latency.record(0);
+            } catch (IOException | IndexOutOfBoundsException e) { // 接收者恰好在这期间离线
+                if (running && e instanceof IOException) {
+                    error("send", name + ": " + e);
+                    close();
+                }
+            }
+        }
+
+        private void write(byte type, String payload) throws IOException {
+            synchronized (out) {
+                ChatProtocol.writeFrame(out, type, payload);
+                out.flush();
+            }
+        }
+
+        void close() {
+            try {
+                if (socket != null) {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                // 忽略
+            }
+        }
+    }
+
+    /* 以一个在线用户的身份分块上传一个随机内容的文件，再在同一个连接上下载回来，分别记录延迟 */
+    private static void transferFile(String run) {
+        if (online.isEmpty()) {
+            return;
+        }
+        User owner = online.get(ThreadLocalRandom.current().nextInt(online.size()));
+        byte[] content = new byte[FILE_SIZE];
+        ThreadLocalRandom.current().nextBytes(content); // 随机内容，不会被当作已有的内容秒传
+        String hash = ChatProtocol.hex(ChatProtocol.newDigest().digest(content));
+        String fileName = "load-" + run + "-" + fileSerial.incrementAndGet() + ".bin";
+        try (Socket socket = new Socket(HOST, PORT)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            out.write(ChatProtocol.handshake(ChatProtocol.VERSION));
+            out.flush();
+            in.readFully(new byte[ChatProtocol.HANDSHAKE_LENGTH]);
+            long start = System.nanoTime();
+            ChatProtocol.writeFrame(out, ChatProtocol.UPLOAD_BEGIN, fileName + "\n" + content.length + "\n" + hash + "\n" + owner.name);
+            out.flush();
+            String ready = expect(in, ChatProtocol.UPLOAD_READY);
+            int chunkSize = Integer.parseInt(ready.substring(0, ready.indexOf('\n')));
+            int chunks = (content.length + chunkSize - 1) / chunkSize;
+            for (int index = 0; index < chunks; index++) {
+                int offset = index * chunkSize;
+                ChatProtocol.writeFrame(out, ChatProtocol.UPLOAD_CHUNK, hash + "\n" + index);
+                out.write(content, offset, Math.min(chunkSize, content.length - offset));
+            }
+            out.flush();
+            for (int index = 0; index < chunks; index++) {
+                expect(in, ChatProtocol.CHUNK_ACK);
+            }
+            ChatProtocol.writeFrame(out, ChatProtocol.UPLOAD_COMMIT, hash);
+            out.flush();
+            expect(in, ChatProtocol.UPLOAD_COMPLETE);
+            stat("upload").latency.record((System.nanoTime() - start) / 1000);
+
+            start = System.nanoTime();
+            ChatProtocol.writeFrame(out, ChatProtocol.DOWNLOAD_REQUEST, fileName);
+            out.flush();
+            int type = in.read();
+            long remaining = Long.parseLong(ChatProtocol.readPayload(in));
+            if (remaining != content.length) {
+                throw new IOException("下载的文件大小不符: " + remaining);
+            }
+            if (type == ChatProtocol.FILE_START_COMPRESSED) { // 随机内容一般不会被压缩，服务端的取样判断不准时也能正确接收
+                if (ChatProtocol.readCompressedFile(in, OutputStream.nullOutputStream()) != remaining) {
+                    throw new IOException("解压后的文件大小不符");
+                }
+            } else if (type == ChatProtocol.FILE_START) {
+                byte[] buffer = new byte[64 * 1024];
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new EOFException("文件没有接收完整");
+                    }
+                    remaining -= read;
+                }
+                expect(in, ChatProtocol.FILE_END);
+            } else {
+                throw new IOException("期望 FILE_START，收到 " + type);
+            }
+            stat("download").latency.record((System.nanoTime() - start) / 1000);
+        } catch (IOException e) {
+            if (running) {
+                error("file", fileName + ": " + e);
+            }
+        }
+    }
+
+    /* 读取一帧，类型不符时抛出异常（UPLOAD_FAILED 等错误回复的负载作为原因） */
+    private static String expect(DataInputStream in, byte type) throws IOException {
+        int actual = in.read();
+        if (actual < 0) {
+            throw new EOFException("连接被关闭");
+        }
+        String payload = ChatProtocol.readPayload(in);
+        if (actual != type) {
+            throw new IOException("期望帧类型 " + type + "，收到 " + actual + ": " + payload);
+        }
+        return payload;
+    }
+
+    /* 每隔 REPORT_INTERVAL 秒输出在线人数、这段时间内每秒的发送和投递数 */
+    private static void printProgress(long seconds, Map<String, Long> previous) {
+        StringBuilder line = new StringBuilder(String.format("[%3ds] 在线 %d", seconds, online.size()));
+        for (Map.Entry<String, Stat> entry : stats.entrySet()) {
+            long count = entry.getValue().latency.count();
+            long last = previous.getOrDefault(entry.getKey(), 0L);
+            previous.put(entry.getKey(), count);
+            line.append(String.format("  %s %.1f/s", entry.getKey(), (double) (count - last) / REPORT_INTERVAL));
+            if (entry.getValue().errors.get() > 0) {
+                line.append("（错误 ").append(entry.getValue().errors.get()).append("）");
+            }
+        }
+        System.out.println(line);
+    }
+
+    private static void printReport(double seconds) {
+        System.out.println();
+        System.out.printf("%-16s %10s %8s %10s %10s %10s %10s %10s %10s %10s%n",
+                "操作", "次数", "错误", "每秒", "平均(ms)", "p50(ms)", "p90(ms)", "p99(ms)", "p99.9(ms)", "最大(ms)");
+        for (Map.Entry<String, Stat> entry : stats.entrySet()) {
+            LatencyHistogram latency = entry.getValue().latency;
+            if (entry.getKey().endsWith(".sent")) { // 只统计发送数量，没有延迟
+                System.out.printf("%-16s %10d %8d %10.1f%n", entry.getKey(), latency.count(), entry.getValue().errors.get(), latency.count() / seconds);
+                continue;
+            }
+            System.out.printf("%-16s %10d %8d %10.1f %10.2f %10.2f %10.2f %10.2f %10.2f %10.2f%n", entry.getKey(),
+                    latency.count(), entry.getValue().errors.get(), latency.count() / seconds, latency.mean() / 1000,
+                    latency.percentile(50) / 1000.0, latency.percentile(90) / 1000.0, latency.percentile(99) / 1000.0,
+                    latency.percentile(99.9) / 1000.0, latency.max() / 1000.0);
+        }
+        System.out.println("broadcast/private 为每个接收方收到消息的端到端延迟，login/join 为登录和进入房间的延迟，upload/download 为整个文件的传输时间");
+    }
+}
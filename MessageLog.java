@@ -0,0 +1,361 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+
+/*
+ * 聊天消息日志：所有群聊和私聊消息按顺序追加到分段的日志文件中，新用户登录时从这里补发历史消息。
+ *   chat_log/<起始消息ID>.log    一个分段，创建时按固定大小映射到内存，追加消息只是一次内存复制
+ *   chat_log/<起始消息ID>.index  稀疏索引，分段中每隔 INDEX_INTERVAL 字节记录一次（消息ID，位置）
+ * 每条记录的格式为：4 字节长度 + 4 字节 CRC32 + 8 字节消息ID + 1 字节类型 + 内容。
+ * 群聊消息的内容是 2 字节房间名长度 + 房间名 + 发给二进制协议客户端的 CHAT_MESSAGE 帧，补发时直接从映射的内存中切出帧放入发送队列，不需要重新编码。
+ * 追加时不等待落盘，后台线程每隔 FLUSH_INTERVAL 毫秒把这段时间内的所有写入一起 force 到磁盘（组提交），
+ * 进程崩溃不会丢消息，机器掉电最多丢失最后一个间隔内的消息。分段写满后切换到新分段，超过保留数量的旧分段被删除。
+ */
+public class MessageLog {
+    static final byte BROADCAST = 0; // 群聊消息，内容为房间名 + CHAT_MESSAGE 帧，房间名为空表示发给所有房间
+    static final byte PRIVATE = 1; // 私聊消息，内容为“发送者\n接收者\n消息内容”，补发时只发给这两个人
+
+    private static final int HEADER_SIZE = 4 + 4; // 长度 + CRC32
+    private static final int INDEX_INTERVAL = 4096; // 稀疏索引的间隔（字节）
+    private static final int INDEX_ENTRY_SIZE = 8 + 4; // 索引项：消息ID + 位置
+    private static final int MIN_SEGMENT_SIZE = 1024 * 1024; // 分段至少要能放下最长的一条消息
+    private static final long FLUSH_INTERVAL = Long.getLong("chat.logFlushMillis", 100); // 组提交的间隔
+
+    private final File directory; // 日志文件夹
+    private final int segmentSize; // 每个分段的大小
+    private final int retainSegments; // 最多保留的分段数量，超过时删除最旧的分段
+    private final List<Segment> segments = new CopyOnWriteArrayList<>(); // 所有分段，按消息ID从小到大排列，补发时不需要加锁遍历
+    private Segment active; // 正在追加的分段（最后一个）
+    private long nextId = 1; // 下一条消息的ID
+
+    MessageLog(File directory, int segmentSize, int retainSegments) {
+        this.directory = directory;
+        this.segmentSize = Math.max(segmentSize, MIN_SEGMENT_SIZE);
+        this.retainSegments = Math.max(1, retainSegments);
+    }
+
+    /* 启动时加载已有的分段，找到最后一条完整的记录，然后启动后台落盘线程 */
+    synchronized void open() throws IOException {
+        directory.mkdir();
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".log"));
+        Arrays.sort(files, Comparator.comparingLong(MessageLog::baseIdOf));
+        for (File file : files) {
+            Segment segment = new Segment(file, baseIdOf(file), Math.max(segmentSize, (int) file.length()));
+            segment.recover();
+            segments.add(segment);
+        }
+        if (segments.isEmpty()) {
+            segments.add(new Segment(segmentFile(1), 1, segmentSize));
+        }
+        active = segments.get(segments.size() - 1);
+        nextId = active.lastId() + 1;
+
+        Thread flusher = new Thread(this::flushLoop, "message-log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /* 追加一条发到 room 房间的群聊消息（room 为空字符串表示所有房间），返回它的消息ID */
+    synchronized long appendBroadcast(String room, String line) throws IOException {
+        long id = nextId;
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = frame(id, line);
+        ByteBuffer content = ByteBuffer.allocate(2 + roomBytes.length + frame.remaining());
+        content.putShort((short) roomBytes.length).put(roomBytes).put(frame).flip();
+        append(id, BROADCAST, content);
+        return id;
+    }
+
+    /* 追加一条私聊消息，返回它的消息ID */
+    synchronized long appendPrivate(String sender, String recipient, String content) throws IOException {
+        long id = nextId;
+        append(id, PRIVATE, ByteBuffer.wrap((sender + "\n" + recipient + "\n" + content).getBytes(StandardCharsets.UTF_8)));
+        return id;
+    }
+
+    /* 保留的第一条消息的ID，更早的消息所在的分段已经被删除 */
+    long firstId() {
+        return segments.get(0).baseId;
+    }
+
+    /* 最后一条消息的ID，还没有消息时为 0 */
+    synchronized long lastId() {
+        return nextId - 1;
+    }
+
+    private void append(long id, byte kind, ByteBuffer content) throws IOException {
+        int length = 8 + 1 + content.remaining();
+        if (!active.fits(HEADER_SIZE + length)) { // 当前分段写满了，切换到新分段
+            roll(id);
+        }
+        active.append(id, kind, content, length);
+        nextId = id + 1;
+    }
+
+    /* 创建从 id 开始的新分段，旧分段交给后台线程落盘，超过保留数量时删除最旧的分段 */
+    private void roll(long id) throws IOException {
+        active = new Segment(segmentFile(id), id, segmentSize);
+        segments.add(active);
+        while (segments.size() > retainSegments) {
+            Segment oldest = segments.remove(0);
+            oldest.delete(); // 正在补发的连接仍持有映射，内容在它们发送完之前一直有效
+        }
+    }
+
+    /*
+     * 按顺序读出从 fromId 开始的所有消息，返回最后读到的消息ID（没有消息时为 fromId - 1）。
+     * 只在调用时已经写入的范围内读取，不会读到写了一半的记录
+     */
+    long replay(long fromId, Visitor visitor) {
+        return replay(fromId, Long.MAX_VALUE, visitor);
+    }
+
+    /* 读出一条消息（全文搜索的结果），消息所在的分段已经被删除时返回 false */
+    boolean read(long id, Visitor visitor) {
+        return replay(id, id, visitor) == id;
+    }
+
+    /* 按顺序读出 fromId 到 toId 之间的消息，返回最后读到的消息ID。用稀疏索引定位起点，只扫描这个范围 */
+    long replay(long fromId, long toId, Visitor visitor) {
+        long last = fromId - 1;
+        List<Segment> snapshot = new ArrayList<>(segments);
+        int first = 0;
+        for (int i = snapshot.size() - 1; i >= 0; i--) { // 找到包含 fromId 的分段
+            if (snapshot.get(i).baseId <= fromId) {
+                first = i;
+                break;
+            }
+        }
+        for (int i = first; i < snapshot.size(); i++) {
+            if (snapshot.get(i).baseId > toId) {
+                break;
+            }
+            last = snapshot.get(i).replay(fromId, toId, visitor, last);
+        }
+        return last;
+    }
+
+    /* 群聊消息在日志中保存的内容：发给二进制协议客户端的 CHAT_MESSAGE 帧“消息ID\n一行文字” */
+    static ByteBuffer frame(long id, String line) {
+        return ChatProtocol.encode(ChatProtocol.CHAT_MESSAGE, id + "\n" + line);
+    }
+
+    /* 从 CHAT_MESSAGE 帧中取出那一行文字，用于给文本协议客户端补发 */
+    static String line(ByteBuffer frame) {
+        ByteBuffer payload = frame.duplicate();
+        payload.get(); // 类型
+        while ((payload.get() & 0x80) != 0) {
+            // 跳过 varint 编码的长度，最高位为 1 表示后面还有字节
+        }
+        String text = StandardCharsets.UTF_8.decode(payload).toString();
+        return text.substring(text.indexOf('\n') + 1);
+    }
+
+    /* 后台落盘线程：每个间隔把有新写入的分段 force 一次，一次 force 覆盖这段时间内的所有追加 */
+    private void flushLoop() {
+        while (true) {
+            try {
+                Thread.sleep(FLUSH_INTERVAL);
+                for (Segment segment : segments) {
+                    segment.flush();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private File segmentFile(long baseId) {
+        return new File(directory, String.format("%020d.log", baseId));
+    }
+
+    private static long baseIdOf(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(0, name.indexOf('.')));
+    }
+
+    /* 补发时逐条接收消息 */
+    interface Visitor {
+        void broadcast(long id, String room, ByteBuffer frame); // frame 是映射内存的只读切片
+        void privateMessage(long id, String sender, String recipient, String content);
+    }
+
+    /* 一个日志分段。只有持有 MessageLog 锁的线程追加，补发的线程只读取 end 之前的内容 */
+    private static final class Segment {
+        final long baseId; // 分段中第一条消息的ID
+        private final File file; // 日志内容
+        private final File indexFile; // 稀疏索引
+        private final MappedByteBuffer map; // 整个分段映射到内存
+        private final FileChannel indexChannel; // 追加索引项
+        private volatile int end; // 已经写入的字节数，写完一条记录后才更新，读取方只读到这里
+        private volatile long lastId; // 分段中最后一条消息的ID
+        private volatile long[] indexIds = new long[64]; // 稀疏索引：消息ID，扩容时整体替换，读取方拿到的旧数组前面的内容不变
+        private volatile int[] indexPositions = new int[64]; // 稀疏索引：记录在分段中的位置
+        private volatile int indexCount; // 索引项数量，写完索引项之后才增加
+        private volatile boolean dirty; // 有还没 force 到磁盘的写入
+
+        Segment(File file, long baseId, int size) throws IOException {
+            this.file = file;
+            this.baseId = baseId;
+            this.lastId = baseId - 1;
+            this.indexFile = new File(file.getParent(), file.getName().replace(".log", ".index"));
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size); // 映射建立后关闭通道不影响映射
+            }
+            indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        long lastId() {
+            return lastId;
+        }
+
+        boolean fits(int recordSize) {
+            return end + recordSize <= map.capacity();
+        }
+
+        /* 写入一条记录：先写内容，最后更新 end，补发的线程看到新的 end 时记录已经完整 */
+        void append(long id, byte kind, ByteBuffer content, int length) throws IOException {
+            int position = end;
+            ByteBuffer record = map.duplicate();
+            record.position(position + HEADER_SIZE);
+            record.putLong(id).put(kind).put(content);
+            record.putInt(position, length);
+            record.putInt(position + 4, crc(position, length));
+            if (indexCount == 0 || position - indexPositions[indexCount - 1] >= INDEX_INTERVAL) {
+                addIndex(id, position, true);
+            }
+            lastId = id;
+            end = position + HEADER_SIZE + length;
+            dirty = true;
+        }
+
+        /* 用稀疏索引找到不晚于 fromId 的位置，从那里往后扫描到 toId 为止 */
+        long replay(long fromId, long toId, Visitor visitor, long last) {
+            int limit = end;
+            int count = indexCount; // 先读数量再读数组，保证读到的索引项都已经写完
+            long[] ids = indexIds;
+            int[] positions = indexPositions;
+            int position = 0;
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) { // 二分查找最后一个消息ID不大于 fromId、并且在 limit 之前的索引项
+                int mid = (low + high) >>> 1;
+                if (ids[mid] <= fromId && positions[mid] < limit) {
+                    position = positions[mid];
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            ByteBuffer view = map.asReadOnlyBuffer();
+            while (position < limit) {
+                int length = view.getInt(position);
+                long id = view.getLong(position + HEADER_SIZE);
+                if (id > toId) {
+                    break;
+                }
+                if (id >= fromId) {
+                    int contentStart = position + HEADER_SIZE + 8 + 1;
+                    view.limit(position + HEADER_SIZE + length).position(contentStart);
+                    ByteBuffer content = view.slice();
+                    view.clear();
+                    if (view.get(contentStart - 1) == BROADCAST) {
+                        byte[] room = new byte[content.getShort()];
+                        content.get(room);
+                        visitor.broadcast(id, new String(room, StandardCharsets.UTF_8), content.slice());
+                    } else {
+                        String[] fields = StandardCharsets.UTF_8.decode(content).toString().split("\n", 3);
+                        visitor.privateMessage(id, fields[0], fields[1], fields[2]);
+                    }
+                    last = id;
+                }
+                position += HEADER_SIZE + length;
+            }
+            return last;
+        }
+
+        /*
+         * 启动时恢复：读入稀疏索引，从最后一个有效的索引项开始往后扫描，长度为 0、CRC 不符或者消息ID不连续的位置就是结尾。
+         * 掉电时没有落盘的半条记录在这里被丢弃，只需要扫描最后一个索引间隔，不需要读整个分段
+         */
+        void recover() throws IOException {
+            ByteBuffer entries = ByteBuffer.allocate((int) indexChannel.size() / INDEX_ENTRY_SIZE * INDEX_ENTRY_SIZE);
+            indexChannel.read(entries, 0);
+            entries.flip();
+            while (entries.hasRemaining()) {
+                addIndex(entries.getLong(), entries.getInt(), false);
+            }
+            while (indexCount > 0 && !valid(indexPositions[indexCount - 1], indexIds[indexCount - 1])) {
+                indexCount--; // 索引项指向的记录没有完整落盘
+            }
+            indexChannel.truncate((long) indexCount * INDEX_ENTRY_SIZE);
+
+            int position = indexCount == 0 ? 0 : indexPositions[indexCount - 1];
+            long id = indexCount == 0 ? baseId : indexIds[indexCount - 1];
+            while (valid(position, id)) {
+                if (indexCount == 0 || position - indexPositions[indexCount - 1] >= INDEX_INTERVAL) {
+                    addIndex(id, position, true); // 索引文件缺少的项重新补上
+                }
+                lastId = id++;
+                position += HEADER_SIZE + map.getInt(position);
+            }
+            end = position;
+        }
+
+        /* position 处是否是一条消息ID为 id 的完整记录 */
+        private boolean valid(int position, long id) {
+            if (position + HEADER_SIZE + 9 > map.capacity()) {
+                return false;
+            }
+            int length = map.getInt(position);
+            return length >= 9 && position + HEADER_SIZE + length <= map.capacity()
+                    && map.getLong(position + HEADER_SIZE) == id && map.getInt(position + 4) == crc(position, length);
+        }
+
+        private int crc(int position, int length) {
+            ByteBuffer body = map.duplicate();
+            body.limit(position + HEADER_SIZE + length).position(position + HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            return (int) crc.getValue();
+        }
+
+        private void addIndex(long id, int position, boolean persist) throws IOException {
+            if (indexCount == indexIds.length) {
+                indexIds = Arrays.copyOf(indexIds, indexCount * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+            }
+            indexIds[indexCount] = id;
+            indexPositions[indexCount] = position;
+            indexCount++;
+            if (persist) {
+                ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+                entry.putLong(id).putInt(position).flip();
+                indexChannel.write(entry, (long) (indexCount - 1) * INDEX_ENTRY_SIZE);
+            }
+        }
+
+        /* 把这段时间内的所有写入 force 到磁盘 */
+        synchronized void flush() throws IOException {
+            if (dirty && indexChannel.isOpen()) {
+                dirty = false; // 先清除标记，force 期间的新写入会在下一次落盘
+                map.force();
+                indexChannel.force(false);
+            }
+        }
+
+        synchronized void delete() throws IOException {
+            indexChannel.close();
+            file.delete();
+            indexFile.delete();
+        }
+    }
+}
@@ -0,0 +1,224 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.ObjectName;
+
+/*
+ * 服务端运行指标：计数器使用分段的 LongAdder，直方图使用 LatencyHistogram，热点路径上记录一次只是几次原子加，
+ * 不加锁也不分配内存。只有读取（抓取 HTTP 端点或者通过 JMX 查看）时才汇总。
+ * 指标以 Prometheus 文本格式在 http://127.0.0.1:<chat.metricsPort>/metrics 上提供（端口为 0 时不启动），
+ * 同时注册为 JMX MXBean（ChatServer:type=Metrics），可以用 jconsole 查看。
+ * 每秒的消息数等速率由 Prometheus 对计数器求 rate() 得到。
+ */
+public class Metrics implements MetricsMXBean {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    final LongAdder connectionsOpened = new LongAdder(); // 接受的连接数
+    final LongAdder connectionsClosed = new LongAdder(); // 关闭的连接数，与上面相减得到当前连接数，不需要在同一个变量上加减
+    final LongAdder messagesIn = new LongAdder(); // 收到客户端的聊天状态消息数（群聊、私聊、切换房间等）
+    final LongAdder messagesOut = new LongAdder(); // 放入发送队列的消息数
+    final LongAdder bytesUploaded = new LongAdder(); // 上传的文件内容字节数
+    final LongAdder bytesDownloaded = new LongAdder(); // 下载的文件内容字节数
+    final LongAdder messagesDropped = new LongAdder(); // 因为接收方太慢被丢弃的消息数
+    final LongAdder slowConsumerDisconnects = new LongAdder(); // 因为接收太慢被断开的连接数
+    final LongAdder writeFailures = new LongAdder(); // 写出失败（连接已断开等）的次数
+    final LongAdder throttled = new LongAdder(); // 被限速丢弃的消息、因为连接数或上传数已满被拒绝的请求
+    final LongAdder timeouts = new LongAdder(); // 因为握手超时或空闲超时被断开的连接数
+    final LongAdder compressionInput = new LongAdder(); // 压缩或解压的数据原始的字节数（广播按每个接收方分别计算）
+    final LongAdder compressionOutput = new LongAdder(); // 这些数据压缩后的字节数，两者相减是节省的字节数。分成两个只增不减的计数器，压缩后变大时也不会减少
+    final LatencyHistogram fanOutNanos = new LatencyHistogram(); // 一次广播放入所有接收方发送队列的耗时（纳秒）
+    final LatencyHistogram queueDepth = new LatencyHistogram(); // 每批写出前发送队列的长度
+    final LatencyHistogram uploadNanos = new LatencyHistogram(); // 整个文件上传的耗时（纳秒）
+    final LatencyHistogram downloadNanos = new LatencyHistogram(); // 整个文件下载的耗时（纳秒）
+    final LatencyHistogram searchNanos = new LatencyHistogram(); // 一次聊天记录搜索的耗时，包括从日志中取出结果（纳秒）
+    private final Map<String, LongSupplier> gauges = new LinkedHashMap<>(); // 读取时才计算的当前值：名称 -> 取值函数
+    private final Map<String, String> gaugeHelp = new LinkedHashMap<>();
+
+    /* 注册一个读取时才计算的指标，例如在线人数，需要在 start 之前调用 */
+    void gauge(String name, String help, LongSupplier value) {
+        gauges.put(name, value);
+        gaugeHelp.put(name, help);
+    }
+
+    /* 注册 JMX，端口不为 0 时在本机回环地址上启动 HTTP 端点 */
+    void start(int httpPort) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("ChatServer:type=Metrics"));
+        } catch (Exception e) {
+            e.printStackTrace(); // 指标不可用不影响聊天服务
+        }
+        if (httpPort == 0) {
+            return;
+        }
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort), 0); // 只允许本机访问
+            server.createContext("/metrics", exchange -> {
+                byte[] body = text().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start(); // 使用 HttpServer 自己的一个线程，不占用事件循环
+            System.out.println("指标端点: http://127.0.0.1:" + httpPort + "/metrics");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /* 所有指标的 Prometheus 文本格式 */
+    String text() {
+        StringBuilder text = new StringBuilder();
+        gauge(text, "chat_connections_active", "当前打开的客户端连接数", getActiveConnections());
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            gauge(text, gauge.getKey(), gaugeHelp.get(gauge.getKey()), gauge.getValue().getAsLong());
+        }
+        counter(text, "chat_connections_opened_total", "接受的客户端连接总数", connectionsOpened.sum());
+        counter(text, "chat_messages_received_total", "收到客户端的消息总数", getMessagesReceived());
+        counter(text, "chat_messages_sent_total", "放入发送队列的消息总数", getMessagesSent());
+        counter(text, "chat_bytes_uploaded_total", "上传的文件字节总数", getBytesUploaded());
+        counter(text, "chat_bytes_downloaded_total", "下载的文件字节总数", getBytesDownloaded());
+        counter(text, "chat_messages_dropped_total", "接收方太慢被丢弃的消息总数", getMessagesDropped());
+        counter(text, "chat_slow_consumer_disconnects_total", "接收太慢被断开的连接总数", slowConsumerDisconnects.sum());
+        counter(text, "chat_write_failures_total", "写出失败的次数", getWriteFailures());
+        counter(text, "chat_throttled_total", "被限速或因为容量已满被拒绝的请求数", getThrottled());
+        counter(text, "chat_timeouts_total", "握手超时或空闲超时被断开的连接数", getTimeouts());
+        counter(text, "chat_compression_input_bytes_total", "收发的压缩数据原始的字节数", getCompressionInputBytes());
+        counter(text, "chat_compression_output_bytes_total", "收发的压缩数据压缩后的字节数", getCompressionOutputBytes());
+        summary(text, "chat_broadcast_fanout_seconds", "一次广播放入所有接收方发送队列的耗时", fanOutNanos, 1e-9);
+        summary(text, "chat_outbound_queue_depth", "每批写出前发送队列的长度", queueDepth, 1);
+        summary(text, "chat_upload_duration_seconds", "整个文件上传的耗时", uploadNanos, 1e-9);
+        summary(text, "chat_download_duration_seconds", "整个文件下载的耗时", downloadNanos, 1e-9);
+        summary(text, "chat_search_duration_seconds", "一次聊天记录搜索的耗时", searchNanos, 1e-9);
+        return text.toString();
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, long value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" gauge\n");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder text, String name, String help, long value) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" counter\n");
+        text.append(name).append(' ').append(value).append('\n');
+    }
+
+    /* 直方图以 summary 的形式输出分位数、总和与次数，scale 把记录的单位换算成输出的单位（纳秒 -> 秒） */
+    private static void summary(StringBuilder text, String name, String help, LatencyHistogram histogram, double scale) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" summary\n");
+        for (double quantile : QUANTILES) {
+            text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(format(histogram.percentile(quantile * 100) * scale)).append('\n');
+        }
+        text.append(name).append("_sum ").append(format(histogram.sum() * scale)).append('\n');
+        text.append(name).append("_count ").append(histogram.count()).append('\n');
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.9g", value);
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return connectionsOpened.sum() - connectionsClosed.sum();
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getBytesUploaded() {
+        return bytesUploaded.sum();
+    }
+
+    @Override
+    public long getBytesDownloaded() {
+        return bytesDownloaded.sum();
+    }
+
+    @Override
+    public long getMessagesDropped() {
+        return messagesDropped.sum();
+    }
+
+    @Override
+    public long getWriteFailures() {
+        return writeFailures.sum();
+    }
+
+    @Override
+    public long getThrottled() {
+        return throttled.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getCompressionInputBytes() {
+        return compressionInput.sum();
+    }
+
+    @Override
+    public long getCompressionOutputBytes() {
+        return compressionOutput.sum();
+    }
+
+    @Override
+    public long getCompressionSavedBytes() {
+        return getCompressionInputBytes() - getCompressionOutputBytes();
+    }
+
+    @Override
+    public double getBroadcastFanOutP99Micros() {
+        return fanOutNanos.percentile(99) / 1000.0;
+    }
+
+    @Override
+    public long getOutboundQueueDepthP99() {
+        return queueDepth.percentile(99);
+    }
+
+    @Override
+    public double getUploadP99Micros() {
+        return uploadNanos.percentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getDownloadP99Micros() {
+        return downloadNanos.percentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getSearchP99Micros() {
+        return searchNanos.percentile(99) / 1000.0;
+    }
+
+    @Override
+    public String getPrometheusText() {
+        return text();
+    }
+}
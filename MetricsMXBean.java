@@ -0,0 +1,21 @@
+/* 通过 JMX 查看的服务端指标（ChatServer:type=Metrics），时间单位为微秒，由 Metrics 实现 */
+public interface MetricsMXBean {
+    long getActiveConnections();
+    long getMessagesReceived();
+    long getMessagesSent();
+    long getBytesUploaded();
+    long getBytesDownloaded();
+    long getMessagesDropped();
+    long getWriteFailures();
+    long getThrottled();
+    long getTimeouts();
+    long getCompressionInputBytes();
+    long getCompressionOutputBytes();
+    long getCompressionSavedBytes(); // 原始字节数减去压缩后的字节数，压缩后变大的数据多时可能减少
+    double getBroadcastFanOutP99Micros();
+    long getOutboundQueueDepthP99();
+    double getUploadP99Micros();
+    double getDownloadP99Micros();
+    double getSearchP99Micros();
+    String getPrometheusText();
+}
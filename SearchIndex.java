@@ -0,0 +1,1099 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * 聊天记录的全文索引（倒排索引）：词 -> 包含它的消息ID列表（倒排表）。群聊和私聊消息写入消息日志的同时增量加入索引。
+ *   分词：连续的字母数字转成小写作为一个词；中日韩文字按相邻两个字切成二元组（“你好世界” -> 你好 好世 世界），
+ *         每段中日韩文字的最后一个字再单独作为一个词，查询单个字时用前缀就能找到它出现的所有位置
+ *   chat_index/<起始消息ID>-<结束消息ID>.seg  不可变的索引段，映射到内存中查询，不读入堆
+ * 新消息先进入内存中的活动段，满 FLUSH_DOCS 条后冻结，由后台线程写成索引段文件；同一级别的段积累到 MERGE_FACTOR 个时在后台合并成一个，
+ * 段的数量随消息数对数增长。倒排表按消息ID递增，保存相邻ID的差值（varint），每 BLOCK_SIZE 条记一个跳表项，求交集时整块跳过。
+ * 查询时所有词都要出现，“词*”是前缀查询，展开成最多 MAX_EXPANSIONS 个词的并集；按 BM25 打分（聊天消息都很短，不做长度归一化），
+ * 分数相同时新消息在前。从最新的消息往前求交集，一次查询检查约 MAX_SCAN 条候选消息后停止：出现在几乎所有消息中的常用词，
+ * 只在最新的约 MAX_SCAN 条匹配中排序，查询时间不随历史消息数增长。私聊消息只有发送者和接收者能搜到。
+ * 索引段只覆盖到某条消息为止，重启时从消息日志中补建之后的消息（包括崩溃时还在内存中的活动段）。
+ */
+public class SearchIndex {
+    private static final int MAGIC = 0x53494458; // 索引段文件的魔数 "SIDX"
+    private static final int HEADER_SIZE = 40; // 魔数、消息数、起止消息ID、词数、词表位置、私聊数、私聊表位置
+    private static final int BLOCK_SIZE = 128; // 倒排表每块的消息数，每块一个跳表项
+    private static final int MAX_TERM_LENGTH = 32; // 超过这个长度的词截断
+    private static final int MERGE_FACTOR = 4; // 同一级别的段积累到这么多个时合并
+    private static final int MAX_SEGMENT_DOCS = 8 * 1024 * 1024; // 合并后的段最多包含的消息数，保证文件不超过一次映射的 2GB
+    private static final int MAX_EXPANSIONS = Integer.getInteger("chat.searchMaxExpansions", 256); // 前缀查询在每个段中最多展开的词数
+    private static final double K1 = 1.2; // BM25 的词频饱和参数
+    private static final int MAX_SCAN = Integer.getInteger("chat.searchMaxScan", 65536); // 一次查询最多检查的候选消息数，超过时更早的消息不再参与排序
+
+    private final File directory; // 索引段文件夹
+    private final int flushDocs; // 活动段满这么多条消息后写成索引段
+    private final ExecutorService indexer; // 写索引段和合并的后台线程，只有一个，段的替换按顺序进行
+    private volatile List<Segment> segments = Collections.emptyList(); // 已冻结的段（映射的文件在前，正在写出的内存段在后），按消息ID排列，整体替换
+    private MemorySegment active = new MemorySegment(1); // 正在加入消息的内存段
+    private long indexedId; // 已经加入索引的最后一条消息ID
+    private MessageLog log; // 被删除的日志分段对应的索引段也一起删除
+
+    SearchIndex(File directory, int flushDocs) {
+        this.directory = directory;
+        this.flushDocs = Math.max(1024, flushDocs);
+        this.indexer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "search-indexer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /*
+     * 启动时加载索引段：合并中途崩溃时新段和被合并的旧段都在，丢弃被包含的段；消息ID不连续时丢弃缺口之后的段；
+     * 掉电时日志最后一段没有落盘而索引段已经落盘的，丢弃超出日志的段（之后的新消息会重新使用这些ID）。
+     * 然后从消息日志中补建最后一个段之后的消息
+     */
+    void open(MessageLog log) throws IOException {
+        this.log = log;
+        directory.mkdir();
+        List<MappedSegment> loaded = new ArrayList<>();
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(".tmp")) {
+                file.delete(); // 没有写完的段
+            } else if (file.getName().endsWith(".seg")) {
+                try {
+                    loaded.add(new MappedSegment(file));
+                } catch (IOException e) {
+                    e.printStackTrace(); // 损坏的段，删除后从日志中重建
+                    file.delete();
+                }
+            }
+        }
+        loaded.sort(Comparator.comparingLong((MappedSegment s) -> s.minId).thenComparingLong(s -> -s.maxId));
+        List<Segment> kept = new ArrayList<>();
+        long covered = 0;
+        for (MappedSegment segment : loaded) {
+            if (segment.maxId <= covered || (covered > 0 && segment.minId != covered + 1) || segment.maxId > log.lastId()) {
+                segment.file.delete();
+                continue;
+            }
+            kept.add(segment);
+            covered = segment.maxId;
+        }
+        segments = Collections.unmodifiableList(kept);
+        indexedId = covered;
+        active = new MemorySegment(covered + 1);
+        log.replay(covered + 1, new MessageLog.Visitor() {
+            @Override
+            public void broadcast(long id, String room, ByteBuffer frame) {
+                add(id, terms(MessageLog.line(frame)), null);
+            }
+
+            @Override
+            public void privateMessage(long id, String sender, String recipient, String content) {
+                add(id, terms(sender + ": " + content), sender + "\n" + recipient);
+            }
+        });
+        System.out.println("全文索引: " + kept.size() + " 个段，从日志补建到消息 " + indexedId);
+    }
+
+    /* 分词，返回词 -> 出现次数。在加锁之前调用，锁内只做插入 */
+    static Map<String, Integer> terms(String text) {
+        Map<String, Integer> terms = new HashMap<>();
+        List<String> words = new ArrayList<>();
+        List<int[]> runs = new ArrayList<>();
+        tokenize(text, words, runs);
+        for (String word : words) {
+            terms.merge(word, 1, Integer::sum);
+        }
+        for (int[] run : runs) {
+            for (int i = 0; i + 1 < run.length; i++) {
+                terms.merge(new String(run, i, 2), 1, Integer::sum);
+            }
+            terms.merge(new String(run, run.length - 1, 1), 1, Integer::sum); // 最后一个字，单字查询按前缀匹配时能找到它
+        }
+        return terms;
+    }
+
+    /*
+     * 加入一条消息，participants 为私聊的“发送者\n接收者”，群聊为 null。调用方要保证按消息ID递增的顺序调用
+     * （与写入消息日志在同一个锁内）。活动段满了就冻结，交给后台线程写成索引段
+     */
+    synchronized void add(long id, Map<String, Integer> terms, String participants) {
+        if (id <= indexedId) { // 启动补建时已经加入过
+            return;
+        }
+        active.add(id, terms, participants);
+        indexedId = id;
+        if (active.docCount() >= flushDocs) {
+            MemorySegment frozen = active;
+            active = new MemorySegment(id + 1);
+            List<Segment> copy = new ArrayList<>(segments);
+            copy.add(frozen);
+            segments = Collections.unmodifiableList(copy);
+            indexer.execute(() -> flush(frozen));
+        }
+    }
+
+    /* 索引段的数量（包括活动段），作为运行指标 */
+    long segmentCount() {
+        return segments.size() + 1;
+    }
+
+    /*
+     * 查询：返回 viewer 能看到的、分数最高的最多 limit 条消息，按分数从高到低排列。
+     * 先在所有段中打开每个查询词的倒排表，汇总文档频率算出 IDF，再从最新的段开始逐段求交集打分，保留前 limit 个。
+     * 检查过的候选消息达到 MAX_SCAN 条后不再看更早的消息：最少的倒排表也比剩余的数量多时，按消息ID均匀分布估计一个窗口，
+     * 只检查段中最新的那部分；窗口中的候选不够时（词集中出现在段的前面），窗口向前加倍，直到用完数量或者到达段的开头
+     */
+    List<Hit> search(String query, String viewer, int limit) {
+        List<QueryTerm> terms = parseQuery(query);
+        if (terms.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        List<Segment> all;
+        synchronized (this) { // 冻结的段加入列表和活动段的切换要一起看到
+            all = new ArrayList<>(segments);
+            all.add(active);
+        }
+        Cursor[][] cursors = new Cursor[all.size()][];
+        long totalDocs = 0;
+        long[] docFreq = new long[terms.size()];
+        for (int s = 0; s < all.size(); s++) {
+            Segment segment = all.get(s);
+            totalDocs += segment.docCount();
+            Cursor[] opened = open(segment, terms);
+            boolean matches = true;
+            for (int t = 0; t < terms.size(); t++) {
+                if (opened[t] == null) { // 这个段中没有这个词，整个段都不会匹配，其他词的文档频率仍然要计入
+                    matches = false;
+                } else {
+                    docFreq[t] += opened[t].docFreq();
+                }
+            }
+            cursors[s] = matches ? opened : null;
+        }
+        double[] idf = new double[terms.size()];
+        for (int t = 0; t < idf.length; t++) {
+            idf[t] = Math.log(1 + (totalDocs - docFreq[t] + 0.5) / (docFreq[t] + 0.5));
+        }
+        PriorityQueue<Hit> top = new PriorityQueue<>(limit + 1); // 最小堆，堆顶是目前保留的最差的结果
+        int budget = MAX_SCAN;
+        for (int s = all.size() - 1; s >= 0 && budget > 0; s--) {
+            if (cursors[s] == null) {
+                continue;
+            }
+            Segment segment = all.get(s);
+            int fewest = Integer.MAX_VALUE;
+            for (Cursor cursor : cursors[s]) {
+                fewest = Math.min(fewest, cursor.docFreq());
+            }
+            long upper = segment.maxId() + 1;
+            long width = upper - segment.minId();
+            if (fewest > budget) {
+                width = Math.max(1, (long) (width * ((double) budget / fewest)));
+            }
+            Cursor[] window = cursors[s];
+            long end = Cursor.END;
+            while (true) {
+                long from = Math.max(segment.minId(), upper - width);
+                budget -= collect(segment, window, idf, viewer, limit, top, from, end);
+                if (from == segment.minId() || budget <= 0) {
+                    break;
+                }
+                upper = from; // 游标只能向后移动，检查更早的窗口时重新打开
+                end = from;
+                width *= 2;
+                window = open(segment, terms);
+            }
+        }
+        List<Hit> hits = new ArrayList<>(top);
+        hits.sort(Collections.reverseOrder());
+        return hits;
+    }
+
+    /* 在一个段中打开每个查询词的倒排表，没有这个词的位置为 null */
+    private static Cursor[] open(Segment segment, List<QueryTerm> terms) {
+        Cursor[] opened = new Cursor[terms.size()];
+        for (int t = 0; t < terms.size(); t++) {
+            QueryTerm term = terms.get(t);
+            opened[t] = term.prefix ? segment.prefix(term.text, MAX_EXPANSIONS) : segment.postings(term.text);
+        }
+        return opened;
+    }
+
+    /*
+     * 在一个段中消息ID属于 [from, end) 的范围内求所有查询词的交集：从最少的倒排表出发，其他倒排表跳到它的消息ID，
+     * 全部相同时打分。返回检查过的候选消息数（最少的倒排表中经过的消息数）
+     */
+    private static int collect(Segment segment, Cursor[] cursors, double[] idf, String viewer, int limit, PriorityQueue<Hit> top,
+                               long from, long end) {
+        Integer[] order = new Integer[cursors.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingInt(i -> cursors[i].docFreq()));
+        Cursor lead = cursors[order[0]];
+        int checked = 0;
+        long doc = lead.advance(from);
+        while (doc < end) {
+            checked++;
+            long next = doc;
+            for (int i = 1; i < order.length && next == doc; i++) {
+                next = cursors[order[i]].advance(doc);
+            }
+            if (next != doc) { // 某个词在这条消息中没有出现，领头的倒排表直接跳到那个词的下一条消息
+                doc = lead.advance(next);
+                continue;
+            }
+            double score = 0;
+            for (int i = 0; i < cursors.length; i++) {
+                int tf = cursors[i].tf();
+                score += idf[i] * tf * (K1 + 1) / (tf + K1);
+            }
+            // 段从新到旧检查，先与堆顶比较（分数相同时新消息更好），进得了前几名才查私聊的参与者和创建结果
+            if ((top.size() < limit || score > top.peek().score || (score == top.peek().score && doc > top.peek().id))
+                    && visible(segment.participants(doc), viewer)) {
+                if (top.size() == limit) {
+                    top.poll();
+                }
+                top.add(new Hit(doc, score));
+            }
+            doc = lead.next();
+        }
+        return checked;
+    }
+
+    private static boolean visible(String participants, String viewer) {
+        if (participants == null) { // 群聊消息，所有房间都是公开的
+            return true;
+        }
+        int newline = participants.indexOf('\n');
+        return participants.substring(0, newline).equals(viewer) || participants.substring(newline + 1).equals(viewer);
+    }
+
+    /*
+     * 查询按空白分成几部分，每部分与消息使用同样的分词。以 * 结尾的部分最后一个词按前缀匹配；
+     * 只有一个中日韩文字的部分也按前缀匹配（以这个字开头的二元组，加上它单独作为结尾的情况）
+     */
+    static List<QueryTerm> parseQuery(String query) {
+        List<QueryTerm> terms = new ArrayList<>();
+        for (String part : query.trim().split("\\s+")) {
+            boolean star = part.endsWith("*");
+            List<String> words = new ArrayList<>();
+            List<int[]> runs = new ArrayList<>();
+            tokenize(star ? part.substring(0, part.length() - 1) : part, words, runs);
+            for (int i = 0; i < words.size(); i++) {
+                terms.add(new QueryTerm(words.get(i), star && i == words.size() - 1 && runs.isEmpty()));
+            }
+            for (int[] run : runs) {
+                if (run.length == 1) {
+                    terms.add(new QueryTerm(new String(run, 0, 1), true));
+                }
+                for (int i = 0; i + 1 < run.length; i++) {
+                    terms.add(new QueryTerm(new String(run, i, 2), false));
+                }
+            }
+        }
+        return terms;
+    }
+
+    /* 把文字切成小写的词和连续的中日韩文字（按码点） */
+    private static void tokenize(String text, List<String> words, List<int[]> runs) {
+        StringBuilder word = new StringBuilder();
+        int[] run = new int[16];
+        int runLength = 0;
+        for (int i = 0; i <= text.length(); ) {
+            int cp = i < text.length() ? text.codePointAt(i) : ' ';
+            i += i < text.length() ? Character.charCount(cp) : 1;
+            if (isCjk(cp)) {
+                if (runLength == run.length) {
+                    run = Arrays.copyOf(run, runLength * 2);
+                }
+                run[runLength++] = cp;
+            } else if (runLength > 0) {
+                runs.add(Arrays.copyOf(run, runLength));
+                runLength = 0;
+            }
+            if (!isCjk(cp) && Character.isLetterOrDigit(cp)) {
+                if (word.length() < MAX_TERM_LENGTH) {
+                    word.appendCodePoint(Character.toLowerCase(cp));
+                }
+            } else if (word.length() > 0) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+    }
+
+    private static boolean isCjk(int cp) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(cp);
+        return script == Character.UnicodeScript.HAN || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA || script == Character.UnicodeScript.HANGUL;
+    }
+
+    /* 后台线程：把冻结的内存段写成文件并替换它，然后检查是否需要合并、删除日志中已经不存在的消息的段 */
+    private void flush(MemorySegment frozen) {
+        try {
+            MappedSegment written = frozen.writeTo(segmentFile(frozen.minId, frozen.maxId));
+            replace(Collections.singletonList(frozen), written);
+            mergeTail();
+            prune();
+        } catch (IOException e) {
+            e.printStackTrace(); // 内存段仍然可以查询，重启时从日志重建
+        }
+    }
+
+    /*
+     * 分级合并：段按消息数分级（FLUSH_DOCS 的 MERGE_FACTOR 次方），末尾连续 MERGE_FACTOR 个同级的段合并成高一级的段，
+     * 与二进制进位一样逐级进行。新段总是加在末尾，越旧的段越大
+     */
+    private void mergeTail() throws IOException {
+        while (true) {
+            List<Segment> current = segments;
+            int mapped = 0;
+            while (mapped < current.size() && current.get(mapped) instanceof MappedSegment) {
+                mapped++;
+            }
+            if (mapped < MERGE_FACTOR) {
+                return;
+            }
+            List<MappedSegment> run = new ArrayList<>();
+            long docs = 0;
+            for (Segment segment : current.subList(mapped - MERGE_FACTOR, mapped)) {
+                run.add((MappedSegment) segment);
+                docs += segment.docCount();
+            }
+            int level = level(run.get(0).docCount);
+            for (MappedSegment segment : run) {
+                if (level(segment.docCount) != level) {
+                    return;
+                }
+            }
+            if (docs > MAX_SEGMENT_DOCS) {
+                return;
+            }
+            replace(run, merge(run));
+            for (MappedSegment segment : run) {
+                segment.file.delete(); // 正在查询的线程仍持有映射，内容在它们查询完之前一直有效
+            }
+        }
+    }
+
+    private int level(int docs) {
+        int level = 0;
+        for (long size = (long) flushDocs * MERGE_FACTOR; docs >= size; size *= MERGE_FACTOR) {
+            level++;
+        }
+        return level;
+    }
+
+    /* 合并相邻的几个段：各段的词表都是有序的，多路归并；同一个词的倒排表按段的顺序首尾相接（段之间消息ID不重叠） */
+    private MappedSegment merge(List<MappedSegment> run) throws IOException {
+        MappedSegment first = run.get(0);
+        MappedSegment last = run.get(run.size() - 1);
+        File file = segmentFile(first.minId, last.maxId);
+        try (SegmentWriter writer = new SegmentWriter(file)) {
+            PriorityQueue<TermIterator> heap = new PriorityQueue<>();
+            for (int i = 0; i < run.size(); i++) {
+                TermIterator iterator = new TermIterator(run.get(i), i);
+                if (iterator.advance()) {
+                    heap.add(iterator);
+                }
+            }
+            List<TermIterator> same = new ArrayList<>();
+            Postings merged = new Postings();
+            while (!heap.isEmpty()) {
+                String term = heap.peek().term;
+                while (!heap.isEmpty() && heap.peek().term.equals(term)) {
+                    same.add(heap.poll());
+                }
+                same.sort(Comparator.comparingInt(iterator -> iterator.order));
+                merged.size = 0;
+                for (TermIterator iterator : same) {
+                    Cursor cursor = iterator.segment.cursor(iterator.index);
+                    for (long doc = cursor.next(); doc != Cursor.END; doc = cursor.next()) {
+                        merged.add(doc, cursor.tf());
+                    }
+                    if (iterator.advance()) {
+                        heap.add(iterator);
+                    }
+                }
+                same.clear();
+                writer.term(term, merged);
+            }
+            int docs = 0;
+            for (MappedSegment segment : run) {
+                segment.copyPrivate(writer);
+                docs += segment.docCount;
+            }
+            writer.finish(first.minId, last.maxId, docs);
+        }
+        return new MappedSegment(file);
+    }
+
+    /* 消息日志删除了旧分段后，完全在它之前的索引段也不再需要 */
+    private void prune() {
+        long first = log.firstId();
+        List<Segment> current = segments;
+        List<MappedSegment> expired = new ArrayList<>();
+        for (Segment segment : current) {
+            if (segment instanceof MappedSegment && ((MappedSegment) segment).maxId < first) {
+                expired.add((MappedSegment) segment);
+            }
+        }
+        if (!expired.isEmpty()) {
+            replace(expired, null);
+            for (MappedSegment segment : expired) {
+                segment.file.delete();
+            }
+        }
+    }
+
+    /* 用 replacement 替换列表中连续的几个段（为 null 时只删除），其他线程此后的查询看到新的列表 */
+    private synchronized void replace(List<? extends Segment> old, Segment replacement) {
+        List<Segment> copy = new ArrayList<>(segments);
+        int index = copy.indexOf(old.get(0));
+        copy.removeAll(old);
+        if (replacement != null) {
+            copy.add(index, replacement);
+        }
+        segments = Collections.unmodifiableList(copy);
+    }
+
+    private File segmentFile(long minId, long maxId) {
+        return new File(directory, String.format("%020d-%020d.seg", minId, maxId));
+    }
+
+    /* 一条查询结果 */
+    static final class Hit implements Comparable<Hit> {
+        final long id; // 消息ID
+        final double score;
+
+        Hit(long id, double score) {
+            this.id = id;
+            this.score = score;
+        }
+
+        /* 分数高的更好，分数相同时新消息更好 */
+        @Override
+        public int compareTo(Hit other) {
+            int byScore = Double.compare(score, other.score);
+            return byScore != 0 ? byScore : Long.compare(id, other.id);
+        }
+    }
+
+    /* 查询中的一个词 */
+    static final class QueryTerm {
+        final String text;
+        final boolean prefix; // 按前缀匹配
+
+        QueryTerm(String text, boolean prefix) {
+            this.text = text;
+            this.prefix = prefix;
+        }
+    }
+
+    /* 一个索引段：内存中的活动段或冻结段，或者映射的文件 */
+    private interface Segment {
+        int docCount();
+        long minId(); // 覆盖的第一条消息ID
+        long maxId(); // 覆盖的最后一条消息ID
+        Cursor postings(String term); // 没有这个词时返回 null
+        Cursor prefix(String prefix, int maxTerms); // 以 prefix 开头的词的并集，没有时返回 null
+        String participants(long id); // 私聊消息的“发送者\n接收者”，群聊消息返回 null
+    }
+
+    /* 在一个倒排表上按消息ID递增的顺序移动 */
+    private abstract static class Cursor {
+        static final long END = Long.MAX_VALUE; // 已经走到末尾
+        long doc = -1; // 当前消息ID，开始前为 -1
+
+        abstract int docFreq(); // 倒排表的长度
+        abstract int tf(); // 当前消息中这个词出现的次数
+        abstract long next();
+
+        /* 移动到第一个不小于 target 的消息，返回它的ID */
+        long advance(long target) {
+            while (doc < target) {
+                next();
+            }
+            return doc;
+        }
+    }
+
+    /* 可增长的倒排表，内存段和合并时使用 */
+    private static final class Postings {
+        long[] ids = new long[4];
+        int[] tfs = new int[4];
+        int size;
+
+        void add(long id, int tf) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                tfs = Arrays.copyOf(tfs, size * 2);
+            }
+            ids[size] = id;
+            tfs[size] = tf;
+            size++;
+        }
+    }
+
+    /* 内存中的倒排表游标，取得游标时记下长度，之后加入的消息不可见 */
+    private static final class ArrayCursor extends Cursor {
+        private final long[] ids;
+        private final int[] tfs;
+        private final int size;
+        private int index = -1;
+
+        ArrayCursor(Postings postings) {
+            this.ids = postings.ids;
+            this.tfs = postings.tfs;
+            this.size = postings.size;
+        }
+
+        @Override
+        int docFreq() {
+            return size;
+        }
+
+        @Override
+        int tf() {
+            return tfs[index];
+        }
+
+        @Override
+        long next() {
+            index++;
+            return doc = index < size ? ids[index] : END;
+        }
+
+        @Override
+        long advance(long target) {
+            if (doc >= target) {
+                return doc;
+            }
+            int found = Arrays.binarySearch(ids, index + 1, size, target);
+            index = found >= 0 ? found : -found - 1;
+            return doc = index < size ? ids[index] : END;
+        }
+    }
+
+    /* 前缀查询：几个倒排表的并集，按当前消息ID排成最小堆 */
+    private static final class UnionCursor extends Cursor {
+        private final PriorityQueue<Cursor> heap = new PriorityQueue<>(Comparator.comparingLong((Cursor c) -> c.doc));
+        private final List<Cursor> current = new ArrayList<>(); // 停在当前消息上的倒排表，移出堆以免每次求词频都遍历整个堆
+        private final int docFreq; // 各倒排表长度之和，作为文档频率的上限
+        private int tf;
+
+        UnionCursor(List<Cursor> cursors) {
+            int sum = 0;
+            for (Cursor cursor : cursors) {
+                sum += cursor.docFreq();
+            }
+            docFreq = sum;
+            current.addAll(cursors);
+        }
+
+        @Override
+        int docFreq() {
+            return docFreq;
+        }
+
+        @Override
+        int tf() {
+            return tf;
+        }
+
+        @Override
+        long next() {
+            return advance(doc + 1);
+        }
+
+        @Override
+        long advance(long target) {
+            if (doc >= target) {
+                return doc;
+            }
+            for (Cursor cursor : current) {
+                if (cursor.advance(target) != END) {
+                    heap.add(cursor);
+                }
+            }
+            current.clear();
+            while (!heap.isEmpty() && heap.peek().doc < target) {
+                Cursor cursor = heap.poll();
+                if (cursor.advance(target) != END) {
+                    heap.add(cursor);
+                }
+            }
+            if (heap.isEmpty()) {
+                return doc = END;
+            }
+            doc = heap.peek().doc;
+            tf = 0;
+            while (!heap.isEmpty() && heap.peek().doc == doc) {
+                Cursor cursor = heap.poll();
+                tf += cursor.tf();
+                current.add(cursor);
+            }
+            return doc;
+        }
+    }
+
+    /* 内存中的段：有序的词表（前缀查询取子范围），私聊消息的ID和参与者按ID递增追加 */
+    private static final class MemorySegment implements Segment {
+        final long minId; // 覆盖的第一条消息ID
+        long maxId; // 覆盖的最后一条消息ID
+        private final TreeMap<String, Postings> terms = new TreeMap<>();
+        private int docCount;
+        private long[] privateIds = new long[16];
+        private String[] privateParticipants = new String[16];
+        private int privateCount;
+
+        MemorySegment(long minId) {
+            this.minId = minId;
+            this.maxId = minId - 1;
+        }
+
+        synchronized void add(long id, Map<String, Integer> tokens, String participants) {
+            for (Map.Entry<String, Integer> token : tokens.entrySet()) {
+                terms.computeIfAbsent(token.getKey(), key -> new Postings()).add(id, token.getValue());
+            }
+            if (participants != null) {
+                if (privateCount == privateIds.length) {
+                    privateIds = Arrays.copyOf(privateIds, privateCount * 2);
+                    privateParticipants = Arrays.copyOf(privateParticipants, privateCount * 2);
+                }
+                privateIds[privateCount] = id;
+                privateParticipants[privateCount] = participants;
+                privateCount++;
+            }
+            docCount++;
+            maxId = id;
+        }
+
+        @Override
+        public synchronized int docCount() {
+            return docCount;
+        }
+
+        @Override
+        public long minId() {
+            return minId;
+        }
+
+        @Override
+        public synchronized long maxId() {
+            return maxId;
+        }
+
+        @Override
+        public synchronized Cursor postings(String term) {
+            Postings postings = terms.get(term);
+            return postings == null ? null : new ArrayCursor(postings);
+        }
+
+        @Override
+        public synchronized Cursor prefix(String prefix, int maxTerms) {
+            List<Cursor> cursors = new ArrayList<>();
+            for (Postings postings : terms.subMap(prefix, prefix + Character.MAX_VALUE).values()) {
+                if (cursors.size() == maxTerms) {
+                    break;
+                }
+                cursors.add(new ArrayCursor(postings));
+            }
+            return cursors.isEmpty() ? null : new UnionCursor(cursors);
+        }
+
+        @Override
+        public synchronized String participants(long id) {
+            int found = Arrays.binarySearch(privateIds, 0, privateCount, id);
+            return found >= 0 ? privateParticipants[found] : null;
+        }
+
+        /* 写成索引段文件，只在冻结之后调用 */
+        synchronized MappedSegment writeTo(File file) throws IOException {
+            try (SegmentWriter writer = new SegmentWriter(file)) {
+                for (Map.Entry<String, Postings> term : terms.entrySet()) {
+                    writer.term(term.getKey(), term.getValue());
+                }
+                for (int i = 0; i < privateCount; i++) {
+                    writer.privateMessage(privateIds[i], privateParticipants[i]);
+                }
+                writer.finish(minId, maxId, docCount);
+            }
+            return new MappedSegment(file);
+        }
+    }
+
+    /*
+     * 映射到内存的索引段文件，全部是大端整数：
+     *   文件头  魔数 | 消息数 | 起始消息ID | 结束消息ID | 词数 | 词表位置 | 私聊数 | 私聊表位置
+     *   每个词  2 字节长度 + UTF-8 | 倒排表长度 | 块数 | 每块（最后一个消息ID 8 字节 + 数据位置 4 字节）| 每条消息（ID 差值 varint + 词频 varint）
+     *   词表    每个词的位置（4 字节），按词排序，二分查找
+     *   私聊    参与者“发送者\n接收者”（2 字节长度 + UTF-8）；私聊表为每条（消息ID 8 字节 + 参与者位置 4 字节），按消息ID排序
+     */
+    private static final class MappedSegment implements Segment {
+        final File file;
+        final long minId;
+        final long maxId;
+        final int docCount;
+        private final MappedByteBuffer map;
+        private final int termCount;
+        private final int termTable;
+        private final int privateCount;
+        private final int privateTable;
+
+        MappedSegment(File file) throws IOException {
+            this.file = file;
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (map.capacity() < HEADER_SIZE || map.getInt(0) != MAGIC) {
+                throw new IOException("不是索引段文件: " + file);
+            }
+            docCount = map.getInt(4);
+            minId = map.getLong(8);
+            maxId = map.getLong(16);
+            termCount = map.getInt(24);
+            termTable = map.getInt(28);
+            privateCount = map.getInt(32);
+            privateTable = map.getInt(36);
+        }
+
+        @Override
+        public int docCount() {
+            return docCount;
+        }
+
+        @Override
+        public long minId() {
+            return minId;
+        }
+
+        @Override
+        public long maxId() {
+            return maxId;
+        }
+
+        /* 第 index 个词 */
+        String term(int index) {
+            return string(map.getInt(termTable + index * 4));
+        }
+
+        /* 第 index 个词的倒排表 */
+        Cursor cursor(int index) {
+            int position = map.getInt(termTable + index * 4);
+            return new MappedCursor(map, position + 2 + (map.getShort(position) & 0xffff));
+        }
+
+        /* 二分查找词表，找不到时返回 -(插入位置) - 1 */
+        private int find(String term) {
+            int low = 0;
+            int high = termCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int compare = term(mid).compareTo(term);
+                if (compare < 0) {
+                    low = mid + 1;
+                } else if (compare > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -low - 1;
+        }
+
+        @Override
+        public Cursor postings(String term) {
+            int index = find(term);
+            return index >= 0 ? cursor(index) : null;
+        }
+
+        @Override
+        public Cursor prefix(String prefix, int maxTerms) {
+            int index = find(prefix);
+            List<Cursor> cursors = new ArrayList<>();
+            for (int i = index >= 0 ? index : -index - 1; i < termCount && cursors.size() < maxTerms && term(i).startsWith(prefix); i++) {
+                cursors.add(cursor(i));
+            }
+            return cursors.isEmpty() ? null : new UnionCursor(cursors);
+        }
+
+        @Override
+        public String participants(long id) {
+            int low = 0;
+            int high = privateCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                long found = map.getLong(privateTable + mid * 12);
+                if (found < id) {
+                    low = mid + 1;
+                } else if (found > id) {
+                    high = mid - 1;
+                } else {
+                    return string(map.getInt(privateTable + mid * 12 + 8));
+                }
+            }
+            return null;
+        }
+
+        /* 合并时把私聊表原样复制到新段 */
+        void copyPrivate(SegmentWriter writer) throws IOException {
+            for (int i = 0; i < privateCount; i++) {
+                writer.privateMessage(map.getLong(privateTable + i * 12), string(map.getInt(privateTable + i * 12 + 8)));
+            }
+        }
+
+        private String string(int position) {
+            byte[] bytes = new byte[map.getShort(position) & 0xffff];
+            ByteBuffer view = map.duplicate(); // 各线程使用自己的位置，映射本身是只读共享的
+            view.position(position + 2);
+            view.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /* 映射文件中的倒排表游标。跳到更大的消息ID时先在跳表中二分查找所在的块，只解码那一块 */
+    private static final class MappedCursor extends Cursor {
+        private final ByteBuffer map;
+        private final int docFreq;
+        private final int blocks;
+        private final int table; // 跳表的位置
+        private int block = -1; // 当前块
+        private int position; // 下一条消息在文件中的位置
+        private int left; // 当前块中还没有读的消息数
+        private int tf;
+
+        MappedCursor(ByteBuffer map, int position) {
+            this.map = map;
+            this.docFreq = map.getInt(position);
+            this.blocks = map.getInt(position + 4);
+            this.table = position + 8;
+        }
+
+        @Override
+        int docFreq() {
+            return docFreq;
+        }
+
+        @Override
+        int tf() {
+            return tf;
+        }
+
+        @Override
+        long next() {
+            if (left == 0) {
+                if (block + 1 >= blocks) {
+                    return doc = END;
+                }
+                enter(block + 1);
+            }
+            long delta = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = map.get(position++);
+                delta |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            int frequency = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = map.get(position++);
+                frequency |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            doc += delta;
+            tf = frequency;
+            left--;
+            return doc;
+        }
+
+        @Override
+        long advance(long target) {
+            if (doc >= target) {
+                return doc;
+            }
+            if (block < 0 || target > lastId(block)) { // 不在当前块中，二分查找第一个最后消息ID不小于 target 的块
+                int low = block + 1;
+                int high = blocks - 1;
+                while (low <= high) {
+                    int mid = (low + high) >>> 1;
+                    if (lastId(mid) < target) {
+                        low = mid + 1;
+                    } else {
+                        high = mid - 1;
+                    }
+                }
+                if (low >= blocks) {
+                    return doc = END;
+                }
+                enter(low);
+            }
+            while (doc < target) {
+                next();
+            }
+            return doc;
+        }
+
+        /* 进入第 index 块：差值从上一块的最后一个消息ID开始累加 */
+        private void enter(int index) {
+            block = index;
+            position = map.getInt(table + index * 12 + 8);
+            doc = index == 0 ? 0 : lastId(index - 1);
+            left = Math.min(BLOCK_SIZE, docFreq - index * BLOCK_SIZE);
+        }
+
+        private long lastId(int index) {
+            return map.getLong(table + index * 12);
+        }
+    }
+
+    /* 合并时按词的顺序遍历一个段的词表 */
+    private static final class TermIterator implements Comparable<TermIterator> {
+        final MappedSegment segment;
+        final int order; // 段在合并列表中的顺序，同一个词的倒排表按这个顺序相接
+        int index = -1;
+        String term;
+
+        TermIterator(MappedSegment segment, int order) {
+            this.segment = segment;
+            this.order = order;
+        }
+
+        boolean advance() {
+            if (++index >= segment.termCount) {
+                return false;
+            }
+            term = segment.term(index);
+            return true;
+        }
+
+        @Override
+        public int compareTo(TermIterator other) {
+            int compare = term.compareTo(other.term);
+            return compare != 0 ? compare : Integer.compare(order, other.order);
+        }
+    }
+
+    /* 顺序写出一个索引段：词按顺序写入，私聊按消息ID顺序写入，最后写词表、私聊表和文件头，再原子地改成正式文件名 */
+    private static final class SegmentWriter implements Closeable {
+        private final File file;
+        private final File temp;
+        private final FileOutputStream stream;
+        private final DataOutputStream out;
+        private int[] termPositions = new int[1024];
+        private int termCount;
+        private long[] privateIds = new long[64];
+        private int[] privatePositions = new int[64];
+        private int privateCount;
+        private byte[] scratch = new byte[4096]; // 一个倒排表编码后的数据，写跳表时需要先知道每块的位置
+        private boolean finished;
+
+        SegmentWriter(File file) throws IOException {
+            this.file = file;
+            this.temp = new File(file.getParent(), file.getName() + ".tmp");
+            this.stream = new FileOutputStream(temp);
+            this.out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024));
+            out.write(new byte[HEADER_SIZE]); // 文件头最后再写
+        }
+
+        void term(String term, Postings postings) throws IOException {
+            if (termCount == termPositions.length) {
+                termPositions = Arrays.copyOf(termPositions, termCount * 2);
+            }
+            termPositions[termCount++] = position();
+            byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+            int blocks = (postings.size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            int[] blockStarts = new int[blocks];
+            int length = 0;
+            long previous = 0;
+            for (int i = 0; i < postings.size; i++) {
+                if (i % BLOCK_SIZE == 0) {
+                    blockStarts[i / BLOCK_SIZE] = length;
+                }
+                if (scratch.length - length < 20) {
+                    scratch = Arrays.copyOf(scratch, scratch.length * 2);
+                }
+                length = writeVarint(scratch, length, postings.ids[i] - previous);
+                length = writeVarint(scratch, length, postings.tfs[i]);
+                previous = postings.ids[i];
+            }
+            out.writeInt(postings.size);
+            out.writeInt(blocks);
+            int data = position() + blocks * 12;
+            for (int b = 0; b < blocks; b++) {
+                out.writeLong(postings.ids[Math.min(postings.size, (b + 1) * BLOCK_SIZE) - 1]);
+                out.writeInt(data + blockStarts[b]);
+            }
+            out.write(scratch, 0, length);
+        }
+
+        void privateMessage(long id, String participants) throws IOException {
+            if (privateCount == privateIds.length) {
+                privateIds = Arrays.copyOf(privateIds, privateCount * 2);
+                privatePositions = Arrays.copyOf(privatePositions, privateCount * 2);
+            }
+            privateIds[privateCount] = id;
+            privatePositions[privateCount++] = position();
+            byte[] bytes = participants.getBytes(StandardCharsets.UTF_8);
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+
+        void finish(long minId, long maxId, int docCount) throws IOException {
+            int termTable = position();
+            for (int i = 0; i < termCount; i++) {
+                out.writeInt(termPositions[i]);
+            }
+            int privateTable = position();
+            for (int i = 0; i < privateCount; i++) {
+                out.writeLong(privateIds[i]);
+                out.writeInt(privatePositions[i]);
+            }
+            out.flush();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(docCount).putLong(minId).putLong(maxId)
+                    .putInt(termCount).putInt(termTable).putInt(privateCount).putInt(privateTable).flip();
+            stream.getChannel().write(header, 0);
+            stream.getChannel().force(true); // 先落盘再改名，崩溃后看到的正式文件一定是完整的
+            out.close();
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            finished = true;
+        }
+
+        private int position() throws IOException {
+            if (out.size() < 0) { // DataOutputStream 的计数在超过 2GB 后变成负数
+                throw new IOException("索引段超过 2GB");
+            }
+            return out.size();
+        }
+
+        private static int writeVarint(byte[] bytes, int offset, long value) {
+            while ((value & ~0x7fL) != 0) {
+                bytes[offset++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            bytes[offset++] = (byte) value;
+            return offset;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!finished) { // 写出失败，删除临时文件
+                out.close();
+                temp.delete();
+            }
+        }
+    }
+}
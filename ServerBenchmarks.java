@@ -0,0 +1,636 @@
+import com.sun.management.ThreadMXBean;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.*;
+
+/*
+ * 服务端热点路径的基准测试：消息分类和分派、房间广播扇出、进入房间时生成成员列表、私聊、分块上传、文件下载。
+ * 所有测试都通过真实的连接和协议驱动服务端，不依赖服务端的内部类，所以换一种服务端实现（或者运行在另一台机器上的服务端）
+ * 也能用同一套测试比较：-Dbench.target=主机:端口 测试已经运行的服务端，否则在本 JVM 中启动一个使用临时数据目录的 ChatServer。
+ * 只有 allocation 读取服务端的缓冲区池和线程的分配量，只能测试本 JVM 中的服务端。
+ *
+ * 运行：java -Dbench.out=base.csv ServerBenchmarks
+ *       java -Dbench.baseline=base.csv -Dbench.filter=fanout ServerBenchmarks
+ */
+public class ServerBenchmarks {
+    static final String MARK = " #bench"; // 测试发送的消息都以它结尾，接收方只统计这些消息，不统计加入、离开等通知
+    private static final int WINDOW = 128; // 一次最多发出多少条消息再等待接收方收齐，小于服务端发送队列的上限，不会因为积压被丢弃
+    private static final long TIMEOUT = 30_000; // 等待服务端回复的最长时间（毫秒）
+    private static InetSocketAddress server; // 被测的服务端
+    private static int clientCount; // 用于生成不重复的用户名
+
+    public static void main(String[] args) {
+        try {
+            new Benchmark(ServerBenchmarks.class)
+                    .add("classify", new Classify(), "text", "binary")
+                    .add("fanout", new FanOut(), "1", "10", "100", "500")
+                    .add("allocation", new Allocation(), "10", "100")
+                    .add("enterRoom", new EnterRoom(), "10", "100", "1000")
+                    .add("private", new PrivateMessage())
+                    .add("upload", new Upload(), "64K", "1M", "8M")
+                    .add("download", new Download(), "64K", "1M", "8M")
+                    .run();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1); // fork 的父进程据此知道这一项失败了
+        }
+        System.exit(0); // 本 JVM 中启动的服务端线程不是守护线程
+    }
+
+    /* 被测服务端的地址，第一次使用时才启动本 JVM 中的服务端（fork 模式下父进程不需要服务端） */
+    static synchronized InetSocketAddress server() throws Exception {
+        if (server != null) {
+            return server;
+        }
+        String target = System.getProperty("bench.target");
+        if (target != null) {
+            int colon = target.lastIndexOf(':');
+            return server = new InetSocketAddress(target.substring(0, colon), Integer.parseInt(target.substring(colon + 1)));
+        }
+        File dataDir = Files.createTempDirectory("chat-bench").toFile(); // 每次运行都从空的文件存储和消息日志开始，结果才能比较
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        System.setProperty("chat.port", String.valueOf(port)); // ChatServer 在类初始化时读取配置
+        System.setProperty("chat.dataDir", dataDir.getPath());
+        // 测试客户端一次发送成批的消息，不能被限速；命令行上指定了限速时保留，用来测量限速本身的开销
+        System.setProperty("chat.messageRate", System.getProperty("chat.messageRate", "0"));
+        System.setProperty("chat.messageBurst", System.getProperty("chat.messageBurst", "1000000"));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> delete(dataDir)));
+        Thread thread = new Thread(() -> ChatServer.main(new String[0]), "chat-server");
+        thread.setDaemon(true);
+        thread.start();
+        server = new InetSocketAddress("127.0.0.1", port);
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (true) { // 等待服务端开始监听
+            try (Socket probe = new Socket(server.getAddress(), port)) {
+                probe.shutdownOutput(); // 只是试探能否连上，马上断开
+                return server;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    static synchronized String newName(String prefix) {
+        return prefix + "-" + clientCount++;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static void closeAll(List<? extends Closeable> clients) throws IOException {
+        for (Closeable client : clients) {
+            client.close();
+        }
+        clients.clear();
+    }
+
+    /* "64K"、"1M" 这样的大小 */
+    static int parseSize(String size) {
+        char unit = size.charAt(size.length() - 1);
+        int value = Integer.parseInt(size.substring(0, size.length() - 1));
+        return unit == 'M' ? value * 1024 * 1024 : unit == 'K' ? value * 1024 : Integer.parseInt(size);
+    }
+
+    /*
+     * 消息分类和分派：发送方混合发送群聊（70%）、私聊（20%）和进入当前房间（10%，服务端分类后直接忽略），
+     * 一个接收方收到所有群聊和私聊后这一批结束。参数为发送方使用的协议，文本协议按行前缀分类，二进制协议按帧类型分派
+     */
+    static final class Classify implements Benchmark.Case {
+        private final List<Closeable> clients = new ArrayList<>();
+        private Client receiver;
+        private Client binarySender;
+        private Writer textSender;
+        private String room;
+        private long sent; // 发给接收方的消息总数
+
+        @Override
+        public void setUp(String param) throws Exception {
+            room = newName("classify");
+            receiver = new Client(server()).login(newName("receiver"));
+            receiver.join(room);
+            clients.add(receiver);
+            String name = newName("sender");
+            if (param.equals("text")) {
+                Socket socket = new Socket(server().getAddress(), server().getPort());
+                socket.setTcpNoDelay(true);
+                Client.discard(socket.getInputStream()); // 服务端发给文本客户端的内容不需要处理，但要读走
+                textSender = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), Charset.defaultCharset())); // 服务端按默认编码解析文本协议
+                textSender.write(name + "\n/join " + room + "\n");
+                textSender.flush();
+                clients.add(socket);
+            } else {
+                binarySender = new Client(server()).login(name);
+                binarySender.join(room);
+                clients.add(binarySender);
+            }
+            sent = receiver.marked();
+        }
+
+        @Override
+        public long run(int operations) throws Exception {
+            long start = System.nanoTime();
+            for (int done = 0; done < operations; ) {
+                int window = Math.min(WINDOW, operations - done);
+                for (int i = done; i < done + window; i++) {
+                    int kind = i % 10;
+                    if (kind < 7) {
+                        send(ChatProtocol.CHAT, "", "message " + i + MARK);
+                        sent++;
+                    } else if (kind < 9) {
+                        send(ChatProtocol.PRIVATE, "@", receiver.name + " message " + i + MARK);
+                        sent++;
+                    } else {
+                        send(ChatProtocol.JOIN_ROOM, "/join ", room);
+                    }
+                }
+                flush();
+                receiver.awaitMarked(sent);
+                done += window;
+            }
+            return System.nanoTime() - start;
+        }
+
+        /* 文本协议在内容前加上命令前缀，二进制协议使用帧类型 */
+        private void send(byte type, String textPrefix, String payload) throws IOException {
+            if (textSender != null) {
+                textSender.write(textPrefix + payload + "\n");
+            } else {
+                binarySender.send(type, payload);
+            }
+        }
+
+        private void flush() throws IOException {
+            if (textSender != null) {
+                textSender.flush();
+            } else {
+                binarySender.out.flush();
+            }
+        }
+
+        @Override
+        public void tearDown() throws Exception {
+            closeAll(clients);
+            textSender = null;
+            binarySender = null;
+        }
+    }
+
+    /* 房间广播扇出：房间里有 N 个接收方，每条群聊消息要放入 N 个发送队列并分别写出，所有接收方都收到后这一批结束 */
+    static final class FanOut implements Benchmark.Case {
+        private final List<Client> receivers = new ArrayList<>();
+        private Client sender;
+        private long sent;
+
+        @Override
+        public void setUp(String param) throws Exception {
+            String room = newName("fanout");
+            sender = new Client(server()).login(newName("sender"));
+            sender.join(room);
+            for (int i = 0; i < Integer.parseInt(param); i++) {
+                Client receiver = new Client(server()).login(newName("receiver"));
+                receiver.join(room);
+                receivers.add(receiver);
+            }
+            sent = 0;
+        }
+
+        @Override
+        public long run(int operations) throws Exception {
+            long start = System.nanoTime();
+            for (int done = 0; done < operations; ) {
+                int window = Math.min(WINDOW, operations - done);
+                for (int i = 0; i < window; i++) {
+                    sender.send(ChatProtocol.CHAT, "message " + (done + i) + MARK);
+                }
+                sender.out.flush();
+                sent += window;
+                for (Client receiver : receivers) {
+                    receiver.awaitMarked(sent);
+                }
+                done += window;
+            }
+            return System.nanoTime() - start;
+        }
+
+        @Override
+        public void tearDown() throws Exception {
+            closeAll(receivers);
+            sender.close();
+        }
+    }
+
+    /*
+     * 广播扇出时服务端的内存分配：和 fanout 一样发送群聊消息，另外统计事件循环线程在堆上分配的字节数
+     * （ThreadMXBean.getThreadAllocatedBytes，换算成每条消息）和缓冲区池的直接内存，在结束时输出
+     */
+    static final class Allocation implements Benchmark.Case {
+        private final FanOut fanOut = new FanOut();
+        private final ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        private long[] loopThreads; // 服务端事件循环线程的ID，读写和广播都在这些线程上执行
+        private long messages;
+        private long allocated; // 计时期间事件循环线程分配的字节数
+        private long peakUsed; // 每批结束时从缓冲区池借出的最大字节数
+
+        @Override
+        public void setUp(String param) throws Exception {
+            if (System.getProperty("bench.target") != null) {
+                throw new IllegalStateException("allocation 只能测试本 JVM 中启动的服务端");
+            }
+            fanOut.setUp(param);
+            loopThreads = Thread.getAllStackTraces().keySet().stream()
+                    .filter(thread -> thread.getName().startsWith("chat-loop-"))
+                    .mapToLong(Thread::getId)
+                    .toArray();
+            messages = 0;
+            allocated = 0;
+            peakUsed = 0;
+        }
+
+        @Override
+        public long run(int operations) throws Exception {
+            long before = loopAllocatedBytes();
+            long nanos = fanOut.run(operations);
+            allocated += loopAllocatedBytes() - before;
+            messages += operations;
+            peakUsed = Math.max(peakUsed, ChatServer.bufferPool().usedBytes());
+            return nanos;
+        }
+
+        @Override
+        public void tearDown() throws Exception {
+            BufferPool pool = ChatServer.bufferPool();
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                System.out.printf("  服务端分配: %.1f 字节/条（%d 个事件循环线程，共 %d 条消息）%n",
+                        (double) allocated / Math.max(messages, 1), loopThreads.length, messages);
+            } else {
+                System.out.println("  服务端分配: 这个 JVM 不支持统计线程的分配量");
+            }
+            System.out.printf("  缓冲区池: 借出 %d KB（每批结束时最多 %d KB），已申请 %d KB%n",
+                    pool.usedBytes() / 1024, peakUsed / 1024, pool.reservedBytes() / 1024);
+            fanOut.tearDown();
+        }
+
+        private long loopAllocatedBytes() {
+            long total = 0;
+            for (long bytes : threads.getThreadAllocatedBytes(loopThreads)) {
+                total += Math.max(bytes, 0); // 已经结束的线程为 -1
+            }
+            return total;
+        }
+    }
+
+    /*
+     * 进入有 N 个成员的房间：服务端生成 N 个用户名的成员列表，并通知房间里的 N 个成员。
+     * 每次操作进入这个房间、收到成员列表，再回到另一个房间（那里一直有一个成员，房间不会被反复创建和删除）
+     */
+    static final class EnterRoom implements Benchmark.Case {
+        private final List<Client> members = new ArrayList<>();
+        private Client switcher;
+        private String room;
+        private String side;
+        private long users; // 已经收到的成员列表数量
+
+        @Override
+        public void setUp(String param) throws Exception {
+            room = newName("members");
+            side = newName("side");
+            for (int i = 0; i < Integer.parseInt(param); i++) {
+                Client member = new Client(server()).login(newName("member"));
+                member.join(room);
+                members.add(member);
+            }
+            Client keeper = new Client(server()).login(newName("keeper"));
+            keeper.join(side);
+            members.add(keeper);
+            switcher = new Client(server()).login(newName("switcher"));
+            switcher.join(side);
+            users = switcher.count(ChatProtocol.USERS);
+        }
+
+        @Override
+        public long run(int operations) throws Exception {
+            long start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                switcher.send(ChatProtocol.JOIN_ROOM, room);
+                switcher.out.flush();
+                switcher.await(ChatProtocol.USERS, ++users);
+                switcher.send(ChatProtocol.JOIN_ROOM, side);
+                switcher.out.flush();
+                switcher.await(ChatProtocol.USERS, ++users);
+            }
+            return System.nanoTime() - start;
+        }
+
+        @Override
+        public void tearDown() throws Exception {
+            closeAll(members);
+            switcher.close();
+        }
+    }
+
+    /* 私聊：解析接收者、记录到消息日志、分别投递给接收方和发送方 */
+    static final class PrivateMessage implements Benchmark.Case {
+        private Client sender;
+        private Client recipient;
+        private long sent;
+
+        @Override
+        public void setUp(String param) throws Exception {
+            recipient = new Client(server()).login(newName("recipient"));
+            sender = new Client(server()).login(newName("sender"));
+            sent = recipient.marked();
+        }
+
+        @Override
+        public long run(int operations) throws Exception {
+            long start = System.nanoTime();
+            for (int done = 0; done < operations; ) {
+                int window = Math.min(WINDOW, operations - done);
+                for (int i = 0; i < window; i++) {
+                    sender.send(ChatProtocol.PRIVATE, recipient.name + " message " + (done + i) + MARK);
+                }
+                sender.out.flush();
+                sent += window;
+                recipient.awaitMarked(sent);
+                done += window;
+            }
+            return System.nanoTime() - start;
+        }
+
+        @Override
+        public void tearDown() throws Exception {
+            sender.close();
+            recipient.close();
+        }
+    }
+
+    /* 分块上传一个新文件（UPLOAD_BEGIN、所有分块、UPLOAD_COMMIT），每次的内容都不同，不会被当作已有内容秒传。客户端计算哈希的时间不计在内 */
+    static final class Upload implements Benchmark.Case {
+        private Client owner; // 上传者必须在线
+        private Client connection; // 单独的上传连接
+        private byte[] content;
+        private long uploads;
+
+        @Override
+        public void setUp(String param) throws Exception {
+            owner = new Client(server()).login(newName("uploader"));
+            connection = new Client(server()).startReading();
+            content = new byte[parseSize(param)];
+            new Random(42).nextBytes(content); // 固定的种子，每次运行的内容相同
+        }
+
+        @Override
+        public long run(int operations) throws Exception {
+            long nanos = 0;
+            for (int i = 0; i < operations; i++) {
+                long serial = ++uploads;
+                for (int b = 0; b < 8; b++) { // 前 8 个字节写入序号，每次上传的内容都不同
+                    content[b] = (byte) (serial >>> (b * 8));
+                }
+                nanos += upload(connection, owner.token, "bench-" + content.length + "-" + serial + ".bin", content);
+            }
+            return nanos;
+        }
+
+        /* 上传一个文件，返回从 UPLOAD_BEGIN 到收到 UPLOAD_COMPLETE 的纳秒数 */
+        static long upload(Client connection, String token, String fileName, byte[] content) throws Exception {
+            java.security.MessageDigest digest = ChatProtocol.newDigest();
+            String hash = ChatProtocol.hex(digest.digest(content));
+            long complete = connection.count(ChatProtocol.UPLOAD_COMPLETE);
+            long acks = connection.count(ChatProtocol.CHUNK_ACK);
+            long ready = connection.count(ChatProtocol.UPLOAD_READY); // 在发送之前取得计数，回复可能在发送后立即到达
+            long start = System.nanoTime();
+            connection.send(ChatProtocol.UPLOAD_BEGIN, fileName + "\n" + content.length + "\n" + hash + "\n" + token);
+            connection.out.flush();
+            connection.await(ChatProtocol.UPLOAD_READY, ready + 1);
+            int chunks = (content.length + FileStore.CHUNK_SIZE - 1) / FileStore.CHUNK_SIZE;
+            for (int index = 0; index < chunks; index++) {
+                int offset = index * FileStore.CHUNK_SIZE;
+                connection.send(ChatProtocol.UPLOAD_CHUNK, hash + "\n" + index);
+                connection.out.write(content, offset, Math.min(FileStore.CHUNK_SIZE, content.length - offset));
+            }
+            connection.out.flush();
+            connection.await(ChatProtocol.CHUNK_ACK, acks + chunks);
+            connection.send(ChatProtocol.UPLOAD_COMMIT, hash);
+            connection.out.flush();
+            connection.await(ChatProtocol.UPLOAD_COMPLETE, complete + 1);
+            return System.nanoTime() - start;
+        }
+
+        @Override
+        public void tearDown() throws Exception {
+            connection.close();
+            owner.close();
+        }
+    }
+
+    /* 下载整个文件：在同一个下载连接上反复发送 DOWNLOAD_REQUEST，读取 FILE_START、文件内容和 FILE_END */
+    static final class Download implements Benchmark.Case {
+        private Client connection;
+        private String fileName;
+        private final byte[] buffer = new byte[64 * 1024];
+
+        @Override
+        public void setUp(String param) throws Exception {
+            byte[] content = new byte[parseSize(param)];
+            new Random(42).nextBytes(content);
+            fileName = newName("download") + ".bin";
+            try (Client owner = new Client(server()).login(newName("uploader"));
+                 Client upload = new Client(server()).startReading()) {
+                Upload.upload(upload, owner.token, fileName, content);
+            }
+            connection = new Client(server()); // 不启动读取线程，由测试线程直接读取文件内容
+        }
+
+        @Override
+        public long run(int operations) throws Exception {
+            long start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                connection.send(ChatProtocol.DOWNLOAD_REQUEST, fileName);
+                connection.out.flush();
+                int type = connection.in.read();
+                if (type != ChatProtocol.FILE_START && type != ChatProtocol.FILE_START_COMPRESSED) {
+                    throw new IOException("没有找到文件 " + fileName);
+                }
+                long remaining = Long.parseLong(ChatProtocol.readPayload(connection.in));
+                if (type == ChatProtocol.FILE_START_COMPRESSED) { // 读到 FILE_END 为止
+                    ChatProtocol.readCompressedFile(connection.in, OutputStream.nullOutputStream());
+                    continue;
+                }
+                while (remaining > 0) {
+                    int read = connection.in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new EOFException("文件没有接收完整");
+                    }
+                    remaining -= read;
+                }
+                if (connection.in.read() != ChatProtocol.FILE_END) {
+                    throw new IOException("缺少 FILE_END");
+                }
+                ChatProtocol.readPayload(connection.in);
+            }
+            Benchmark.consume(buffer[0]);
+            return System.nanoTime() - start;
+        }
+
+        @Override
+        public void tearDown() throws Exception {
+            connection.close();
+        }
+    }
+
+    /* 测试用的二进制协议客户端：后台线程读取服务端发来的帧并按类型计数，测试线程等待计数达到目标 */
+    static final class Client implements Closeable {
+        String name; // 登录的用户名，下载和上传连接为 null
+        volatile String token; // 登录后收到的上传令牌
+        private final Socket socket;
+        final DataOutputStream out;
+        final DataInputStream in;
+        private final long[] counts = new long[256]; // 每种帧收到的数量，对 counts 加锁访问
+        private long marked; // 收到的以 MARK 结尾的 CHAT_MESSAGE 数量
+
+        Client(InetSocketAddress server) throws IOException {
+            socket = new Socket(server.getAddress(), server.getPort());
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            out.write(ChatProtocol.handshake(ChatProtocol.VERSION));
+            out.flush();
+            in.readFully(new byte[ChatProtocol.HANDSHAKE_LENGTH]);
+        }
+
+        /* 登录并等待进入大厅。补发的历史消息里没有发给这个新用户名、以 MARK 结尾的消息，计数不受之前的测试影响 */
+        Client login(String name) throws IOException {
+            this.name = name;
+            startReading();
+            send(ChatProtocol.LOGIN, name);
+            out.flush();
+            await(ChatProtocol.ROOM, 1);
+            if (count(ChatProtocol.USERNAME_TAKEN) > 0) {
+                throw new IOException("用户名已被占用: " + name);
+            }
+            return this;
+        }
+
+        /* 进入房间，等到收到这个房间的成员列表 */
+        void join(String room) throws IOException {
+            long users = count(ChatProtocol.USERS);
+            send(ChatProtocol.JOIN_ROOM, room);
+            out.flush();
+            await(ChatProtocol.USERS, users + 1);
+        }
+
+        void send(byte type, String payload) throws IOException {
+            synchronized (out) { // 读线程会回复心跳
+                ChatProtocol.writeFrame(out, type, payload);
+            }
+        }
+
+        Client startReading() {
+            Thread reader = new Thread(() -> {
+                try {
+                    ChatProtocol.Frame frame;
+                    while ((frame = ChatProtocol.readFrame(in)) != null) {
+                        byte type = frame.type;
+                        String payload = frame.payload;
+                        if (type == ChatProtocol.PING) { // 测量时间较长时，只接收不发送的客户端要回复心跳
+                            send(ChatProtocol.PONG, payload);
+                            out.flush();
+                        } else if (type == ChatProtocol.SESSION) {
+                            token = payload;
+                        }
+                        synchronized (counts) {
+                            counts[type]++;
+                            if (type == ChatProtocol.CHAT_MESSAGE && payload.endsWith(MARK)) {
+                                marked++;
+                            }
+                            counts.notifyAll();
+                        }
+                    }
+                } catch (IOException e) {
+                    // 连接关闭
+                }
+            }, "bench-reader-" + name);
+            reader.setDaemon(true);
+            reader.start();
+            return this;
+        }
+
+        long count(byte type) {
+            synchronized (counts) {
+                return counts[type];
+            }
+        }
+
+        long marked() {
+            synchronized (counts) {
+                return marked;
+            }
+        }
+
+        void await(byte type, long target) throws IOException {
+            await(() -> counts[type] >= target, "帧 " + type);
+        }
+
+        void awaitMarked(long target) throws IOException {
+            await(() -> marked >= target, "消息");
+        }
+
+        private void await(java.util.function.BooleanSupplier done, String what) throws IOException {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            synchronized (counts) {
+                while (!done.getAsBoolean()) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0 || socket.isClosed()) {
+                        throw new IOException(name + " 等待" + what + "超时");
+                    }
+                    try {
+                        counts.wait(wait);
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            }
+        }
+
+        /* 在后台线程中读走并丢弃输入流的内容 */
+        static void discard(InputStream input) {
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[8192];
+                try {
+                    while (input.read(buffer) >= 0) {
+                        // 丢弃
+                    }
+                } catch (IOException e) {
+                    // 连接关闭
+                }
+            }, "bench-discard");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * 哈希时间轮：把时间分成固定长度的刻度，延迟任务按到期的刻度挂在环形数组的某一格上，
+ * 超过一圈的任务记下还要转几圈。添加和取消都是 O(1)，每过一个刻度只检查当前这一格，
+ * 与 PriorityQueue 相比，十万个连接各有一个超时时间时也不需要维护堆，代价是到期时间按刻度取整（不会提前）。
+ * 只能在一个线程中使用（每个事件循环一个），不加锁。
+ */
+public class TimerWheel {
+    private final long tickNanos; // 一个刻度的长度
+    private final Timeout[] slots; // 每一格是一个单向链表
+    private final int mask;
+    private final long startTime = System.nanoTime();
+    private long tick; // 下一个要处理的刻度，从 0 开始
+    private int size; // 还没到期的任务数（包括已取消但还没从链表中移除的）
+
+    /* slotCount 必须是 2 的幂 */
+    TimerWheel(long tickNanos, int slotCount) {
+        if (Integer.bitCount(slotCount) != 1) {
+            throw new IllegalArgumentException("格数必须是 2 的幂: " + slotCount);
+        }
+        this.tickNanos = tickNanos;
+        this.slots = new Timeout[slotCount];
+        this.mask = slotCount - 1;
+    }
+
+    /* 延迟 delayNanos 纳秒后执行任务，返回的对象可以用来取消 */
+    Timeout schedule(Runnable task, long delayNanos) {
+        long now = System.nanoTime() - startTime;
+        if (size == 0) { // 没有任务时不推进刻度，这里直接跳到当前时间，避免之后逐个处理空转过的刻度
+            tick = Math.max(tick, now / tickNanos);
+        }
+        long deadline = now + Math.max(0, delayNanos);
+        long target = Math.max(tick, (deadline + tickNanos - 1) / tickNanos); // 到期的刻度向上取整，已经过去的刻度放到下一个刻度
+        Timeout timeout = new Timeout(task, (target - tick) / slots.length);
+        int index = (int) (target & mask);
+        timeout.next = slots[index];
+        slots[index] = timeout;
+        size++;
+        return timeout;
+    }
+
+    /* 距离下一个刻度还有多少纳秒，没有任务时返回 -1（可以一直等待） */
+    long nanosUntilNextTick() {
+        if (size == 0) {
+            return -1;
+        }
+        return Math.max(0, startTime + tick * tickNanos - System.nanoTime());
+    }
+
+    /* 处理到当前时间为止的所有刻度，执行到期的任务。任务中可以再添加新任务，新任务最早在下一个刻度执行 */
+    void advance() {
+        long now = System.nanoTime() - startTime;
+        while (size > 0 && tick * tickNanos <= now) {
+            int index = (int) (tick++ & mask);
+            Timeout timeout = slots[index];
+            slots[index] = null; // 先把这一格整个摘下来，任务执行时添加的新任务不会混进正在遍历的链表
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                timeout.next = null;
+                if (timeout.cancelled) {
+                    size--;
+                } else if (timeout.rounds > 0) { // 还要再转几圈，放回这一格
+                    timeout.rounds--;
+                    timeout.next = slots[index];
+                    slots[index] = timeout;
+                } else {
+                    size--;
+                    timeout.cancelled = true; // 已经执行过，之后再取消没有效果
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace(); // 一个任务出错不影响这一格中剩下的任务
+                    }
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    /* 时间轮中的一个任务。取消只做标记，到达那一格时再从链表中移除 */
+    static final class Timeout {
+        final Runnable task;
+        long rounds; // 还要转几圈才到期
+        Timeout next;
+        boolean cancelled;
+
+        Timeout(Runnable task, long rounds) {
+            this.task = task;
+            this.rounds = rounds;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+    }
+}
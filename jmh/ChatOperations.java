@@ -0,0 +1,50 @@
+import benchmarks.Operations;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/* benchmarks.Operations 的实现：直接调用默认包中的 ChatProtocol、MessageLog 和 ServerBenchmarks 的广播测试 */
+public class ChatOperations implements Operations {
+    private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    @Override
+    public ByteBuffer encode(String payload) {
+        return ChatProtocol.encode(ChatProtocol.CHAT_MESSAGE, payload);
+    }
+
+    @Override
+    public String decode(ByteBuffer frame) throws IOException {
+        return ChatProtocol.decode(frame).payload;
+    }
+
+    @Override
+    public Log openLog(File directory) throws IOException {
+        MessageLog log = new MessageLog(directory, SEGMENT_SIZE, 2); // 只保留两个分段，长时间运行也不会占满磁盘
+        log.open();
+        return log::appendBroadcast;
+    }
+
+    @Override
+    public FanOut openFanOut(int receivers) throws Exception {
+        ServerBenchmarks.FanOut fanOut = new ServerBenchmarks.FanOut();
+        fanOut.setUp(String.valueOf(receivers));
+        return new FanOut() {
+            @Override
+            public void broadcast(int messages) throws Exception {
+                fanOut.run(messages);
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    fanOut.tearDown();
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+    }
+}
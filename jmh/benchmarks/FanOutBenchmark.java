@@ -0,0 +1,47 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * 房间广播扇出：通过真实的连接发送群聊消息，等房间里所有接收方都收到。每次调用发出一个窗口的消息，
+ * 结果按每条消息计算。服务端在基准测试的 JVM 中启动（-Dbench.target=主机:端口 时测试已经运行的服务端）
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FanOutBenchmark {
+    private static final int WINDOW = 128; // 和 ServerBenchmarks 的发送窗口一致，不会超过服务端发送队列的上限
+
+    @Param({"1", "10", "100"})
+    int receivers;
+
+    private Operations.FanOut fanOut;
+
+    @Setup
+    public void setUp() throws Exception {
+        fanOut = Operations.load().openFanOut(receivers);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        fanOut.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WINDOW)
+    public void broadcast() throws Exception {
+        fanOut.broadcast(WINDOW);
+    }
+}
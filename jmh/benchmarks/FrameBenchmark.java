@@ -0,0 +1,49 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/* 二进制协议的帧编码和解码，参数为负载的字符数（中英文混合） */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FrameBenchmark {
+    @Param({"16", "256", "4096"})
+    int size;
+
+    private Operations operations;
+    private String payload;
+    private ByteBuffer frame;
+
+    @Setup
+    public void setUp() {
+        operations = Operations.load();
+        StringBuilder builder = new StringBuilder(size);
+        for (int i = 0; i < size; i++) {
+            builder.append(i % 4 == 0 ? '聊' : (char) ('a' + i % 26));
+        }
+        payload = builder.toString();
+        frame = operations.encode(payload);
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        return operations.encode(payload);
+    }
+
+    @Benchmark
+    public String decode() throws IOException {
+        frame.position(0); // decode 会把 position 移到帧尾
+        return operations.decode(frame);
+    }
+}
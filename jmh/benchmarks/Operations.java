@@ -0,0 +1,45 @@
+package benchmarks;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * JMH 基准测试要测量的服务端操作。JMH 不接受默认包中的基准测试类，而命名包中的类又不能引用默认包中的服务端类，
+ * 所以基准测试只依赖这个接口，由默认包中的 ChatOperations 实现，运行时按类名加载
+ */
+public interface Operations {
+    /* 把一条群聊消息编码成一帧 */
+    ByteBuffer encode(String payload);
+
+    /* 解码 frame 中从 position 开始的一帧，返回负载 */
+    String decode(ByteBuffer frame) throws IOException;
+
+    /* 在 directory 中打开一个新的消息日志 */
+    Log openLog(File directory) throws IOException;
+
+    /* 启动（或连接到）服务端，在一个房间里准备一个发送方和 receivers 个接收方 */
+    FanOut openFanOut(int receivers) throws Exception;
+
+    /* 一个打开的消息日志 */
+    interface Log {
+        /* 追加一条群聊消息，返回它的消息ID */
+        long append(String room, String line) throws IOException;
+    }
+
+    /* 一个准备好的广播房间，close 时断开所有连接 */
+    interface FanOut extends Closeable {
+        /* 发送 messages 条群聊消息，等所有接收方都收齐后返回 */
+        void broadcast(int messages) throws Exception;
+    }
+
+    /* 加载默认包中的实现 */
+    static Operations load() {
+        try {
+            return (Operations) Class.forName("ChatOperations").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("找不到 ChatOperations", e);
+        }
+    }
+}
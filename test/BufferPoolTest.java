@@ -0,0 +1,160 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/* 堆外缓冲区池：按大小级别复用、引用计数、超过上限时退回堆缓冲区，以及没有 release 的缓冲区的泄漏检测 */
+class BufferPoolTest {
+    private static final long MB = 1 << 20;
+
+    @Test
+    void sizesRoundUpToPowerOfTwoClasses() {
+        BufferPool pool = new BufferPool(16 * MB, false);
+        int[][] cases = {{0, 256}, {1, 256}, {256, 256}, {257, 512}, {5000, 8192}, {128 * 1024, 128 * 1024}};
+        for (int[] c : cases) {
+            BufferPool.Buffer buffer = pool.allocate(c[0]);
+            assertTrue(buffer.data().isDirect(), "请求 " + c[0]);
+            assertEquals(c[1], buffer.data().capacity(), "请求 " + c[0]);
+            assertEquals(0, buffer.data().position());
+            assertEquals(c[1], buffer.data().limit());
+            assertEquals(c[1], pool.usedBytes());
+            buffer.release();
+            assertEquals(0, pool.usedBytes(), "归还后不再计入");
+        }
+    }
+
+    @Test
+    void releasedBuffersAreReused() {
+        BufferPool pool = new BufferPool(16 * MB, false);
+        BufferPool.Buffer first = pool.allocate(1000);
+        first.data().putInt(42).flip();
+        first.release();
+        BufferPool.Buffer second = pool.allocate(700); // 同一个级别，后进先出
+        assertSame(first, second);
+        assertEquals(0, second.data().position(), "重新分配时清空 position 和 limit");
+        assertEquals(1024, second.data().limit());
+        assertEquals(MB, pool.reservedBytes(), "只申请过一块直接内存");
+        second.release();
+    }
+
+    @Test
+    void lastReleaseReturnsTheBuffer() {
+        BufferPool pool = new BufferPool(16 * MB, false);
+        BufferPool.Buffer buffer = pool.allocate(300);
+        assertSame(buffer, buffer.retain().retain()); // 发送队列每个接收方各持有一次
+        buffer.release();
+        buffer.release();
+        assertEquals(512, pool.usedBytes(), "还有一个持有者");
+        buffer.release();
+        assertEquals(0, pool.usedBytes());
+        assertThrows(IllegalStateException.class, buffer::release, "重复归还");
+        assertThrows(IllegalStateException.class, buffer::retain, "归还后不能再增加持有者");
+    }
+
+    @Test
+    void oversizedAndOverCapacityRequestsFallBackToHeap() {
+        BufferPool pool = new BufferPool(MB, false); // 只允许一块直接内存
+        BufferPool.Buffer huge = pool.allocate(128 * 1024 + 1);
+        assertFalse(huge.data().isDirect(), "超过最大级别");
+        assertEquals(128 * 1024 + 1, huge.data().capacity());
+        assertEquals(0, pool.usedBytes(), "堆缓冲区不计入池的用量");
+        huge.release();
+        assertThrows(IllegalStateException.class, huge::release);
+
+        List<BufferPool.Buffer> taken = new ArrayList<>();
+        for (int i = 0; i < 8; i++) { // 1MB 正好切成 8 个 128KB
+            taken.add(pool.allocate(128 * 1024));
+            assertTrue(taken.get(i).data().isDirect());
+        }
+        BufferPool.Buffer overflow = pool.allocate(128 * 1024);
+        assertFalse(overflow.data().isDirect(), "池已经用到上限");
+        assertFalse(pool.allocate(256).data().isDirect(), "其他级别也不能再申请直接内存");
+        assertEquals(MB, pool.reservedBytes());
+        overflow.release();
+        for (BufferPool.Buffer buffer : taken) {
+            buffer.release();
+        }
+        assertEquals(0, pool.usedBytes());
+        assertTrue(pool.allocate(128 * 1024).data().isDirect(), "归还后又可以从池中分配");
+    }
+
+    @Test
+    void wrappedBuffersAreNotRecycled() {
+        ByteBuffer data = ByteBuffer.wrap(new byte[] {1, 2, 3});
+        BufferPool.Buffer wrapped = BufferPool.wrap(data);
+        assertSame(data, wrapped.data());
+        wrapped.retain();
+        wrapped.release();
+        wrapped.release();
+        assertThrows(IllegalStateException.class, wrapped::release);
+    }
+
+    @Test
+    void copyUsesAbsolutePositions() {
+        ByteBuffer src = ByteBuffer.allocateDirect(64);
+        for (int i = 0; i < 64; i++) {
+            src.put(i, (byte) i);
+        }
+        src.position(5);
+        for (int length : new int[] {0, 1, 7, 8, 9, 23}) {
+            ByteBuffer dst = ByteBuffer.allocate(64);
+            dst.put((byte) -1);
+            BufferPool.copy(src, 10, length, dst);
+            assertEquals(1 + length, dst.position());
+            for (int i = 0; i < length; i++) {
+                assertEquals(10 + i, dst.get(1 + i), "长度 " + length + " 的第 " + i + " 个字节");
+            }
+            assertEquals(5, src.position(), "不移动源缓冲区的 position");
+        }
+    }
+
+    @Test
+    void concurrentRetainAndReleaseBalance() throws InterruptedException {
+        BufferPool pool = new BufferPool(16 * MB, false);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 20_000; i++) {
+                    BufferPool.Buffer buffer = pool.allocate(256 << (i % 4));
+                    buffer.retain();
+                    buffer.release();
+                    buffer.release();
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, pool.usedBytes());
+    }
+
+    /* 分配后不 release 就丢掉引用，放在单独的方法里，返回后缓冲区不可达 */
+    private static void leak(BufferPool pool) {
+        pool.allocate(2000).data().putLong(7);
+    }
+
+    @Test
+    void leakedBuffersAreDetectedAndReclaimed() throws InterruptedException {
+        BufferPool pool = new BufferPool(16 * MB, true);
+        pool.allocate(2000).release(); // 正常归还的不算泄漏
+        leak(pool);
+        assertEquals(2048, pool.usedBytes());
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (pool.leakCount() == 0) {
+            assertTrue(System.currentTimeMillis() < deadline, "没有发现泄漏");
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(1, pool.leakCount());
+        assertEquals(0, pool.usedBytes(), "泄漏的内存收回池中");
+        BufferPool.Buffer reused = pool.allocate(2000);
+        assertTrue(reused.data().isDirect());
+        reused.release();
+        assertEquals(1, pool.leakCount());
+        assertEquals(MB, pool.reservedBytes(), "收回的内存被重新使用，没有申请新的直接内存");
+    }
+}
@@ -0,0 +1,210 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/* 二进制协议的编解码：varint 长度、帧、流式读写、数字字段和压缩 */
+class ChatProtocolTest {
+
+    @Test
+    void varintRoundTripsAtByteBoundaries() throws IOException {
+        int[] values = {0, 1, 127, 128, 16383, 16384, 2097151, 2097152, ChatProtocol.MAX_FRAME_LENGTH, Integer.MAX_VALUE};
+        for (int value : values) {
+            ByteBuffer buffer = ByteBuffer.allocate(8);
+            ChatProtocol.writeVarint(buffer, value);
+            assertEquals(ChatProtocol.varintSize(value), buffer.position(), "长度 " + value);
+            buffer.flip();
+            assertEquals(value, ChatProtocol.readVarint(buffer, 0));
+        }
+    }
+
+    @Test
+    void incompleteVarintWaitsForMoreData() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        ChatProtocol.writeVarint(buffer, 300);
+        buffer.flip().limit(1); // 只收到第一个字节
+        assertEquals(-1, ChatProtocol.readVarint(buffer, 0));
+        assertEquals(-1, ChatProtocol.readVarint(ByteBuffer.allocate(0), 0));
+    }
+
+    @Test
+    void overflowingVarintIsRejected() {
+        ByteBuffer negative = ByteBuffer.wrap(new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F}); // 第五个字节的高位溢出成负数
+        assertThrows(IOException.class, () -> ChatProtocol.readVarint(negative, 0));
+        ByteBuffer tooLong = ByteBuffer.wrap(new byte[] {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0}); // 超过 5 个字节
+        assertThrows(IOException.class, () -> ChatProtocol.readVarint(tooLong, 0));
+    }
+
+    @Test
+    void frameRoundTrips() throws IOException {
+        for (String payload : new String[] {"", "hello", "你好，世界", "emoji 😀", "x".repeat(ChatProtocol.MAX_FRAME_LENGTH)}) {
+            ByteBuffer frame = ChatProtocol.encode(ChatProtocol.CHAT, payload);
+            ChatProtocol.Frame decoded = ChatProtocol.decode(frame);
+            assertEquals(ChatProtocol.CHAT, decoded.type);
+            assertEquals(payload, decoded.payload);
+            assertEquals(frame.limit(), frame.position(), "解码后 position 在帧尾");
+        }
+    }
+
+    @Test
+    void truncatedFrameIsRejected() {
+        ByteBuffer frame = ChatProtocol.encode(ChatProtocol.CHAT, "hello");
+        frame.limit(frame.limit() - 1);
+        assertThrows(IOException.class, () -> ChatProtocol.decode(frame));
+    }
+
+    @Test
+    void streamRoundTripsAndRejectsOversizedLength() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        ChatProtocol.writeFrame(out, ChatProtocol.LOGIN, "张三");
+        ChatProtocol.writeFrame(out, ChatProtocol.CHAT, "x".repeat(300));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        ChatProtocol.Frame login = ChatProtocol.readFrame(in);
+        assertEquals(ChatProtocol.LOGIN, login.type);
+        assertEquals("张三", login.payload);
+        assertEquals("x".repeat(300), ChatProtocol.readFrame(in).payload);
+        assertNull(ChatProtocol.readFrame(in), "流结束");
+
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.put(ChatProtocol.CHAT);
+        ChatProtocol.writeVarint(header, ChatProtocol.MAX_FRAME_LENGTH + 1);
+        DataInputStream oversized = new DataInputStream(new ByteArrayInputStream(header.array(), 0, header.position()));
+        assertThrows(IOException.class, () -> ChatProtocol.readFrame(oversized));
+    }
+
+    @Test
+    void handshakeIsRecognized() {
+        assertTrue(ChatProtocol.isHandshake(ByteBuffer.wrap(ChatProtocol.handshake(ChatProtocol.VERSION))));
+        assertFalse(ChatProtocol.isHandshake(ByteBuffer.wrap("alice\n".getBytes(StandardCharsets.UTF_8))), "文本协议的用户名");
+    }
+
+    @Test
+    void utf8LengthMatchesEncoding() {
+        for (String text : new String[] {"", "abc", "é", "你好", "😀", "a你😀é"}) {
+            assertEquals(text.getBytes(StandardCharsets.UTF_8).length, ChatProtocol.utf8Length(text), text);
+        }
+    }
+
+    @Test
+    void numberFieldsRejectGarbageAsIOException() throws IOException {
+        assertEquals(42, ChatProtocol.parseLong("42"));
+        assertEquals(-1, ChatProtocol.parseInt("-1"));
+        assertThrows(IOException.class, () -> ChatProtocol.parseLong("abc"));
+        assertThrows(IOException.class, () -> ChatProtocol.parseLong(""));
+        assertThrows(IOException.class, () -> ChatProtocol.parseLong("99999999999999999999"));
+        assertThrows(IOException.class, () -> ChatProtocol.parseInt("4294967296"));
+    }
+
+    /* 可压缩的文字：几百个不同的词随机排列，熵在普通文本的范围内 */
+    static String text(int length, long seed) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder(length);
+        while (text.length() < length) {
+            text.append("word").append(random.nextInt(300)).append(random.nextInt(8) == 0 ? "。\n" : " ");
+        }
+        return text.substring(0, length);
+    }
+
+    @Test
+    void compressedFrameRoundTripsThroughStream() throws IOException {
+        String payload = text(8000, 16);
+        ByteBuffer frame = ChatProtocol.encode(ChatProtocol.TEXT, payload);
+        ByteBuffer compressed = ChatProtocol.compressFrame(frame);
+        assertNotNull(compressed);
+        assertEquals(0, frame.position(), "压缩不移动原来的帧");
+        assertEquals(ChatProtocol.COMPRESSED, compressed.get(0));
+        assertTrue(compressed.remaining() < frame.remaining() / 2, "压缩后 " + compressed.remaining() + " 字节");
+
+        byte[] bytes = new byte[compressed.remaining()];
+        compressed.get(bytes);
+        ChatProtocol.Frame decoded = ChatProtocol.readFrame(new DataInputStream(new ByteArrayInputStream(bytes)));
+        assertEquals(ChatProtocol.TEXT, decoded.type, "读取时透明地解压");
+        assertEquals(payload, decoded.payload);
+    }
+
+    @Test
+    void smallOrIncompressibleFramesAreNotCompressed() {
+        assertNull(ChatProtocol.compressFrame(ChatProtocol.encode(ChatProtocol.TEXT, "hello")), "小于压缩阈值");
+        byte[] random = new byte[8000];
+        new Random(16).nextBytes(random);
+        assertFalse(ChatProtocol.compressible(random, 0, random.length), "随机数据的熵接近 8");
+        assertNull(ChatProtocol.compressFrame(ChatProtocol.encode(ChatProtocol.FILE_DATA, random, 0, random.length)));
+        assertFalse(ChatProtocol.compressible(random, 0, 0), "空数据");
+        byte[] utf8 = text(8000, 1).getBytes(StandardCharsets.UTF_8);
+        assertTrue(ChatProtocol.compressible(utf8, 0, utf8.length));
+    }
+
+    @Test
+    void deflateRespectsTheLimit() throws IOException {
+        byte[] data = text(4000, 2).getBytes(StandardCharsets.UTF_8);
+        byte[] full = ChatProtocol.deflate(data, 0, data.length, data.length);
+        assertNotNull(full);
+        assertNull(ChatProtocol.deflate(data, 0, data.length, full.length - 1), "超过上限时放弃");
+        assertArrayEquals(full, ChatProtocol.deflate(data, 0, data.length, full.length), "正好等于上限");
+        ByteBuffer inflated = ChatProtocol.inflateFrame(full, 0, full.length);
+        assertArrayEquals(data, java.util.Arrays.copyOfRange(inflated.array(), inflated.position(), inflated.limit()));
+    }
+
+    @Test
+    void inflateRejectsBombsTruncationAndGarbage() {
+        byte[] zeros = new byte[ChatProtocol.MAX_FRAME_LENGTH * 4];
+        byte[] bomb = ChatProtocol.deflate(zeros, 0, zeros.length, zeros.length); // 几百字节解压出 256KB
+        assertNotNull(bomb);
+        IOException tooLong = assertThrows(IOException.class, () -> ChatProtocol.inflateFrame(bomb, 0, bomb.length));
+        assertTrue(tooLong.getMessage().contains("过长"), tooLong.getMessage());
+
+        byte[] data = text(4000, 3).getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = ChatProtocol.deflate(data, 0, data.length, data.length);
+        assertThrows(IOException.class, () -> ChatProtocol.inflateFrame(compressed, 0, compressed.length / 2), "压缩流不完整");
+        assertThrows(IOException.class, () -> ChatProtocol.inflateFrame(new byte[] {1, 2, 3, 4, 5, 6}, 0, 6), "不是压缩流");
+    }
+
+    /* 按服务端的方式把文件内容编码成 FILE_DATA 帧：每块 SYNC_FLUSH，压缩字典在块之间延续，最后是 FILE_END */
+    static byte[] compressedFile(byte[] data, int block) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        byte[] buffer = new byte[block * 2 + 64];
+        for (int offset = 0; offset < data.length; offset += block) {
+            deflater.setInput(data, offset, Math.min(block, data.length - offset));
+            int n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+            ByteBuffer frame = ChatProtocol.encode(ChatProtocol.FILE_DATA, buffer, 0, n);
+            out.write(frame.array(), 0, frame.limit());
+        }
+        deflater.end();
+        ChatProtocol.writeFrame(out, ChatProtocol.FILE_END, "");
+        return bytes.toByteArray();
+    }
+
+    @Test
+    void compressedFileRoundTrips() throws IOException {
+        byte[] data = text(200_000, 4).getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long received = ChatProtocol.readCompressedFile(new DataInputStream(new ByteArrayInputStream(compressedFile(data, 32 * 1024))), out);
+        assertEquals(data.length, received);
+        assertArrayEquals(data, out.toByteArray());
+
+        ByteArrayOutputStream empty = new ByteArrayOutputStream();
+        assertEquals(0, ChatProtocol.readCompressedFile(new DataInputStream(new ByteArrayInputStream(compressedFile(new byte[0], 1024))), empty));
+    }
+
+    @Test
+    void compressedFileRejectsUnexpectedFramesAndEarlyEnd() throws IOException {
+        byte[] stream = compressedFile(text(100_000, 5).getBytes(StandardCharsets.UTF_8), 16 * 1024);
+        byte[] truncated = java.util.Arrays.copyOf(stream, stream.length - 2); // 缺少 FILE_END
+        assertThrows(EOFException.class, () -> ChatProtocol.readCompressedFile(new DataInputStream(new ByteArrayInputStream(truncated)), OutputStream.nullOutputStream()));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ChatProtocol.writeFrame(new DataOutputStream(bytes), ChatProtocol.TEXT, "不是文件内容");
+        assertThrows(IOException.class, () -> ChatProtocol.readCompressedFile(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), OutputStream.nullOutputStream()));
+
+        ByteBuffer garbage = ChatProtocol.encode(ChatProtocol.FILE_DATA, new byte[] {(byte) 0xFF, 0x13, 0x37, 0, 0, 0}, 0, 6);
+        assertThrows(IOException.class, () -> ChatProtocol.readCompressedFile(new DataInputStream(new ByteArrayInputStream(garbage.array())), OutputStream.nullOutputStream()));
+    }
+}
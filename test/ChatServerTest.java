@@ -0,0 +1,368 @@
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/* 通过真实的连接测试本 JVM 中启动的服务端（ServerBenchmarks.server 使用临时数据目录） */
+class ChatServerTest {
+    private static InetSocketAddress server;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        server = ServerBenchmarks.server();
+    }
+
+    /* 文本协议的连接：发送一行，读取一行 */
+    private static final class TextClient implements Closeable {
+        final Socket socket;
+        final BufferedReader in;
+        final Writer out;
+
+        TextClient() throws IOException {
+            socket = new Socket(server.getAddress(), server.getPort());
+            socket.setSoTimeout(10_000);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), Charset.defaultCharset()));
+            out = new OutputStreamWriter(socket.getOutputStream(), Charset.defaultCharset());
+        }
+
+        void send(String text) throws IOException {
+            out.write(text);
+            out.flush();
+        }
+
+        /* 读到以 prefix 开头的一行为止，连接关闭时返回 null */
+        String expect(String prefix) throws IOException {
+            String line;
+            while ((line = in.readLine()) != null && !line.startsWith(prefix)) {
+                // 跳过其他行
+            }
+            return line;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Test
+    void malformedUploadSizeClosesOnlyThatConnection() throws IOException {
+        try (TextClient bad = new TextClient(); TestClient other = new TestClient(server).login("other-001")) {
+            bad.send("bad-001\n");
+            assertNotNull(bad.expect("ROOM:"));
+            bad.send("FILE:\nname\nabc\n");
+            assertTrue(TestClient.closedByServer(bad.socket, 5000), "文件大小格式错误的连接应当被关闭");
+
+            other.send(ChatProtocol.CHAT, "still here"); // 同一个事件循环上的其他连接不受影响
+            other.expect(ChatProtocol.CHAT_MESSAGE, "other-001: still here");
+        }
+        try (TextClient again = new TextClient()) { // 关闭时释放了用户名
+            again.send("bad-001\n");
+            assertNotNull(again.expect("ROOM:"));
+        }
+    }
+
+    @Test
+    void negativeUploadSizeClosesConnection() throws IOException {
+        try (TextClient bad = new TextClient()) {
+            bad.send("bad-002\n");
+            assertNotNull(bad.expect("ROOM:"));
+            bad.send("FILE:\nname\n-5\n");
+            assertTrue(TestClient.closedByServer(bad.socket, 5000));
+        }
+    }
+
+    @Test
+    void malformedBinaryNumbersCloseConnection() throws IOException {
+        try (TestClient login = new TestClient(server)) {
+            login.send(ChatProtocol.LOGIN, "bad-005\nnot-a-number");
+            assertTrue(login.closedByServer(5000), "LOGIN 中的消息 ID 格式错误");
+        }
+        try (TestClient query = new TestClient(server).login("bad-005b")) {
+            query.send(ChatProtocol.FILE_QUERY, "a\n\nmany");
+            assertTrue(query.closedByServer(5000), "FILE_QUERY 中的数量格式错误");
+        }
+        try (TestClient upload = new TestClient(server).login("bad-005c")) {
+            upload.send(ChatProtocol.UPLOAD_START, "name\n12x");
+            assertTrue(upload.closedByServer(5000), "UPLOAD_START 中的大小格式错误");
+        }
+    }
+
+    @Test
+    void messagesThatDoNotFitInAFrameAreRejected() throws IOException {
+        String name = "long-005";
+        int fits = ChatProtocol.MAX_MESSAGE_LENGTH - (name + ": ").length();
+        try (TestClient sender = new TestClient(server).login(name); TextClient text = new TextClient()) {
+            text.send("text-005\n");
+            assertNotNull(text.expect("ROOM:"));
+
+            sender.send(ChatProtocol.CHAT, "y".repeat(fits + 1)); // 负载本身没有超过一帧，加上用户名前缀就超过了
+            sender.expect(ChatProtocol.TEXT, "消息过长");
+            text.send("z".repeat(ChatProtocol.MAX_FRAME_LENGTH - 10) + "\n"); // 文本协议的一行同样不能超过
+            assertNotNull(text.expect("SERVER: 消息过长"));
+
+            sender.send(ChatProtocol.CHAT, "x".repeat(fits)); // 正好放得下的消息照常发送
+            ChatProtocol.Frame frame = sender.expect(ChatProtocol.CHAT_MESSAGE, name + ": xxx");
+            assertTrue(frame.payload.endsWith("x".repeat(fits)));
+        }
+        try (TestClient later = new TestClient(server).login("later-005")) { // 补发历史消息时也不会收到过长的帧
+            later.expect(ChatProtocol.CHAT_MESSAGE, name + ": xxx");
+            later.send(ChatProtocol.CHAT, "ok");
+            later.expect(ChatProtocol.CHAT_MESSAGE, "later-005: ok");
+        }
+    }
+
+    /* 在聊天连接上整个上传一个文件（UPLOAD_START + 内容），等到收到这个文件的 FILE_ADDED */
+    static void upload(TestClient client, String name, byte[] data) throws IOException {
+        ChatProtocol.writeFrame(client.out, ChatProtocol.UPLOAD_START, name + "\n" + data.length);
+        client.out.write(data);
+        client.out.flush();
+        client.expect(ChatProtocol.FILE_ADDED, name);
+    }
+
+    /* 在下载连接上发送一个下载请求，返回服务端的第一帧（FILE_START、FILE_NOT_FOUND 等） */
+    static ChatProtocol.Frame requestDownload(TestClient client, String request) throws IOException {
+        client.send(ChatProtocol.DOWNLOAD_REQUEST, request);
+        return ChatProtocol.readFrame(client.in);
+    }
+
+    /* 读取 FILE_START 或 FILE_START_COMPRESSED 之后的文件内容，包括结尾的 FILE_END */
+    static byte[] readBody(TestClient client, ChatProtocol.Frame start) throws IOException {
+        int length = Integer.parseInt(start.payload.split("\n")[0]);
+        if (start.type == ChatProtocol.FILE_START_COMPRESSED) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(length, ChatProtocol.readCompressedFile(client.in, out));
+            return out.toByteArray();
+        }
+        assertEquals(ChatProtocol.FILE_START, start.type);
+        byte[] body = new byte[length];
+        client.in.readFully(body);
+        assertEquals(ChatProtocol.FILE_END, ChatProtocol.readFrame(client.in).type);
+        return body;
+    }
+
+    @Test
+    void downloadsWholeFilesAndByteRanges() throws IOException {
+        byte[] data = new byte[5000];
+        new Random(6).nextBytes(data); // 随机内容不值得压缩，按 FILE_START + 原始字节发送
+        try (TestClient uploader = new TestClient(server).login("uploader-006")) {
+            upload(uploader, "range-006.bin", data);
+        }
+        try (TestClient download = new TestClient(server)) { // 同一个下载连接上可以连续发送多个请求
+            assertArrayEquals(data, readBody(download, requestDownload(download, "range-006.bin")));
+
+            ChatProtocol.Frame start = requestDownload(download, "range-006.bin\nbytes=10-19");
+            assertEquals("10\n10-19/5000", start.payload);
+            assertArrayEquals(Arrays.copyOfRange(data, 10, 20), readBody(download, start));
+
+            start = requestDownload(download, "range-006.bin\nbytes=-5"); // 最后 5 个字节
+            assertEquals("5\n4995-4999/5000", start.payload);
+            assertArrayEquals(Arrays.copyOfRange(data, 4995, 5000), readBody(download, start));
+
+            start = requestDownload(download, "range-006.bin\nbytes=4000-"); // 到文件末尾
+            assertArrayEquals(Arrays.copyOfRange(data, 4000, 5000), readBody(download, start));
+
+            start = requestDownload(download, "range-006.bin\nbytes=4990-999999"); // 结束位置超出文件大小时截断
+            assertEquals("10\n4990-4999/5000", start.payload);
+            assertArrayEquals(Arrays.copyOfRange(data, 4990, 5000), readBody(download, start));
+
+            for (String bad : new String[] {"bytes=5000-", "bytes=20-10", "bytes=abc", "bytes=1-x", "10"}) {
+                ChatProtocol.Frame reply = requestDownload(download, "range-006.bin\n" + bad);
+                assertEquals(ChatProtocol.RANGE_NOT_SATISFIABLE, reply.type, bad);
+                assertEquals("5000", reply.payload);
+            }
+            assertEquals(ChatProtocol.FILE_NOT_FOUND, requestDownload(download, "missing-006.bin").type);
+            assertArrayEquals(Arrays.copyOfRange(data, 0, 1), readBody(download, requestDownload(download, "range-006.bin\nbytes=0-0")));
+        }
+    }
+
+    @Test
+    void textFilesDownloadCompressedIncludingRanges() throws IOException {
+        byte[] data = ChatProtocolTest.text(300_000, 16).getBytes(StandardCharsets.UTF_8); // 跨越多个压缩块
+        try (TestClient uploader = new TestClient(server).login("uploader-016")) {
+            upload(uploader, "text-016.txt", data);
+        }
+        try (TestClient download = new TestClient(server)) {
+            ChatProtocol.Frame start = requestDownload(download, "text-016.txt");
+            assertEquals(ChatProtocol.FILE_START_COMPRESSED, start.type, "协商了压缩的连接下载文字按压缩流发送");
+            assertArrayEquals(data, readBody(download, start));
+
+            start = requestDownload(download, "text-016.txt\nbytes=70000-149999");
+            assertEquals(ChatProtocol.FILE_START_COMPRESSED, start.type);
+            assertEquals("80000\n70000-149999/" + data.length, start.payload);
+            assertArrayEquals(Arrays.copyOfRange(data, 70000, 150000), readBody(download, start));
+
+            start = requestDownload(download, "text-016.txt\nbytes=0-99"); // 小于压缩阈值的范围直接发送
+            assertEquals(ChatProtocol.FILE_START, start.type);
+            assertArrayEquals(Arrays.copyOfRange(data, 0, 100), readBody(download, start));
+        }
+    }
+
+    /* 在上传连接上发送一个原始分块，等到确认 */
+    static void sendChunk(TestClient upload, String hash, byte[] data, int index) throws IOException {
+        int offset = index * FileStore.CHUNK_SIZE;
+        int length = Math.min(FileStore.CHUNK_SIZE, data.length - offset);
+        ChatProtocol.writeFrame(upload.out, ChatProtocol.UPLOAD_CHUNK, hash + "\n" + index);
+        upload.out.write(data, offset, length);
+        upload.out.flush();
+        assertEquals(String.valueOf(index), upload.expect(ChatProtocol.CHUNK_ACK).payload);
+    }
+
+    @Test
+    void chunkedUploadResumesAndDeduplicates() throws IOException {
+        byte[] data = new byte[FileStore.CHUNK_SIZE + 5000];
+        new Random(7).nextBytes(data);
+        String hash = ChatProtocol.hex(ChatProtocol.newDigest().digest(data));
+        try (TestClient owner = new TestClient(server).login("owner-007")) {
+            String begin = "chunked-007.bin\n" + data.length + "\n" + hash + "\n" + owner.token;
+            try (TestClient first = new TestClient(server)) {
+                first.send(ChatProtocol.UPLOAD_BEGIN, begin);
+                assertEquals(FileStore.CHUNK_SIZE + "\n0-1", first.expect(ChatProtocol.UPLOAD_READY).payload);
+                sendChunk(first, hash, data, 1);
+            } // 上传连接中途断开
+            try (TestClient second = new TestClient(server)) {
+                second.send(ChatProtocol.UPLOAD_BEGIN, begin);
+                assertEquals(FileStore.CHUNK_SIZE + "\n0", second.expect(ChatProtocol.UPLOAD_READY).payload, "只需要续传缺少的分块");
+                sendChunk(second, hash, data, 0);
+                second.send(ChatProtocol.UPLOAD_COMMIT, hash);
+                assertEquals("chunked-007.bin", second.expect(ChatProtocol.UPLOAD_COMPLETE).payload);
+
+                second.send(ChatProtocol.UPLOAD_BEGIN, "copy-007.bin\n" + data.length + "\n" + hash + "\n" + owner.token);
+                assertEquals("copy-007.bin", second.expect(ChatProtocol.UPLOAD_COMPLETE).payload, "相同内容直接完成");
+            }
+        }
+        try (TestClient download = new TestClient(server)) {
+            assertArrayEquals(data, readBody(download, requestDownload(download, "copy-007.bin")));
+        }
+    }
+
+    @Test
+    void chunkedUploadRejectsBadSizesAndChunks() throws IOException {
+        String hash = ChatProtocol.hex(ChatProtocol.newDigest().digest(new byte[] {7}));
+        try (TestClient owner = new TestClient(server).login("owner-007b"); TestClient upload = new TestClient(server)) {
+            for (long size : new long[] {-1, FileStore.MAX_FILE_SIZE + 1, Long.MAX_VALUE}) {
+                upload.send(ChatProtocol.UPLOAD_BEGIN, "bad-007.bin\n" + size + "\n" + hash + "\n" + owner.token);
+                assertTrue(upload.expect(ChatProtocol.UPLOAD_FAILED).payload.contains("文件大小不合法"), "大小 " + size);
+            }
+            upload.send(ChatProtocol.UPLOAD_BEGIN, "bad-007.bin\nlots\n" + hash + "\n" + owner.token);
+            assertTrue(upload.closedByServer(5000), "大小格式错误");
+        }
+        try (TestClient owner = new TestClient(server).login("owner-007c")) {
+            for (String chunk : new String[] {"\n1", "\n-1", "\nx", "\n99999999999"}) {
+                try (TestClient upload = new TestClient(server)) {
+                    upload.send(ChatProtocol.UPLOAD_BEGIN, "bad-007.bin\n1\n" + hash + "\n" + owner.token);
+                    upload.expect(ChatProtocol.UPLOAD_READY);
+                    upload.send(ChatProtocol.UPLOAD_CHUNK, hash + chunk);
+                    assertTrue(upload.closedByServer(5000), "分块序号 " + chunk.trim());
+                }
+            }
+            try (TestClient upload = new TestClient(server)) {
+                upload.send(ChatProtocol.UPLOAD_BEGIN, "bad-007.bin\n1\n" + hash + "\n" + owner.token);
+                upload.expect(ChatProtocol.UPLOAD_READY);
+                upload.send(ChatProtocol.UPLOAD_CHUNK, hash + "\n0\n" + (FileStore.CHUNK_SIZE * 2L + 1));
+                assertTrue(upload.closedByServer(5000), "压缩分块的长度超出范围");
+            }
+        }
+    }
+
+    @Test
+    void uploadsWithControlCharactersInNamesAreRejected() throws IOException {
+        byte[] data = "content".getBytes(StandardCharsets.UTF_8);
+        String hash = ChatProtocol.hex(ChatProtocol.newDigest().digest(data));
+        try (TestClient client = new TestClient(server).login("names-017"); TestClient upload = new TestClient(server)) {
+            ChatProtocol.writeFrame(client.out, ChatProtocol.UPLOAD_START, "tab\tname-017.txt\n" + data.length);
+            client.out.write(data); // 文件内容照样读完，连接可以继续使用
+            client.out.flush();
+            assertTrue(client.expect(ChatProtocol.TEXT).payload.contains("文件名不能为空"));
+            upload(client, "good-017.txt", data);
+
+            upload.send(ChatProtocol.UPLOAD_BEGIN, "tab\tname-017.txt\n" + data.length + "\n" + hash + "\n" + client.token);
+            assertTrue(upload.expect(ChatProtocol.UPLOAD_FAILED).payload.contains("文件名不能为空"));
+            upload.send(ChatProtocol.UPLOAD_BEGIN, "\n" + data.length + "\n" + hash + "\n" + client.token);
+            assertTrue(upload.expect(ChatProtocol.UPLOAD_FAILED).payload.contains("文件名不能为空"), "空文件名");
+        }
+        try (TestClient download = new TestClient(server)) {
+            assertEquals(ChatProtocol.FILE_NOT_FOUND, requestDownload(download, "tab\tname-017.txt").type);
+        }
+    }
+
+    /* 读取 CHAT_MESSAGE 直到包含 marker 的一条，返回之前（包括它）收到的所有消息的文字 */
+    static List<String> messagesUntil(TestClient client, String marker) throws IOException {
+        List<String> lines = new ArrayList<>();
+        while (true) {
+            String payload = client.expect(ChatProtocol.CHAT_MESSAGE).payload;
+            lines.add(payload.substring(payload.indexOf('\n') + 1));
+            if (payload.contains(marker)) {
+                return lines;
+            }
+        }
+    }
+
+    @Test
+    void messagesAndMembersAreScopedToRooms() throws IOException {
+        try (TestClient a1 = new TestClient(server).login("a1-009");
+             TestClient a2 = new TestClient(server).login("a2-009");
+             TestClient b1 = new TestClient(server).login("b1-009")) {
+            a1.send(ChatProtocol.JOIN_ROOM, "room-a-009");
+            a1.expect(ChatProtocol.ROOM, "room-a-009");
+            a2.send(ChatProtocol.JOIN_ROOM, "room-a-009");
+            a2.expect(ChatProtocol.ROOM, "room-a-009"); // 紧接着是新房间的成员列表
+            assertEquals(new HashSet<>(List.of("a1-009", "a2-009")), new HashSet<>(List.of(a2.expect(ChatProtocol.USERS).payload.split(","))));
+            b1.send(ChatProtocol.JOIN_ROOM, "room-b-009");
+            b1.expect(ChatProtocol.ROOM, "room-b-009");
+            assertEquals(List.of("b1-009"), List.of(b1.expect(ChatProtocol.USERS).payload.split(",")), "成员列表只包含这个房间的成员");
+
+            a1.send(ChatProtocol.CHAT, "only in a");
+            a2.expect(ChatProtocol.CHAT_MESSAGE, "a1-009: only in a");
+            b1.send(ChatProtocol.CHAT, "marker b");
+            for (String line : messagesUntil(b1, "b1-009: marker b")) {
+                assertFalse(line.contains("only in a"), "其他房间的消息不会发过来: " + line);
+            }
+
+            try (TestClient late = new TestClient(server).login("late-009")) { // 进入房间时补发这个房间的历史消息
+                late.send(ChatProtocol.JOIN_ROOM, "room-b-009");
+                late.expect(ChatProtocol.ROOM, "room-b-009");
+                late.send(ChatProtocol.CHAT, "late marker");
+                List<String> history = messagesUntil(late, "late-009: late marker");
+                assertTrue(history.contains("b1-009: marker b"));
+                assertFalse(history.contains("a1-009: only in a"));
+            }
+        }
+    }
+
+    @Test
+    void reconnectReplaysOnlyMissedMessages() throws IOException {
+        long lastSeen;
+        try (TestClient client = new TestClient(server).login("away-009")) {
+            client.send(ChatProtocol.CHAT, "before leaving");
+            String payload = client.expect(ChatProtocol.CHAT_MESSAGE, "away-009: before leaving").payload;
+            lastSeen = Long.parseLong(payload.substring(0, payload.indexOf('\n')));
+        }
+        try (TestClient other = new TestClient(server).login("stay-009")) {
+            for (int i = 1; i <= 3; i++) {
+                other.send(ChatProtocol.CHAT, "missed " + i);
+            }
+            other.expect(ChatProtocol.CHAT_MESSAGE, "stay-009: missed 3");
+            try (TestClient back = new TestClient(server)) {
+                back.send(ChatProtocol.LOGIN, "away-009\n" + lastSeen);
+                back.expect(ChatProtocol.ROOM);
+                back.send(ChatProtocol.CHAT, "back again");
+                List<String> replayed = messagesUntil(back, "away-009: back again");
+                assertEquals(List.of("stay-009: missed 1", "stay-009: missed 2", "stay-009: missed 3"),
+                        replayed.stream().filter(line -> line.startsWith("stay-009")).collect(java.util.stream.Collectors.toList()));
+                assertFalse(replayed.contains("away-009: before leaving"), "已经收到过的消息不再补发");
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/* 集群握手：双方都要证明自己持有共享密钥，任何一方的密钥不符都不建立连接、不交换状态 */
+class ClusterTest {
+
+    /* 只记录对端连上的事件，其他消息忽略 */
+    static class Recorder implements Cluster.Listener {
+        final CountDownLatch up = new CountDownLatch(1);
+        volatile String node;
+
+        @Override public void nodeUp(String node) { this.node = node; up.countDown(); }
+        @Override public void nodeDown(String node) { }
+        @Override public void userRoom(String node, String user, String room) { }
+        @Override public void userOffline(String node, String user) { }
+        @Override public void broadcast(String room, String line) { }
+        @Override public void privateMessage(String sender, String recipient, String content) { }
+        @Override public void file(InetSocketAddress source, String name, String hash, String uploader) { }
+        @Override public Collection<FileStore.FileInfo> localFiles() { return Collections.emptyList(); }
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    static Cluster start(String node, int port, int peerPort, String secret, Recorder recorder) throws IOException {
+        Cluster cluster = new Cluster(node, 1, port, "127.0.0.1", "127.0.0.1:" + peerPort, secret, recorder);
+        cluster.start();
+        return cluster;
+    }
+
+    /* 读一条集群消息：返回类型，字段放入 fields */
+    static int read(DataInputStream in, List<String> fields) throws IOException {
+        int type = in.read();
+        if (type < 0) {
+            return type;
+        }
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++) {
+            byte[] value = new byte[in.readInt()];
+            in.readFully(value);
+            fields.add(new String(value, StandardCharsets.UTF_8));
+        }
+        return type;
+    }
+
+    static String hmac(String secret, String message) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        return ChatProtocol.hex(mac.doFinal(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void nodesWithTheSameSecretConnectBothWays() throws Exception {
+        int portA = freePort();
+        int portB = freePort();
+        Recorder a = new Recorder();
+        Recorder b = new Recorder();
+        start("same-a", portA, portB, "shared", a);
+        start("same-b", portB, portA, "shared", b);
+        assertTrue(a.up.await(10, TimeUnit.SECONDS), "a 接受了 b 的连接");
+        assertTrue(b.up.await(10, TimeUnit.SECONDS), "b 接受了 a 的连接");
+        assertEquals("same-b", a.node);
+        assertEquals("same-a", b.node);
+    }
+
+    @Test
+    void mismatchedSecretsAreRejectedInBothDirections() throws Exception {
+        int portA = freePort();
+        int portB = freePort();
+        Recorder a = new Recorder();
+        Recorder b = new Recorder();
+        start("wrong-a", portA, portB, "one", a);
+        start("wrong-b", portB, portA, "two", b);
+        assertFalse(a.up.await(3, TimeUnit.SECONDS), "a 不接受密钥不同的 b");
+        assertFalse(b.up.await(0, TimeUnit.SECONDS), "b 不接受密钥不同的 a");
+    }
+
+    @Test
+    void dialerRejectsAcceptorWithoutTheSecret() throws Exception {
+        try (ServerSocket fake = new ServerSocket(0)) {
+            Cluster cluster = start("dialer", freePort(), fake.getLocalPort(), "shared", new Recorder());
+            cluster.userRoom("alice", "lobby"); // 握手成功时这个用户会作为完整状态发出去
+            try (Socket socket = fake.accept()) {
+                socket.setSoTimeout(10_000);
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                out.write(Cluster.encode(Cluster.CHALLENGE, "0123456789abcdef0123456789abcdef"));
+                List<String> hello = new ArrayList<>();
+                assertEquals(Cluster.HELLO, read(in, hello));
+                assertEquals(4, hello.size(), "连接方带上了自己的随机数");
+                assertEquals(hmac("shared", "0123456789abcdef0123456789abcdef\ndialer"), hello.get(2));
+                out.write(Cluster.encode(Cluster.HELLO, "fake", "1", hello.get(2))); // 不知道密钥，只能把对方的应答原样发回
+                assertEquals(-1, read(in, new ArrayList<>()), "连接方断开连接，没有发送任何状态");
+            }
+        }
+    }
+
+    @Test
+    void acceptorRequiresTheDialerChallengeAndRole() throws Exception {
+        int port = freePort();
+        Recorder recorder = new Recorder();
+        start("acceptor", port, freePort(), "shared", recorder); // 对端列表中的主机是 127.0.0.1，测试的连接不会因为来源被拒绝
+        String[][] answers = {
+                {"old", null}, // 旧版本：有正确的应答但是不带随机数
+                {"reflected", "accept\n"}, // 用接受方的应答格式计算
+        };
+        for (String[] answer : answers) {
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                socket.setSoTimeout(10_000);
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                List<String> challenge = new ArrayList<>();
+                assertEquals(Cluster.CHALLENGE, read(in, challenge));
+                if (answer[1] == null) {
+                    out.write(Cluster.encode(Cluster.HELLO, answer[0], "1", hmac("shared", challenge.get(0) + "\n" + answer[0])));
+                } else {
+                    out.write(Cluster.encode(Cluster.HELLO, answer[0], "1", hmac("shared", answer[1] + challenge.get(0) + "\n" + answer[0]),
+                            "0123456789abcdef0123456789abcdef"));
+                }
+                assertEquals(-1, read(in, new ArrayList<>()), answer[0] + " 的连接被拒绝");
+            }
+        }
+        try (Socket socket = new Socket("127.0.0.1", port)) { // 正确的连接方得到接受方对自己随机数的应答
+            socket.setSoTimeout(10_000);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            List<String> challenge = new ArrayList<>();
+            assertEquals(Cluster.CHALLENGE, read(in, challenge));
+            String mine = "fedcba9876543210fedcba9876543210";
+            socket.getOutputStream().write(Cluster.encode(Cluster.HELLO, "good", "1", hmac("shared", challenge.get(0) + "\ngood"), mine));
+            List<String> hello = new ArrayList<>();
+            assertEquals(Cluster.HELLO, read(in, hello));
+            assertEquals("acceptor", hello.get(0));
+            assertEquals(hmac("shared", "accept\n" + mine + "\nacceptor"), hello.get(2));
+            assertTrue(recorder.up.await(10, TimeUnit.SECONDS));
+            assertEquals("good", recorder.node);
+        }
+    }
+}
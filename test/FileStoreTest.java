@@ -0,0 +1,228 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/* 按内容哈希存储的文件：分块上传的续传、校验、秒传和过期清理，文件目录的索引、分页和文件名检查 */
+class FileStoreTest {
+    @TempDir
+    File root;
+    private FileStore store;
+
+    @BeforeEach
+    void open() throws IOException {
+        store = new FileStore(root);
+        store.load();
+    }
+
+    private static byte[] content(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static String hash(byte[] data) {
+        return ChatProtocol.hex(ChatProtocol.newDigest().digest(data));
+    }
+
+    /* 把分块 index 的内容写入上传文件并记录 */
+    private static void writeChunk(FileStore.PartialUpload upload, byte[] data, int index) throws IOException {
+        int offset = (int) upload.chunkOffset(index);
+        upload.channel().write(ByteBuffer.wrap(data, offset, upload.chunkLength(index)), offset);
+        upload.markReceived(index);
+    }
+
+    @Test
+    void chunkedUploadResumesAfterRestart() throws IOException {
+        byte[] data = content(FileStore.CHUNK_SIZE * 2 + 1000, 1);
+        String hash = hash(data);
+        FileStore.PartialUpload upload = store.beginUpload(hash, data.length);
+        assertEquals(3, upload.chunkCount);
+        assertEquals(1000, upload.chunkLength(2), "最后一块只有剩下的字节");
+        assertEquals("0-2", upload.missingChunks());
+        writeChunk(upload, data, 1);
+        assertEquals("0,2", upload.missingChunks());
+
+        FileStore restarted = new FileStore(root); // 服务器重启后从 .chunks 文件恢复已收到的分块
+        restarted.load();
+        FileStore.PartialUpload resumed = restarted.beginUpload(hash, data.length);
+        assertEquals("0,2", resumed.missingChunks());
+        assertSame(resumed, restarted.beginUpload(hash, data.length), "同一内容的上传在连接之间共享");
+        writeChunk(resumed, data, 0);
+        writeChunk(resumed, data, 2);
+        assertTrue(resumed.isComplete());
+        assertEquals("", resumed.missingChunks());
+
+        assertTrue(restarted.finishUpload(resumed));
+        assertTrue(restarted.hasBlob(hash));
+        assertNull(restarted.upload(hash));
+        assertArrayEquals(data, Files.readAllBytes(new File(new File(root, "blobs"), hash).toPath()));
+        assertArrayEquals(new String[0], new File(root, "partial").list(), "不留下未完成上传的文件");
+    }
+
+    @Test
+    void corruptedUploadIsResetForRetry() throws IOException {
+        byte[] data = content(1000, 2);
+        FileStore.PartialUpload upload = store.beginUpload(hash(data), data.length);
+        data[10] ^= 1; // 客户端发来的内容与声明的哈希不符
+        writeChunk(upload, data, 0);
+        assertFalse(store.finishUpload(upload));
+        assertFalse(store.hasBlob(upload.hash));
+        assertEquals("0", upload.missingChunks(), "校验失败后所有分块都要重新上传");
+    }
+
+    @Test
+    void rejectsInvalidOrInconsistentSizes() throws IOException {
+        String hash = hash(content(10, 3));
+        assertThrows(IOException.class, () -> store.beginUpload(hash, -1));
+        assertThrows(IOException.class, () -> store.beginUpload(hash, FileStore.MAX_FILE_SIZE + 1));
+        assertNull(store.upload(hash), "大小不合法时不留下记录");
+        store.beginUpload(hash, 10);
+        assertThrows(IOException.class, () -> store.beginUpload(hash, 11), "与之前的上传大小不一致");
+        assertFalse(store.beginUpload(hash, 10).isComplete());
+    }
+
+    @Test
+    void emptyFileIsCompleteImmediately() throws IOException {
+        byte[] empty = new byte[0];
+        FileStore.PartialUpload upload = store.beginUpload(hash(empty), 0);
+        assertEquals(0, upload.chunkCount);
+        assertTrue(upload.isComplete());
+        assertTrue(store.finishUpload(upload));
+        assertTrue(store.hasBlob(hash(empty)));
+    }
+
+    @Test
+    void identicalContentIsStoredOnce() throws IOException {
+        byte[] data = content(5000, 4);
+        String hash = hash(data);
+        for (String name : new String[] {"a.bin", "b.bin"}) {
+            File temp = store.newTempFile();
+            Files.write(temp.toPath(), data);
+            store.commit(temp, hash);
+            assertFalse(temp.exists(), "临时文件被移走或删除");
+            store.link(name, hash, "alice");
+        }
+        assertEquals(1, new File(root, "blobs").list().length);
+        assertEquals(hash, store.get("a.bin").hash);
+        assertEquals(hash, store.get("b.bin").hash);
+        assertEquals(5000, store.get("b.bin").size);
+    }
+
+    @Test
+    void idleUploadsExpire() throws IOException {
+        byte[] data = content(3000, 5);
+        String hash = hash(data);
+        FileStore.PartialUpload upload = store.beginUpload(hash, data.length);
+        writeChunk(upload, data, 0);
+        assertEquals(0, store.expireUploads(Long.MAX_VALUE), "刚刚活动过的上传不过期");
+        assertEquals(1, store.expireUploads(0));
+        assertNull(store.upload(hash));
+        assertArrayEquals(new String[0], new File(root, "partial").list(), "删除已收到的内容和位图");
+        assertEquals("0", store.beginUpload(hash, data.length).missingChunks(), "过期后重新开始");
+    }
+
+    /* 保存一份内容并让文件名指向它，返回内容哈希 */
+    private String store(String name, byte[] data, String uploader) throws IOException {
+        String hash = hash(data);
+        File temp = store.newTempFile();
+        Files.write(temp.toPath(), data);
+        store.commit(temp, hash);
+        store.link(name, hash, uploader);
+        return hash;
+    }
+
+    private static List<String> names(List<FileStore.FileInfo> files) {
+        List<String> names = new ArrayList<>();
+        for (FileStore.FileInfo file : files) {
+            names.add(file.name);
+        }
+        return names;
+    }
+
+    @Test
+    void catalogIsReplayedFromIndexAfterRestart() throws IOException {
+        String a = store("a.txt", content(100, 10), "alice");
+        store("b.txt", content(200, 11), "bob");
+        store("c.txt", content(300, 12), "carol");
+        String replaced = store("b.txt", content(250, 13), "dave"); // 同名文件指向新的内容
+        assertTrue(store.remove("c.txt"));
+        assertFalse(store.remove("c.txt"), "已经移除的文件名");
+
+        FileStore reopened = new FileStore(root);
+        reopened.load();
+        assertEquals(List.of("a.txt", "b.txt"), new ArrayList<>(reopened.names()));
+        assertEquals(a, reopened.get("a.txt").hash);
+        assertEquals("alice", reopened.get("a.txt").uploader);
+        assertEquals(replaced, reopened.get("b.txt").hash);
+        assertEquals(250, reopened.get("b.txt").size);
+        assertEquals("dave", reopened.get("b.txt").uploader);
+        assertNull(reopened.get("c.txt"));
+    }
+
+    @Test
+    void listPagesByPrefixAndLastName() throws IOException {
+        byte[] data = content(10, 14);
+        for (String name : new String[] {"doc-1", "doc-2", "doc-3", "img-1", "doc-4", "do"}) {
+            store(name, data, "");
+        }
+        assertEquals(List.of("do", "doc-1", "doc-2"), names(store.list("do", "", 3)));
+        assertEquals(List.of("doc-3", "doc-4"), names(store.list("do", "doc-2", 3)), "从上一页最后一个文件名之后开始");
+        assertEquals(List.of(), names(store.list("do", "doc-4", 3)));
+        assertEquals(List.of("doc-1", "doc-2", "doc-3", "doc-4"), names(store.list("doc-", "", 10)));
+        assertEquals(List.of("img-1"), names(store.list("", "doc-4", 10)), "没有前缀时列出所有文件");
+        assertEquals(List.of(), names(store.list("zzz", "", 10)));
+    }
+
+    @Test
+    void indexIsCompactedWhenMostLinesAreOverwritten() throws IOException {
+        byte[][] contents = {content(10, 15), content(10, 16)};
+        for (int i = 0; i < 500; i++) {
+            store("same.bin", contents[i % 2], "u" + i);
+        }
+        List<String> lines = Files.readAllLines(new File(root, "files.idx").toPath());
+        assertTrue(lines.size() <= 2 * 1 + 64 + 1, "索引文件有 " + lines.size() + " 行");
+        FileStore reopened = new FileStore(root);
+        reopened.load();
+        assertEquals("u499", reopened.get("same.bin").uploader, "重写后仍然是最后一次的结果");
+    }
+
+    @Test
+    void namesWithControlCharactersAreRejected() throws IOException {
+        byte[] data = content(10, 17);
+        String hash = store("ok.txt", data, "tab\tuser"); // 上传者中的制表符替换成空格
+        assertEquals("tab user", store.get("ok.txt").uploader);
+        for (String bad : new String[] {"", "evil\n+\tfake", "a\tb", "a\rb", "nul\0"}) {
+            assertFalse(FileStore.isValidName(bad));
+            assertThrows(IOException.class, () -> store.link(bad, hash, ""), "文件名 " + bad.replace("\n", "\\n"));
+        }
+        assertTrue(FileStore.isValidName("报告 2024 (final).pdf"));
+        FileStore reopened = new FileStore(root);
+        reopened.load();
+        assertEquals(List.of("ok.txt"), new ArrayList<>(reopened.names()), "索引中没有写入不合法的行");
+    }
+
+    @Test
+    void filesDroppedIntoTheFolderAreImported() throws IOException {
+        byte[] data = content(1234, 18);
+        Files.write(new File(root, "dropped.bin").toPath(), data);
+        File bad = new File(root, "bad\tname.bin");
+        Files.write(bad.toPath(), data);
+        FileStore reopened = new FileStore(root);
+        reopened.load();
+        assertEquals(hash(data), reopened.get("dropped.bin").hash);
+        assertEquals(1234, reopened.get("dropped.bin").size);
+        assertFalse(new File(root, "dropped.bin").exists(), "导入后移入 blobs");
+        assertNull(reopened.get("bad\tname.bin"));
+        assertTrue(bad.exists(), "名字不合法的文件留在原处");
+    }
+}
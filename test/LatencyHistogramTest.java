@@ -0,0 +1,94 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/* 延迟直方图：小数值精确记录，大数值的相对误差小于 0.1%，多个线程同时记录不丢失次数 */
+class LatencyHistogramTest {
+
+    @Test
+    void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentile(99));
+        assertEquals(0, histogram.mean());
+    }
+
+    @Test
+    void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(1000, histogram.count());
+        assertEquals(500, histogram.percentile(50));
+        assertEquals(990, histogram.percentile(99));
+        assertEquals(1000, histogram.percentile(100));
+        assertEquals(1000, histogram.max());
+        assertEquals(500.5, histogram.mean(), 1e-9);
+    }
+
+    @Test
+    void largeValuesStayWithinRelativeError() {
+        long[] values = {2048, 3001, 65_537, 1_234_567, 987_654_321, 1L << 40, Long.MAX_VALUE / 3};
+        for (long value : values) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(value);
+            histogram.record(value * 2 / 3); // 让 max 不等于要检查的数值，百分位数来自桶的上界
+            histogram.record(value + value / 2);
+            long reported = histogram.percentile(50);
+            assertTrue(reported >= value && reported - value <= value / 1000, value + " 报告为 " + reported);
+        }
+    }
+
+    @Test
+    void percentileNeverExceedsMaxAndNegativeCountsAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(1_000_001);
+        assertEquals(0, histogram.percentile(50), "负数按 0 记录");
+        assertEquals(1_000_001, histogram.percentile(100), "桶的上界不超过记录到的最大值");
+        assertEquals(1_000_001, histogram.sum());
+    }
+
+    @Test
+    void addMergesCountsSumAndMax() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        for (int i = 0; i < 90; i++) {
+            a.record(10);
+        }
+        for (int i = 0; i < 10; i++) {
+            b.record(5000);
+        }
+        a.add(b);
+        assertEquals(100, a.count());
+        assertEquals(10, a.percentile(90));
+        assertEquals(5000, a.max());
+        assertTrue(a.percentile(91) >= 5000);
+        assertEquals(90 * 10 + 10 * 5000, a.sum());
+    }
+
+    @Test
+    void concurrentRecordsAreNotLost() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int base = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    histogram.record(base + i % 3); // 几个线程都落在相同的几个桶上
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400_000, histogram.count());
+        assertEquals(5, histogram.max());
+        assertEquals(5, histogram.percentile(100));
+    }
+}
@@ -0,0 +1,154 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/* 分段消息日志：追加和补发、按ID范围读取、崩溃后恢复、分段切换和保留 */
+class MessageLogTest {
+    @TempDir
+    File directory;
+
+    /* 补发时收到的消息，每条记为“ID 房间 文字”或者“ID 发送者>接收者 内容” */
+    private static final class Collector implements MessageLog.Visitor {
+        final List<String> messages = new ArrayList<>();
+        final List<Long> ids = new ArrayList<>();
+
+        @Override
+        public void broadcast(long id, String room, ByteBuffer frame) {
+            ids.add(id);
+            messages.add(id + " " + room + " " + MessageLog.line(frame));
+        }
+
+        @Override
+        public void privateMessage(long id, String sender, String recipient, String content) {
+            ids.add(id);
+            messages.add(id + " " + sender + ">" + recipient + " " + content);
+        }
+    }
+
+    private MessageLog open(int segmentSize, int retainSegments) throws IOException {
+        MessageLog log = new MessageLog(directory, segmentSize, retainSegments);
+        log.open();
+        return log;
+    }
+
+    private static Collector replay(MessageLog log, long fromId, long toId) {
+        Collector collector = new Collector();
+        log.replay(fromId, toId, collector);
+        return collector;
+    }
+
+    @Test
+    void appendsAndReplaysInOrder() throws IOException {
+        MessageLog log = open(0, 2);
+        assertEquals(0, log.lastId());
+        assertEquals(1, log.appendBroadcast("大厅", "alice: 你好"));
+        assertEquals(2, log.appendPrivate("alice", "bob", "多行\n内容"));
+        assertEquals(3, log.appendBroadcast("", "SERVER: 通知"));
+        assertEquals(3, log.lastId());
+
+        Collector all = new Collector();
+        assertEquals(3, log.replay(1, all));
+        assertEquals(List.of("1 大厅 alice: 你好", "2 alice>bob 多行\n内容", "3  SERVER: 通知"), all.messages);
+
+        assertEquals(List.of("2 alice>bob 多行\n内容"), replay(log, 2, 2).messages);
+        assertTrue(log.read(3, new Collector()));
+        assertFalse(log.read(4, new Collector()), "还没有写入的消息");
+    }
+
+    @Test
+    void replaysArbitraryRangesThroughTheSparseIndex() throws IOException {
+        MessageLog log = open(0, 2);
+        for (int i = 1; i <= 3000; i++) {
+            log.appendBroadcast("room", "message " + i + " " + "x".repeat(i % 50));
+        }
+        Collector range = replay(log, 2500, 2510);
+        assertEquals(11, range.ids.size());
+        for (int i = 0; i < 11; i++) {
+            assertEquals(2500 + i, range.ids.get(i));
+            assertTrue(range.messages.get(i).startsWith((2500 + i) + " room message " + (2500 + i) + " "));
+        }
+        Collector tail = new Collector();
+        assertEquals(3000, log.replay(2999, tail));
+        assertEquals(List.of(2999L, 3000L), tail.ids);
+    }
+
+    @Test
+    void recoversAfterATornWrite() throws IOException {
+        MessageLog log = open(0, 2);
+        for (int i = 1; i <= 100; i++) {
+            log.appendBroadcast("room", "message " + i);
+        }
+        File segment = new File(directory, String.format("%020d.log", 1));
+        long lastRecord = findRecord(segment, 100);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) { // 最后一条记录只写了一半：内容和 CRC 对不上
+            file.seek(lastRecord + 8 + 8 + 1 + 4);
+            file.write('#');
+        }
+
+        MessageLog recovered = open(0, 2);
+        assertEquals(99, recovered.lastId(), "不完整的记录被丢弃");
+        assertEquals(100, recovered.appendBroadcast("room", "after restart"));
+        Collector all = replay(recovered, 1, Long.MAX_VALUE);
+        assertEquals(100, all.ids.size());
+        assertEquals("100 room after restart", all.messages.get(99));
+    }
+
+    @Test
+    void rebuildsAMissingIndex() throws IOException {
+        MessageLog log = open(0, 2);
+        for (int i = 1; i <= 1000; i++) {
+            log.appendBroadcast("room", "message " + i + " " + "y".repeat(100));
+        }
+        assertTrue(new File(directory, String.format("%020d.index", 1)).delete());
+
+        MessageLog recovered = open(0, 2);
+        assertEquals(1000, recovered.lastId());
+        assertEquals(List.of(500L, 501L), replay(recovered, 500, 501).ids);
+    }
+
+    @Test
+    void rollsSegmentsAndKeepsOnlyTheNewest() throws IOException {
+        MessageLog log = open(0, 2); // 分段最小 1MB
+        String padding = "z".repeat(1000);
+        for (int i = 1; i <= 4000; i++) { // 大约 4MB，需要切换好几次分段
+            log.appendBroadcast("room", i + " " + padding);
+        }
+        String[] segments = directory.list((dir, name) -> name.endsWith(".log"));
+        assertEquals(2, segments.length, "只保留最近的两个分段");
+        assertTrue(log.firstId() > 1);
+
+        Collector all = new Collector();
+        assertEquals(4000, log.replay(1, all), "已经删除的消息直接跳过");
+        assertEquals(log.firstId(), all.ids.get(0));
+        assertEquals(4000 - log.firstId() + 1, all.ids.size());
+        assertFalse(log.read(1, new Collector()));
+
+        MessageLog reopened = open(0, 2);
+        assertEquals(log.firstId(), reopened.firstId());
+        assertEquals(4001, reopened.appendBroadcast("room", "next"));
+    }
+
+    /* 在分段文件中找到消息 id 的记录的位置（4 字节长度 + 4 字节 CRC + 8 字节消息ID + ...） */
+    private static long findRecord(File segment, long id) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segment, "r")) {
+            long position = 0;
+            while (true) {
+                file.seek(position);
+                int length = file.readInt();
+                file.readInt();
+                if (file.readLong() == id) {
+                    return position;
+                }
+                position += 8 + length;
+            }
+        }
+    }
+}
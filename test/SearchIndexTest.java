@@ -0,0 +1,163 @@
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/* 聊天记录的全文索引：分词、BM25 排序、私聊可见性、索引段的持久化和重建，以及常用词只检查最新的候选消息 */
+class SearchIndexTest {
+    static {
+        System.setProperty("chat.searchMaxScan", "2000"); // 在 SearchIndex 初始化之前设置，测试中用较小的数量
+    }
+
+    @TempDir
+    File directory;
+    private MessageLog log;
+    private SearchIndex index;
+
+    @BeforeEach
+    void open() throws IOException {
+        log = new MessageLog(new File(directory, "log"), 0, 100);
+        log.open();
+        index = open(1_000_000); // 默认全部留在内存中的活动段
+    }
+
+    private SearchIndex open(int flushDocs) throws IOException {
+        SearchIndex opened = new SearchIndex(new File(directory, "index"), flushDocs);
+        opened.open(log);
+        return opened;
+    }
+
+    /* 与服务端一样：在日志的锁内按消息ID的顺序写日志、加入索引 */
+    private long say(String user, String text) throws IOException {
+        synchronized (log) {
+            long id = log.appendBroadcast("大厅", user + ": " + text);
+            index.add(id, SearchIndex.terms(user + ": " + text), null);
+            return id;
+        }
+    }
+
+    private long whisper(String sender, String recipient, String text) throws IOException {
+        synchronized (log) {
+            long id = log.appendPrivate(sender, recipient, text);
+            index.add(id, SearchIndex.terms(sender + ": " + text), sender + "\n" + recipient);
+            return id;
+        }
+    }
+
+    private static List<Long> ids(List<SearchIndex.Hit> hits) {
+        List<Long> ids = new ArrayList<>();
+        for (SearchIndex.Hit hit : hits) {
+            ids.add(hit.id);
+        }
+        return ids;
+    }
+
+    @Test
+    void tokenizesWordsAndCjkBigrams() {
+        assertEquals(java.util.Map.of("hello", 2, "world", 1), SearchIndex.terms("Hello, hello WORLD!"));
+        assertEquals(java.util.Map.of("你好", 1, "好世", 1, "世界", 1, "界", 1), SearchIndex.terms("你好世界"));
+        List<SearchIndex.QueryTerm> query = SearchIndex.parseQuery("  deploy*  世 ");
+        assertEquals(2, query.size());
+        assertEquals("deploy", query.get(0).text);
+        assertTrue(query.get(0).prefix, "词* 按前缀匹配");
+        assertEquals("世", query.get(1).text);
+        assertTrue(query.get(1).prefix, "单个中日韩文字按前缀匹配");
+    }
+
+    @Test
+    void allTermsMustMatchAndBetterMatchesRankFirst() throws IOException {
+        long once = say("alice", "the build is broken");
+        long twice = say("bob", "broken broken build again");
+        say("carol", "lunch anyone");
+        long other = say("dave", "the build passed");
+        assertEquals(List.of(twice, once), ids(index.search("build broken", "alice", 10)), "词频高的在前，两个词都要出现");
+        assertEquals(List.of(other, twice, once), ids(index.search("build", "alice", 10)), "分数相同时新消息在前");
+        assertEquals(List.of(other), ids(index.search("build", "alice", 1)));
+        assertEquals(List.of(), ids(index.search("build lunch", "alice", 10)));
+        assertEquals(List.of(), ids(index.search("   ", "alice", 10)));
+    }
+
+    @Test
+    void prefixAndCjkQueriesMatch() throws IOException {
+        long deploy = say("alice", "deploying now");
+        long deployed = say("bob", "deployed yesterday");
+        long chinese = say("carol", "今天发布新版本");
+        long single = say("dave", "好");
+        assertEquals(List.of(deployed, deploy), ids(index.search("deploy*", "x", 10)));
+        assertEquals(List.of(chinese), ids(index.search("发布", "x", 10)));
+        assertEquals(List.of(chinese), ids(index.search("版", "x", 10)), "单个字找到它在词中间出现的位置");
+        assertEquals(List.of(single), ids(index.search("好", "x", 10)), "单独一个字的消息");
+    }
+
+    @Test
+    void privateMessagesAreOnlyVisibleToParticipants() throws IOException {
+        long secret = whisper("alice", "bob", "the password is swordfish");
+        long open = say("carol", "swordfish for dinner");
+        assertEquals(List.of(open, secret), ids(index.search("swordfish", "alice", 10)));
+        assertEquals(List.of(open, secret), ids(index.search("swordfish", "bob", 10)));
+        assertEquals(List.of(open), ids(index.search("swordfish", "carol", 10)));
+    }
+
+    @Test
+    void segmentsArePersistedAndRebuiltFromTheLog() throws Exception {
+        index = open(1024);
+        List<Long> expected = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            long id = say("user" + (i % 7), "message " + i + (i % 500 == 0 ? " milestone" : ""));
+            if (i % 500 == 0) {
+                expected.add(0, id);
+            }
+        }
+        File segments = new File(directory, "index");
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (segments.list((dir, name) -> name.endsWith(".seg")).length < 2) { // 冻结的段由后台线程写出
+            assertTrue(System.currentTimeMillis() < deadline, "索引段没有写出");
+            Thread.sleep(20);
+        }
+        assertEquals(expected, ids(index.search("milestone", "x", 10)));
+
+        SearchIndex reopened = open(1024); // 加载索引段，再从日志补建活动段中还没写出的消息
+        assertEquals(expected, ids(reopened.search("milestone", "x", 10)));
+        assertEquals(List.of(3000L), ids(reopened.search("2999", "x", 10)));
+
+        for (File file : segments.listFiles()) {
+            assertTrue(file.delete());
+        }
+        SearchIndex rebuilt = open(1024); // 索引段全部丢失时从日志重建
+        assertEquals(expected, ids(rebuilt.search("milestone", "x", 10)));
+    }
+
+    @Test
+    void commonTermsOnlyRankTheNewestCandidates() throws IOException {
+        long old = say("alice", "common common common old"); // 词频最高，但是在最新的 2000 条候选之外
+        for (int i = 0; i < 9000; i++) {
+            say("bob", "common filler " + i);
+        }
+        long recent = say("carol", "common common recent");
+        for (int i = 0; i < 100; i++) {
+            say("bob", "common filler tail " + i);
+        }
+        List<Long> hits = ids(index.search("common", "x", 5));
+        assertEquals(recent, hits.get(0), "检查范围内词频最高的消息");
+        assertFalse(hits.contains(old), "超过检查数量的早期消息不参与排序");
+        assertEquals(List.of(old), ids(index.search("common old", "x", 5)), "不常用的词仍然能找到早期的消息");
+    }
+
+    @Test
+    void candidatesConcentratedEarlyInASegmentAreStillFound() throws IOException {
+        List<Long> early = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            early.add(0, say("alice", "skewed " + i)); // 比检查数量多，但都集中在段的前面
+        }
+        for (int i = 0; i < 6000; i++) {
+            say("bob", "unrelated " + i);
+        }
+        assertEquals(early.subList(0, 10), ids(index.search("skewed", "x", 10)), "窗口向前加倍，找到最新的匹配");
+    }
+}
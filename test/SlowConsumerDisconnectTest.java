@@ -0,0 +1,33 @@
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/* -Dchat.slowConsumer=DISCONNECT：发送队列满时断开读得慢的客户端，其他客户端不受影响 */
+class SlowConsumerDisconnectTest {
+    private static InetSocketAddress server;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        System.setProperty("chat.outboundLimit", "16");
+        System.setProperty("chat.slowConsumer", "DISCONNECT");
+        server = ServerBenchmarks.server();
+    }
+
+    @Test
+    void disconnectsSlowConsumerOnly() throws Exception {
+        try (TestClient slow = new TestClient(server, 4096).login("slow-disconnect");
+             TestClient sender = new TestClient(server).login("sender-disconnect")) {
+            slow.send(ChatProtocol.JOIN_ROOM, "flood-disconnect");
+            sender.send(ChatProtocol.JOIN_ROOM, "flood-disconnect");
+            sender.expect(ChatProtocol.USERS, "slow-disconnect");
+            SlowConsumerTest.flood(sender);
+
+            assertTrue(slow.closedByServer(10_000), "读得慢的客户端应当被断开");
+            sender.send(ChatProtocol.CHAT, "after");
+            sender.expect(ChatProtocol.CHAT_MESSAGE, "sender-disconnect: after");
+        }
+    }
+}
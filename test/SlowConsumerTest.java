@@ -0,0 +1,73 @@
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/* 发送队列满时默认丢弃最旧的消息：接收方最终收到最新的消息，顺序不变，连接保持 */
+class SlowConsumerTest {
+    static final int MESSAGES = 3000;
+    private static InetSocketAddress server;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        System.setProperty("chat.outboundLimit", "16");
+        System.setProperty("chat.slowConsumer", "DROP_OLDEST");
+        server = ServerBenchmarks.server();
+    }
+
+    /* sender 向所在的房间连续发送 MESSAGES 条 4KB 的消息，一边读走自己收到的广播，直到收到最后一条 */
+    static void flood(TestClient sender) throws Exception {
+        Random random = new Random(1);
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 4096; i++) {
+            padding.append((char) ('!' + random.nextInt(94))); // 随机的可见字符，压缩后仍然有 3KB 以上，不会全部塞进 TCP 缓冲区
+        }
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 0; i < MESSAGES; i++) {
+                    ChatProtocol.writeFrame(sender.out, ChatProtocol.CHAT, "flood " + i + " " + padding);
+                }
+                sender.out.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        writer.start();
+        sender.expect(ChatProtocol.CHAT_MESSAGE, "flood " + (MESSAGES - 1) + " ");
+        writer.join();
+    }
+
+    /* 消息内容中的序号 */
+    static int sequence(String payload) {
+        int start = payload.indexOf("flood ") + 6;
+        return Integer.parseInt(payload.substring(start, payload.indexOf(' ', start)));
+    }
+
+    @Test
+    void dropsOldestMessagesAndKeepsConnection() throws Exception {
+        try (TestClient slow = new TestClient(server, 4096).login("slow-drop");
+             TestClient sender = new TestClient(server).login("sender-drop")) {
+            slow.send(ChatProtocol.JOIN_ROOM, "flood-drop");
+            sender.send(ChatProtocol.JOIN_ROOM, "flood-drop");
+            sender.expect(ChatProtocol.USERS, "slow-drop");
+            flood(sender);
+
+            List<Integer> received = new ArrayList<>();
+            while (received.isEmpty() || received.get(received.size() - 1) < MESSAGES - 1) {
+                ChatProtocol.Frame frame = slow.expect(ChatProtocol.CHAT_MESSAGE, "flood ");
+                received.add(sequence(frame.payload));
+            }
+            assertTrue(received.size() < MESSAGES, "应当丢弃了一部分消息，实际收到 " + received.size());
+            for (int i = 1; i < received.size(); i++) {
+                assertTrue(received.get(i) > received.get(i - 1), "丢弃旧消息后顺序不变");
+            }
+            assertFalse(slow.closedByServer(200), "丢弃策略下连接保持打开");
+        }
+    }
+}
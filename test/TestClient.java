@@ -0,0 +1,101 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/* 测试用的二进制协议客户端：在调用线程中同步读取，等待某种帧时跳过其他帧，读取超过 10 秒视为失败 */
+final class TestClient implements Closeable {
+    final Socket socket;
+    final DataInputStream in;
+    final DataOutputStream out;
+    String token; // 登录后收到的上传令牌
+
+    TestClient(InetSocketAddress server) throws IOException {
+        this(server, 0);
+    }
+
+    /* receiveBuffer 不为 0 时设置接收缓冲区的大小，模拟读得很慢的客户端 */
+    TestClient(InetSocketAddress server, int receiveBuffer) throws IOException {
+        socket = new Socket();
+        if (receiveBuffer > 0) {
+            socket.setReceiveBufferSize(receiveBuffer); // 必须在连接之前设置，TCP 窗口在握手时确定
+        }
+        socket.connect(server);
+        socket.setSoTimeout(10_000);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        out.write(ChatProtocol.handshake(ChatProtocol.VERSION));
+        out.flush();
+        in.readFully(new byte[ChatProtocol.HANDSHAKE_LENGTH]);
+    }
+
+    /* 登录并等到进入大厅 */
+    TestClient login(String name) throws IOException {
+        send(ChatProtocol.LOGIN, name);
+        expect(ChatProtocol.ROOM);
+        return this;
+    }
+
+    void send(byte type, String payload) throws IOException {
+        ChatProtocol.writeFrame(out, type, payload);
+        out.flush();
+    }
+
+    /* 读到指定类型的帧为止，连接关闭时抛出 EOFException */
+    ChatProtocol.Frame expect(byte type) throws IOException {
+        while (true) {
+            ChatProtocol.Frame frame = ChatProtocol.readFrame(in);
+            if (frame == null) {
+                throw new EOFException("等待帧 " + type + " 时连接被关闭");
+            }
+            if (frame.type == ChatProtocol.SESSION) {
+                token = frame.payload;
+            }
+            if (frame.type == type) {
+                return frame;
+            }
+        }
+    }
+
+    /* 读到指定类型、负载包含 text 的帧为止 */
+    ChatProtocol.Frame expect(byte type, String text) throws IOException {
+        while (true) {
+            ChatProtocol.Frame frame = expect(type);
+            if (frame.payload.contains(text)) {
+                return frame;
+            }
+        }
+    }
+
+    /* 服务端是否在 timeoutMillis 内关闭了连接，之前收到的数据都被丢弃 */
+    boolean closedByServer(int timeoutMillis) throws IOException {
+        return closedByServer(socket, timeoutMillis);
+    }
+
+    static boolean closedByServer(Socket socket, int timeoutMillis) throws IOException {
+        int timeout = socket.getSoTimeout();
+        socket.setSoTimeout(timeoutMillis);
+        try {
+            InputStream input = socket.getInputStream();
+            byte[] buffer = new byte[8192];
+            while (true) {
+                if (input.read(buffer) < 0) {
+                    return true;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            return true; // 连接被重置
+        } finally {
+            if (!socket.isClosed()) {
+                socket.setSoTimeout(timeout);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,104 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/* 哈希时间轮：任务不会提前执行，超过一圈的任务按圈数等待，取消的任务不执行 */
+class TimerWheelTest {
+    private static final long MILLIS = 1_000_000L;
+
+    /* 像事件循环一样等到下一个刻度再推进，直到条件成立或者超时 */
+    static void runUntil(TimerWheel wheel, BooleanSupplier done, long timeoutMillis) throws InterruptedException {
+        long end = System.nanoTime() + timeoutMillis * MILLIS;
+        while (!done.getAsBoolean()) {
+            assertTrue(System.nanoTime() < end, "等待超时");
+            long wait = wheel.nanosUntilNextTick();
+            if (wait > 0) {
+                Thread.sleep(wait / MILLIS, (int) (wait % MILLIS));
+            }
+            wheel.advance();
+        }
+    }
+
+    @Test
+    void slotCountMustBePowerOfTwo() {
+        assertThrows(IllegalArgumentException.class, () -> new TimerWheel(MILLIS, 6));
+    }
+
+    @Test
+    void taskRunsOnlyAfterItsDelay() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(MILLIS, 64);
+        assertEquals(-1, wheel.nanosUntilNextTick(), "没有任务时可以一直等待");
+        long[] ranAt = {0};
+        long start = System.nanoTime();
+        wheel.schedule(() -> ranAt[0] = System.nanoTime(), 30 * MILLIS);
+        wheel.advance();
+        assertEquals(0, ranAt[0], "还没到期");
+        runUntil(wheel, () -> ranAt[0] != 0, 5000);
+        assertTrue(ranAt[0] - start >= 30 * MILLIS, "提前了: " + (ranAt[0] - start) + " 纳秒");
+        assertEquals(-1, wheel.nanosUntilNextTick());
+    }
+
+    @Test
+    void delaysLongerThanOneRoundWaitForTheirRounds() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(MILLIS, 4); // 一圈只有 4 毫秒
+        long start = System.nanoTime();
+        long[] ranAt = new long[2];
+        wheel.schedule(() -> ranAt[0] = System.nanoTime(), 25 * MILLIS);
+        wheel.schedule(() -> ranAt[1] = System.nanoTime(), 2 * MILLIS);
+        runUntil(wheel, () -> ranAt[0] != 0, 5000);
+        assertTrue(ranAt[1] != 0 && ranAt[1] < ranAt[0], "短的任务先执行");
+        assertTrue(ranAt[0] - start >= 25 * MILLIS, "转了几圈之后才执行: " + (ranAt[0] - start) + " 纳秒");
+    }
+
+    @Test
+    void tasksRunInDeadlineOrder() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(MILLIS, 8);
+        List<Integer> order = new ArrayList<>();
+        int[] delays = {40, 5, 23, 12, 31};
+        for (int delay : delays) {
+            wheel.schedule(() -> order.add(delay), delay * MILLIS);
+        }
+        runUntil(wheel, () -> order.size() == delays.length, 5000);
+        assertEquals(List.of(5, 12, 23, 31, 40), order);
+    }
+
+    @Test
+    void cancelledTaskNeverRuns() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(MILLIS, 8);
+        boolean[] ran = new boolean[2];
+        TimerWheel.Timeout cancelled = wheel.schedule(() -> ran[0] = true, 5 * MILLIS);
+        wheel.schedule(() -> ran[1] = true, 10 * MILLIS);
+        cancelled.cancel();
+        runUntil(wheel, () -> ran[1], 5000);
+        assertFalse(ran[0]);
+        assertEquals(-1, wheel.nanosUntilNextTick(), "取消的任务也从时间轮中移除了");
+    }
+
+    @Test
+    void taskScheduledFromTaskRunsAfterIt() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(MILLIS, 8);
+        List<String> ran = new ArrayList<>();
+        wheel.schedule(() -> {
+            ran.add("first");
+            wheel.schedule(() -> ran.add("second"), 0);
+        }, 2 * MILLIS);
+        runUntil(wheel, () -> ran.size() == 2, 5000); // 新任务不会混进正在遍历的这一格，在之后的刻度执行
+        assertEquals(List.of("first", "second"), ran);
+        assertEquals(-1, wheel.nanosUntilNextTick());
+    }
+
+    @Test
+    void failingTaskDoesNotStopTheOthers() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(MILLIS, 8);
+        boolean[] ran = {false};
+        wheel.schedule(() -> ran[0] = true, 3 * MILLIS);
+        wheel.schedule(() -> {
+            throw new IllegalStateException("测试中故意抛出的异常");
+        }, 3 * MILLIS); // 通常与上一个任务在同一格，排在链表前面；跨过刻度时在下一格
+        runUntil(wheel, () -> ran[0] && wheel.nanosUntilNextTick() == -1, 5000); // 异常没有从 advance 中抛出，两个任务都处理完
+    }
+}
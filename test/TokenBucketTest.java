@@ -0,0 +1,51 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/* 消息限速用的令牌桶：只有超过突发额度的那部分消息被拒绝或延迟，额度按速率补充 */
+class TokenBucketTest {
+
+    @Test
+    void burstPassesAndOnlyExcessIsRejected() {
+        ChatServer.TokenBucket bucket = new ChatServer.TokenBucket(1, 5); // 每秒补充 1 个，测试期间补充不到一个完整的令牌
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryTake(), "突发额度内的第 " + (i + 1) + " 条消息");
+        }
+        for (int i = 0; i < 3; i++) {
+            assertFalse(bucket.tryTake(), "超出额度的第 " + (i + 1) + " 条消息");
+        }
+    }
+
+    @Test
+    void rejectedMessagesDoNotRunUpDebt() {
+        ChatServer.TokenBucket bucket = new ChatServer.TokenBucket(1, 1);
+        assertTrue(bucket.tryTake());
+        for (int i = 0; i < 100; i++) {
+            assertFalse(bucket.tryTake());
+        }
+        long wait = bucket.nanosUntilNext(); // 被拒绝的消息不欠账，最多等一个令牌的时间
+        assertTrue(wait > 0 && wait <= 1_000_000_000L, "等待 " + wait + " 纳秒");
+    }
+
+    @Test
+    void tokensRefillAtRateUpToBurst() throws InterruptedException {
+        ChatServer.TokenBucket bucket = new ChatServer.TokenBucket(1000, 3);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(bucket.tryTake());
+        }
+        Thread.sleep(50); // 按速率能补充 50 个，但最多积攒 3 个
+        int passed = 0;
+        while (bucket.tryTake()) {
+            passed++;
+        }
+        assertEquals(3, passed);
+    }
+
+    @Test
+    void takeDelaysOnlyTheExcess() {
+        ChatServer.TokenBucket bucket = new ChatServer.TokenBucket(1000, 10);
+        assertEquals(0, bucket.take(10), "额度内不需要等待");
+        long wait = bucket.take(5); // 欠 5 个令牌，每毫秒补充 1 个
+        assertTrue(wait > 0 && wait <= 5_000_000L, "等待 " + wait + " 纳秒");
+    }
+}